@@ -0,0 +1,389 @@
+import java.util.*;
+import com.google.common.collect.*;
+import Jama.*;
+
+/**
+ * Chooses which points of a scan lattice to compute next, so that the expensive calculations
+ * go where the surface is interesting instead of everywhere.<p>
+ * The first wave is a coarse sublattice: every coarseStride-th index along each axis, plus the
+ * last index.  Each finished coarse point is then examined using its finished neighbors on the
+ * same sublattice.  A three-point stencil along each axis gives the gradient and curvature, and
+ * the four diagonal neighbors give the mixed second derivatives.  The Hessian is diagonalized.
+ * A point is interesting if, along some eigenvector v with a significant eigenvalue lambda, the
+ * Newton step |g.v| / |lambda| is shorter than the stride.  Then the minimum (lambda &gt; 0) or
+ * maximum (lambda &lt; 0) along v lies within one stride of the point.  This picks out minima,
+ * saddle points and the floors of valleys.  It ignores flat regions and steady slopes.  An
+ * eigenvalue is significant if it changes the energy over one stride by more than threshold
+ * times the median energy change per stride at that level.<p>
+ * The neighbors of each interesting point on the next finer sublattice (half the stride) are
+ * requested.  Once they are finished, the same test is repeated at the finer level, down to a
+ * stride of one.  Derivatives are per lattice step, so axes with different units are treated
+ * alike.  Lattice points are numbered as in ScanEngine, with the last axis changing fastest.<p>
+ * This class is mutable.
+ */
+public class AdaptiveGrid
+{
+    /** the default fraction of the median energy change that counts as significant curvature */
+    public static final double DEFAULT_THRESHOLD = 0.1;
+
+    /** the number of lattice positions along each axis */
+    private final int[] counts;
+
+    /** the product of the counts of all the later axes, for each axis */
+    private final int[] strides;
+
+    /** the spacing of the first wave */
+    public final int coarseStride;
+
+    /** the fraction of the median energy change that counts as significant curvature */
+    public final double threshold;
+
+    /** the finished points, keyed by point number */
+    private final Map<Integer,Double> energies = new HashMap<>();
+
+    /**
+     * Creates an empty grid.
+     * @param counts the number of lattice positions along each axis
+     * @param coarseStride the spacing of the first wave, which must be a power of two
+     * @param threshold the fraction of the median energy change that counts as significant curvature
+     */
+    public AdaptiveGrid(int[] counts, int coarseStride, double threshold)
+    {
+        if ( counts.length == 0 )
+            throw new IllegalArgumentException("need at least one axis");
+        if ( coarseStride < 1 || Integer.bitCount(coarseStride) != 1 )
+            throw new IllegalArgumentException("coarse stride must be a power of two: " + coarseStride);
+        if ( !(threshold >= 0.0) )
+            throw new IllegalArgumentException("threshold cannot be negative");
+        this.counts = counts.clone();
+        this.coarseStride = coarseStride;
+        this.threshold = threshold;
+        this.strides = new int[counts.length];
+        long total = 1L;
+        for (int d=counts.length-1; d >= 0; d--)
+            {
+                if ( counts[d] < 1 )
+                    throw new IllegalArgumentException("every axis needs at least one position");
+                strides[d] = (int)total;
+                total *= counts[d];
+                if ( total > Integer.MAX_VALUE )
+                    throw new IllegalArgumentException("too many points");
+            }
+    }
+
+    /** returns the point number of some lattice indices */
+    public int getPoint(int[] indices)
+    {
+        int point = 0;
+        for (int d=0; d < counts.length; d++)
+            {
+                if ( indices[d] < 0 || indices[d] >= counts[d] )
+                    throw new IllegalArgumentException("index out of range: " + Arrays.toString(indices));
+                point += indices[d] * strides[d];
+            }
+        return point;
+    }
+
+    /** returns the lattice indices of a point number */
+    public int[] getIndices(int point)
+    {
+        int[] indices = new int[counts.length];
+        for (int d=0; d < counts.length; d++)
+            {
+                indices[d] = point / strides[d];
+                point -= indices[d] * strides[d];
+            }
+        return indices;
+    }
+
+    /**
+     * Records the energy of a finished point.  A later energy for the same point replaces the earlier one.
+     * @param indices the lattice indices
+     * @param energy the energy, in any unit
+     */
+    public void addEnergy(int[] indices, double energy)
+    {
+        if ( Double.isNaN(energy) || Double.isInfinite(energy) )
+            throw new IllegalArgumentException("energy must be finite");
+        energies.put(getPoint(indices), energy);
+    }
+
+    /** returns the number of finished points */
+    public int size()
+    {
+        return energies.size();
+    }
+
+    /** returns true if position i is on the sublattice with the given stride along an axis with count positions */
+    private static boolean onLevel(int i, int stride, int count)
+    {
+        return i % stride == 0 || i == count - 1;
+    }
+
+    /** returns the next position on the sublattice after i, or -1 if there is none */
+    private static int next(int i, int stride, int count)
+    {
+        if ( i >= count - 1 )
+            return -1;
+        return Math.min(( i / stride + 1 ) * stride, count - 1);
+    }
+
+    /** returns the previous position on the sublattice before i, or -1 if there is none */
+    private static int previous(int i, int stride)
+    {
+        if ( i <= 0 )
+            return -1;
+        return ( ( i - 1 ) / stride ) * stride;
+    }
+
+    /**
+     * Returns the points that should be computed next: the unfinished points of the coarse
+     * sublattice, and the unfinished neighbors of every interesting point.
+     * @return point numbers in ascending order
+     */
+    public List<Integer> getNextPoints()
+    {
+        SortedSet<Integer> requested = new TreeSet<>();
+        int dimensions = counts.length;
+
+        // the first wave
+        int[] indices = new int[dimensions];
+        addSublattice(0, indices, coarseStride, requested);
+
+        // refine around interesting points, from coarse to fine
+        for (int stride=coarseStride; stride > 1; stride /= 2)
+            {
+                Map<Integer,double[]> analyses = new HashMap<>();
+                List<Double> changes = new ArrayList<>();
+                for (Integer point : energies.keySet())
+                    {
+                        int[] p = getIndices(point);
+                        boolean onThisLevel = true;
+                        for (int d=0; d < dimensions; d++)
+                            onThisLevel = onThisLevel && onLevel(p[d], stride, counts[d]);
+                        if ( !onThisLevel )
+                            continue;
+                        double[] analysis = analyze(p, stride);
+                        if ( analysis == null )
+                            continue;
+                        analyses.put(point, analysis);
+                        changes.add(analysis[0]);
+                    }
+                if ( analyses.size() == 0 )
+                    continue;
+
+                // the typical energy change over one stride at this level
+                Collections.sort(changes);
+                double typical = changes.get(changes.size()/2);
+                double significant = threshold * typical;
+
+                int half = stride / 2;
+                for (Map.Entry<Integer,double[]> entry : analyses.entrySet())
+                    {
+                        if ( !isInteresting(entry.getValue(), stride, significant) )
+                            continue;
+                        addNeighbors(0, getIndices(entry.getKey()), new int[dimensions], half, requested);
+                    }
+            }
+
+        requested.removeAll(energies.keySet());
+        return ImmutableList.copyOf(requested);
+    }
+
+    /** adds every point of the sublattice to requested */
+    private void addSublattice(int axis, int[] indices, int stride, Set<Integer> requested)
+    {
+        if ( axis == counts.length )
+            {
+                requested.add(getPoint(indices));
+                return;
+            }
+        for (int i=0; i >= 0; i=next(i, stride, counts[axis]))
+            {
+                indices[axis] = i;
+                addSublattice(axis+1, indices, stride, requested);
+            }
+    }
+
+    /** adds the neighbors of center on the sublattice with the given stride to requested */
+    private void addNeighbors(int axis, int[] center, int[] indices, int stride, Set<Integer> requested)
+    {
+        if ( axis == counts.length )
+            {
+                requested.add(getPoint(indices));
+                return;
+            }
+        int c = center[axis];
+        int[] candidates = { previous(c, stride), c, next(c, stride, counts[axis]) };
+        for (int i : candidates)
+            {
+                if ( i < 0 )
+                    continue;
+                indices[axis] = i;
+                addNeighbors(axis+1, center, indices, stride, requested);
+            }
+    }
+
+    /** returns the energy at p with axis d moved to position i, or NaN if it is not finished */
+    private double getEnergy(int[] p, int d, int i)
+    {
+        int saved = p[d];
+        p[d] = i;
+        Double energy = energies.get(getPoint(p));
+        p[d] = saved;
+        return energy == null ? Double.NaN : energy;
+    }
+
+    /**
+     * Estimates the gradient and Hessian at p from its finished neighbors on the sublattice.
+     * @return { energy change per stride, g1, ..., gn, H11, H12, ..., Hnn } in lattice units,
+     * or null if some axis lacks a three-point stencil
+     */
+    private double[] analyze(int[] p, int stride)
+    {
+        int n = counts.length;
+        double[] result = new double[1 + n + n*n];
+        double e0 = energies.get(getPoint(p));
+        double[] previousPosition = new double[n];
+        double[] nextPosition = new double[n];
+        double change = 0.0;
+        for (int d=0; d < n; d++)
+            {
+                if ( counts[d] < 3 )
+                    return null;
+                int x = p[d];
+
+                // choose three positions on this axis: centered if possible, otherwise one-sided
+                int a = previous(x, stride);
+                int b = next(x, stride, counts[d]);
+                int x0, x1, x2;
+                if ( a >= 0 && b >= 0 )
+                    {
+                        x0 = a; x1 = x; x2 = b;
+                    }
+                else if ( a < 0 )
+                    {
+                        x0 = x; x1 = b; x2 = next(b, stride, counts[d]);
+                    }
+                else
+                    {
+                        x2 = x; x1 = a; x0 = previous(a, stride);
+                    }
+                if ( x0 < 0 || x1 < 0 || x2 < 0 )
+                    return null;
+                double f0 = x0 == x ? e0 : getEnergy(p, d, x0);
+                double f1 = x1 == x ? e0 : getEnergy(p, d, x1);
+                double f2 = x2 == x ? e0 : getEnergy(p, d, x2);
+                if ( Double.isNaN(f0) || Double.isNaN(f1) || Double.isNaN(f2) )
+                    return null;
+
+                // derivatives of the interpolating parabola at x
+                double h0 = x1 - x0;
+                double h1 = x2 - x1;
+                double d01 = ( f1 - f0 ) / h0;
+                double d12 = ( f2 - f1 ) / h1;
+                double curvature = 2.0 * ( d12 - d01 ) / ( h0 + h1 );
+                double gradient = d01 + 0.5 * curvature * ( ( x - x0 ) + ( x - x1 ) );
+                result[1 + d] = gradient;
+                result[1 + n + d*n + d] = curvature;
+                change += gradient * gradient;
+                previousPosition[d] = a;
+                nextPosition[d] = b;
+            }
+        result[0] = Math.sqrt(change) * stride;
+
+        // mixed derivatives from the four diagonal neighbors, where they exist
+        for (int d=0; d < n; d++)
+            {
+                for (int e=d+1; e < n; e++)
+                    {
+                        if ( previousPosition[d] < 0 || nextPosition[d] < 0 || previousPosition[e] < 0 || nextPosition[e] < 0 )
+                            continue;
+                        int savedD = p[d];
+                        int savedE = p[e];
+                        double sum = 0.0;
+                        boolean complete = true;
+                        for (int sd=-1; sd <= 1 && complete; sd += 2)
+                            {
+                                for (int se=-1; se <= 1 && complete; se += 2)
+                                    {
+                                        p[d] = (int)( sd < 0 ? previousPosition[d] : nextPosition[d] );
+                                        p[e] = (int)( se < 0 ? previousPosition[e] : nextPosition[e] );
+                                        Double energy = energies.get(getPoint(p));
+                                        if ( energy == null )
+                                            complete = false;
+                                        else
+                                            sum += sd * se * energy;
+                                    }
+                            }
+                        p[d] = savedD;
+                        p[e] = savedE;
+                        if ( !complete )
+                            continue;
+                        double mixed = sum / ( ( nextPosition[d] - previousPosition[d] ) * ( nextPosition[e] - previousPosition[e] ) );
+                        result[1 + n + d*n + e] = mixed;
+                        result[1 + n + e*n + d] = mixed;
+                    }
+            }
+        return result;
+    }
+
+    /** applies the Newton-step test described in the class comment */
+    private boolean isInteresting(double[] analysis, int stride, double significant)
+    {
+        int n = counts.length;
+        double[][] hessian = new double[n][n];
+        for (int d=0; d < n; d++)
+            for (int e=0; e < n; e++)
+                hessian[d][e] = analysis[1 + n + d*n + e];
+        EigenvalueDecomposition decomposition = new Matrix(hessian).eig();
+        double[] eigenvalues = decomposition.getRealEigenvalues();
+        Matrix eigenvectors = decomposition.getV();
+        for (int k=0; k < n; k++)
+            {
+                double lambda = Math.abs(eigenvalues[k]);
+                if ( lambda * stride * stride <= significant )
+                    continue;
+                double projection = 0.0;
+                for (int d=0; d < n; d++)
+                    projection += analysis[1 + d] * eigenvectors.get(d, k);
+                if ( Math.abs(projection) < lambda * stride )
+                    return true;
+            }
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("AdaptiveGrid %s, coarse stride %d: %d finished points", Arrays.toString(counts), coarseStride, energies.size());
+    }
+
+    /** for testing: refines a model surface with two minima and a saddle point and compares the cost with a full grid */
+    public static void main(String[] args)
+    {
+        int[] counts = { 40, 40 };
+        AdaptiveGrid grid = new AdaptiveGrid(counts, 8, DEFAULT_THRESHOLD);
+        int wave = 0;
+        while (true)
+            {
+                List<Integer> next = grid.getNextPoints();
+                if ( next.size() == 0 )
+                    break;
+                wave++;
+                for (Integer point : next)
+                    {
+                        int[] p = grid.getIndices(point);
+                        double x = p[0] / 39.0 * 4.0 - 2.0;
+                        double y = p[1] / 39.0 * 4.0 - 2.0;
+                        // a quartic double well: minima at (-1,-0.3) and (1,0.3) joined through a saddle at the origin,
+                        // along a valley that runs the whole width of the grid, so the valley floor is refined everywhere
+                        double energy = ( x*x - 1.0 ) * ( x*x - 1.0 ) + 2.0 * ( y - 0.3*x ) * ( y - 0.3*x );
+                        grid.addEnergy(p, energy);
+                    }
+                System.out.printf("wave %d: %d new points\n", wave, next.size());
+            }
+        System.out.printf("%s (a full grid has %d points, %.1f times as many)\n", grid.toString(), counts[0] * counts[1],
+                          counts[0] * counts[1] / (double)grid.size());
+    }
+}
@@ -33,6 +33,8 @@ public class AtomTorsion extends AbstractTorsion
         this.atom3 = atom3;
         this.atom4 = atom4;
         this.molecule = molecule;
+        if ( molecule.isRingBond(molecule.getAtomNumber(atom2), molecule.getAtomNumber(atom3)) )
+            throw new IllegalArgumentException("cannot make a torsion about a ring bond: " + molecule.getAtomString(atom2) + "-" + molecule.getAtomString(atom3));
         atomsToRotate = ImmutableList.copyOf(molecule.getHalfGraph(atom2, atom3));
     }
 
@@ -53,18 +55,18 @@ public class AtomTorsion extends AbstractTorsion
     /** returns an IndexTorsion version of this AtomTorsion */
     public IndexTorsion getIndexTorsion()
     {
-        int index1 = molecule.contents.indexOf(atom1) + 1;
-        int index2 = molecule.contents.indexOf(atom2) + 1;
-        int index3 = molecule.contents.indexOf(atom3) + 1;
-        int index4 = molecule.contents.indexOf(atom4) + 1;
+        int index1 = molecule.getAtomNumber(atom1);
+        int index2 = molecule.getAtomNumber(atom2);
+        int index3 = molecule.getAtomNumber(atom3);
+        int index4 = molecule.getAtomNumber(atom4);
 
-        // check indices; if 0, then there's no such Atom
-        if ( index1 == 0 || index2 == 0 || index3 == 0 || index4 == 0 )
+        // check indices; if -1, then there's no such Atom
+        if ( index1 == -1 || index2 == -1 || index3 == -1 || index4 == -1 )
             throw new IllegalArgumentException("Atom index error in AtomTorsion!");
 
         List<Integer> atomNumbersToRotate = new LinkedList<>();
         for (Atom a : atomsToRotate)
-            atomNumbersToRotate.add(molecule.contents.indexOf(a)+1);
+            atomNumbersToRotate.add(molecule.getAtomNumber(a));
         atomNumbersToRotate = ImmutableList.copyOf(atomNumbersToRotate);
 
         return new IndexTorsion(index1, index2, index3, index4, atomNumbersToRotate);
@@ -2,8 +2,6 @@ import java.util.*;
 import java.io.*;
 import com.google.common.collect.*;
 import org.apache.commons.math3.geometry.euclidean.threed.*;
-import org.jgrapht.*;
-import org.jgrapht.graph.*;
 
 /**
  * Reads in a series of output files.  For each output file, a series of
@@ -19,31 +17,10 @@ public class AutoFreeze
      * @return the molecule with the new connectivity graph
      */
     public static Molecule copyConnectivity(Molecule templateMolecule, Molecule inputMolecule) {
-        SimpleWeightedGraph<Atom,DefaultWeightedEdge> oldConnectivity = templateMolecule.connectivity;
-        SimpleWeightedGraph<Atom,DefaultWeightedEdge> newConnectivity = new SimpleWeightedGraph<Atom,DefaultWeightedEdge>(DefaultWeightedEdge.class);
-        List<Atom> newContents = new ArrayList<>(inputMolecule.contents);
-        for (Atom a : newContents)
-            newConnectivity.addVertex(a);
-        for (DefaultWeightedEdge e : oldConnectivity.edgeSet())
-            {
-                // get old edge data
-                Double bondOrder      = oldConnectivity.getEdgeWeight(e);
-                Atom templateFromAtom = oldConnectivity.getEdgeSource(e);
-                Atom templateToAtom   = oldConnectivity.getEdgeTarget(e);
-				int templateFromIndex = templateMolecule.contents.indexOf(templateFromAtom);
-                int templateToIndex   = templateMolecule.contents.indexOf(templateToAtom);
-                if ( templateFromIndex < 0 || templateToIndex < 0 )
-                    throw new IllegalArgumentException("check indices");
-                Atom inputFromAtom    = newContents.get(templateFromIndex);
-                Atom inputToAtom      = newContents.get(templateToIndex);
-
-                // create new edge
-                if (! newContents.contains(inputFromAtom) || ! newContents.contains(inputToAtom))
-                    System.out.println("FromAtom: " + inputMolecule.getAtomString(inputFromAtom) +  " ToAtom: " + inputMolecule.getAtomString(inputToAtom));
-                DefaultWeightedEdge newEdge = newConnectivity.addEdge(inputFromAtom,inputToAtom);
-                newConnectivity.setEdgeWeight(newEdge, bondOrder);
-            }
-        return new Molecule(inputMolecule.name, newContents, newConnectivity, inputMolecule.energy);
+        // the topology is index-based, so it can be shared as long as the atoms are in the same order
+        if ( templateMolecule.contents.size() != inputMolecule.contents.size() )
+            throw new IllegalArgumentException("check indices");
+        return new Molecule(inputMolecule.name, inputMolecule.contents, templateMolecule.topology, inputMolecule.energy);
     }
 
     public static void main(String[] args)
@@ -0,0 +1,192 @@
+import java.util.*;
+
+/**
+ * A uniform grid over a set of points for fast neighbor searches.  Space is divided
+ * into cubic cells and the points in each cell are stored contiguously, so finding
+ * all the points within a cutoff of a query point only requires looking at nearby
+ * cells.  Building the grid and each query take time proportional to the number of
+ * points involved rather than the total number of points.<p>
+ * Points are given as packed coordinates x1, y1, z1, x2, ... and are referred to by
+ * index (0, 1, ..., n-1).  The coordinates are not copied, so they must not be
+ * modified while this object is in use.
+ */
+public class CellList implements Immutable
+{
+    /** the maximum number of cells per point; the cells are enlarged for sparse systems */
+    private static final int MAX_CELLS_PER_POINT = 8;
+
+    /** the packed coordinates */
+    private final double[] xyz;
+
+    /** the number of points */
+    public final int size;
+
+    /** the edge length of each cell in angstroms */
+    public final double cellSize;
+
+    /** the lower corner of the grid */
+    private final double minX, minY, minZ;
+
+    /** the number of cells along each axis */
+    private final int nx, ny, nz;
+
+    /** the points in cell c are cellAtoms[cellStart[c]] ... cellAtoms[cellStart[c+1]-1], in ascending order */
+    private final int[] cellStart;
+    private final int[] cellAtoms;
+
+    /**
+     * Builds a cell list.
+     * @param xyz packed coordinates of the points
+     * @param cellSize the requested cell edge length; searches are fastest when this is close to the search cutoff
+     */
+    public CellList(double[] xyz, double cellSize)
+    {
+        if ( xyz.length % 3 != 0 )
+            throw new IllegalArgumentException("coordinate array length must be a multiple of three");
+        if ( !(cellSize > 0.0) )
+            throw new IllegalArgumentException("cell size must be positive");
+        this.xyz = xyz;
+        this.size = xyz.length / 3;
+
+        // determine the bounding box
+        double minX = 0.0, minY = 0.0, minZ = 0.0;
+        double maxX = 0.0, maxY = 0.0, maxZ = 0.0;
+        if ( size > 0 )
+            {
+                minX = maxX = xyz[0];
+                minY = maxY = xyz[1];
+                minZ = maxZ = xyz[2];
+            }
+        for (int i=1; i < size; i++)
+            {
+                minX = Math.min(minX, xyz[3*i]);
+                maxX = Math.max(maxX, xyz[3*i]);
+                minY = Math.min(minY, xyz[3*i+1]);
+                maxY = Math.max(maxY, xyz[3*i+1]);
+                minZ = Math.min(minZ, xyz[3*i+2]);
+                maxZ = Math.max(maxZ, xyz[3*i+2]);
+            }
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+
+        // enlarge the cells if the grid would be much larger than the number of points
+        long maxCells = Math.max(64L, (long)MAX_CELLS_PER_POINT * size);
+        while ( cellCount(maxX - minX, cellSize) * cellCount(maxY - minY, cellSize) * cellCount(maxZ - minZ, cellSize) > maxCells )
+            cellSize *= 1.25;
+        this.cellSize = cellSize;
+        this.nx = (int)cellCount(maxX - minX, cellSize);
+        this.ny = (int)cellCount(maxY - minY, cellSize);
+        this.nz = (int)cellCount(maxZ - minZ, cellSize);
+
+        // counting sort of the points by cell
+        int[] cellOfAtom = new int[size];
+        cellStart = new int[nx*ny*nz+1];
+        for (int i=0; i < size; i++)
+            {
+                int cell = getCell(xyz[3*i], xyz[3*i+1], xyz[3*i+2]);
+                cellOfAtom[i] = cell;
+                cellStart[cell+1]++;
+            }
+        for (int c=0; c < nx*ny*nz; c++)
+            cellStart[c+1] += cellStart[c];
+        cellAtoms = new int[size];
+        int[] fill = Arrays.copyOf(cellStart, nx*ny*nz);
+        for (int i=0; i < size; i++)
+            cellAtoms[fill[cellOfAtom[i]]++] = i;
+    }
+
+    /** the number of cells needed to cover a length */
+    private static long cellCount(double length, double cellSize)
+    {
+        return Math.max(1L, (long)Math.floor(length / cellSize) + 1L);
+    }
+
+    /** clamps a coordinate along one axis to a cell number */
+    private static int toCell(double coordinate, double min, double cellSize, int n)
+    {
+        int c = (int)Math.floor((coordinate - min) / cellSize);
+        if ( c < 0 )
+            return 0;
+        if ( c >= n )
+            return n - 1;
+        return c;
+    }
+
+    /** returns the cell that contains the given point */
+    private int getCell(double x, double y, double z)
+    {
+        int cx = toCell(x, minX, cellSize, nx);
+        int cy = toCell(y, minY, cellSize, ny);
+        int cz = toCell(z, minZ, cellSize, nz);
+        return (cx*ny + cy)*nz + cz;
+    }
+
+    /**
+     * Finds all the points within cutoff of (x, y, z).
+     * @param cutoff the search radius in angstroms; points at exactly this distance are included
+     * @param result filled with the indices of the points found; must have room for every point
+     * @return the number of points found
+     */
+    public int getNeighbors(double x, double y, double z, double cutoff, int[] result)
+    {
+        return search(x, y, z, cutoff, -1, result);
+    }
+
+    /**
+     * Finds all the points j > i within cutoff of point i.  Calling this for every i
+     * visits every pair within cutoff exactly once.
+     * @param i the index of the query point
+     * @param cutoff the search radius in angstroms; points at exactly this distance are included
+     * @param result filled with the indices of the points found; must have room for every point
+     * @return the number of points found
+     */
+    public int getHigherNeighbors(int i, double cutoff, int[] result)
+    {
+        return search(xyz[3*i], xyz[3*i+1], xyz[3*i+2], cutoff, i, result);
+    }
+
+    /** finds the points with index greater than lowest within cutoff of the query point */
+    private int search(double x, double y, double z, double cutoff, int lowest, int[] result)
+    {
+        double cutoffSquared = cutoff * cutoff;
+        int reach = (int)Math.ceil(cutoff / cellSize);
+
+        // unclamped cell coordinates of the query point
+        int qx = (int)Math.floor((x - minX) / cellSize);
+        int qy = (int)Math.floor((y - minY) / cellSize);
+        int qz = (int)Math.floor((z - minZ) / cellSize);
+        int x0 = Math.max(0, qx - reach), x1 = Math.min(nx-1, qx + reach);
+        int y0 = Math.max(0, qy - reach), y1 = Math.min(ny-1, qy + reach);
+        int z0 = Math.max(0, qz - reach), z1 = Math.min(nz-1, qz + reach);
+        if ( x0 > x1 || y0 > y1 || z0 > z1 )
+            return 0;
+
+        int count = 0;
+        for (int cx=x0; cx <= x1; cx++)
+            {
+                for (int cy=y0; cy <= y1; cy++)
+                    {
+                        int rowStart = (cx*ny + cy)*nz;
+                        for (int p=cellStart[rowStart+z0]; p < cellStart[rowStart+z1+1]; p++)
+                            {
+                                int j = cellAtoms[p];
+                                if ( j <= lowest )
+                                    continue;
+                                double dx = xyz[3*j]   - x;
+                                double dy = xyz[3*j+1] - y;
+                                double dz = xyz[3*j+2] - z;
+                                if ( dx*dx + dy*dy + dz*dz <= cutoffSquared )
+                                    result[count++] = j;
+                            }
+                    }
+            }
+        return count;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("CellList (%d points, %d x %d x %d cells of %.2f A)", size, nx, ny, nz, cellSize);
+    }
+}
@@ -0,0 +1,439 @@
+import java.util.*;
+import com.google.common.collect.*;
+import Jama.*;
+
+/**
+ * Moves fragments of a molecule so that a set of distances, angles, and dihedrals reach
+ * their target values simultaneously.  For example:<p>
+ * <code>molecule.constrain().addFragment(2,6).addDistance(2,6,2.20).addDistance(4,5,2.30).solve()</code><p>
+ * Each fragment moves as a rigid body, so its internal geometry is unchanged, and every atom
+ * that is not in a fragment stays fixed.  The six rigid-body parameters of every fragment
+ * are found with damped Gauss-Newton steps that take the smallest motion consistent with the
+ * constraints.  Only the atoms that appear in constraints are moved while iterating, so
+ * solving takes microseconds regardless of the size of the molecule.<p>
+ * Atom numbers are 1, 2, ..., n.  Angles are in degrees.  This class is mutable and is
+ * intended to be used from one thread.
+ */
+public class ConstraintSolver
+{
+    /** the default maximum number of Gauss-Newton iterations */
+    public static final int DEFAULT_MAX_ITERATIONS = 100;
+
+    /** the default convergence threshold for distances in angstroms; angles use the same number in degrees */
+    public static final double DEFAULT_TOLERANCE = 1.0E-6;
+
+    /** finite difference step for the Jacobian */
+    private static final double STEP = 1.0E-6;
+
+    /** damping added to the normal equations to keep steps finite near singular geometries */
+    private static final double DAMPING = 1.0E-10;
+
+    /** the kinds of internal coordinates */
+    private enum Type
+    {
+        DISTANCE(2), ANGLE(3), DIHEDRAL(4);
+
+        /** the number of atoms that define this coordinate */
+        final int numberOfAtoms;
+
+        Type(int numberOfAtoms)
+        {
+            this.numberOfAtoms = numberOfAtoms;
+        }
+    }
+
+    /** a target value for one internal coordinate */
+    private static class Constraint
+    {
+        final Type type;
+
+        /** the atom indices (0, 1, ..., n-1) */
+        final int[] atoms;
+
+        /** the target in angstroms or degrees */
+        final double target;
+
+        Constraint(Type type, int[] atoms, double target)
+        {
+            this.type = type;
+            this.atoms = atoms;
+            this.target = target;
+        }
+    }
+
+    /**
+     * The result of solve().
+     */
+    public static class Solution implements Immutable
+    {
+        /** the molecule with the fragments moved */
+        public final Molecule molecule;
+
+        /** target minus actual value for each constraint in the order they were added, in angstroms or degrees */
+        public final ImmutableList<Double> residuals;
+
+        /** the number of Gauss-Newton iterations that were taken */
+        public final int iterations;
+
+        /** true if every residual is within the tolerance */
+        public final boolean converged;
+
+        private Solution(Molecule molecule, ImmutableList<Double> residuals, int iterations, boolean converged)
+        {
+            this.molecule = molecule;
+            this.residuals = residuals;
+            this.iterations = iterations;
+            this.converged = converged;
+        }
+
+        /**
+         * Returns the largest residual.
+         * @return the largest absolute value in residuals
+         */
+        public double getMaxResidual()
+        {
+            double max = 0.0;
+            for (Double d : residuals)
+                max = Math.max(max, Math.abs(d));
+            return max;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("Solution (%s after %d iterations, max residual %.2E)", converged ? "converged" : "not converged",
+                                 iterations, getMaxResidual());
+        }
+    }
+
+    /** the molecule whose fragments will be moved */
+    private final Molecule molecule;
+
+    /** the fragment containing each atom, or -1 for fixed atoms */
+    private final int[] fragmentOf;
+
+    /** the atom indices in each fragment */
+    private final List<int[]> fragments = new ArrayList<>();
+
+    /** the targets */
+    private final List<Constraint> constraints = new ArrayList<>();
+
+    /**
+     * Creates a solver in which every atom is fixed.  Fragments must be added before solving.
+     * @param molecule the starting geometry
+     */
+    public ConstraintSolver(Molecule molecule)
+    {
+        this.molecule = molecule;
+        this.fragmentOf = new int[molecule.contents.size()];
+        Arrays.fill(fragmentOf, -1);
+    }
+
+    /** converts an atom number to an index, checking the range */
+    private int getIndex(int atomNumber)
+    {
+        if ( atomNumber < 1 || atomNumber > fragmentOf.length )
+            throw new IllegalArgumentException("atom number out of range: " + atomNumber);
+        return atomNumber - 1;
+    }
+
+    /**
+     * Allows the movedAtomNumber side of the fixedAtomNumber-movedAtomNumber bond to move as a rigid body.
+     * This is the same group of atoms that setDistance() would move.
+     * @param fixedAtomNumber this atom stays on the fixed side
+     * @param movedAtomNumber this atom and everything attached to it will move
+     */
+    public ConstraintSolver addFragment(int fixedAtomNumber, int movedAtomNumber)
+    {
+        int[] indices = molecule.getHalfGraphIndices(getIndex(fixedAtomNumber), getIndex(movedAtomNumber));
+        if ( indices.length == 0 )
+            throw new IllegalArgumentException(String.format("atoms %d and %d are not bonded", fixedAtomNumber, movedAtomNumber));
+        return addFragmentIndices(indices.clone());
+    }
+
+    /**
+     * Allows the given atoms to move together as a rigid body.
+     * @param atomNumbers the atoms in the fragment
+     */
+    public ConstraintSolver addFragment(Collection<Integer> atomNumbers)
+    {
+        int[] indices = new int[atomNumbers.size()];
+        int count = 0;
+        for (Integer atomNumber : atomNumbers)
+            indices[count++] = getIndex(atomNumber);
+        return addFragmentIndices(indices);
+    }
+
+    /** adds a fragment; fragments may not overlap */
+    private ConstraintSolver addFragmentIndices(int[] indices)
+    {
+        if ( indices.length == 0 )
+            throw new IllegalArgumentException("empty fragment");
+        for (int i : indices)
+            {
+                if ( fragmentOf[i] >= 0 )
+                    throw new IllegalArgumentException("atom " + (i+1) + " is already in a fragment");
+                fragmentOf[i] = fragments.size();
+            }
+        fragments.add(indices);
+        return this;
+    }
+
+    /** records a constraint */
+    private ConstraintSolver addConstraint(Type type, double target, int... atomNumbers)
+    {
+        int[] atoms = new int[atomNumbers.length];
+        for (int m=0; m < atoms.length; m++)
+            atoms[m] = getIndex(atomNumbers[m]);
+        constraints.add(new Constraint(type, atoms, target));
+        return this;
+    }
+
+    /**
+     * Requests an atom1-atom2 distance.
+     * @param distance the target in angstroms
+     */
+    public ConstraintSolver addDistance(int atomNumber1, int atomNumber2, double distance)
+    {
+        if ( atomNumber1 == atomNumber2 )
+            throw new IllegalArgumentException("a distance needs two different atoms");
+        return addConstraint(Type.DISTANCE, distance, atomNumber1, atomNumber2);
+    }
+
+    /**
+     * Requests an atom1-atom2-atom3 angle.
+     * @param angle the target in degrees
+     */
+    public ConstraintSolver addAngle(int atomNumber1, int atomNumber2, int atomNumber3, double angle)
+    {
+        return addConstraint(Type.ANGLE, angle, atomNumber1, atomNumber2, atomNumber3);
+    }
+
+    /**
+     * Requests an atom1-atom2-atom3-atom4 dihedral angle.
+     * @param dihedral the target in degrees
+     */
+    public ConstraintSolver addDihedral(int atomNumber1, int atomNumber2, int atomNumber3, int atomNumber4, double dihedral)
+    {
+        return addConstraint(Type.DIHEDRAL, dihedral, atomNumber1, atomNumber2, atomNumber3, atomNumber4);
+    }
+
+    /**
+     * Solves with the default settings.
+     * @return the solution
+     */
+    public Solution solve()
+    {
+        return solve(DEFAULT_MAX_ITERATIONS, DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * Moves the fragments to satisfy the constraints.  If there are more constraints than
+     * degrees of freedom, the answer is a least-squares compromise and converged will be false.
+     * @param maxIterations the maximum number of Gauss-Newton steps
+     * @param tolerance stop when every residual is smaller than this many angstroms or degrees
+     * @return the solution
+     */
+    public Solution solve(int maxIterations, double tolerance)
+    {
+        if ( constraints.isEmpty() )
+            throw new IllegalArgumentException("no constraints to solve");
+        if ( fragments.isEmpty() )
+            throw new IllegalArgumentException("no fragments to move");
+        for (Constraint c : constraints)
+            {
+                boolean moves = false;
+                for (int a : c.atoms)
+                    moves = moves || fragmentOf[a] >= 0;
+                if ( !moves )
+                    throw new IllegalArgumentException("constraint on atoms " + toString(c.atoms) + " does not involve a fragment");
+            }
+
+        // collect the atoms that appear in constraints so only they are moved while iterating
+        double[] xyz = molecule.xyz;
+        int numberOfFragments = fragments.size();
+        double[] centers = new double[3*numberOfFragments];
+        for (int f=0; f < numberOfFragments; f++)
+            {
+                int[] fragment = fragments.get(f);
+                for (int i : fragment)
+                    for (int d=0; d < 3; d++)
+                        centers[3*f+d] += xyz[3*i+d] / fragment.length;
+            }
+
+        // rigid-body parameters tx, ty, tz, wx, wy, wz for each fragment, starting from no motion
+        int numberOfParameters = 6 * numberOfFragments;
+        int numberOfConstraints = constraints.size();
+        double[] parameters = new double[numberOfParameters];
+        double[] residuals = getResiduals(xyz, centers, parameters);
+        double[][] jacobian = new double[numberOfConstraints][numberOfParameters];
+        int iteration = 0;
+        while ( iteration < maxIterations && !isConverged(residuals, tolerance) )
+            {
+                iteration++;
+
+                // central-difference Jacobian of the coordinate values with respect to the parameters
+                for (int p=0; p < numberOfParameters; p++)
+                    {
+                        double saved = parameters[p];
+                        parameters[p] = saved + STEP;
+                        double[] plus = getResiduals(xyz, centers, parameters);
+                        parameters[p] = saved - STEP;
+                        double[] minus = getResiduals(xyz, centers, parameters);
+                        parameters[p] = saved;
+                        for (int c=0; c < numberOfConstraints; c++)
+                            jacobian[c][p] = (minus[c] - plus[c]) / (2.0 * STEP);
+                    }
+
+                // minimum-norm step: dp = J^T (J J^T + damping)^-1 r
+                Matrix J = new Matrix(jacobian);
+                Matrix normal = J.times(J.transpose());
+                for (int c=0; c < numberOfConstraints; c++)
+                    normal.set(c, c, normal.get(c,c) + DAMPING);
+                Matrix r = new Matrix(residuals, numberOfConstraints);
+                Matrix step;
+                try
+                    {
+                        step = J.transpose().times(normal.solve(r));
+                    }
+                catch (RuntimeException e)
+                    {
+                        break;
+                    }
+
+                // halve the step until the residuals improve
+                double before = sumOfSquares(residuals);
+                double[] trial = new double[numberOfParameters];
+                double scale = 1.0;
+                double[] trialResiduals = residuals;
+                for (int halving=0; halving < 20; halving++)
+                    {
+                        for (int p=0; p < numberOfParameters; p++)
+                            trial[p] = parameters[p] + scale * step.get(p,0);
+                        trialResiduals = getResiduals(xyz, centers, trial);
+                        if ( sumOfSquares(trialResiduals) < before )
+                            break;
+                        scale *= 0.5;
+                    }
+                if ( !(sumOfSquares(trialResiduals) < before) )
+                    break;
+                parameters = trial;
+                residuals = trialResiduals;
+            }
+
+        // move every atom in every fragment
+        double[] newPositions = xyz.clone();
+        for (int f=0; f < numberOfFragments; f++)
+            for (int i : fragments.get(f))
+                transform(xyz, i, f, centers, parameters, newPositions, i);
+        Molecule newMolecule = molecule.moveAtoms(newPositions);
+
+        // report the residuals in angstroms and degrees
+        double[] finalResiduals = getResiduals(newPositions, null, null);
+        List<Double> reported = new ArrayList<>(numberOfConstraints);
+        for (int c=0; c < numberOfConstraints; c++)
+            reported.add(constraints.get(c).type == Type.DISTANCE ? finalResiduals[c] : Math.toDegrees(finalResiduals[c]));
+        return new Solution(newMolecule, ImmutableList.copyOf(reported), iteration, isConverged(finalResiduals, tolerance));
+    }
+
+    /**
+     * Computes target minus actual for every constraint.  Angles are in radians.
+     * If parameters is null, xyz is used as is.
+     */
+    private double[] getResiduals(double[] xyz, double[] centers, double[] parameters)
+    {
+        double[] residuals = new double[constraints.size()];
+        double[] local = new double[12];
+        for (int c=0; c < residuals.length; c++)
+            {
+                Constraint constraint = constraints.get(c);
+                for (int m=0; m < constraint.atoms.length; m++)
+                    {
+                        int i = constraint.atoms[m];
+                        if ( parameters == null || fragmentOf[i] < 0 )
+                            System.arraycopy(xyz, 3*i, local, 3*m, 3);
+                        else
+                            transform(xyz, i, fragmentOf[i], centers, parameters, local, m);
+                    }
+                switch (constraint.type)
+                    {
+                        case DISTANCE:
+                            residuals[c] = constraint.target - Geometry.distance(local, 0, 1);
+                            break;
+                        case ANGLE:
+                            residuals[c] = Math.toRadians(constraint.target - Geometry.angle(local, 0, 1, 2));
+                            break;
+                        default:
+                            double difference = constraint.target - Geometry.dihedral(local, 0, 1, 2, 3);
+                            difference -= 360.0 * Math.rint(difference / 360.0);
+                            residuals[c] = Math.toRadians(difference);
+                            break;
+                    }
+            }
+        return residuals;
+    }
+
+    /** writes the position of atom i after the rigid motion of fragment f into slot m of result */
+    private static void transform(double[] xyz, int i, int f, double[] centers, double[] parameters, double[] result, int m)
+    {
+        double cx = centers[3*f];
+        double cy = centers[3*f+1];
+        double cz = centers[3*f+2];
+        double x = xyz[3*i]   - cx;
+        double y = xyz[3*i+1] - cy;
+        double z = xyz[3*i+2] - cz;
+        double wx = parameters[6*f+3];
+        double wy = parameters[6*f+4];
+        double wz = parameters[6*f+5];
+        double theta = Math.sqrt(wx*wx + wy*wy + wz*wz);
+        if ( theta > 0.0 )
+            {
+                double[] r = Geometry.rotationMatrix(wx, wy, wz, theta);
+                double rx = r[0]*x + r[1]*y + r[2]*z;
+                double ry = r[3]*x + r[4]*y + r[5]*z;
+                double rz = r[6]*x + r[7]*y + r[8]*z;
+                x = rx;
+                y = ry;
+                z = rz;
+            }
+        result[3*m]   = x + cx + parameters[6*f];
+        result[3*m+1] = y + cy + parameters[6*f+1];
+        result[3*m+2] = z + cz + parameters[6*f+2];
+    }
+
+    /** checks the residuals against the tolerance; angles are compared in degrees */
+    private boolean isConverged(double[] residuals, double tolerance)
+    {
+        for (int c=0; c < residuals.length; c++)
+            {
+                double residual = constraints.get(c).type == Type.DISTANCE ? residuals[c] : Math.toDegrees(residuals[c]);
+                if ( Math.abs(residual) >= tolerance )
+                    return false;
+            }
+        return true;
+    }
+
+    /** returns the sum of the squares of the entries */
+    private static double sumOfSquares(double[] array)
+    {
+        double sum = 0.0;
+        for (double d : array)
+            sum += d*d;
+        return sum;
+    }
+
+    /** lists atom indices as atom numbers */
+    private static String toString(int[] atoms)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int m=0; m < atoms.length; m++)
+            builder.append(m == 0 ? "" : "-").append(atoms[m]+1);
+        return builder.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ConstraintSolver (%d fragments, %d constraints)", fragments.size(), constraints.size());
+    }
+}
@@ -30,46 +30,44 @@ public class Draw
             String directory = "input/";
             List<Coordinate> doneCoordinates = new ArrayList<>();
             Map<Coordinate,Molecule> doneMap = new HashMap<>();
-            for (File f : new File(directory).listFiles())
+
+            // only new or changed outputs are parsed; the rest come from the index
+            ScanIndex index = new ScanIndex(new File(directory, "scan.index").getPath());
+            index.update(directory);
+            index.save();
+            for (ScanIndex.Entry entry : index.getEntries(directory))
                 {
-                    String filename = f.getName();
-                    if ( f.isFile() && filename.endsWith(".out") )
+                    String filename = new File(entry.path).getName();
+
+                    // ensure this file terminated normally
+                    if ( entry.molecule == null )
+                        {
+                            System.out.printf("%s could not be read and will be ignored.\n", filename);
+                            continue;
+                        }
+                    if ( !entry.normalTermination )
                         {
-                            // ensure this file terminated normally
-                            GaussianOutputFile out = null;
-                            try { out = new GaussianOutputFile(directory + filename); }
-                            catch (Exception e) { continue; }
-
-                            int normalTerminationCount = 0;
-                            for (List<String> fields : out.fileContents)
-                                {
-                                    if ( fields.size() > 5 && fields.get(0).equals("Normal") && fields.get(1).equals("termination") )
-                                        normalTerminationCount++;
-                                }
-                            if ( normalTerminationCount == 0 )
-                                {
-                                    System.out.printf("%s failed and will be ignored.\n", filename);
-                                    continue;
-                                }
-
-                            // determine which point this is
-                            Molecule molecule = out.molecule;
-                            if ( molecule.contents.size() != 50 )
-                                {
-                                    System.out.printf("File %s has the wrong number of atoms and will be ignored.\n");
-                                    continue;
-                                } 
-                            Atom C5atom = molecule.contents.get(C5atomNumber-1);
-                            Atom C6atom = molecule.contents.get(C6atomNumber-1);
-                            Atom Clatom = molecule.contents.get(ClatomNumber-1);
-                            double C5distance = molecule.getDistance(C5atom, Clatom);
-                            double C6distance = molecule.getDistance(C6atom, Clatom);
-                            double energy = molecule.energy;
-                            Coordinate c = new Coordinate(C5distance, C6distance);
-                            System.out.printf("Read file %s.  C5-Cl: %.2f  C6-Cl: %.2f  Energy: %.8f\n", filename, C5distance, C6distance, energy);
-                            doneCoordinates.add(c);
-                            doneMap.put(c,molecule);
+                            System.out.printf("%s failed and will be ignored.\n", filename);
+                            continue;
                         }
+
+                    // determine which point this is
+                    Molecule molecule = entry.molecule;
+                    if ( molecule.contents.size() != 50 )
+                        {
+                            System.out.printf("File %s has the wrong number of atoms and will be ignored.\n", filename);
+                            continue;
+                        } 
+                    Atom C5atom = molecule.contents.get(C5atomNumber-1);
+                    Atom C6atom = molecule.contents.get(C6atomNumber-1);
+                    Atom Clatom = molecule.contents.get(ClatomNumber-1);
+                    double C5distance = molecule.getDistance(C5atom, Clatom);
+                    double C6distance = molecule.getDistance(C6atom, Clatom);
+                    double energy = molecule.energy;
+                    Coordinate c = new Coordinate(C5distance, C6distance);
+                    System.out.printf("Read file %s.  C5-Cl: %.2f  C6-Cl: %.2f  Energy: %.8f\n", filename, C5distance, C6distance, energy);
+                    doneCoordinates.add(c);
+                    doneMap.put(c,molecule);
                 }
 
             // these points are still left
@@ -94,23 +92,27 @@ public class Draw
             int desiredFiles = 5;
             int filesMade = 0;
             double distanceThreshold = 0.30;  // must use a template that is at least this close
+
+            // index the finished points so that each lookup does not have to scan all of them
+            List<double[]> donePoints = new ArrayList<>();
+            List<Coordinate> doneKeys = new ArrayList<>();
+            for (Coordinate c : doneMap.keySet())
+                {
+                    donePoints.add(new double[] { c.x, c.y });
+                    doneKeys.add(c);
+                }
+            KDTree<Coordinate> doneTree = new KDTree<>(donePoints, doneKeys, new double[] { 1.0, 1.0 }, null);
+
             for (Coordinate desiredPoint : coordinatesRequired)
                 {
                     // for each required point, find out which points is closest
-                    Double minimumDistance = null;
-                    Molecule closestMolecule = null;
-                    Coordinate closestCoordinate = null;
-                    for (Coordinate c : doneMap.keySet())
-                        {
-                            double thisDistance = desiredPoint.distanceFrom(c);
-                            Molecule thisMolecule = doneMap.get(c);
-                            if ( minimumDistance == null || thisDistance < minimumDistance )
-                                {
-                                    minimumDistance = thisDistance;
-                                    closestMolecule = thisMolecule;
-                                    closestCoordinate = c;
-                                }
-                        }
+                    double[] target = { desiredPoint.x, desiredPoint.y };
+                    int closestIndex = doneTree.nearest(target);
+                    if ( closestIndex < 0 )
+                        break;
+                    Coordinate closestCoordinate = doneTree.getValue(closestIndex);
+                    Molecule closestMolecule = doneMap.get(closestCoordinate);
+                    double minimumDistance = doneTree.distance(target, doneTree.getPoint(closestIndex));
 
                     if ( minimumDistance > distanceThreshold )
                         continue;
@@ -139,15 +141,17 @@ public class Draw
                     //System.out.println(d2);
                     //System.out.println(d3);
                     // set the first bond distance
-                    Molecule newMolecule = thisTemplateMolecule.addBond(C5atomNumber, ClatomNumber);
-                    newMolecule = newMolecule.setDistance(C5atomNumber, ClatomNumber, d1);
+                    MoleculeEditor editor = thisTemplateMolecule.edit();
+                    editor.addBond(C5atomNumber, ClatomNumber);
+                    editor.setDistance(C5atomNumber, ClatomNumber, d1);
                     
                     // rotate the atom until the second bond distance is met
                     double desiredAngle = Math.pow(d1,2) + Math.pow(d3,2) - Math.pow(d2, 2);
                     desiredAngle = desiredAngle / (2.0 * d1 * d3);
                     desiredAngle = Math.toDegrees(Math.acos(desiredAngle));
                     //System.out.println(desiredAngle);
-                    newMolecule = newMolecule.setAngle(C6atomNumber, C5atomNumber, ClatomNumber, desiredAngle);
+                    editor.setAngle(C6atomNumber, C5atomNumber, ClatomNumber, desiredAngle);
+                    Molecule newMolecule = editor.build();
 
                     // check we did it correctly
                     Atom atom1 = newMolecule.contents.get(C5atomNumber-1);
@@ -29,6 +29,10 @@ public class Draw2
 			String keywords = "%mem=4GB\n%nprocshared=4\n#p geom=connect b3lyp/6-31g(d) scrf=(pcm,solvent=toluene) pop=none opt=modredundant freq=noraman";
             String tail = String.format("B %d %d F\nB %d %d F\n", C5atomNumber, ClatomNumber, C6atomNumber, ClatomNumber);
 
+			//Skip geometries that were already written, including by earlier runs.
+			DuplicateFilter duplicates = new DuplicateFilter(DuplicateFilter.DEFAULT_THRESHOLD);
+			duplicates.addDirectory("output2");
+
 			//bond 1 is the long, distal C5-Cl bond, which is not formed during the reaction (leg C in triangle.)
 			//bond 2 is the shorter, proximal C6-Cl bond, which is being formed.
 			//These two for-loops are centered around the bond lengths in full_chlorination1_TS.out:
@@ -69,6 +73,12 @@ public class Draw2
 
 						//Write this file. Note: first number is proximal C-Cl, second number is distal C-Cl. 
 						String filename = String.format("output2/b3lyp-631gd-scan_%3.0f_%3.0f.gjf", bond2 * 100, bond1 * 100);
+						String duplicate = duplicates.add(thisMolecule, filename);
+						if ( duplicate != null )
+							{
+								System.out.printf("%s duplicates %s and will be skipped.\n", filename, duplicate);
+								continue;
+							}
 						System.out.printf("%s %.2f %.2f\n", filename, dist2, dist1);
 						GaussianInputFile output_gjf = new GaussianInputFile(thisMolecule, "title", keywords, tail);
 						output_gjf.write(filename);
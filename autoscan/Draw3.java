@@ -28,12 +28,18 @@ public class Draw3
             String keywords = "%mem=3GB\n%nprocshared=4\n#p b3lyp 6-31+g* scrf=(pcm,solvent=thf) empiricaldispersion=gd3bj pop=none opt=modredundant freq=noraman";
             String tail = String.format("B %d %d F\nB %d %d F\n\n", fromAtomNumber1, toAtomNumber1, fromAtomNumber2, toAtomNumber2);
             
+            // skip geometries that were already written, including by earlier runs
+            DuplicateFilter duplicates = new DuplicateFilter(DuplicateFilter.DEFAULT_THRESHOLD);
+            duplicates.addDirectory("gjf");
+
             for (double distance1 = 1.65; distance1 <= 3.20; distance1 += 0.05)
                 {
                     for ( double distance2 = 1.30; distance2 <= 1.85; distance2 += 0.05)
                         {
-                            Molecule newMolecule = molecule.setDistance(fromAtomNumber1, toAtomNumber1, distance1);
-                            newMolecule = newMolecule.setDistance(fromAtomNumber2, toAtomNumber2, distance2);
+                            Molecule newMolecule = molecule.edit()
+                                                           .setDistance(fromAtomNumber1, toAtomNumber1, distance1)
+                                                           .setDistance(fromAtomNumber2, toAtomNumber2, distance2)
+                                                           .build();
 
                             // check the distance has been adjusted correctly
                             Atom atom1 = newMolecule.contents.get(fromAtomNumber1-1);
@@ -42,6 +48,12 @@ public class Draw3
                             Atom atom4 = newMolecule.contents.get(toAtomNumber2-1);
 
                             String filename = String.format("gjf/nico_Br_F-%03.0f_%03.0f-b3lyp_d3bj-631+gd-thf_pcm.gjf", distance1 * 100, distance2 * 100);
+                            String duplicate = duplicates.add(newMolecule, filename);
+                            if ( duplicate != null )
+                                {
+                                    System.out.printf("%s duplicates %s and will be skipped.\n", filename, duplicate);
+                                    continue;
+                                }
                             
                             // molecule, name, keywords, tail, writeConnectivity, charge, multiplicity
                             GaussianInputFile output_gjf = new GaussianInputFile(newMolecule, "title", keywords, tail, false, -1, 1);
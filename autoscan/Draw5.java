@@ -31,50 +31,19 @@ public class Draw5
                 {
                     for (double distance2 = 2.22; distance2 <= 2.36; distance2 += 0.01)
                         {
-                            Molecule newMolecule = molecule.setDistance(fromAtomNumber1, toAtomNumber1, distance1);
-                            
-                            double bestTheta = 0.0;
-                            double bestDelta = 100.0;
-                            for (double theta = 70; theta < 130.0; theta += 5.0)
-                                {
-                                    Molecule testMolecule = newMolecule.setAngle(fromAtomNumber1, toAtomNumber1, toAtomNumber2, theta);
-                                    Atom atom1 = testMolecule.contents.get(fromAtomNumber1-1);
-                                    Atom atom2 = testMolecule.contents.get(toAtomNumber1-1);
-                                    Atom atom3 = testMolecule.contents.get(fromAtomNumber2-1);
-                                    Atom atom4 = testMolecule.contents.get(toAtomNumber2-1);
-                                    double distance1actual = testMolecule.getDistance(atom1, atom2);
-                                    double distance2actual = testMolecule.getDistance(atom3, atom4);
-                                    if ( Math.abs(distance2-distance2actual) < bestDelta )
-                                        {
-                                            bestDelta = Math.abs(distance2-distance2actual);
-                                            bestTheta = theta;
-                                        }
-                                    //System.out.printf("%6.2f %6.2f %6.2f\n", theta, distance1actual, distance2actual);
-                               }
-                             
-                             for (double theta = bestTheta-5.0; theta <= bestTheta+5.0; theta += 0.001)
-                                {
-                                    Molecule testMolecule = newMolecule.setAngle(fromAtomNumber1, toAtomNumber1, toAtomNumber2, theta);
-                                    Atom atom1 = testMolecule.contents.get(fromAtomNumber1-1);
-                                    Atom atom2 = testMolecule.contents.get(toAtomNumber1-1);
-                                    Atom atom3 = testMolecule.contents.get(fromAtomNumber2-1);
-                                    Atom atom4 = testMolecule.contents.get(toAtomNumber2-1);
-                                    double distance1actual = testMolecule.getDistance(atom1, atom2);
-                                    double distance2actual = testMolecule.getDistance(atom3, atom4);
-                                    if ( Math.abs(distance2-distance2actual) < bestDelta )
-                                        {
-                                            bestDelta = Math.abs(distance2-distance2actual);
-                                            bestTheta = theta;
-                                        }
-                                    //System.out.printf("%6.2f %6.2f %6.2f\n", theta, distance1actual, distance2actual);
-                               }
-                            if ( bestDelta > 0.001 )
+                            // move the toAtomNumber1 fragment rigidly until both distances are met
+                            ConstraintSolver.Solution solution = molecule.constrain()
+                                                                         .addFragment(fromAtomNumber1, toAtomNumber1)
+                                                                         .addDistance(fromAtomNumber1, toAtomNumber1, distance1)
+                                                                         .addDistance(fromAtomNumber2, toAtomNumber2, distance2)
+                                                                         .solve();
+                            if ( !solution.converged )
                                 {
                                     System.out.printf("did not converge for %.2f, %.2f\n", distance1, distance2);
                                     continue;
                                 }
                             
-                            newMolecule = newMolecule.setAngle(fromAtomNumber1, toAtomNumber1, toAtomNumber2, bestTheta);
+                            Molecule newMolecule = solution.molecule;
                             newMolecule = newMolecule.addBond(6,18);
                             newMolecule = newMolecule.removeBond(fromAtomNumber1, toAtomNumber1);
 
@@ -36,8 +36,10 @@ public class Draw7
                             if ( distance1 + distance2 < 3.50 )
                                 continue;
 
-                            Molecule newMolecule = molecule.setDistance(fromAtomNumber1, toAtomNumber1, distance1);
-                            newMolecule = newMolecule.setDistance(fromAtomNumber2, toAtomNumber2, distance2);
+                            Molecule newMolecule = molecule.edit()
+                                                           .setDistance(fromAtomNumber1, toAtomNumber1, distance1)
+                                                           .setDistance(fromAtomNumber2, toAtomNumber2, distance2)
+                                                           .build();
 
                             // check the distance has been adjusted correctly
                             Atom atom1 = newMolecule.contents.get(fromAtomNumber1-1);
@@ -29,46 +29,44 @@ public class Draw9
             String directory = "/Users/ekwan/research/clay/grid/good";
             List<Coordinate> doneCoordinates = new ArrayList<>();
             Map<Coordinate,Molecule> doneMap = new HashMap<>();
-            for (File f : new File(directory).listFiles())
+
+            // only new or changed outputs are parsed; the rest come from the index
+            ScanIndex index = new ScanIndex(new File(directory, "scan.index").getPath());
+            index.update(directory);
+            index.save();
+            for (ScanIndex.Entry entry : index.getEntries(directory))
                 {
-                    String filename = f.getName();
-                    if ( f.isFile() && filename.endsWith(".out") )
+                    String filename = new File(entry.path).getName();
+
+                    // ensure this file terminated normally
+                    if ( entry.molecule == null )
                         {
-                            // ensure this file terminated normally
-                            GaussianOutputFile out = null;
-                            try { out = new GaussianOutputFile(directory + "/" + filename); }
-                            catch (Exception e) { e.printStackTrace(); continue; }
-
-                            int normalTerminationCount = 0;
-                            for (List<String> fields : out.fileContents)
-                                {
-                                    if ( fields.size() > 5 && fields.get(0).equals("Normal") && fields.get(1).equals("termination") )
-                                        normalTerminationCount++;
-                                }
-                            if ( normalTerminationCount == 0 )
-                                {
-                                    System.out.printf("%s failed and will be ignored.\n", filename);
-                                    continue;
-                                }
-
-                            // determine which point this is
-                            Molecule molecule = out.molecule;
-                            if ( molecule.contents.size() != 47 )
-                                {
-                                    System.out.printf("File %s has the wrong number of atoms and will be ignored.\n");
-                                    continue;
-                                } 
-                            Atom atomC = molecule.contents.get(4-1);
-                            Atom atomNuc = molecule.contents.get(1-1);
-                            Atom atomLG = molecule.contents.get(13-1);
-                            double formingDistance = molecule.getDistance(atomC, atomNuc);
-                            double breakingDistance = molecule.getDistance(atomC, atomLG);
-                            double energy = molecule.energy;
-                            Coordinate c = new Coordinate(formingDistance, breakingDistance);
-                            System.out.printf("Read file %s.  forming: %.2f  breaking: %.2f  Energy: %.8f\n", filename, formingDistance, breakingDistance, energy);
-                            doneCoordinates.add(c);
-                            doneMap.put(c,molecule);
+                            System.out.printf("%s could not be read and will be ignored.\n", filename);
+                            continue;
                         }
+                    if ( !entry.normalTermination )
+                        {
+                            System.out.printf("%s failed and will be ignored.\n", filename);
+                            continue;
+                        }
+
+                    // determine which point this is
+                    Molecule molecule = entry.molecule;
+                    if ( molecule.contents.size() != 47 )
+                        {
+                            System.out.printf("File %s has the wrong number of atoms and will be ignored.\n", filename);
+                            continue;
+                        } 
+                    Atom atomC = molecule.contents.get(4-1);
+                    Atom atomNuc = molecule.contents.get(1-1);
+                    Atom atomLG = molecule.contents.get(13-1);
+                    double formingDistance = molecule.getDistance(atomC, atomNuc);
+                    double breakingDistance = molecule.getDistance(atomC, atomLG);
+                    double energy = molecule.energy;
+                    Coordinate c = new Coordinate(formingDistance, breakingDistance);
+                    System.out.printf("Read file %s.  forming: %.2f  breaking: %.2f  Energy: %.8f\n", filename, formingDistance, breakingDistance, energy);
+                    doneCoordinates.add(c);
+                    doneMap.put(c,molecule);
                 }
 
             // these points are still left
@@ -76,6 +74,45 @@ public class Draw9
             coordinatesRequired.removeAll(doneCoordinates);
             System.out.printf("%d coordinates still needed.\n", coordinatesRequired.size());
 
+            // run the points that say the most about the barrier first
+            if ( doneMap.size() >= 2 )
+                {
+                    List<double[]> donePositions = new ArrayList<>();
+                    List<Double> doneEnergies = new ArrayList<>();
+                    for (Map.Entry<Coordinate,Molecule> entry : doneMap.entrySet())
+                        {
+                            donePositions.add(new double[] { entry.getKey().x, entry.getKey().y });
+                            doneEnergies.add(entry.getValue().energy);
+                        }
+                    SurrogateModel model = new SurrogateModel(donePositions, doneEnergies, new double[] { 0.10, 0.10 }, null);
+
+                    // the reactant has the longest forming and shortest breaking bond, and the product the reverse
+                    List<double[]> lattice = new ArrayList<>();
+                    int reactantIndex = 0;
+                    int productIndex = 0;
+                    for (Coordinate c : desiredCoordinates)
+                        {
+                            int i = lattice.size();
+                            lattice.add(new double[] { c.x, c.y });
+                            if ( c.x - c.y > lattice.get(reactantIndex)[0] - lattice.get(reactantIndex)[1] )
+                                reactantIndex = i;
+                            if ( c.x - c.y < lattice.get(productIndex)[0] - lattice.get(productIndex)[1] )
+                                productIndex = i;
+                        }
+                    double barrier = model.getBarrier(lattice, reactantIndex, productIndex, 0.15);
+                    System.out.printf("%s: estimated barrier %.8f\n", model.toString(), barrier);
+                    if ( !Double.isNaN(barrier) )
+                        {
+                            List<double[]> candidates = new ArrayList<>();
+                            for (Coordinate c : coordinatesRequired)
+                                candidates.add(new double[] { c.x, c.y });
+                            List<Coordinate> ranked = new ArrayList<>();
+                            for (Integer i : model.rank(candidates, barrier, 0.0016))
+                                ranked.add(coordinatesRequired.get(i));
+                            coordinatesRequired = ranked;
+                        }
+                }
+
 
             // read template
             GJFfile input_gjf = new GJFfile("clay-stripped.gjf");
@@ -98,23 +135,27 @@ public class Draw9
             int desiredFiles = 500;
             int filesMade = 0;
             double distanceThreshold = 0.25;  // must use a template that is at least this close
+
+            // index the finished points so that each lookup does not have to scan all of them
+            List<double[]> donePoints = new ArrayList<>();
+            List<Coordinate> doneKeys = new ArrayList<>();
+            for (Coordinate c : doneMap.keySet())
+                {
+                    donePoints.add(new double[] { c.x, c.y });
+                    doneKeys.add(c);
+                }
+            KDTree<Coordinate> doneTree = new KDTree<>(donePoints, doneKeys, new double[] { 1.0, 1.0 }, null);
+
             for (Coordinate desiredPoint : coordinatesRequired)
                 {
                     // for each required point, find out which points is closest
-                    Double minimumDistance = null;
-                    Molecule closestMolecule = null;
-                    Coordinate closestCoordinate = null;
-                    for (Coordinate c : doneMap.keySet())
-                        {
-                            double thisDistance = desiredPoint.distanceFrom(c);
-                            Molecule thisMolecule = doneMap.get(c);
-                            if ( minimumDistance == null || thisDistance < minimumDistance )
-                                {
-                                    minimumDistance = thisDistance;
-                                    closestMolecule = thisMolecule;
-                                    closestCoordinate = c;
-                                }
-                        }
+                    double[] target = { desiredPoint.x, desiredPoint.y };
+                    int closestIndex = doneTree.nearest(target);
+                    if ( closestIndex < 0 )
+                        break;
+                    Coordinate closestCoordinate = doneTree.getValue(closestIndex);
+                    Molecule closestMolecule = doneMap.get(closestCoordinate);
+                    double minimumDistance = doneTree.distance(target, doneTree.getPoint(closestIndex));
 
                     if ( minimumDistance > distanceThreshold ) {
                         System.out.printf("Skipping target %s because nothing is close enough.\n", desiredPoint.toString());
@@ -18,24 +18,26 @@ public class DrawTorsion
             String keywords = "%mem=4GB\n%nprocshared=4\n#p geom=connect b3lyp genecp empiricaldispersion=gd3bj scrf=(pcm,solvent=n-hexane) pop=none opt=(modredundant,maxcyc=50)";
             String tail = "D 11 12 13 14 F\nB 1 10 F\n\n@/n/jacobsen_lab/ekwan/basis/simple_basis.bas\n\n";
             
-            for (double torsion = 136.0; torsion >= 74.0; torsion -= 2.0)
+            // skip geometries that were already written, including by earlier runs
+            DuplicateFilter duplicates = new DuplicateFilter(DuplicateFilter.DEFAULT_THRESHOLD);
+            duplicates.addDirectory("output_torsion");
+
+            // the torsion fragment is found once and rotated in steps
+            IndexTorsion indexTorsion = IndexTorsion.createIndexTorsion(11,12,13,14, molecule);
+            TorsionDrive drive = new TorsionDrive(molecule).addTorsion(11,12,13,14, 136.0, 74.0, -2.0);
+            drive.run(point ->
                 {
+                    double torsion = point.dihedrals.get(0);
                     for (double distance = 2.00; distance <= 5.10; distance += 0.10)
                         {
                             if ( distance < 4.0 && torsion >= 128.0 )
                                 continue;
                             if ( distance > 4.0 && torsion <= 126.0 )
                                 continue;
-                            IndexTorsion indexTorsion = IndexTorsion.createIndexTorsion(11,12,13,14, molecule);
-                            AtomTorsion atomTorsion = indexTorsion.getAtomTorsion(molecule);
-                            Molecule newMolecule = molecule.setDihedral(atomTorsion, torsion);
-
-                            Atom Tiatom = newMolecule.contents.get(1-1);
-                            Atom Clatom = newMolecule.contents.get(10-1);
-                            Atom C6atom = newMolecule.contents.get(14-1);
+                            Molecule newMolecule = point.molecule;
 
-                            double a = newMolecule.getDistance(Tiatom, Clatom);
-                            double b = newMolecule.getDistance(Tiatom, C6atom);
+                            double a = newMolecule.getDistance(1, 10);
+                            double b = newMolecule.getDistance(1, 14);
                             double c = distance;
                             //System.out.println(a + "   " + b + "   " + c);
                             double arg = Math.pow(a,2)+Math.pow(b,2)-Math.pow(c,2);
@@ -48,15 +50,19 @@ public class DrawTorsion
                             newMolecule = newMolecule.setAngle(14,1,10, theta);
                             
                             String filename = String.format("output_torsion/simple_torsion_scan_%03.0f_%03.0f.gjf", torsion, distance * 100);
+                            String duplicate = duplicates.add(newMolecule, filename);
+                            if ( duplicate != null )
+                                {
+                                    System.out.printf("%s duplicates %s and will be skipped.\n", filename, duplicate);
+                                    continue;
+                                }
                             GaussianInputFile output_gjf = new GaussianInputFile(newMolecule, "title", keywords, tail);
                             output_gjf.write(filename);
                             
                             double actualTorsion = indexTorsion.getDihedralAngle(newMolecule);
-                            Clatom = newMolecule.contents.get(10-1);
-                            C6atom = newMolecule.contents.get(14-1);
-                            double actualDistance = newMolecule.getDistance(Clatom,C6atom);
+                            double actualDistance = newMolecule.getDistance(10, 14);
                             System.out.printf("%.0f,%.0f\t\t%.2f,%.2f\t%s\n", torsion, actualTorsion, distance, actualDistance, filename);
                         }
-                }
+                });
         }
 }
@@ -0,0 +1,514 @@
+import java.io.*;
+import java.util.*;
+import com.google.common.collect.*;
+import Jama.*;
+
+/**
+ * Catches geometries that are nearly identical to ones that have already been written, so that
+ * overlapping grids and repeated runs of a driver do not pay for the same Gaussian job twice.<p>
+ * Two geometries are duplicates if they have the same elements in the same order and, after optimal
+ * superposition, no atom is farther than the threshold from its counterpart.  An all-atom RMSD
+ * threshold would not do: a scan step that moves one atom changes the RMSD less the more atoms
+ * there are, so a fixed RMSD threshold merges distinct points of large molecules.<p>
+ * The largest displacement is at least the RMSD, which is computed first without building the
+ * rotation, using the quaternion characteristic polynomial method of Theobald (Acta Cryst. A61, 478).
+ * Only pairs within the threshold by RMSD are superposed.  Most pairs never get that far, because
+ * two cheap lower bounds rule them out first.  The radii of gyration of two geometries can differ by
+ * no more than their RMSD.  The stored geometries are sorted by radius of gyration, so only those
+ * in a narrow window are examined.  Each atom's distance from the centroid is unchanged by rotation,
+ * so it changes by no more than that atom's displacement.<p>
+ * Names are compared as paths.  A geometry is never a duplicate of one stored under the same
+ * name; it replaces it instead, so a driver that is run again rewrites its own inputs.<p>
+ * For example:<p>
+ * <code>DuplicateFilter duplicates = new DuplicateFilter(DuplicateFilter.DEFAULT_THRESHOLD);<br>
+ * duplicates.addDirectory("gjf");<br>
+ * if ( duplicates.add(molecule, filename) == null )<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;new GaussianInputFile(molecule, "title", keywords, tail).write(filename);</code><p>
+ * This class is mutable and not thread-safe.
+ */
+public class DuplicateFilter
+{
+    /**
+     * The default threshold in angstroms.  A single 0.05 A step of a scan moves at least one atom by
+     * several times this much, whatever the size of the molecule, while coordinates read back from
+     * a .gjf file differ by far less.
+     */
+    public static final double DEFAULT_THRESHOLD = 0.01;
+
+    /** what is stored for each geometry that has been written */
+    private static class Fingerprint
+    {
+        /** the filename or other label */
+        final String name;
+
+        /** the normalized path of name, or null if there is no name */
+        final String key;
+
+        /** the coordinates relative to the centroid */
+        final double[] centered;
+
+        /** the distance of each atom from the centroid */
+        final double[] radii;
+
+        /** the sum of the squared radii */
+        final double squaredNorm;
+
+        /** the radius of gyration */
+        final double radiusOfGyration;
+
+        Fingerprint(String name, double[] xyz)
+        {
+            this.name = name;
+            this.key = getKey(name);
+            int n = xyz.length / 3;
+            double cx = 0.0, cy = 0.0, cz = 0.0;
+            for (int i=0; i < n; i++)
+                {
+                    cx += xyz[3*i];
+                    cy += xyz[3*i+1];
+                    cz += xyz[3*i+2];
+                }
+            cx /= n;
+            cy /= n;
+            cz /= n;
+            centered = new double[3*n];
+            radii = new double[n];
+            double sum = 0.0;
+            for (int i=0; i < n; i++)
+                {
+                    double x = xyz[3*i] - cx;
+                    double y = xyz[3*i+1] - cy;
+                    double z = xyz[3*i+2] - cz;
+                    centered[3*i] = x;
+                    centered[3*i+1] = y;
+                    centered[3*i+2] = z;
+                    double squared = x*x + y*y + z*z;
+                    radii[i] = Math.sqrt(squared);
+                    sum += squared;
+                }
+            squaredNorm = sum;
+            radiusOfGyration = Math.sqrt(sum / n);
+        }
+    }
+
+    /** the largest displacement of any atom that still counts as a duplicate */
+    public final double threshold;
+
+    /** the stored geometries, grouped by their elements and sorted by radius of gyration */
+    private final Map<List<Element>,TreeMap<Double,List<Fingerprint>>> stored = new HashMap<>();
+
+    /** the stored geometries by the normalized path of their names */
+    private final Map<String,Fingerprint> byKey = new HashMap<>();
+
+    /** the number of geometries stored */
+    private int size;
+
+    /** how many stored geometries passed the radius of gyration test, how many of those the radii test rejected, how many RMSDs were calculated, and how many were superposed */
+    private long windowCandidates, radiiRejections, rmsdCalculations, superpositions;
+
+    /**
+     * Creates an empty filter.
+     * @param threshold the largest displacement of any atom in angstroms that counts as a duplicate
+     */
+    public DuplicateFilter(double threshold)
+    {
+        if ( !(threshold >= 0.0) )
+            throw new IllegalArgumentException("threshold cannot be negative");
+        this.threshold = threshold;
+    }
+
+    /**
+     * Looks for a stored geometry within the threshold of this one.
+     * @param molecule the candidate geometry
+     * @return the name of the closest stored geometry within the threshold, or null if there is none
+     */
+    public String findDuplicate(Molecule molecule)
+    {
+        return findDuplicate(ImmutableList.copyOf(molecule.elements), new Fingerprint(null, molecule.xyz));
+    }
+
+    private String findDuplicate(List<Element> elements, Fingerprint candidate)
+    {
+        TreeMap<Double,List<Fingerprint>> group = stored.get(elements);
+        if ( group == null )
+            return null;
+        int n = candidate.radii.length;
+        String best = null;
+        double bestDisplacement = threshold;
+        double rg = candidate.radiusOfGyration;
+        for (List<Fingerprint> list : group.subMap(rg - threshold, true, rg + threshold, true).values())
+            {
+                for (Fingerprint other : list)
+                    {
+                        // the file with the candidate's own name is about to be overwritten
+                        if ( candidate.key != null && candidate.key.equals(other.key) )
+                            continue;
+                        windowCandidates++;
+
+                        // the radii bound
+                        int i = 0;
+                        while ( i < n && Math.abs(candidate.radii[i] - other.radii[i]) <= threshold )
+                            i++;
+                        if ( i < n )
+                            {
+                                radiiRejections++;
+                                continue;
+                            }
+
+                        rmsdCalculations++;
+                        if ( getRMSD(candidate, other) > threshold )
+                            continue;
+                        superpositions++;
+                        double displacement = getLargestDisplacement(candidate, other);
+                        if ( displacement <= bestDisplacement )
+                            {
+                                best = other.name;
+                                bestDisplacement = displacement;
+                            }
+                    }
+            }
+        return best;
+    }
+
+    /**
+     * Stores a geometry unless it duplicates one that is already stored under another name.
+     * A geometry already stored under the same name is replaced.
+     * @param molecule the candidate geometry
+     * @param name the label to report when later geometries duplicate this one, such as its filename
+     * @return null if the geometry was stored, or the name of the stored geometry it duplicates
+     */
+    public String add(Molecule molecule, String name)
+    {
+        List<Element> elements = ImmutableList.copyOf(molecule.elements);
+        Fingerprint candidate = new Fingerprint(name, molecule.xyz);
+        String duplicate = findDuplicate(elements, candidate);
+        if ( duplicate != null )
+            return duplicate;
+        if ( candidate.key != null )
+            {
+                Fingerprint previous = byKey.put(candidate.key, candidate);
+                if ( previous != null )
+                    remove(previous);
+            }
+        TreeMap<Double,List<Fingerprint>> group = stored.get(elements);
+        if ( group == null )
+            {
+                group = new TreeMap<>();
+                stored.put(elements, group);
+            }
+        List<Fingerprint> list = group.get(candidate.radiusOfGyration);
+        if ( list == null )
+            {
+                list = new ArrayList<>(1);
+                group.put(candidate.radiusOfGyration, list);
+            }
+        list.add(candidate);
+        size++;
+        return null;
+    }
+
+    /** removes a stored geometry */
+    private void remove(Fingerprint fingerprint)
+    {
+        for (TreeMap<Double,List<Fingerprint>> group : stored.values())
+            {
+                List<Fingerprint> list = group.get(fingerprint.radiusOfGyration);
+                if ( list != null && list.remove(fingerprint) )
+                    {
+                        if ( list.isEmpty() )
+                            group.remove(fingerprint.radiusOfGyration);
+                        size--;
+                        return;
+                    }
+            }
+    }
+
+    /** returns the normalized absolute path of a name, so that different spellings of one file match */
+    private static String getKey(String name)
+    {
+        if ( name == null )
+            return null;
+        try
+            {
+                return new File(name).getAbsoluteFile().toPath().normalize().toString();
+            }
+        catch (java.nio.file.InvalidPathException e)
+            {
+                return name;
+            }
+    }
+
+    /**
+     * Stores the geometries of the .gjf files in a directory, such as the inputs written by an earlier run.
+     * Files that cannot be read are skipped, and duplicates among the files are not stored twice.
+     * @param directory the directory; subdirectories are not searched
+     * @return the number of geometries stored
+     */
+    public int addDirectory(String directory)
+    {
+        File[] files = new File(directory).listFiles();
+        if ( files == null )
+            return 0;
+        Arrays.sort(files);
+        int count = 0;
+        for (File f : files)
+            {
+                if ( !f.isFile() || !f.getName().endsWith(".gjf") )
+                    continue;
+                Molecule molecule = null;
+                try
+                    {
+                        molecule = new GJFfile(f.getPath()).molecule;
+                    }
+                catch (Exception e)
+                    {
+                        continue;
+                    }
+                if ( add(molecule, f.getPath()) == null )
+                    count++;
+            }
+        return count;
+    }
+
+    /**
+     * Calculates the RMSD between two molecules after optimal superposition, counting every atom.
+     * @param molecule1 the first molecule
+     * @param molecule2 the second molecule, with the same number of atoms
+     * @return the RMSD in angstroms
+     */
+    public static double getRMSD(Molecule molecule1, Molecule molecule2)
+    {
+        if ( molecule1.xyz.length != molecule2.xyz.length )
+            throw new IllegalArgumentException("molecules are not the same size");
+        return getRMSD(new Fingerprint(null, molecule1.xyz), new Fingerprint(null, molecule2.xyz));
+    }
+
+    /**
+     * Calculates the largest distance between corresponding atoms of two molecules after the
+     * superposition that minimizes their RMSD.
+     * @param molecule1 the first molecule
+     * @param molecule2 the second molecule, with the same number of atoms
+     * @return the largest displacement in angstroms
+     */
+    public static double getLargestDisplacement(Molecule molecule1, Molecule molecule2)
+    {
+        if ( molecule1.xyz.length != molecule2.xyz.length )
+            throw new IllegalArgumentException("molecules are not the same size");
+        return getLargestDisplacement(new Fingerprint(null, molecule1.xyz), new Fingerprint(null, molecule2.xyz));
+    }
+
+    /** returns the correlation matrix of two centered geometries, the sum over atoms of the outer product of their positions */
+    private static double[][] getCorrelationMatrix(Fingerprint a, Fingerprint b)
+    {
+        double[] p = a.centered;
+        double[] q = b.centered;
+        int n = a.radii.length;
+        double sxx = 0.0, sxy = 0.0, sxz = 0.0;
+        double syx = 0.0, syy = 0.0, syz = 0.0;
+        double szx = 0.0, szy = 0.0, szz = 0.0;
+        for (int i=0; i < 3*n; i += 3)
+            {
+                double x1 = p[i], y1 = p[i+1], z1 = p[i+2];
+                double x2 = q[i], y2 = q[i+1], z2 = q[i+2];
+                sxx += x1 * x2;
+                sxy += x1 * y2;
+                sxz += x1 * z2;
+                syx += y1 * x2;
+                syy += y1 * y2;
+                syz += y1 * z2;
+                szx += z1 * x2;
+                szy += z1 * y2;
+                szz += z1 * z2;
+            }
+        return new double[][] { { sxx, sxy, sxz }, { syx, syy, syz }, { szx, szy, szz } };
+    }
+
+    /** returns the quaternion key matrix for a correlation matrix */
+    private static double[][] getKeyMatrix(double[][] s)
+    {
+        double sxx = s[0][0], sxy = s[0][1], sxz = s[0][2];
+        double syx = s[1][0], syy = s[1][1], syz = s[1][2];
+        double szx = s[2][0], szy = s[2][1], szz = s[2][2];
+        return new double[][] {
+                                { sxx + syy + szz, syz - szy, szx - sxz, sxy - syx },
+                                { syz - szy, sxx - syy - szz, sxy + syx, szx + sxz },
+                                { szx - sxz, sxy + syx, -sxx + syy - szz, syz + szy },
+                                { sxy - syx, szx + sxz, syz + szy, -sxx - syy + szz }
+                              };
+    }
+
+    /** returns the RMSD of two centered geometries from the largest eigenvalue of the quaternion key matrix */
+    private static double getRMSD(Fingerprint a, Fingerprint b)
+    {
+        double[][] s = getCorrelationMatrix(a, b);
+        double sxx = s[0][0], sxy = s[0][1], sxz = s[0][2];
+        double syx = s[1][0], syy = s[1][1], syz = s[1][2];
+        double szx = s[2][0], szy = s[2][1], szz = s[2][2];
+        int n = a.radii.length;
+
+        // the key matrix is traceless, so its characteristic polynomial is x^4 + c2 x^2 + c1 x + c0
+        double[][] k = getKeyMatrix(s);
+        double c2 = -2.0 * ( sxx*sxx + sxy*sxy + sxz*sxz + syx*syx + syy*syy + syz*syz + szx*szx + szy*szy + szz*szz );
+        double c1 = -8.0 * ( sxx * ( syy*szz - syz*szy ) - sxy * ( syx*szz - syz*szx ) + sxz * ( syx*szy - syy*szx ) );
+        double c0 = determinant4(k);
+
+        // Newton's method from above converges to the largest root
+        double e0 = 0.5 * ( a.squaredNorm + b.squaredNorm );
+        double lambda = e0;
+        for (int iteration=0; iteration < 50; iteration++)
+            {
+                double lambda2 = lambda * lambda;
+                double value = lambda2 * lambda2 + c2 * lambda2 + c1 * lambda + c0;
+                double derivative = 4.0 * lambda2 * lambda + 2.0 * c2 * lambda + c1;
+                if ( derivative == 0.0 )
+                    break;
+                double step = value / derivative;
+                lambda -= step;
+                if ( Math.abs(step) <= 1.0E-11 * Math.abs(lambda) )
+                    break;
+            }
+        return Math.sqrt(Math.max(0.0, 2.0 * ( e0 - lambda ) / n));
+    }
+
+    /** returns the largest distance between corresponding atoms of two centered geometries after superposing the second onto the first */
+    private static double getLargestDisplacement(Fingerprint a, Fingerprint b)
+    {
+        // the eigenvector of the largest eigenvalue of the key matrix is the quaternion of the best rotation
+        EigenvalueDecomposition decomposition = new Matrix(getKeyMatrix(getCorrelationMatrix(a, b))).eig();
+        double[] eigenvalues = decomposition.getRealEigenvalues();
+        int largest = 0;
+        for (int i=1; i < 4; i++)
+            {
+                if ( eigenvalues[i] > eigenvalues[largest] )
+                    largest = i;
+            }
+        Matrix v = decomposition.getV();
+        double q0 = v.get(0, largest), q1 = v.get(1, largest), q2 = v.get(2, largest), q3 = v.get(3, largest);
+        double[][] r = {
+                         { q0*q0 + q1*q1 - q2*q2 - q3*q3, 2.0 * ( q1*q2 - q0*q3 ), 2.0 * ( q1*q3 + q0*q2 ) },
+                         { 2.0 * ( q1*q2 + q0*q3 ), q0*q0 - q1*q1 + q2*q2 - q3*q3, 2.0 * ( q2*q3 - q0*q1 ) },
+                         { 2.0 * ( q1*q3 - q0*q2 ), 2.0 * ( q2*q3 + q0*q1 ), q0*q0 - q1*q1 - q2*q2 + q3*q3 }
+                       };
+        double[] p = a.centered;
+        double[] q = b.centered;
+        double largestSquared = 0.0;
+        for (int i=0; i < p.length; i += 3)
+            {
+                double dx = p[i]   - ( r[0][0] * q[i] + r[1][0] * q[i+1] + r[2][0] * q[i+2] );
+                double dy = p[i+1] - ( r[0][1] * q[i] + r[1][1] * q[i+1] + r[2][1] * q[i+2] );
+                double dz = p[i+2] - ( r[0][2] * q[i] + r[1][2] * q[i+1] + r[2][2] * q[i+2] );
+                largestSquared = Math.max(largestSquared, dx*dx + dy*dy + dz*dz);
+            }
+        return Math.sqrt(largestSquared);
+    }
+
+    /** returns the determinant of a 4x4 matrix */
+    private static double determinant4(double[][] m)
+    {
+        double s0 = m[0][0] * m[1][1] - m[1][0] * m[0][1];
+        double s1 = m[0][0] * m[1][2] - m[1][0] * m[0][2];
+        double s2 = m[0][0] * m[1][3] - m[1][0] * m[0][3];
+        double s3 = m[0][1] * m[1][2] - m[1][1] * m[0][2];
+        double s4 = m[0][1] * m[1][3] - m[1][1] * m[0][3];
+        double s5 = m[0][2] * m[1][3] - m[1][2] * m[0][3];
+        double c5 = m[2][2] * m[3][3] - m[3][2] * m[2][3];
+        double c4 = m[2][1] * m[3][3] - m[3][1] * m[2][3];
+        double c3 = m[2][1] * m[3][2] - m[3][1] * m[2][2];
+        double c2 = m[2][0] * m[3][3] - m[3][0] * m[2][3];
+        double c1 = m[2][0] * m[3][2] - m[3][0] * m[2][2];
+        double c0 = m[2][0] * m[3][1] - m[3][0] * m[2][1];
+        return s0 * c5 - s1 * c4 + s2 * c3 + s3 * c2 - s4 * c1 + s5 * c0;
+    }
+
+    /** returns the number of stored geometries */
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("DuplicateFilter with %d geometries (threshold %.4f A; %d within the radius of gyration window, %d rejected by radii, %d RMSDs calculated, %d superposed)",
+                             size, threshold, windowCandidates, radiiRejections, rmsdCalculations, superpositions);
+    }
+
+    /** for testing */
+    public static void main(String[] args)
+    {
+        Molecule molecule = new GaussianOutputFile("input/template.out").molecule.normalize();
+        int n = molecule.contents.size();
+        Random random = new Random(1);
+
+        // check against the Kabsch superposition, recentering so that only the rotation differs
+        List<Integer> atomNumbers = new ArrayList<>();
+        int[] indices = new int[n];
+        for (int i=0; i < n; i++)
+            {
+                atomNumbers.add(i+1);
+                indices[i] = i;
+            }
+        double largestError = 0.0;
+        for (int trial=0; trial < 100; trial++)
+            {
+                double[] xyz = molecule.xyz.clone();
+                for (int i=0; i < xyz.length; i++)
+                    xyz[i] += 0.2 * ( random.nextDouble() - 0.5 );
+                Geometry.rotate(xyz, indices, Geometry.rotationMatrix(random.nextGaussian(), random.nextGaussian(), random.nextGaussian(),
+                                                                      2.0 * Math.PI * random.nextDouble()), 0.0, 0.0, 0.0);
+                Molecule moved = molecule.withPositions(xyz).normalize();
+                double kabsch = Molecule.calculateRMSD(molecule, moved, atomNumbers);
+                largestError = Math.max(largestError, Math.abs(kabsch - getRMSD(molecule, moved)));
+            }
+        System.out.printf("largest difference from Kabsch: %.3e A\n", largestError);
+
+        // scan a terminal bond three times in 0.05 A steps: each copy is shifted and has noise well under the threshold
+        // the same scan is repeated with a second, fixed copy of the molecule beside the first, doubling the number of atoms
+        int terminal = 0;
+        while ( molecule.topology.getDegree(terminal) != 1 )
+            terminal++;
+        int neighbor = molecule.topology.getNeighbor(terminal, 0);
+        List<Atom> doubledContents = new ArrayList<>(molecule.contents);
+        doubledContents.addAll(molecule.contents);
+        Molecule doubled = new Molecule("title", doubledContents, new Topology.Builder(2*n).build(), 0.0);
+        for (Molecule scanned : new Molecule[] { molecule, doubled })
+            {
+                DuplicateFilter filter = new DuplicateFilter(DEFAULT_THRESHOLD);
+                int kept = 0;
+                long start = System.currentTimeMillis();
+                for (int copy=0; copy < 3; copy++)
+                    {
+                        for (int step=0; step <= 40; step++)
+                            {
+                                double distance = 1.00 + 0.05 * step;
+                                double[] moved = molecule.edit().setDistance(neighbor+1, terminal+1, distance).build().xyz;
+                                double[] xyz = scanned.xyz.clone();
+                                System.arraycopy(moved, 0, xyz, 0, moved.length);
+                                for (int i=moved.length; i < xyz.length; i++)
+                                    xyz[i] += ( i % 3 == 0 ) ? 20.0 : 0.0;
+                                for (int i=0; i < xyz.length; i++)
+                                    xyz[i] += 1.0E-4 * random.nextGaussian() + copy;
+                                if ( filter.add(scanned.withPositions(xyz), String.format("%d_%.2f", copy, distance)) == null )
+                                    kept++;
+                            }
+                    }
+                System.out.printf("%d atoms: kept %d of %d in %d ms: %s\n", scanned.contents.size(), kept, 3 * 41, System.currentTimeMillis() - start, filter.toString());
+            }
+
+        // running a driver again rewrites its own files, but still skips a copy under another name
+        DuplicateFilter filter = new DuplicateFilter(DEFAULT_THRESHOLD);
+        int rewritten = 0;
+        for (int run=0; run < 2; run++)
+            {
+                for (int step=0; step <= 40; step++)
+                    {
+                        double distance = 1.00 + 0.05 * step;
+                        Molecule moved = molecule.edit().setDistance(neighbor+1, terminal+1, distance).build();
+                        if ( filter.add(moved, String.format("gjf/scan_%.2f.gjf", distance)) == null && run == 1 )
+                            rewritten++;
+                    }
+            }
+        String duplicate = filter.add(molecule.edit().setDistance(neighbor+1, terminal+1, 1.00).build(), "gjf/copy.gjf");
+        System.out.printf("second run rewrote %d of 41, leaving %d geometries; a copy under another name duplicates %s\n", rewritten, filter.size(), duplicate);
+    }
+}
@@ -1,9 +1,6 @@
 import java.io.*;
 import java.util.*;
 import org.apache.commons.math3.geometry.euclidean.threed.*;
-import org.jgrapht.*;
-import org.jgrapht.graph.*;
-import org.jgrapht.alg.*;
 import com.google.common.collect.*;
 
 /**
@@ -42,7 +39,6 @@ public class GJFfile extends OutputFileFormat implements Immutable
         // read geometry
 	    String name = "";
         List<Atom> contents = new ArrayList<>();
-	    SimpleWeightedGraph<Atom,DefaultWeightedEdge> connectivity = new SimpleWeightedGraph<>(DefaultWeightedEdge.class);
         int blanks = 0;
         boolean lastBlank = false;
         boolean inGeometryBlock = false;
@@ -117,10 +113,10 @@ public class GJFfile extends OutputFileFormat implements Immutable
                 // tinker atom types will be nonsense, of course
                 Atom newAtom = new Atom(line.get(0), new Vector3D(Double.parseDouble(line.get(1)), Double.parseDouble(line.get(2)), Double.parseDouble(line.get(3))), 1);
                 contents.add(newAtom);
-                connectivity.addVertex(newAtom);
             }
         
         // read connectivity
+        Topology.Builder builder = new Topology.Builder(contents.size());
         blanks = 0;
         lastBlank = false;
         for (List<String> line : fileContents)
@@ -142,20 +138,18 @@ public class GJFfile extends OutputFileFormat implements Immutable
                 if ( blanks != 3 )
                     continue;
 
-                Atom fromAtom = contents.get(Integer.parseInt(line.get(0))-1);
+                int fromAtomIndex = Integer.parseInt(line.get(0))-1;
                 for (int i=1; i < line.size(); i+=2)
                     {
                         int toAtomIndex = Integer.parseInt(line.get(i))-1;
-                        Atom toAtom = contents.get(toAtomIndex);
                         double bondOrder = Double.parseDouble(line.get(i+1));
-                        DefaultWeightedEdge thisEdge = connectivity.addEdge(fromAtom, toAtom);
-                        connectivity.setEdgeWeight(thisEdge, bondOrder);
+                        builder.addBond(fromAtomIndex, toAtomIndex, bondOrder);
                     }
 
             }
 
         // create the molecule
-	    molecule = new Molecule(name, contents, connectivity, 0.0);
+	    molecule = new Molecule(name, contents, builder.build(), 0.0);
     }
 
     /** Writes out the GJF file to disk.  Metadata not reproduced.  Charge and multiplicity assumed to be 1. */
@@ -184,52 +178,21 @@ public class GJFfile extends OutputFileFormat implements Immutable
         // write geometry
         returnString = returnString + molecule.getGJFstring() + "\n";
         
-        // initialize some variables
-        Atom fromAtom = null;
-        Atom toAtom = null;
-        Integer fromAtomNumber = 0;
-        Integer toAtomNumber = 0;
-        Double bondOrder = 0.0;
-        DefaultWeightedEdge thisEdge = null;
-
-        // read connectivity data into parallel arrays
-        ArrayList<Integer> fromAtoms = new ArrayList<Integer>();
-        ArrayList<Integer> toAtoms = new ArrayList<Integer>();
-        ArrayList<Double> bondOrders = new ArrayList<Double>();
-        ArrayList<Boolean> visited = new ArrayList<Boolean>();
-        for (DefaultWeightedEdge e : molecule.connectivity.edgeSet())
-            {
-                fromAtom = molecule.connectivity.getEdgeSource(e);
-                fromAtomNumber = molecule.contents.indexOf(fromAtom) + 1;
-                toAtom = molecule.connectivity.getEdgeTarget(e);
-                toAtomNumber = molecule.contents.indexOf(toAtom) + 1;
-                bondOrder = molecule.connectivity.getEdgeWeight(e);
-
-                fromAtoms.add(fromAtomNumber);
-                toAtoms.add(toAtomNumber);
-                bondOrders.add(bondOrder);
-                visited.add(false);
-            }
-
-        // write connectivity data
-        for (int i=0; i < molecule.contents.size(); i++)
+        // write connectivity data; each bond is written once, on the line of its lower-numbered atom
+        Topology topology = molecule.topology;
+        StringBuilder connectivityString = new StringBuilder();
+        for (int i=0; i < topology.size; i++)
             {
-                returnString = returnString + (i+1) + " ";
-                for (int j=0; j < fromAtoms.size(); j++)
+                connectivityString.append(i+1).append(" ");
+                for (int k=0; k < topology.getDegree(i); k++)
                     {
-                        if (fromAtoms.get(j) == i+1 && visited.get(j) == false)
-                            {
-                                returnString = returnString + toAtoms.get(j) + " " + String.format("%.1f ", bondOrders.get(j));
-                                visited.set(j, true);
-                            }
-                        if (toAtoms.get(j) == i+1 && visited.get(j) == false)
-                            {
-                                returnString = returnString + fromAtoms.get(j) + " " + String.format("%.1f ", bondOrders.get(j));
-                                visited.set(j, true);
-                            }
+                        int j = topology.getNeighbor(i, k);
+                        if ( j > i )
+                            connectivityString.append(j+1).append(" ").append(String.format("%.1f ", topology.getNeighborBondOrder(i, k)));
                     }
-                returnString = returnString + "\n";
+                connectivityString.append("\n");
             }
+        returnString = returnString + connectivityString;
 
         // write footer
         returnString += String.format("\n@%s\n\n", basis);
@@ -1,9 +1,6 @@
 import java.io.*;
 import java.util.*;
 import org.apache.commons.math3.geometry.euclidean.threed.*;
-import org.jgrapht.*;
-import org.jgrapht.graph.*;
-import org.jgrapht.alg.*;
 
 /** Represent a Gaussian input file for debugging purposes. */
 public class GaussianInputFile extends InputFileFormat
@@ -38,6 +35,28 @@ public class GaussianInputFile extends InputFileFormat
         super(getGaussianString(molecule, name, keywords, tail, writeConnectivity, charge, multiplicity));
     }
 
+    /**
+     * Writes the geometry as a Z-matrix.  Gaussian numbers the atoms in the order of
+     * zMatrix.getOrder(), so the tail must use that order.  Connectivity is not written.
+     */
+    public GaussianInputFile(ZMatrix zMatrix, String name, String keywords, String tail, int charge, int multiplicity)
+    {
+        super(getGaussianString(zMatrix, name, keywords, tail, charge, multiplicity));
+    }
+
+    private static String getGaussianString(ZMatrix zMatrix, String name, String keywords, String tail, int charge, int multiplicity)
+    {
+        String returnString = "";
+        if ( keywords.length() == 0 )
+            returnString = "#\n";
+        else
+            returnString = keywords + "\n";
+        returnString += String.format("\n%s\n\n%d %d\n", name, charge, multiplicity);
+        returnString = returnString + zMatrix.toGaussianString() + "\n";
+        returnString = returnString + tail + "\n\n";
+        return returnString;
+    }
+
     private static String getGaussianString(Molecule molecule, String name, String keywords, String tail, boolean writeConnectivity, int charge, int multiplicity)
     {
         //String returnString = "%chk=checkpoint.chk\n%mem=32GB\n%nprocshared=16\n#p geom=connect m062x/6-31g(d) scrf=(pcm,solvent=toluene) pop=none freq=noraman opt=modredundant " + keywords + "\n";
@@ -51,49 +70,21 @@ public class GaussianInputFile extends InputFileFormat
         
         if ( writeConnectivity )
             {
-                Atom fromAtom = null;
-                Atom toAtom = null;
-                Integer fromAtomNumber = 0;
-                Integer toAtomNumber = 0;
-                Double bondOrder = 0.0;
-                DefaultWeightedEdge thisEdge = null;
-
-                // read connectivity data into parallel arrays
-                ArrayList<Integer> fromAtoms = new ArrayList<Integer>();
-                ArrayList<Integer> toAtoms = new ArrayList<Integer>();
-                ArrayList<Double> bondOrders = new ArrayList<Double>();
-                ArrayList<Boolean> visited = new ArrayList<Boolean>();
-                for (DefaultWeightedEdge e : molecule.connectivity.edgeSet())
-                    {
-                        fromAtom = molecule.connectivity.getEdgeSource(e);
-                        fromAtomNumber = molecule.contents.indexOf(fromAtom) + 1;
-                        toAtom = molecule.connectivity.getEdgeTarget(e);
-                        toAtomNumber = molecule.contents.indexOf(toAtom) + 1;
-                        bondOrder = molecule.connectivity.getEdgeWeight(e);
-
-                        fromAtoms.add(fromAtomNumber);
-                        toAtoms.add(toAtomNumber);
-                        bondOrders.add(bondOrder);
-                        visited.add(false);
-                    }
-                for (int i=0; i < molecule.contents.size(); i++)
+                // each bond is written once, on the line of its lower-numbered atom
+                Topology topology = molecule.topology;
+                StringBuilder connectivityString = new StringBuilder();
+                for (int i=0; i < topology.size; i++)
                     {
-                        returnString = returnString + (i+1) + " ";
-                        for (int j=0; j < fromAtoms.size(); j++)
+                        connectivityString.append(i+1).append(" ");
+                        for (int k=0; k < topology.getDegree(i); k++)
                             {
-                                if (fromAtoms.get(j) == i+1 && visited.get(j) == false)
-                                    {
-                                        returnString = returnString + toAtoms.get(j) + " " + String.format("%.1f ", bondOrders.get(j));
-                                        visited.set(j, true);
-                                    }
-                                if (toAtoms.get(j) == i+1 && visited.get(j) == false)
-                                    {
-                                        returnString = returnString + fromAtoms.get(j) + " " + String.format("%.1f ", bondOrders.get(j));
-                                        visited.set(j, true);
-                                    }
+                                int j = topology.getNeighbor(i, k);
+                                if ( j > i )
+                                    connectivityString.append(j+1).append(" ").append(String.format("%.1f ", topology.getNeighborBondOrder(i, k)));
                             }
-                        returnString = returnString + "\n";
+                        connectivityString.append("\n");
                     }
+                returnString = returnString + connectivityString;
                 returnString = returnString + "\n";
             }
 
@@ -112,23 +103,21 @@ public class GaussianInputFile extends InputFileFormat
         String returnString = "%mem=1GB\n%nprocshared=12\n#p geom=connect\n";
         returnString += "\nname\n\n0 1\n";
 
-        List<Atom> newContents = new LinkedList<>();
-        Set<Atom> excludedAtoms = new HashSet<>();
+        List<Atom> newContents = new ArrayList<>();
         for (Atom a : molecule.contents)
             {
                 if ( includeAtoms.contains(a) )
                     newContents.add(a);
-                else
-                    excludedAtoms.add(a);
             }
         Collections.sort(newContents);
 
-        Molecule tempMolecule = molecule.moveAtoms(new HashMap<Atom,Atom>());
-        SimpleWeightedGraph<Atom,DefaultWeightedEdge> connectivity = tempMolecule.connectivity;
-        for (Atom a : excludedAtoms)
-            connectivity.removeVertex(a);
+        // keep only the bonds between included atoms
+        int[] indices = new int[newContents.size()];
+        for (int i=0; i < indices.length; i++)
+            indices[i] = molecule.getAtomNumber(newContents.get(i)) - 1;
+        Topology topology = molecule.topology.subset(indices);
 
-        Molecule tempMolecule2 = new Molecule(molecule.name, newContents, connectivity, 0.0);
+        Molecule tempMolecule2 = new Molecule(molecule.name, newContents, topology, 0.0);
 
         return getGaussianString(tempMolecule2, molecule.name, "", "", false,0,1);
     }
@@ -0,0 +1,294 @@
+import java.io.*;
+import java.util.*;
+import com.google.common.collect.*;
+
+/**
+ * Reads a Gaussian log file in a single streaming pass, reporting each recognized section to a Listener.<p>
+ * Only one line is held in memory at a time, so logs of any size can be read.  Lines are recognized by
+ * a cheap prefix test after their leading spaces.  Only lines that pass it are split into fields and
+ * checked exactly.  Sections that the caller does not ask for are not parsed at all.  The lines
+ * inside a geometry or connectivity block are only split when that section was requested.<p>
+ * For example, to read only the last energy:<p>
+ * <code>final double[] energy = { Double.NaN };<br>
+ * GaussianLogParser.parse("job.out", EnumSet.of(GaussianLogParser.Section.SCF_DONE), new GaussianLogParser.Listener()<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;{ public void scfDone(double e) { energy[0] = e; } });</code>
+ */
+public class GaussianLogParser
+{
+    /** the sections that can be recognized */
+    public enum Section
+    {
+        /** "Charge = 0 Multiplicity = 1" and the atom symbols of the input geometry that follow it */
+        CHARGE_AND_MULTIPLICITY,
+
+        /** each "Standard orientation:" geometry */
+        STANDARD_ORIENTATION,
+
+        /** the bonds in each "Initial Parameters" table */
+        INITIAL_PARAMETERS,
+
+        /** each "SCF Done:" energy */
+        SCF_DONE,
+
+        /** each "Entering Link 1" line */
+        LINK1,
+
+        /** each "Normal termination" line */
+        NORMAL_TERMINATION;
+    }
+
+    /** receives the sections as they are read; every method does nothing by default */
+    public interface Listener
+    {
+        /**
+         * Called for each charge and multiplicity line.
+         * @param charge the total charge
+         * @param multiplicity the spin multiplicity
+         * @param atomSymbols the first field of each input geometry line that follows, which is empty if the geometry was read from a checkpoint
+         */
+        default void chargeAndMultiplicity(int charge, int multiplicity, List<String> atomSymbols)
+        {
+        }
+
+        /**
+         * Called for each standard orientation.
+         * @param xyz the packed coordinates in angstroms
+         */
+        default void standardOrientation(double[] xyz)
+        {
+        }
+
+        /**
+         * Called for each bond, R(i,j), in each Initial Parameters table.
+         * @param atomNumber1 the first atom number (1, 2, ..., n)
+         * @param atomNumber2 the second atom number
+         */
+        default void bond(int atomNumber1, int atomNumber2)
+        {
+        }
+
+        /**
+         * Called for each SCF energy.
+         * @param energy the energy in hartrees
+         */
+        default void scfDone(double energy)
+        {
+        }
+
+        /** called for each Link1 */
+        default void link1()
+        {
+        }
+
+        /** called for each normal termination */
+        default void normalTermination()
+        {
+        }
+
+        /** returns true to stop reading; checked before each line that starts a section */
+        default boolean isFinished()
+        {
+            return false;
+        }
+    }
+
+    /** not instantiable */
+    private GaussianLogParser()
+    {
+    }
+
+    /** returns true if line, ignoring leading spaces, starts with prefix */
+    private static boolean startsWith(String line, String prefix)
+    {
+        int start = 0;
+        int length = line.length();
+        while ( start < length && line.charAt(start) == ' ' )
+            start++;
+        return line.startsWith(prefix, start);
+    }
+
+    /** splits a line into fields as OutputFileFormat does */
+    private static List<String> split(String line)
+    {
+        return ImmutableList.copyOf(line.trim().split("\\s+"));
+    }
+
+    /** reads a line, throwing an exception at the end of the file */
+    private static String readLine(BufferedReader reader) throws IOException
+    {
+        String line = reader.readLine();
+        if ( line == null )
+            throw new IllegalArgumentException("unexpected end of file");
+        return line;
+    }
+
+    /**
+     * Reads a log file.
+     * @param filename the log file
+     * @param sections the sections to report; all others are skipped
+     * @param listener receives the sections in file order
+     */
+    public static void parse(String filename, Set<Section> sections, Listener listener)
+    {
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename), 1 << 16))
+            {
+                parse(reader, sections, listener);
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("error reading " + filename + ": " + e.getMessage());
+            }
+    }
+
+    /**
+     * Reads a log from its current position until the end or until the listener is finished.
+     * @param reader the log, which is not closed
+     * @param sections the sections to report; all others are skipped
+     * @param listener receives the sections in file order
+     */
+    public static void parse(BufferedReader reader, Set<Section> sections, Listener listener) throws IOException
+    {
+        boolean wantCharge = sections.contains(Section.CHARGE_AND_MULTIPLICITY);
+        boolean wantGeometry = sections.contains(Section.STANDARD_ORIENTATION);
+        boolean wantBonds = sections.contains(Section.INITIAL_PARAMETERS);
+        boolean wantEnergy = sections.contains(Section.SCF_DONE);
+        boolean wantLink1 = sections.contains(Section.LINK1);
+        boolean wantTermination = sections.contains(Section.NORMAL_TERMINATION);
+
+        String line = reader.readLine();
+        while ( line != null && !listener.isFinished() )
+            {
+                // the line after the input geometry has not been examined yet
+                String pending = null;
+                if ( wantCharge && startsWith(line, "Charge =") )
+                    {
+                        List<String> fields = split(line);
+                        if ( fields.size() == 6 && fields.get(3).equals("Multiplicity") )
+                            {
+                                int charge = Integer.parseInt(fields.get(2));
+                                int multiplicity = Integer.parseInt(fields.get(5));
+                                List<String> atomSymbols = new ArrayList<>();
+                                while ( (line = reader.readLine()) != null )
+                                    {
+                                        fields = split(line);
+                                        if ( fields.size() < 4 || fields.size() > 5 )
+                                            break;
+                                        atomSymbols.add(fields.get(0));
+                                    }
+                                listener.chargeAndMultiplicity(charge, multiplicity, ImmutableList.copyOf(atomSymbols));
+                                if ( line == null )
+                                    break;
+                                pending = line;
+                            }
+                    }
+                else if ( wantGeometry && startsWith(line, "Standard orientation:") )
+                    {
+                        // skip the four header lines, then read until the closing rule
+                        for (int k=0; k < 4; k++)
+                            readLine(reader);
+                        double[] xyz = new double[96];
+                        int count = 0;
+                        while ( !startsWith(line = readLine(reader), "-") )
+                            {
+                                List<String> fields = split(line);
+                                int numberOfFields = fields.size();
+                                if ( numberOfFields < 5 || numberOfFields > 6 )
+                                    throw new IllegalArgumentException("unexpected number of geometry fields:\n" + fields.toString());
+                                if ( count + 3 > xyz.length )
+                                    xyz = Arrays.copyOf(xyz, 2 * xyz.length);
+                                xyz[count++] = Double.parseDouble(fields.get(numberOfFields-3));
+                                xyz[count++] = Double.parseDouble(fields.get(numberOfFields-2));
+                                xyz[count++] = Double.parseDouble(fields.get(numberOfFields-1));
+                            }
+                        listener.standardOrientation(Arrays.copyOf(xyz, count));
+                    }
+                else if ( wantBonds && startsWith(line, "!") )
+                    {
+                        List<String> fields = split(line);
+                        if ( fields.size() == 4 && fields.get(1).equals("Initial") && fields.get(2).equals("Parameters") )
+                            {
+                                // skip the four header lines, then read until a one-field line
+                                for (int k=0; k < 4; k++)
+                                    readLine(reader);
+                                while ( (fields = split(readLine(reader))).size() != 1 )
+                                    {
+                                        if ( fields.size() >= 4 && fields.get(1).startsWith("R") )
+                                            {
+                                                String[] fields2 = fields.get(2).split(",");
+                                                int atomNumber1 = Integer.parseInt(fields2[0].replaceAll("[^\\d.]", ""));
+                                                int atomNumber2 = Integer.parseInt(fields2[1].replaceAll("[^\\d.]", ""));
+                                                listener.bond(atomNumber1, atomNumber2);
+                                            }
+                                    }
+                            }
+                    }
+                else if ( wantEnergy && startsWith(line, "SCF Done:") )
+                    {
+                        List<String> fields = split(line);
+                        if ( fields.size() > 5 )
+                            listener.scfDone(Double.parseDouble(fields.get(4)));
+                    }
+                else if ( wantLink1 && startsWith(line, "Entering Link 1") )
+                    {
+                        if ( split(line).size() > 4 )
+                            listener.link1();
+                    }
+                else if ( wantTermination && startsWith(line, "Normal termination") )
+                    {
+                        if ( split(line).size() > 5 )
+                            listener.normalTermination();
+                    }
+                line = pending != null ? pending : reader.readLine();
+            }
+    }
+
+    /** for testing: reports the sections of a log file and how long it took to read them */
+    public static void main(String[] args)
+    {
+        long start = System.currentTimeMillis();
+        final int[] counts = new int[Section.values().length];
+        final double[] lastEnergy = { Double.NaN };
+        parse(args[0], EnumSet.allOf(Section.class), new Listener()
+            {
+                @Override
+                public void chargeAndMultiplicity(int charge, int multiplicity, List<String> atomSymbols)
+                {
+                    counts[Section.CHARGE_AND_MULTIPLICITY.ordinal()]++;
+                }
+
+                @Override
+                public void standardOrientation(double[] xyz)
+                {
+                    counts[Section.STANDARD_ORIENTATION.ordinal()]++;
+                }
+
+                @Override
+                public void bond(int atomNumber1, int atomNumber2)
+                {
+                    counts[Section.INITIAL_PARAMETERS.ordinal()]++;
+                }
+
+                @Override
+                public void scfDone(double energy)
+                {
+                    counts[Section.SCF_DONE.ordinal()]++;
+                    lastEnergy[0] = energy;
+                }
+
+                @Override
+                public void link1()
+                {
+                    counts[Section.LINK1.ordinal()]++;
+                }
+
+                @Override
+                public void normalTermination()
+                {
+                    counts[Section.NORMAL_TERMINATION.ordinal()]++;
+                }
+            });
+        for (Section section : Section.values())
+            System.out.printf("%-24s %d\n", section.toString(), counts[section.ordinal()]);
+        System.out.printf("last energy %.8f, read in %d ms\n", lastEnergy[0], System.currentTimeMillis() - start);
+    }
+}
@@ -2,176 +2,259 @@ import java.io.*;
 import java.util.*;
 import com.google.common.collect.*;
 import org.apache.commons.math3.geometry.euclidean.threed.*;
-import org.jgrapht.*;
-import org.jgrapht.graph.*;
-import org.jgrapht.alg.*;
 
 /**
  * This class reads Gaussian output files.  It reads the last energy and geometry that was
- * printed out.
+ * printed out.  The file is streamed once through GaussianLogParser, so the text of the file is
+ * not kept: stringRepresentation is empty and fileContents has no lines.
  */
 public class GaussianOutputFile extends OutputFileFormat
 {
     /** The molecule. */
     public final Molecule molecule;
 
+    /** The charge and multiplicity of the first input geometry. */
+    public final int charge, multiplicity;
+
+    /** True if the file contains at least one normal termination. */
+    public final boolean normalTermination;
+
     /**
      * Reads a g09 output file from disk.  Reads the last geometry and potential energy, as well
-     * as forces and normal modes, if they are available.  Verbose output should be called with
-     * #p so that the masses can be read.
+     * as the connectivity from the Initial Parameters tables and the charge and multiplicity.
      * @param filename the g09 output file to read from
      */
     public GaussianOutputFile(String filename)
     {
-        super(filename);
+        super("", ImmutableList.<List<String>>of());
 
-        // check for Link1
-        int link1count = 0;
-        for (int i=0; i < fileContents.size(); i++)
+        // everything is read in one pass
+        final List<String> atomSymbols = new ArrayList<>();
+        final int[] chargeAndMultiplicity = { 0, 1 };
+        final List<double[]> lastGeometry = new ArrayList<>(1);
+        final List<int[]> bonds = new ArrayList<>();
+        final double[] potentialEnergy = { 0.0 };
+        final int[] link1count = { 0 };
+        final boolean[] terminated = { false };
+        GaussianLogParser.parse(filename, EnumSet.allOf(GaussianLogParser.Section.class), new GaussianLogParser.Listener()
             {
-                List<String> fields = fileContents.get(i);
-                if ( fields.size() > 4 && fields.get(0).equals("Entering") && fields.get(1).equals("Link") && fields.get(2).equals("1") )
-                    {
-                        link1count++;
-                        if (link1count > 1)
-                            {
-                                System.out.printf("Warning, %s has more than one Link1 directive.\n", filename);
-                                break;
-                            }
-                    }
-            }
+                @Override
+                public void chargeAndMultiplicity(int charge, int multiplicity, List<String> symbols)
+                {
+                    // only the first input geometry counts
+                    if ( atomSymbols.size() > 0 )
+                        return;
+                    chargeAndMultiplicity[0] = charge;
+                    chargeAndMultiplicity[1] = multiplicity;
+                    atomSymbols.addAll(symbols);
+                }
 
-        // read atom symbols
-        List<String> atomSymbols = new ArrayList<>();
-        for (int i=0; i < fileContents.size(); i++)
-            {
-                List<String> fields = fileContents.get(i);
-                if ( fields.size() == 6 && fields.get(0).equals("Charge") && fields.get(3).equals("Multiplicity") )
-                    {
-                        while (true)
-                            {
-                                i++;
-                                fields = fileContents.get(i);
-                                if ( fields.size() < 4 || fields.size() > 5 )
-                                    break;
-                                atomSymbols.add(fields.get(0));
-                            }
-                        break;
-                    }
-            }
-        //System.out.println(atomSymbols.size() + " / " + atomSymbols);
+                @Override
+                public void standardOrientation(double[] xyz)
+                {
+                    lastGeometry.clear();
+                    lastGeometry.add(xyz);
+                }
 
-        // read last geometry
-        List<Vector3D> positions = new ArrayList<>(atomSymbols.size());
-        for (int i=0; i < fileContents.size(); i++)
-            {
-                List<String> fields = fileContents.get(i);
-                if ( fields.size() == 2 && fields.get(0).equals("Standard") && fields.get(1).equals("orientation:") )
-                    {
-                        i += 5;
-                        positions.clear();
-                        for (int j=i; j < i+atomSymbols.size(); j++)
-                            {
-                                fields = fileContents.get(j);
-                                int numberOfFields = fields.size();
-                                if ( numberOfFields < 5 || numberOfFields > 6 )
-                                    throw new IllegalArgumentException("unexpected number of geometry fields:\n" + fields.toString());
-                                double x = Double.valueOf(fields.get(numberOfFields-3));
-                                double y = Double.valueOf(fields.get(numberOfFields-2));
-                                double z = Double.valueOf(fields.get(numberOfFields-1));
-                                positions.add(new Vector3D(x,y,z));
-                            }
-                        i += atomSymbols.size();
-                    }
-            }
-        if ( positions.size() == 0 || positions.size() != atomSymbols.size() )
-            throw new IllegalArgumentException("error reading positions!");
-        //for (Vector3D v : positions)
-        //    System.out.println(v);
+                @Override
+                public void bond(int atomNumber1, int atomNumber2)
+                {
+                    bonds.add(new int[] { atomNumber1, atomNumber2 });
+                }
+
+                @Override
+                public void scfDone(double energy)
+                {
+                    potentialEnergy[0] = energy;
+                }
+
+                @Override
+                public void link1()
+                {
+                    link1count[0]++;
+                }
 
-        // construct atoms
+                @Override
+                public void normalTermination()
+                {
+                    terminated[0] = true;
+                }
+            });
+
+        // check for Link1
+        if ( link1count[0] > 1 )
+            System.out.printf("Warning, %s has more than one Link1 directive.\n", filename);
+
+        // create object
+        this.molecule = createMolecule(atomSymbols, lastGeometry.size() == 0 ? null : lastGeometry.get(0), bonds, potentialEnergy[0]);
+        this.charge = chargeAndMultiplicity[0];
+        this.multiplicity = chargeAndMultiplicity[1];
+        this.normalTermination = terminated[0];
+    }
+
+    /** constructs an output file from parts that have already been read */
+    private GaussianOutputFile(Molecule molecule, int charge, int multiplicity, boolean normalTermination)
+    {
+        super("", ImmutableList.<List<String>>of());
+        this.molecule = molecule;
+        this.charge = charge;
+        this.multiplicity = multiplicity;
+        this.normalTermination = normalTermination;
+    }
+
+    /**
+     * Makes a molecule from the sections of a log.
+     * @param atomSymbols the symbols of the input geometry
+     * @param xyz the packed coordinates of the last standard orientation, or null if there was none
+     * @param bonds the bonds as pairs of atom numbers (1, 2, ..., n)
+     * @param energy the last SCF energy
+     * @return the molecule
+     */
+    private static Molecule createMolecule(List<String> atomSymbols, double[] xyz, List<int[]> bonds, double energy)
+    {
+        // construct atoms from the last geometry
+        if ( xyz == null || xyz.length != 3 * atomSymbols.size() || atomSymbols.size() == 0 )
+            throw new IllegalArgumentException("error reading positions!");
         List<Atom> contents = new ArrayList<>();
         for (int i=0; i < atomSymbols.size(); i++)
             {
-                String symbol = atomSymbols.get(i);
-                double mass = 0.0;
-                Vector3D position = positions.get(i);
-                Atom atom = new Atom(symbol, position, 0);
-                contents.add(atom);
-                //System.out.println(atom);
+                Vector3D position = new Vector3D(xyz[3*i], xyz[3*i+1], xyz[3*i+2]);
+                contents.add(new Atom(atomSymbols.get(i), position, 0));
             }
 
         // read connectivity
-        SimpleWeightedGraph<Atom,DefaultWeightedEdge> connectivity = new SimpleWeightedGraph<>(DefaultWeightedEdge.class);
-        for (Atom a : contents)
-            connectivity.addVertex(a);
-        for (int i=0; i < fileContents.size(); i++)
+        Topology.Builder builder = new Topology.Builder(contents.size());
+        for (int[] bond : bonds)
+            builder.addBond(bond[0]-1, bond[1]-1, 1.0);
+        return new Molecule("title", contents, builder.build(), energy);
+    }
+
+    /**
+     * Reads a g09 output file by looking only at its header and its end, so the cost hardly
+     * depends on how long the log is.  The symbols, charge, multiplicity, and connectivity are read
+     * from the header, which ends at the first standard orientation.  The file is then memory-mapped
+     * and searched backwards for the last standard orientation, the last SCF energy, and a normal
+     * termination.  A block that was cut off, as in the log of a job that is still running, is
+     * skipped in favour of the previous one.<p>
+     * The result equals that of the constructor for ordinary logs.  Only the first Initial
+     * Parameters table is read, and Link1 directives are not checked.  If no normal termination
+     * is found, the whole file is searched to be sure of it.
+     * @param filename the g09 output file to read from
+     * @return the output file
+     */
+    public static GaussianOutputFile readLast(String filename)
+    {
+        final List<String> atomSymbols = new ArrayList<>();
+        final int[] chargeAndMultiplicity = { 0, 1 };
+        final List<int[]> bonds = new ArrayList<>();
+        final List<double[]> geometries = new ArrayList<>(1);
+        final List<Double> energies = new ArrayList<>(1);
+        final boolean[] finished = { false };
+        GaussianLogParser.Listener listener = new GaussianLogParser.Listener()
+            {
+                @Override
+                public void chargeAndMultiplicity(int charge, int multiplicity, List<String> symbols)
+                {
+                    if ( atomSymbols.size() > 0 )
+                        return;
+                    chargeAndMultiplicity[0] = charge;
+                    chargeAndMultiplicity[1] = multiplicity;
+                    atomSymbols.addAll(symbols);
+                }
+
+                @Override
+                public void bond(int atomNumber1, int atomNumber2)
+                {
+                    bonds.add(new int[] { atomNumber1, atomNumber2 });
+                }
+
+                @Override
+                public void standardOrientation(double[] xyz)
+                {
+                    geometries.add(xyz);
+                    finished[0] = true;
+                }
+
+                @Override
+                public void scfDone(double energy)
+                {
+                    energies.add(energy);
+                    finished[0] = true;
+                }
+
+                @Override
+                public boolean isFinished()
+                {
+                    return finished[0];
+                }
+            };
+
+        try (MappedLogFile file = new MappedLogFile(filename))
             {
-                List<String> fields = fileContents.get(i);
-                if ( fields.size() == 4 && fields.get(1).equals("Initial") && fields.get(2).equals("Parameters") )
+                // the header precedes the first geometry
+                GaussianLogParser.parse(file.getReader(0L), EnumSet.of(GaussianLogParser.Section.CHARGE_AND_MULTIPLICITY,
+                                        GaussianLogParser.Section.INITIAL_PARAMETERS, GaussianLogParser.Section.STANDARD_ORIENTATION), listener);
+                if ( atomSymbols.size() == 0 )
+                    {
+                        // the symbols come from a later job, so read everything
+                        return new GaussianOutputFile(filename);
+                    }
+
+                // search backwards for the last block that parses; a running job may end in a partial block
+                geometries.clear();
+                finished[0] = false;
+                long offset = file.size;
+                while ( geometries.size() == 0 && (offset = file.lastIndexOf("Standard orientation:", offset)) >= 0L )
                     {
-                        i+=5;
-                        while (true)
+                        try
                             {
-                                fields = fileContents.get(i);
-                                if ( fields.size() >= 4 )
-                                    {
-                                        String firstLetter = fields.get(1).substring(0,1);
-                                        if ( firstLetter.equals("R") )
-                                            {
-                                                String[] fields2 = fields.get(2).split(",");
-                                                int atomNumber1 = Integer.parseInt(fields2[0].replaceAll("[^\\d.]", ""));
-                                                int atomNumber2 = Integer.parseInt(fields2[1].replaceAll("[^\\d.]", ""));
-                                                //System.out.print(fields);
-                                                //System.out.printf("   %d, %d\n", atomNumber1, atomNumber2);
-                                                Atom fromAtom = contents.get(atomNumber1-1);
-                                                Atom toAtom = contents.get(atomNumber2-1);
-                                                double bondOrder = 1.0;                                                
-                                                DefaultWeightedEdge thisEdge = connectivity.addEdge(fromAtom, toAtom);
-                                                if ( thisEdge != null )
-                                                    connectivity.setEdgeWeight(thisEdge, bondOrder);
-                                            }
-                                    }
-                                else if ( fields.size() == 1 )
-                                    break;
-                                i++;
+                                GaussianLogParser.parse(file.getReader(offset), EnumSet.of(GaussianLogParser.Section.STANDARD_ORIENTATION), listener);
+                            }
+                        catch (IllegalArgumentException e)
+                            {
+                                // truncated, so try the previous block
                             }
                     }
-            }
-
-        // read any virtual bonds
-        /*
-        for (List<String> fields : fileContents)
-            {
-                if ( fields.size() > 5 && fields.get(1).equals("virtual") && fields.get(2).equals("bond") )
+                finished[0] = false;
+                offset = file.size;
+                while ( energies.size() == 0 && (offset = file.lastIndexOf("SCF Done:", offset)) >= 0L )
                     {
-                        int atomNumber1 = Integer.parseInt(fields.get(5).replaceAll("[^\\d.]", ""));
-                        int atomNumber2 = Integer.parseInt(fields.get(7).replaceAll("[^\\d.]", ""));
-                        //System.out.print(fields);
-                        //System.out.printf("   %d, %d\n", atomNumber1, atomNumber2);
-                        Atom fromAtom = contents.get(atomNumber1-1);
-                        Atom toAtom = contents.get(atomNumber2-1);
-                        double bondOrder = 1.0;
-                        DefaultWeightedEdge thisEdge = connectivity.addEdge(fromAtom, toAtom);
-                        System.out.println(connectivity.getAllEdges(fromAtom,toAtom).size());
-                        if (thisEdge == null)
-                            continue;
-                        connectivity.setEdgeWeight(thisEdge, bondOrder);
+                        try
+                            {
+                                GaussianLogParser.parse(file.getReader(offset), EnumSet.of(GaussianLogParser.Section.SCF_DONE), listener);
+                            }
+                        catch (IllegalArgumentException e)
+                            {
+                                // the line was cut off in the middle of the energy
+                            }
                     }
-            }
-        */
+                boolean normalTermination = file.lastIndexOf("Normal termination") >= 0L;
 
-        // read last potential energy
-        double potentialEnergy = 0.0;
-        for (List<String> fields : fileContents)
+                Molecule molecule = createMolecule(atomSymbols, geometries.size() == 0 ? null : geometries.get(0), bonds,
+                                                   energies.size() == 0 ? 0.0 : energies.get(0));
+                return new GaussianOutputFile(molecule, chargeAndMultiplicity[0], chargeAndMultiplicity[1], normalTermination);
+            }
+        catch (IOException e)
             {
-                if ( fields.size() > 5 && fields.get(0).equals("SCF") && fields.get(1).equals("Done:") )
-                    potentialEnergy = Double.parseDouble(fields.get(4));
+                throw new IllegalArgumentException("error reading " + filename + ": " + e.getMessage());
             }
-        //System.out.println(potentialEnergy);
+    }
 
-        // create object
-        this.molecule = new Molecule("title", contents, connectivity, potentialEnergy);
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(molecule, charge, multiplicity, normalTermination);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if ( obj == this )
+            return true;
+        if ( !(obj instanceof GaussianOutputFile) )
+            return false;
+        GaussianOutputFile o = (GaussianOutputFile)obj;
+        return molecule.equals(o.molecule) && charge == o.charge && multiplicity == o.multiplicity && normalTermination == o.normalTermination;
     }
 
     @Override 
@@ -180,9 +263,17 @@ public class GaussianOutputFile extends OutputFileFormat
         return molecule.toString();
     }
 
-    /** For testing. */
+    /**
+     * For testing.  With a log file as the argument, checks that readLast skips a last geometry that
+     * was cut off a few lines after its header.
+     */
     public static void main(String[] args)
     {
+        if ( args.length == 1 )
+            {
+                checkTruncation(args[0]);
+                return;
+            }
         GaussianOutputFile r = new GaussianOutputFile("template.out");
         String keywords = "# geom=connect";
         String tail = " ";
@@ -195,4 +286,54 @@ public class GaussianOutputFile extends OutputFileFormat
         //System.out.println(r);
         //System.out.println(r.molecule.energy);
     }
+
+    /** for testing: cuts a log inside its last geometry and compares readLast with the log cut just before it */
+    private static void checkTruncation(String filename)
+    {
+        try
+            {
+                byte[] contents = java.nio.file.Files.readAllBytes(new File(filename).toPath());
+                long header;
+                try (MappedLogFile file = new MappedLogFile(filename))
+                    {
+                        header = file.lastIndexOf("Standard orientation:");
+                    }
+                if ( header < 0L )
+                    throw new IllegalArgumentException("no geometry in " + filename);
+                int lineStart = (int)header;
+                while ( lineStart > 0 && contents[lineStart-1] != '\n' )
+                    lineStart--;
+                GaussianOutputFile expected = readLast(writeTemporary(contents, lineStart));
+                for (int lines : new int[] { 3, 10 })
+                    {
+                        int end = lineStart;
+                        for (int k=0; k <= lines && end < contents.length; end++)
+                            {
+                                if ( contents[end] == '\n' )
+                                    k++;
+                            }
+                        GaussianOutputFile result = readLast(writeTemporary(contents, end));
+                        boolean same = Arrays.equals(result.molecule.xyz, expected.molecule.xyz);
+                        System.out.printf("cut %d lines after the last geometry header: %s\n", lines, same ? "previous geometry read" : "FAILED");
+                        if ( !same )
+                            throw new IllegalArgumentException("readLast did not fall back to the previous geometry");
+                    }
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("error reading " + filename + ": " + e.getMessage());
+            }
+    }
+
+    /** for testing: writes the first length bytes to a temporary file that is deleted on exit */
+    private static String writeTemporary(byte[] contents, int length) throws IOException
+    {
+        File f = File.createTempFile("truncated", ".out");
+        f.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(f))
+            {
+                out.write(contents, 0, length);
+            }
+        return f.getPath();
+    }
 }
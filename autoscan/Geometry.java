@@ -0,0 +1,140 @@
+/**
+ * Static methods that operate on packed coordinate arrays of the form
+ * x1, y1, z1, x2, y2, z2, ...  Atom indices are 0, 1, ..., n-1.
+ * Angles are in degrees unless otherwise noted.  Nothing is allocated
+ * except where a new array is returned.
+ */
+public class Geometry
+{
+    /** not instantiable */
+    private Geometry()
+    {
+    }
+
+    /**
+     * Returns the distance between two atoms.
+     * @param xyz the packed coordinates
+     * @param i the index of the first atom
+     * @param j the index of the second atom
+     * @return the distance in angstroms
+     */
+    public static double distance(double[] xyz, int i, int j)
+    {
+        double dx = xyz[3*j]   - xyz[3*i];
+        double dy = xyz[3*j+1] - xyz[3*i+1];
+        double dz = xyz[3*j+2] - xyz[3*i+2];
+        return Math.sqrt(dx*dx + dy*dy + dz*dz);
+    }
+
+    /**
+     * Returns the i-j-k angle.
+     * @return the angle in degrees
+     */
+    public static double angle(double[] xyz, int i, int j, int k)
+    {
+        double ax = xyz[3*i]   - xyz[3*j];
+        double ay = xyz[3*i+1] - xyz[3*j+1];
+        double az = xyz[3*i+2] - xyz[3*j+2];
+        double bx = xyz[3*k]   - xyz[3*j];
+        double by = xyz[3*k+1] - xyz[3*j+1];
+        double bz = xyz[3*k+2] - xyz[3*j+2];
+        double cx = ay*bz - az*by;
+        double cy = az*bx - ax*bz;
+        double cz = ax*by - ay*bx;
+        return Math.toDegrees(Math.atan2(Math.sqrt(cx*cx + cy*cy + cz*cz), ax*bx + ay*by + az*bz));
+    }
+
+    /**
+     * Returns the i-j-k-l dihedral angle using the same convention as
+     * AbstractTorsion.getDihedralAngle().
+     * @return the dihedral angle in degrees
+     */
+    public static double dihedral(double[] xyz, int i, int j, int k, int l)
+    {
+        double b1x = xyz[3*j]   - xyz[3*i];
+        double b1y = xyz[3*j+1] - xyz[3*i+1];
+        double b1z = xyz[3*j+2] - xyz[3*i+2];
+        double b2x = xyz[3*k]   - xyz[3*j];
+        double b2y = xyz[3*k+1] - xyz[3*j+1];
+        double b2z = xyz[3*k+2] - xyz[3*j+2];
+        double b3x = xyz[3*l]   - xyz[3*k];
+        double b3y = xyz[3*l+1] - xyz[3*k+1];
+        double b3z = xyz[3*l+2] - xyz[3*k+2];
+
+        // n1 = b1 x b2, n2 = b2 x b3
+        double n1x = b1y*b2z - b1z*b2y;
+        double n1y = b1z*b2x - b1x*b2z;
+        double n1z = b1x*b2y - b1y*b2x;
+        double n2x = b2y*b3z - b2z*b3y;
+        double n2y = b2z*b3x - b2x*b3z;
+        double n2z = b2x*b3y - b2y*b3x;
+
+        // make sure the vectors are not collinear
+        if ( ( n1x == 0.0 && n1y == 0.0 && n1z == 0.0 ) || ( n2x == 0.0 && n2y == 0.0 && n2z == 0.0 ) )
+            {
+                System.out.println("Warning! Collinear dihedral angle!");
+                return 0.0;
+            }
+
+        double b2norm = Math.sqrt(b2x*b2x + b2y*b2y + b2z*b2z);
+        double term1 = b2norm * (b1x*n2x + b1y*n2y + b1z*n2z);
+        double term2 = n1x*n2x + n1y*n2y + n1z*n2z;
+        return Math.toDegrees(Math.atan2(term1, term2));
+    }
+
+    /**
+     * Adds a displacement to the specified atoms in place.
+     * @param xyz the packed coordinates to modify
+     * @param indices the atoms to move
+     */
+    public static void translate(double[] xyz, int[] indices, double dx, double dy, double dz)
+    {
+        for (int i : indices)
+            {
+                xyz[3*i]   += dx;
+                xyz[3*i+1] += dy;
+                xyz[3*i+2] += dz;
+            }
+    }
+
+    /**
+     * Returns the row-major 3x3 matrix for a right-handed rotation of theta radians
+     * about the specified axis, which need not be normalized.  This is the same
+     * convention as new Rotation(axis, theta).
+     * @return the rotation matrix as {r00, r01, r02, r10, ..., r22}
+     */
+    public static double[] rotationMatrix(double ax, double ay, double az, double theta)
+    {
+        double norm = Math.sqrt(ax*ax + ay*ay + az*az);
+        if ( norm == 0.0 )
+            throw new IllegalArgumentException("zero norm for rotation axis");
+        ax /= norm;
+        ay /= norm;
+        az /= norm;
+        double c = Math.cos(theta);
+        double s = Math.sin(theta);
+        double t = 1.0 - c;
+        return new double[] { t*ax*ax + c,    t*ax*ay - s*az, t*ax*az + s*ay,
+                              t*ax*ay + s*az, t*ay*ay + c,    t*ay*az - s*ax,
+                              t*ax*az - s*ay, t*ay*az + s*ax, t*az*az + c     };
+    }
+
+    /**
+     * Rotates the specified atoms about the point (ox, oy, oz) in place.
+     * @param xyz the packed coordinates to modify
+     * @param indices the atoms to move
+     * @param matrix a row-major rotation matrix from rotationMatrix()
+     */
+    public static void rotate(double[] xyz, int[] indices, double[] matrix, double ox, double oy, double oz)
+    {
+        for (int i : indices)
+            {
+                double x = xyz[3*i]   - ox;
+                double y = xyz[3*i+1] - oy;
+                double z = xyz[3*i+2] - oz;
+                xyz[3*i]   = matrix[0]*x + matrix[1]*y + matrix[2]*z + ox;
+                xyz[3*i+1] = matrix[3]*x + matrix[4]*y + matrix[5]*z + oy;
+                xyz[3*i+2] = matrix[6]*x + matrix[7]*y + matrix[8]*z + oz;
+            }
+    }
+}
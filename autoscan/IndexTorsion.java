@@ -57,10 +57,12 @@ public class IndexTorsion extends AbstractTorsion
      */
     public static IndexTorsion createIndexTorsion(int index1, int index2, int index3, int index4, Molecule molecule)
     {
+        if ( molecule.isRingBond(index2, index3) )
+            throw new IllegalArgumentException("cannot make a torsion about a ring bond: " + index2 + "-" + index3);
         Set<Atom> atomsToRotate = molecule.getHalfGraph(index2, index3);
         List<Integer> atomNumbersToRotate = new LinkedList<>();
         for (Atom a : atomsToRotate)
-            atomNumbersToRotate.add(molecule.contents.indexOf(a)+1);
+            atomNumbersToRotate.add(molecule.getAtomNumber(a));
         return new IndexTorsion(index1,index2,index3,index4,ImmutableList.copyOf(atomNumbersToRotate));
     }
 
@@ -72,10 +74,10 @@ public class IndexTorsion extends AbstractTorsion
      */
     public static IndexTorsion createIndexTorsion(ProtoTorsion torsion, Molecule m)
     {
-        int index1 = m.contents.indexOf(torsion.atom1);
-        int index2 = m.contents.indexOf(torsion.atom2);
-        int index3 = m.contents.indexOf(torsion.atom3);
-        int index4 = m.contents.indexOf(torsion.atom4);
+        int index1 = m.getAtomNumber(torsion.atom1);
+        int index2 = m.getAtomNumber(torsion.atom2);
+        int index3 = m.getAtomNumber(torsion.atom3);
+        int index4 = m.getAtomNumber(torsion.atom4);
 
         if ( index1 == -1 || index2 == -1 || index3 == -1 || index4 == -1)
             throw new IllegalArgumentException("this atom is not in the molecule");
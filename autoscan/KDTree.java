@@ -0,0 +1,386 @@
+import java.util.*;
+import com.google.common.collect.*;
+
+/**
+ * A k-d tree for finding the nearest stored point, such as the nearest finished point of a scan.<p>
+ * Points can have any number of dimensions.  The metric is a weighted Euclidean distance,
+ * sqrt(sum of (weight * difference)^2), and any dimension can be periodic.  Differences along a
+ * periodic dimension use the nearest image, so with a period of 360 a dihedral of 175 is 10 degrees
+ * from -175.  Each node stores the bounding box of its subtree, and subtrees whose boxes are
+ * further away than the best point so far are skipped.  This works for periodic dimensions too.
+ * A query then takes O(log n) time for well-spread points, instead of the O(n) of a linear search.
+ * Each point carries a value of type T, such as the Molecule computed at that point.<p>
+ * This class is immutable as long as the values are.
+ */
+public class KDTree<T> implements Immutable
+{
+    /** a node of the tree, covering a contiguous range of the permuted points */
+    private static class Node
+    {
+        /** the index of the point stored at this node */
+        final int point;
+
+        /** the dimension this node splits on */
+        final int dimension;
+
+        /** the subtrees; either may be null */
+        final Node left, right;
+
+        /** the bounding box of every point in this subtree */
+        final double[] min, max;
+
+        Node(int point, int dimension, Node left, Node right, double[] min, double[] max)
+        {
+            this.point = point;
+            this.dimension = dimension;
+            this.left = left;
+            this.right = right;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    /** the number of dimensions */
+    public final int dimensions;
+
+    /** the stored points; never modified */
+    private final double[][] points;
+
+    /** the value attached to each point */
+    private final ImmutableList<T> values;
+
+    /** the weight of each dimension */
+    private final double[] weights;
+
+    /** the period of each dimension, or 0.0 if it is not periodic */
+    private final double[] periods;
+
+    /** the root, or null if there are no points */
+    private final Node root;
+
+    /**
+     * Creates a tree with an unweighted, non-periodic metric.
+     * @param points the coordinates of each point
+     * @param values the value attached to each point
+     */
+    public KDTree(List<double[]> points, List<T> values)
+    {
+        this(points, values, null, null);
+    }
+
+    /**
+     * Creates a tree.
+     * @param points the coordinates of each point; all must have the same length
+     * @param values the value attached to each point, in the same order; may not contain nulls
+     * @param weights the weight of each dimension, or null for all ones
+     * @param periods the period of each dimension, or 0.0 if it is not periodic; null for none periodic
+     */
+    public KDTree(List<double[]> points, List<T> values, double[] weights, double[] periods)
+    {
+        if ( points.size() != values.size() )
+            throw new IllegalArgumentException("there must be one value per point");
+        if ( points.size() == 0 && weights == null && periods == null )
+            throw new IllegalArgumentException("cannot tell the number of dimensions of an empty tree");
+        this.dimensions = points.size() > 0 ? points.get(0).length : ( weights != null ? weights.length : periods.length );
+        if ( dimensions == 0 )
+            throw new IllegalArgumentException("points must have at least one dimension");
+
+        this.points = new double[points.size()][];
+        for (int i=0; i < points.size(); i++)
+            {
+                if ( points.get(i).length != dimensions )
+                    throw new IllegalArgumentException(String.format("point %d has %d dimensions, not %d", i, points.get(i).length, dimensions));
+                this.points[i] = points.get(i).clone();
+            }
+        this.values = ImmutableList.copyOf(values);
+
+        this.weights = new double[dimensions];
+        this.periods = new double[dimensions];
+        Arrays.fill(this.weights, 1.0);
+        if ( weights != null )
+            {
+                if ( weights.length != dimensions )
+                    throw new IllegalArgumentException("wrong number of weights");
+                for (int d=0; d < dimensions; d++)
+                    {
+                        if ( !(weights[d] >= 0.0) )
+                            throw new IllegalArgumentException("weights cannot be negative");
+                        this.weights[d] = weights[d];
+                    }
+            }
+        if ( periods != null )
+            {
+                if ( periods.length != dimensions )
+                    throw new IllegalArgumentException("wrong number of periods");
+                for (int d=0; d < dimensions; d++)
+                    {
+                        if ( !(periods[d] >= 0.0) )
+                            throw new IllegalArgumentException("periods cannot be negative");
+                        this.periods[d] = periods[d];
+                    }
+            }
+
+        int[] order = new int[this.points.length];
+        for (int i=0; i < order.length; i++)
+            order[i] = i;
+        this.root = build(order, 0, order.length);
+    }
+
+    /** builds the subtree for order[start], ..., order[end-1] */
+    private Node build(int[] order, int start, int end)
+    {
+        if ( start >= end )
+            return null;
+
+        // split on the dimension with the widest weighted spread
+        double[] min = new double[dimensions];
+        double[] max = new double[dimensions];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        for (int k=start; k < end; k++)
+            {
+                double[] p = points[order[k]];
+                for (int d=0; d < dimensions; d++)
+                    {
+                        min[d] = Math.min(min[d], p[d]);
+                        max[d] = Math.max(max[d], p[d]);
+                    }
+            }
+        int dimension = 0;
+        double widest = -1.0;
+        for (int d=0; d < dimensions; d++)
+            {
+                double spread = ( max[d] - min[d] ) * weights[d];
+                if ( spread > widest )
+                    {
+                        widest = spread;
+                        dimension = d;
+                    }
+            }
+
+        // put the median in the middle with smaller values before it
+        int middle = ( start + end ) >>> 1;
+        select(order, start, end - 1, middle, dimension);
+        Node left = build(order, start, middle);
+        Node right = build(order, middle + 1, end);
+        return new Node(order[middle], dimension, left, right, min, max);
+    }
+
+    /** rearranges order[lo..hi] so that order[k] holds the k-th smallest point along dimension */
+    private void select(int[] order, int lo, int hi, int k, int dimension)
+    {
+        while ( lo < hi )
+            {
+                double pivot = points[order[( lo + hi ) >>> 1]][dimension];
+                int i = lo;
+                int j = hi;
+                while ( i <= j )
+                    {
+                        while ( points[order[i]][dimension] < pivot )
+                            i++;
+                        while ( points[order[j]][dimension] > pivot )
+                            j--;
+                        if ( i <= j )
+                            {
+                                int temp = order[i];
+                                order[i] = order[j];
+                                order[j] = temp;
+                                i++;
+                                j--;
+                            }
+                    }
+                if ( k <= j )
+                    hi = j;
+                else if ( k >= i )
+                    lo = i;
+                else
+                    return;
+            }
+    }
+
+    /** returns the number of stored points */
+    public int size()
+    {
+        return points.length;
+    }
+
+    /** returns a copy of the coordinates of point i */
+    public double[] getPoint(int i)
+    {
+        return points[i].clone();
+    }
+
+    /** returns the value attached to point i */
+    public T getValue(int i)
+    {
+        return values.get(i);
+    }
+
+    /** returns the difference along dimension d, using the nearest image if the dimension is periodic */
+    private double difference(double a, double b, int d)
+    {
+        double delta = a - b;
+        double period = periods[d];
+        if ( period > 0.0 )
+            {
+                delta -= period * Math.rint(delta / period);
+            }
+        return delta;
+    }
+
+    /**
+     * Returns the distance between two points under this tree's metric.
+     * @param a the first point
+     * @param b the second point
+     * @return the weighted, periodic-aware Euclidean distance
+     */
+    public double distance(double[] a, double[] b)
+    {
+        return Math.sqrt(squaredDistance(a, b));
+    }
+
+    private double squaredDistance(double[] a, double[] b)
+    {
+        double sum = 0.0;
+        for (int d=0; d < dimensions; d++)
+            {
+                double delta = weights[d] * difference(a[d], b[d], d);
+                sum += delta * delta;
+            }
+        return sum;
+    }
+
+    /** returns a lower bound on the squared distance from target to anything in the box */
+    private double squaredDistanceToBox(double[] target, double[] min, double[] max)
+    {
+        double sum = 0.0;
+        for (int d=0; d < dimensions; d++)
+            {
+                double gap = 0.0;
+                double t = target[d];
+                double period = periods[d];
+                if ( period > 0.0 )
+                    {
+                        // move t into [min, min + period) and measure around the circle
+                        double shifted = min[d] + ( ( ( t - min[d] ) % period ) + period ) % period;
+                        if ( shifted > max[d] )
+                            gap = Math.min(shifted - max[d], min[d] + period - shifted);
+                    }
+                else if ( t < min[d] )
+                    gap = min[d] - t;
+                else if ( t > max[d] )
+                    gap = t - max[d];
+                gap *= weights[d];
+                sum += gap * gap;
+            }
+        return sum;
+    }
+
+    /**
+     * Finds the stored point closest to target.
+     * @param target the query point
+     * @return the index of the nearest point, or -1 if the tree is empty
+     */
+    public int nearest(double[] target)
+    {
+        return nearest(target, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Finds the stored point closest to target, provided it is within maximumDistance.
+     * Ties are broken in favor of the lower index.
+     * @param target the query point
+     * @param maximumDistance points further away than this are ignored
+     * @return the index of the nearest point, or -1 if there is no point within range
+     */
+    public int nearest(double[] target, double maximumDistance)
+    {
+        if ( target.length != dimensions )
+            throw new IllegalArgumentException(String.format("expected %d dimensions, found %d", dimensions, target.length));
+        double[] best = { maximumDistance * maximumDistance, -1 };
+        search(root, target, best);
+        return (int)best[1];
+    }
+
+    /** best holds the squared distance and index of the best point found so far */
+    private void search(Node node, double[] target, double[] best)
+    {
+        if ( node == null || squaredDistanceToBox(target, node.min, node.max) > best[0] )
+            return;
+
+        double squaredDistance = squaredDistance(target, points[node.point]);
+        if ( squaredDistance < best[0] || ( squaredDistance == best[0] && ( best[1] < 0 || node.point < best[1] ) ) )
+            {
+                best[0] = squaredDistance;
+                best[1] = node.point;
+            }
+
+        // visit the side containing the target first
+        double delta = difference(target[node.dimension], points[node.point][node.dimension], node.dimension);
+        Node first = delta < 0.0 ? node.left : node.right;
+        Node second = delta < 0.0 ? node.right : node.left;
+        search(first, target, best);
+        search(second, target, best);
+    }
+
+    /**
+     * Finds every stored point within radius of target.
+     * @param target the query point
+     * @param radius the search radius
+     * @return the indices of the points in ascending order
+     */
+    public List<Integer> withinRadius(double[] target, double radius)
+    {
+        if ( target.length != dimensions )
+            throw new IllegalArgumentException(String.format("expected %d dimensions, found %d", dimensions, target.length));
+        List<Integer> found = new ArrayList<>();
+        collect(root, target, radius * radius, found);
+        Collections.sort(found);
+        return found;
+    }
+
+    private void collect(Node node, double[] target, double squaredRadius, List<Integer> found)
+    {
+        if ( node == null || squaredDistanceToBox(target, node.min, node.max) > squaredRadius )
+            return;
+        if ( squaredDistance(target, points[node.point]) <= squaredRadius )
+            found.add(node.point);
+        collect(node.left, target, squaredRadius, found);
+        collect(node.right, target, squaredRadius, found);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("KDTree with %d points in %d dimensions", points.length, dimensions);
+    }
+
+    /** for testing */
+    public static void main(String[] args)
+    {
+        Random random = new Random(1);
+        List<double[]> points = new ArrayList<>();
+        List<Integer> values = new ArrayList<>();
+        for (int i=0; i < 20000; i++)
+            {
+                points.add(new double[] { 1.5 + 2.0*random.nextDouble(), -180.0 + 360.0*random.nextDouble() });
+                values.add(i);
+            }
+        KDTree<Integer> tree = new KDTree<>(points, values, new double[] { 1.0, 0.01 }, new double[] { 0.0, 360.0 });
+
+        int mismatches = 0;
+        long start = System.currentTimeMillis();
+        for (int q=0; q < 2000; q++)
+            {
+                double[] target = { 1.5 + 2.0*random.nextDouble(), -180.0 + 360.0*random.nextDouble() };
+                int found = tree.nearest(target);
+                int bruteForce = 0;
+                for (int i=1; i < points.size(); i++)
+                    if ( tree.distance(target, points.get(i)) < tree.distance(target, points.get(bruteForce)) )
+                        bruteForce = i;
+                if ( found != bruteForce )
+                    mismatches++;
+            }
+        System.out.printf("%s: %d mismatches in %d ms\n", tree.toString(), mismatches, System.currentTimeMillis() - start);
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+
+/**
+ * Gives random access to a large log file through memory-mapped windows.<p>
+ * Searching backwards from the end of the file touches only the pages between the end and the
+ * match, so finding something near the end of a log costs about the same whatever the log's length.
+ * Text is decoded as ISO-8859-1, which maps every byte to one character.
+ */
+public class MappedLogFile implements Closeable
+{
+    /** the largest region that is mapped at once */
+    private static final long WINDOW_SIZE = 1L << 28;
+
+    /** the open file */
+    private final FileChannel channel;
+
+    /** the length of the file in bytes */
+    public final long size;
+
+    /** the name of the file */
+    public final String filename;
+
+    /**
+     * Opens a file for reading.
+     * @param filename the file to open
+     */
+    public MappedLogFile(String filename)
+    {
+        RandomAccessFile file = null;
+        try
+            {
+                file = new RandomAccessFile(filename, "r");
+                this.channel = file.getChannel();
+                this.size = channel.size();
+            }
+        catch (IOException e)
+            {
+                // close the file if it was opened but its size could not be read
+                if ( file != null )
+                    {
+                        try
+                            {
+                                file.close();
+                            }
+                        catch (IOException e2)
+                            {
+                                // the original error is the one to report
+                            }
+                    }
+                throw new IllegalArgumentException("error opening " + filename + ": " + e.getMessage());
+            }
+        this.filename = filename;
+    }
+
+    /**
+     * Finds the last occurrence of some text that starts before a given offset.
+     * @param text the text to look for
+     * @param before only occurrences that start before this offset are returned
+     * @return the offset of the first byte of the occurrence, or -1 if there is none
+     */
+    public long lastIndexOf(String text, long before)
+    {
+        byte[] pattern = text.getBytes(StandardCharsets.ISO_8859_1);
+        if ( pattern.length == 0 )
+            throw new IllegalArgumentException("empty pattern");
+        long end = Math.min(size, before - 1 + pattern.length);
+        try
+            {
+                while ( end >= pattern.length )
+                    {
+                        // consecutive windows overlap so that matches spanning a boundary are found
+                        long start = Math.max(0L, end - WINDOW_SIZE);
+                        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                        for (int i = (int)(end - start) - pattern.length; i >= 0; i--)
+                            {
+                                if ( buffer.get(i) != pattern[0] )
+                                    continue;
+                                int k = 1;
+                                while ( k < pattern.length && buffer.get(i+k) == pattern[k] )
+                                    k++;
+                                if ( k == pattern.length )
+                                    return start + i;
+                            }
+                        if ( start == 0L )
+                            break;
+                        end = start + pattern.length - 1;
+                    }
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("error reading " + filename + ": " + e.getMessage());
+            }
+        return -1L;
+    }
+
+    /**
+     * Finds the last occurrence of some text in the whole file.
+     * @param text the text to look for
+     * @return the offset of the first byte of the occurrence, or -1 if there is none
+     */
+    public long lastIndexOf(String text)
+    {
+        return lastIndexOf(text, size);
+    }
+
+    /**
+     * Returns a reader positioned at the start of the line that contains the given offset.
+     * The reader shares this file's channel, so only one reader should be in use at a time,
+     * and closing it closes this file.
+     * @param offset an offset in the file
+     * @return a reader whose first line is the whole line containing offset
+     */
+    public BufferedReader getReader(long offset)
+    {
+        if ( offset < 0L || offset > size )
+            throw new IllegalArgumentException("offset out of range: " + offset);
+        try
+            {
+                // back up to the previous newline; lines in logs are short, so one small map suffices
+                long start = offset;
+                while ( start > 0L )
+                    {
+                        long from = Math.max(0L, start - 4096L);
+                        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, start - from);
+                        int i = (int)(start - from) - 1;
+                        while ( i >= 0 && buffer.get(i) != '\n' )
+                            i--;
+                        if ( i >= 0 )
+                            {
+                                start = from + i + 1;
+                                break;
+                            }
+                        start = from;
+                    }
+                channel.position(start);
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("error reading " + filename + ": " + e.getMessage());
+            }
+        return new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.ISO_8859_1), 1 << 16);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,348 @@
+import java.util.*;
+import com.google.common.collect.*;
+
+/**
+ * A small arithmetic and logical expression over named variables, such as
+ * <code>bond1 + bond2 &lt; 3.30</code> or <code>abs(phi) &gt;= 60 &amp;&amp; r &lt; 2.5</code>.<p>
+ * Supported, from lowest to highest precedence: <code>||</code>, <code>&amp;&amp;</code>,
+ * comparisons (<code>&lt; &lt;= &gt; &gt;= == !=</code>), <code>+ -</code>, <code>* /</code>,
+ * unary <code>- !</code>, then numbers, variables, parentheses and the functions
+ * <code>abs</code>, <code>min</code>, <code>max</code> and <code>sqrt</code>.  Comparisons and logical
+ * operators give 1.0 for true and 0.0 for false, and any non-zero value counts as true.<p>
+ * Variable names are resolved to positions when the expression is parsed, so evaluation only
+ * reads an array of values.
+ */
+public class MaskExpression implements Immutable
+{
+    /** a parsed node */
+    private interface Node
+    {
+        double evaluate(double[] values);
+    }
+
+    /** the text this expression was parsed from */
+    public final String text;
+
+    /** the names of the variables, in the order their values must be supplied */
+    public final ImmutableList<String> variableNames;
+
+    /** the root of the parse tree */
+    private final Node root;
+
+    /** the position of the parser in text; only used during construction */
+    private int position;
+
+    /**
+     * Parses an expression.
+     * @param text the expression
+     * @param variableNames the names that may appear in the expression; values are supplied in this order
+     */
+    public MaskExpression(String text, List<String> variableNames)
+    {
+        if ( text == null || variableNames == null )
+            throw new NullPointerException("null expression or variable names");
+        this.text = text.trim();
+        this.variableNames = ImmutableList.copyOf(variableNames);
+        this.position = 0;
+        if ( this.text.length() == 0 )
+            throw new IllegalArgumentException("empty expression");
+        this.root = parseOr();
+        skipWhitespace();
+        if ( position < this.text.length() )
+            throw error("unexpected '" + this.text.charAt(position) + "'");
+    }
+
+    /**
+     * Evaluates this expression.
+     * @param values the value of each variable in the order of variableNames
+     * @return the result; 1.0 or 0.0 for comparisons and logical operators
+     */
+    public double evaluate(double[] values)
+    {
+        if ( values.length != variableNames.size() )
+            throw new IllegalArgumentException(String.format("expected %d values, found %d", variableNames.size(), values.length));
+        return root.evaluate(values);
+    }
+
+    /**
+     * Evaluates this expression as a condition.
+     * @param values the value of each variable in the order of variableNames
+     * @return true if the result is not zero
+     */
+    public boolean test(double[] values)
+    {
+        return evaluate(values) != 0.0;
+    }
+
+    private Node parseOr()
+    {
+        Node left = parseAnd();
+        while ( accept("||") )
+            {
+                Node l = left;
+                Node r = parseAnd();
+                left = v -> ( l.evaluate(v) != 0.0 || r.evaluate(v) != 0.0 ) ? 1.0 : 0.0;
+            }
+        return left;
+    }
+
+    private Node parseAnd()
+    {
+        Node left = parseComparison();
+        while ( accept("&&") )
+            {
+                Node l = left;
+                Node r = parseComparison();
+                left = v -> ( l.evaluate(v) != 0.0 && r.evaluate(v) != 0.0 ) ? 1.0 : 0.0;
+            }
+        return left;
+    }
+
+    private Node parseComparison()
+    {
+        Node left = parseSum();
+        while (true)
+            {
+                Node l = left;
+                if ( accept("<=") )
+                    {
+                        Node r = parseSum();
+                        left = v -> l.evaluate(v) <= r.evaluate(v) ? 1.0 : 0.0;
+                    }
+                else if ( accept(">=") )
+                    {
+                        Node r = parseSum();
+                        left = v -> l.evaluate(v) >= r.evaluate(v) ? 1.0 : 0.0;
+                    }
+                else if ( accept("==") )
+                    {
+                        Node r = parseSum();
+                        left = v -> l.evaluate(v) == r.evaluate(v) ? 1.0 : 0.0;
+                    }
+                else if ( accept("!=") )
+                    {
+                        Node r = parseSum();
+                        left = v -> l.evaluate(v) != r.evaluate(v) ? 1.0 : 0.0;
+                    }
+                else if ( accept("<") )
+                    {
+                        Node r = parseSum();
+                        left = v -> l.evaluate(v) < r.evaluate(v) ? 1.0 : 0.0;
+                    }
+                else if ( accept(">") )
+                    {
+                        Node r = parseSum();
+                        left = v -> l.evaluate(v) > r.evaluate(v) ? 1.0 : 0.0;
+                    }
+                else
+                    return left;
+            }
+    }
+
+    private Node parseSum()
+    {
+        Node left = parseProduct();
+        while (true)
+            {
+                Node l = left;
+                if ( accept("+") )
+                    {
+                        Node r = parseProduct();
+                        left = v -> l.evaluate(v) + r.evaluate(v);
+                    }
+                else if ( accept("-") )
+                    {
+                        Node r = parseProduct();
+                        left = v -> l.evaluate(v) - r.evaluate(v);
+                    }
+                else
+                    return left;
+            }
+    }
+
+    private Node parseProduct()
+    {
+        Node left = parseUnary();
+        while (true)
+            {
+                Node l = left;
+                if ( accept("*") )
+                    {
+                        Node r = parseUnary();
+                        left = v -> l.evaluate(v) * r.evaluate(v);
+                    }
+                else if ( accept("/") )
+                    {
+                        Node r = parseUnary();
+                        left = v -> l.evaluate(v) / r.evaluate(v);
+                    }
+                else
+                    return left;
+            }
+    }
+
+    private Node parseUnary()
+    {
+        if ( accept("-") )
+            {
+                Node operand = parseUnary();
+                return v -> -operand.evaluate(v);
+            }
+        if ( accept("!") )
+            {
+                Node operand = parseUnary();
+                return v -> operand.evaluate(v) == 0.0 ? 1.0 : 0.0;
+            }
+        if ( accept("+") )
+            return parseUnary();
+        return parsePrimary();
+    }
+
+    private Node parsePrimary()
+    {
+        skipWhitespace();
+        if ( position >= text.length() )
+            throw error("unexpected end of expression");
+        char c = text.charAt(position);
+
+        // parenthesized subexpression
+        if ( accept("(") )
+            {
+                Node inner = parseOr();
+                expect(")");
+                return inner;
+            }
+
+        // number
+        if ( Character.isDigit(c) || c == '.' )
+            {
+                int start = position;
+                while ( position < text.length() && ( Character.isDigit(text.charAt(position)) || text.charAt(position) == '.' ) )
+                    position++;
+                if ( position < text.length() && ( text.charAt(position) == 'e' || text.charAt(position) == 'E' ) )
+                    {
+                        position++;
+                        if ( position < text.length() && ( text.charAt(position) == '+' || text.charAt(position) == '-' ) )
+                            position++;
+                        while ( position < text.length() && Character.isDigit(text.charAt(position)) )
+                            position++;
+                    }
+                String number = text.substring(start, position);
+                double value;
+                try
+                    {
+                        value = Double.parseDouble(number);
+                    }
+                catch (NumberFormatException e)
+                    {
+                        position = start;
+                        throw error("bad number '" + number + "'");
+                    }
+                return v -> value;
+            }
+
+        // variable or function
+        if ( Character.isLetter(c) || c == '_' )
+            {
+                int start = position;
+                while ( position < text.length() && ( Character.isLetterOrDigit(text.charAt(position)) || text.charAt(position) == '_' ) )
+                    position++;
+                String name = text.substring(start, position);
+                skipWhitespace();
+                if ( position < text.length() && text.charAt(position) == '(' )
+                    return parseFunction(name, start);
+                int index = variableNames.indexOf(name);
+                if ( index < 0 )
+                    {
+                        position = start;
+                        throw error("unknown variable '" + name + "'");
+                    }
+                return v -> v[index];
+            }
+        throw error("unexpected '" + c + "'");
+    }
+
+    private Node parseFunction(String name, int start)
+    {
+        expect("(");
+        Node first = parseOr();
+        switch (name)
+            {
+                case "abs":
+                    expect(")");
+                    return v -> Math.abs(first.evaluate(v));
+                case "sqrt":
+                    expect(")");
+                    return v -> Math.sqrt(first.evaluate(v));
+                case "min":
+                    {
+                        expect(",");
+                        Node second = parseOr();
+                        expect(")");
+                        return v -> Math.min(first.evaluate(v), second.evaluate(v));
+                    }
+                case "max":
+                    {
+                        expect(",");
+                        Node second = parseOr();
+                        expect(")");
+                        return v -> Math.max(first.evaluate(v), second.evaluate(v));
+                    }
+                default:
+                    position = start;
+                    throw error("unknown function '" + name + "'");
+            }
+    }
+
+    /** consumes token if it is next, ignoring whitespace */
+    private boolean accept(String token)
+    {
+        skipWhitespace();
+        if ( ! text.startsWith(token, position) )
+            return false;
+
+        // do not read the first character of a two-character operator as a one-character operator
+        if ( token.length() == 1 && position + 1 < text.length() )
+            {
+                char next = text.charAt(position+1);
+                if ( ( token.equals("<") || token.equals(">") || token.equals("!") ) && next == '=' )
+                    return false;
+            }
+        position += token.length();
+        return true;
+    }
+
+    /** consumes token or throws an exception */
+    private void expect(String token)
+    {
+        if ( ! accept(token) )
+            throw error("expected '" + token + "'");
+    }
+
+    private void skipWhitespace()
+    {
+        while ( position < text.length() && Character.isWhitespace(text.charAt(position)) )
+            position++;
+    }
+
+    /** makes an exception that points at the current position */
+    private IllegalArgumentException error(String message)
+    {
+        return new IllegalArgumentException(String.format("%s at position %d in \"%s\"", message, position+1, text));
+    }
+
+    @Override
+    public String toString()
+    {
+        return text;
+    }
+
+    /** for testing */
+    public static void main(String[] args)
+    {
+        MaskExpression expression = new MaskExpression("bond1 + bond2 < 3.30 && !(abs(phi) > 150)", ImmutableList.of("bond1", "bond2", "phi"));
+        System.out.println(expression.test(new double[] { 1.60, 1.65, 120.0 }));
+        System.out.println(expression.test(new double[] { 1.60, 1.75, 120.0 }));
+        System.out.println(expression.test(new double[] { 1.60, 1.65, -170.0 }));
+    }
+}
@@ -1,15 +1,18 @@
 import java.util.*;
 import java.io.*;
 import org.apache.commons.math3.geometry.euclidean.threed.*;
-import org.jgrapht.*;
 import org.jgrapht.graph.*;
-import org.jgrapht.alg.*;
 import com.google.common.collect.*;
 import Jama.*;
 
 /**
  * Represents a molecule.  This class is effectively immutable and serializable.
- * The connectivity graph is not exposed because it is potentially mutable.
+ * Positions, elements, and atom types are also stored in parallel primitive arrays,
+ * which geometry operations work on directly.  Connectivity is stored in an immutable,
+ * index-based Topology; use getConnectivityGraph() if a jgrapht graph is needed.<p>
+ * Molecules derived by changing coordinates only share the topology, element, and atom
+ * type arrays of their parent, so each one costs little more than its coordinate array.
+ * For such molecules, the Atom objects in contents are created the first time they are needed.
  */
 public class Molecule implements Immutable, Serializable
 {
@@ -17,9 +20,21 @@ public class Molecule implements Immutable, Serializable
 
     public final String name;
     public final List<Atom> contents;
-    protected final SimpleWeightedGraph<Atom, DefaultWeightedEdge> connectivity;
+    public final Topology topology;
     public final double energy;
 
+    /** packed Cartesian coordinates x1, y1, z1, x2, ... in angstroms; parallel to contents and never modified */
+    protected final double[] xyz;
+
+    /** the Element of each atom; parallel to contents and never modified */
+    protected final Element[] elements;
+
+    /** the Tinker atom type of each atom; parallel to contents and never modified */
+    protected final int[] atomTypes;
+
+    /** maps each Atom object in contents to its index (0, 1, ..., n-1); created lazily and never modified */
+    private transient volatile Map<Atom,Integer> atomIndices;
+
     /**
      * Factory method to create a molecule given a map of old atoms to new atoms.  Should be used
      * to move atoms.
@@ -28,7 +43,7 @@ public class Molecule implements Immutable, Serializable
     public Molecule moveAtoms(Map<Atom,Atom> atomMap)
     {
         // copy the list of vertices
-        List<Atom> newContents = new LinkedList<Atom>();
+        List<Atom> newContents = new ArrayList<Atom>(contents.size());
         for (Atom a : contents)
             {
                 if ( atomMap.containsKey(a) )
@@ -37,32 +52,32 @@ public class Molecule implements Immutable, Serializable
                     newContents.add(a);
             }
 
-        // populate a new connectivity graph
-        SimpleWeightedGraph<Atom,DefaultWeightedEdge> newConnectivity = new SimpleWeightedGraph<Atom,DefaultWeightedEdge>(DefaultWeightedEdge.class);
-        for (Atom newAtom : newContents)
-            newConnectivity.addVertex(newAtom);
-        for (DefaultWeightedEdge e : connectivity.edgeSet())
-            {
-                // get old edge data
-                Double bondOrder = connectivity.getEdgeWeight(e);
-                Atom fromAtom    = connectivity.getEdgeSource(e);
-                Atom toAtom      = connectivity.getEdgeTarget(e);
-
-                // replace any changes
-                if ( atomMap.containsKey(fromAtom) )
-                    fromAtom = atomMap.get(fromAtom);
-                if ( atomMap.containsKey(toAtom)   )
-                    toAtom   = atomMap.get(toAtom);
-
-                // create new edge
-                if (! newContents.contains(fromAtom) || ! newContents.contains(toAtom))
-                    System.out.println("FromAtom: " + getAtomString(fromAtom) +  " ToAtom: " + getAtomString(toAtom));
-                DefaultWeightedEdge newEdge = newConnectivity.addEdge(fromAtom,toAtom);
-                newConnectivity.setEdgeWeight(newEdge, bondOrder);
-            }
+        // the connectivity is index-based, so it does not change
+        return new Molecule(name, newContents, topology, energy);
+    }
 
-        // return result
-        return new Molecule(name, newContents, newConnectivity, energy);
+    /**
+     * Factory method to create a molecule with the same atoms and connectivity as this one,
+     * but with new positions.  The new molecule shares its topology with this one.
+     * @param newPositions packed coordinates x1, y1, z1, x2, ... for every atom in this molecule
+     * @return the moved molecule
+     */
+    public Molecule moveAtoms(double[] newPositions)
+    {
+        if ( newPositions.length != xyz.length )
+            throw new IllegalArgumentException("expected " + xyz.length + " coordinates, found " + newPositions.length);
+        return withPositions(newPositions.clone());
+    }
+
+    /**
+     * Creates a molecule that is identical to this one except for its coordinates.
+     * The new molecule takes ownership of newPositions, which must not be modified afterwards.
+     * @param newPositions packed coordinates x1, y1, z1, x2, ... for every atom in this molecule
+     * @return the moved molecule
+     */
+    protected Molecule withPositions(double[] newPositions)
+    {
+        return new Molecule(name, newPositions, elements, atomTypes, topology, energy);
     }
 
     /**
@@ -74,27 +89,23 @@ public class Molecule implements Immutable, Serializable
      */
     public Molecule transform(Rotation rot, Vector3D shift)
     {
-        // copy the list of vertices
-        List<Atom> newContents = new LinkedList<Atom>();
-        for (Atom a : contents) newContents.add(a.transform(rot,shift));
-
-        // populate a new connectivity graph
-        SimpleWeightedGraph<Atom,DefaultWeightedEdge> newConnectivity = new SimpleWeightedGraph<Atom,DefaultWeightedEdge>(DefaultWeightedEdge.class);
-        for (Atom newAtom : newContents) newConnectivity.addVertex(newAtom);
-        for (DefaultWeightedEdge e : connectivity.edgeSet())
+        double[] newPositions = new double[xyz.length];
+        double[] in = new double[3];
+        double[] out = new double[3];
+        double shiftX = shift.getX();
+        double shiftY = shift.getY();
+        double shiftZ = shift.getZ();
+        for (int i=0; i < elements.length; i++)
             {
-                // get old edge data
-                Double bondOrder = connectivity.getEdgeWeight(e);
-                Atom fromAtom = connectivity.getEdgeSource(e);
-                Atom toAtom = connectivity.getEdgeTarget(e);
-
-                // create new edge
-                DefaultWeightedEdge newEdge = newConnectivity.addEdge(newContents.get(contents.indexOf(fromAtom)),newContents.get(contents.indexOf(toAtom)));
-                newConnectivity.setEdgeWeight(newEdge, bondOrder);
+                in[0] = xyz[3*i];
+                in[1] = xyz[3*i+1];
+                in[2] = xyz[3*i+2];
+                rot.applyTo(in, out);
+                newPositions[3*i]   = out[0] + shiftX;
+                newPositions[3*i+1] = out[1] + shiftY;
+                newPositions[3*i+2] = out[2] + shiftZ;
             }
-
-        // return result
-        return new Molecule(name, newContents, newConnectivity, energy);
+        return withPositions(newPositions);
     }
 
     /**
@@ -124,10 +135,17 @@ public class Molecule implements Immutable, Serializable
      */
     public Vector3D getCentroid()
     {
-        Vector3D barycenter = Vector3D.ZERO;
-        for (Atom a : contents) barycenter = barycenter.add(a.position);
-        barycenter = barycenter.scalarMultiply(1.0/contents.size());
-        return barycenter;
+        double x = 0.0;
+        double y = 0.0;
+        double z = 0.0;
+        for (int i=0; i < elements.length; i++)
+            {
+                x += xyz[3*i];
+                y += xyz[3*i+1];
+                z += xyz[3*i+2];
+            }
+        double scale = 1.0/elements.length;
+        return new Vector3D(x*scale, y*scale, z*scale);
     }
 
     /**
@@ -139,7 +157,6 @@ public class Molecule implements Immutable, Serializable
      * @param other a Molecule that we throw in at the end
      * @return two Molecules combined into a single Molecule; null if they are too close
      */
-    @SuppressWarnings("unchecked")
     public Molecule transformAndCombine(Rotation rot, Vector3D shift, Molecule other)
     {
         Element O = Element.getElement("O");
@@ -151,21 +168,30 @@ public class Molecule implements Immutable, Serializable
         if ( !output.isInteresting(other) )
             return null;
         
-        // custom tooClose
-        for (Atom a : output.contents)
+        // custom tooClose; no minimum distance is larger than 2.5
+        CellList cellList = new CellList(other.xyz, 2.5);
+        int[] neighbors = new int[other.elements.length];
+        for (int i=0; i < output.elements.length; i++)
             {
-                for (Atom b : other.contents)
+                Element a = output.elements[i];
+                int count = cellList.getNeighbors(output.xyz[3*i], output.xyz[3*i+1], output.xyz[3*i+2], 2.5, neighbors);
+                for (int n=0; n < count; n++)
                     {
+                        int j = neighbors[n];
+                        Element b = other.elements[j];
                         double minimumDistance = 2.5;
                         // a   b  a   b
                         // H...N  H...O
                         // N...H  O...H
-                        if ( ( a.element.equals(H) && b.element.equals(N) && other.getAdjacentAtoms(b).size() == 2 ) ||
-                             ( a.element.equals(N) && b.element.equals(H) && output.getAdjacentAtoms(a).size() == 2 ) ||
-                             ( a.element.equals(H) && b.element.equals(O) ) ||
-                             ( a.element.equals(O) && b.element.equals(H) ) )
+                        if ( ( a.equals(H) && b.equals(N) && other.topology.getDegree(j) == 2 ) ||
+                             ( a.equals(N) && b.equals(H) && output.topology.getDegree(i) == 2 ) ||
+                             ( a.equals(H) && b.equals(O) ) ||
+                             ( a.equals(O) && b.equals(H) ) )
                             minimumDistance = 2.0;
-                        double distance = Vector3D.distance(a.position, b.position);
+                        double dx = other.xyz[3*j]   - output.xyz[3*i];
+                        double dy = other.xyz[3*j+1] - output.xyz[3*i+1];
+                        double dz = other.xyz[3*j+2] - output.xyz[3*i+2];
+                        double distance = Math.sqrt(dx*dx + dy*dy + dz*dz);
                         //if ( distance < 3.0 )
                         //    System.out.printf("%.2f\n", distance);
                         if ( distance < minimumDistance )
@@ -173,30 +199,121 @@ public class Molecule implements Immutable, Serializable
                     }
             }
 
-        SimpleWeightedGraph<Atom, DefaultWeightedEdge> c = (SimpleWeightedGraph<Atom, DefaultWeightedEdge>) output.connectivity.clone();
-        Graphs.addGraph(c,other.connectivity);
-        List<Atom> newContents = new LinkedList<>();
-        for (Atom a : output.contents) newContents.add(a);
-        for (Atom a : other.contents) newContents.add(a);
+        List<Atom> newContents = new ArrayList<>(output.contents.size() + other.contents.size());
+        newContents.addAll(output.contents);
+        newContents.addAll(other.contents);
 
-        return new Molecule(output.name + "/" + other.name, newContents, c, 0.0);
+        return new Molecule(output.name + "/" + other.name, newContents, output.topology.combine(other.topology), 0.0);
     }
 
     /**
      *  called by TemplateFile to create Molecule.
+     *  @param topology the connectivity, indexed in the same order as contents
      */
-    @SuppressWarnings("unchecked")
-    public Molecule(String name, List<Atom> contents, SimpleWeightedGraph<Atom,DefaultWeightedEdge> connectivity, double energy)
+    public Molecule(String name, List<Atom> contents, Topology topology, double energy)
     {
 	    this.name = name;
 	    this.contents = ImmutableList.copyOf(contents);
+        if ( topology.size != this.contents.size() )
+            throw new IllegalArgumentException("topology has " + topology.size + " atoms but there are " + this.contents.size() + " atoms");
+        this.topology = topology;
+        this.energy = energy;
+
+        // populate the backing arrays
+        int size = this.contents.size();
+        xyz = new double[3*size];
+        elements = new Element[size];
+        atomTypes = new int[size];
+        for (int i=0; i < size; i++)
+            {
+                Atom a = this.contents.get(i);
+                xyz[3*i]     = a.position.getX();
+                xyz[3*i+1]   = a.position.getY();
+                xyz[3*i+2]   = a.position.getZ();
+                elements[i]  = a.element;
+                atomTypes[i] = a.tinkerAtomType;
+            }
+    }
 
-        // will throw an unchecked cast exception
-        this.connectivity = (SimpleWeightedGraph<Atom,DefaultWeightedEdge>)connectivity.clone();
+    /**
+     * Creates a molecule directly from its backing arrays.  The arrays are not copied, so
+     * the new molecule takes ownership of them; they must not be modified afterwards.
+     * They may be shared with other molecules.
+     * @param xyz packed coordinates x1, y1, z1, x2, ...
+     * @param elements the element of each atom
+     * @param atomTypes the Tinker atom type of each atom
+     * @param topology the connectivity
+     */
+    protected Molecule(String name, double[] xyz, Element[] elements, int[] atomTypes, Topology topology, double energy)
+    {
+        this(name, new AtomList(xyz, elements, atomTypes), xyz, elements, atomTypes, topology, energy);
+    }
 
+    /** shares all the given fields without copying or checking them */
+    private Molecule(String name, List<Atom> contents, double[] xyz, Element[] elements, int[] atomTypes, Topology topology, double energy)
+    {
+        if ( xyz.length != 3*elements.length || atomTypes.length != elements.length || topology.size != elements.length )
+            throw new IllegalArgumentException("array length mismatch");
+        this.name = name;
+        this.contents = contents;
+        this.xyz = xyz;
+        this.elements = elements;
+        this.atomTypes = atomTypes;
+        this.topology = topology;
         this.energy = energy;
     }
 
+    /**
+     * A read-only view of the backing arrays as a list of Atoms.  All the Atom objects are created
+     * together the first time any of them is requested, so repeated calls to get() return the same
+     * objects.
+     */
+    private static class AtomList extends AbstractList<Atom> implements RandomAccess, Serializable
+    {
+        public static final long serialVersionUID = 1L;
+
+        private final double[] xyz;
+        private final Element[] elements;
+        private final int[] atomTypes;
+
+        /** the Atom objects; created lazily */
+        private transient volatile Atom[] atoms;
+
+        AtomList(double[] xyz, Element[] elements, int[] atomTypes)
+        {
+            this.xyz = xyz;
+            this.elements = elements;
+            this.atomTypes = atomTypes;
+        }
+
+        @Override
+        public Atom get(int index)
+        {
+            Atom[] temp = atoms;
+            if ( temp == null )
+                {
+                    synchronized (this)
+                        {
+                            temp = atoms;
+                            if ( temp == null )
+                                {
+                                    temp = new Atom[elements.length];
+                                    for (int i=0; i < temp.length; i++)
+                                        temp[i] = new Atom(elements[i], new Vector3D(xyz[3*i], xyz[3*i+1], xyz[3*i+2]), atomTypes[i]);
+                                    atoms = temp;
+                                }
+                        }
+                }
+            return temp[index];
+        }
+
+        @Override
+        public int size()
+        {
+            return elements.length;
+        }
+    }
+
     /**
      * Determines if this Atom is contained in this Molecule.
      * @param atom the atom that is supposed to be in this molecule
@@ -204,9 +321,7 @@ public class Molecule implements Immutable, Serializable
      */
     public boolean containsAtom(Atom atom)
     {
-        if ( contents.contains(atom) && connectivity.vertexSet().contains(atom) )
-            return true;
-        return false;
+        return getAtomNumber(atom) > 0;
     }
 
     /**
@@ -217,10 +332,53 @@ public class Molecule implements Immutable, Serializable
      */
     public int getAtomNumber(Atom atom)
     {
-        if ( containsAtom(atom) )
-            return contents.indexOf(atom) + 1;
-        else
-            return -1;
+        Integer index = getAtomIndices().get(atom);
+        if ( index == null )
+            {
+                // fall back to a search by value for atoms that are equal to, but not the same object as, an atom in contents
+                index = contents.indexOf(atom);
+                if ( index < 0 )
+                    return -1;
+            }
+        return index + 1;
+    }
+
+    /**
+     * Returns a map from the Atom objects in contents to their indices (0, 1, ..., n-1).
+     * Atoms are compared by identity, so lookups take constant time.  The map is
+     * built the first time it is needed and cannot be modified.
+     * @return the atom to index map
+     */
+    private Map<Atom,Integer> getAtomIndices()
+    {
+        Map<Atom,Integer> map = atomIndices;
+        if ( map == null )
+            {
+                IdentityHashMap<Atom,Integer> newMap = new IdentityHashMap<>(contents.size());
+                for (int i=contents.size()-1; i >= 0; i--)
+                    newMap.put(contents.get(i), i);
+                map = Collections.unmodifiableMap(newMap);
+                atomIndices = map;
+            }
+        return map;
+    }
+
+    /**
+     * Returns the index (0, 1, ..., n-1) of an atom.  Throws an IllegalArgumentException
+     * if the atom is not in this molecule.
+     */
+    protected int getIndex(Atom atom)
+    {
+        int atomNumber = getAtomNumber(atom);
+        if ( atomNumber == -1 )
+            throw new IllegalArgumentException("atom not in molecule: " + atom);
+        return atomNumber - 1;
+    }
+
+    /** returns a string like C5 for the atom with the given index (0, 1, ..., n-1) */
+    protected String getAtomString(int index)
+    {
+        return elements[index].symbol + (index+1);
     }
 
     /**
@@ -265,17 +423,14 @@ public class Molecule implements Immutable, Serializable
     /**
      * Returns a human-readable string for a bond like C5-C6 (1.0) where
      * C5 and C6 are bonded together with an order of 1.0.
-     * Throws an IllegalArgumentException if the edge is not in the molecule.
-     * @param e the bond
+     * Throws an IllegalArgumentException if the atoms are not bonded.
+     * @param atom1 one of the atoms in the bond
+     * @param atom2 the other atom in the bond
      * @return the string
      */
-    public String getBondString(DefaultWeightedEdge e)
+    public String getBondString(Atom atom1, Atom atom2)
     {
-        if ( ! connectivity.containsEdge(e) )
-            throw new IllegalArgumentException("cannot print out bond string because the corresponding edge is not in graph!");
-        Atom atom1 = connectivity.getEdgeSource(e);
-        Atom atom2 = connectivity.getEdgeTarget(e);
-        double bondOrder = connectivity.getEdgeWeight(e);
+        double bondOrder = getBondOrder(atom1, atom2);
         return String.format("%s-%s (%.1f)", getAtomString(atom1), getAtomString(atom2), bondOrder);
     }
 
@@ -296,22 +451,28 @@ public class Molecule implements Immutable, Serializable
      */
     public Set<Atom> exploreGraph(Atom startingAtom)
     {
-        if ( ! contents.contains(startingAtom) )
+        if ( ! containsAtom(startingAtom) )
             throw new IllegalArgumentException("cannot search the connectivity graph because the specified atom is not in this molecule");
-        Set<Atom> returnSet = new HashSet<>();
-        LinkedList<Atom> searchQueue = new LinkedList<>();
-        searchQueue.add(startingAtom);
+        int start = getIndex(startingAtom);
+        boolean[] visited = new boolean[elements.length];
+        int[] searchQueue = new int[elements.length+1];
+        int head = 0;
+        int tail = 0;
+        searchQueue[tail++] = start;
 
         // breadth-first search
-        while (searchQueue.size() > 0)
+        Set<Atom> returnSet = new HashSet<>();
+        while (head < tail)
             {
-                Atom currentNode = searchQueue.remove();
-                for (Atom a : getAdjacentAtoms(currentNode))
+                int currentNode = searchQueue[head++];
+                for (int k=0; k < topology.getDegree(currentNode); k++)
                     {
-                        if ( ! returnSet.contains(a) )
+                        int a = topology.getNeighbor(currentNode, k);
+                        if ( ! visited[a] )
                             {
-                                returnSet.add(a);
-                                searchQueue.add(a);
+                                visited[a] = true;
+                                returnSet.add(contents.get(a));
+                                searchQueue[tail++] = a;
                             }
                     }
             }
@@ -330,75 +491,26 @@ public class Molecule implements Immutable, Serializable
      */
     public Set<Atom> getHalfGraph(Atom excludeAtom, Atom includeAtom)
     {
-        //System.out.println("excluded from result: " + getAtomNumber(excludeAtom));
-        //System.out.println("included in result: " + getAtomNumber(includeAtom));
-        Set<Atom> returnSet = new HashSet<Atom>();
-
-        // if these atoms are not directly bonded, then return an empty set
-        if ( directlyConnected(includeAtom, excludeAtom) == false )
-            return returnSet;
-
-        // preform a breadth-first search of one branch of the graph only
-        LinkedList<Atom> searchQueue = new LinkedList<Atom>();
-        Set<Atom> searched = new HashSet<>();
-        for (Atom a : getAdjacentAtoms(includeAtom))
-            {
-                searchQueue.add(a);
-                returnSet.add(a);
-            }
-        searchQueue.remove(excludeAtom);
-        returnSet.remove(excludeAtom);
-        returnSet.add(includeAtom);
-        searched.add(includeAtom);
-        //System.out.println("******************");
-        //int i=0;
-        Atom lastNode = includeAtom;
-        while (searchQueue.size() > 0)
-            {
-                /*i++;
-                System.out.printf("Iteration %d\n", i);
-                System.out.println("search queue: ");
-                for (Atom a : searchQueue)
-                    System.out.print(getAtomString(a) + ", ");
-                System.out.println("return set: ");
-                for (Atom a : returnSet)
-                    System.out.print(getAtomString(a) + ", ");
-                System.out.printf("Current node is: %s\n", getAtomString(currentNode));
-                System.out.println("\n=========\n");*/
-                
-                Atom currentNode = searchQueue.remove();
-                Set<Atom> adjacent = getAdjacentAtoms(currentNode);
-                adjacent.remove(lastNode);
-                for (Atom a : adjacent)
-                    {   
-                        // if the excluded atom is found, this is a ring!
-                        if ( a == excludeAtom)
-                        {
-                            GaussianInputFile gjf = new GaussianInputFile(this);
-                            gjf.write("error.gjf");
-                            throw new IllegalArgumentException("includeAtom " + getAtomString(includeAtom) +
-                                                " and excludeAtom " + getAtomString(excludeAtom) + " cannot form a ring!");
-                        }
+        Set<Atom> returnSet = new LinkedHashSet<Atom>();
+        for (int i : getHalfGraphIndices(getIndex(excludeAtom), getIndex(includeAtom)))
+            returnSet.add(contents.get(i));
+        return returnSet;
+    }
 
-                        // if this is an atom we haven't already searched, mark it
-                        if ( ! searched.contains(a) )
-                            {
-                                searchQueue.add(a);
-                                searched.add(a);
-                                returnSet.add(a);
-                            }
-                    }
-            }
-/*    System.out.println("includeAtom: " + getAtomString(includeAtom));
-    System.out.println("excludeAtom: " + getAtomString(excludeAtom));
- System.out.println("return set: ");
-                for (Atom a : returnSet)
-                    System.out.print(getAtomString(a) + ", ");
-System.out.println();
- GaussianInputFile gjf = new GaussianInputFile(this);
-                            gjf.write("error.gjf");
-*/
-        return(returnSet);
+    /**
+     * Index-based version of getHalfGraph().
+     * @param excludeIndex the index (0, 1, ..., n-1) of the atom that will not be included in the result
+     * @param includeIndex the index of the atom that will be included in the result
+     * @return the indices of the atoms on the includeIndex side of the graph in ascending order;
+     * this array is shared with the topology and must not be modified
+     */
+    protected int[] getHalfGraphIndices(int excludeIndex, int includeIndex)
+    {
+        // the two sides of a ring bond cannot be separated
+        if ( topology.isRingBond(excludeIndex, includeIndex) )
+            throw new IllegalArgumentException("includeAtom " + getAtomString(includeIndex) +
+                                " and excludeAtom " + getAtomString(excludeIndex) + " cannot form a ring!");
+        return topology.getSharedHalfGraph(excludeIndex, includeIndex);
     }
 
     /** convenience method.  1,2,...n */
@@ -414,11 +526,7 @@ System.out.println();
     /** convenience method that returns atom numbers instead of atoms */
     public Set<Integer> getHalfGraphNumbers(Atom atom1, Atom atom2)
     {
-        Set<Atom> set = getHalfGraph(atom1, atom2);
-        Set<Integer> returnSet = new HashSet<>();
-        for (Atom a : set)
-            returnSet.add(getAtomNumber(a));
-        return returnSet;
+        return getHalfGraphNumbers(getAtomNumber(atom1), getAtomNumber(atom2));
     }
 
     /**
@@ -429,7 +537,10 @@ System.out.println();
      */
     public Set<Integer> getHalfGraphNumbers(int atomNumber1, int atomNumber2)
     {
-        return getHalfGraphNumbers(getAtom(atomNumber1), getAtom(atomNumber2));
+        Set<Integer> returnSet = new HashSet<>();
+        for (int i : getHalfGraphIndices(atomNumber1-1, atomNumber2-1))
+            returnSet.add(i+1);
+        return returnSet;
     }
 
     /** returns the atom given an atom number */
@@ -438,6 +549,57 @@ System.out.println();
         return contents.get(atomNumber-1);
     }
 
+    /** returns the position of an atom given an atom number (1, 2, ..., n) */
+    public Vector3D getPosition(int atomNumber)
+    {
+        int i = atomNumber-1;
+        return new Vector3D(xyz[3*i], xyz[3*i+1], xyz[3*i+2]);
+    }
+
+    /** returns the element of an atom given an atom number (1, 2, ..., n) */
+    public Element getElement(int atomNumber)
+    {
+        return elements[atomNumber-1];
+    }
+
+    /**
+     * Returns a copy of the coordinates of this molecule.
+     * @return packed coordinates x1, y1, z1, x2, ... in angstroms
+     */
+    public double[] getCoordinates()
+    {
+        return xyz.clone();
+    }
+
+    /**
+     * Determines whether the bond between two atoms is part of a ring.  Ring bonds cannot be
+     * used for setDistance(), setDihedral(), or torsions.  Indices: 1, 2, ..., n.
+     * @return true if the atoms are bonded and the bond is in a ring
+     */
+    public boolean isRingBond(int atomNumber1, int atomNumber2)
+    {
+        return topology.isRingBond(atomNumber1-1, atomNumber2-1);
+    }
+
+    /**
+     * Determines whether an atom is part of a ring.  Indices: 1, 2, ..., n.
+     * @return true if the atom is in a ring
+     */
+    public boolean isRingAtom(int atomNumber)
+    {
+        return topology.isRingAtom(atomNumber-1);
+    }
+
+    /**
+     * Determines whether a bond can be rotated: it must not be in a ring and must have
+     * other atoms on both sides.  Indices: 1, 2, ..., n.
+     * @return true if the bond is a rotatable bridge
+     */
+    public boolean isRotatableBond(int atomNumber1, int atomNumber2)
+    {
+        return topology.isRotatableBridge(atomNumber1-1, atomNumber2-1);
+    }
+
     /**
      * Determines whether atom1 and atom2 share an edge (i.e., are bonded).
      * No exception is thrown if these atoms aren't in the graph.
@@ -447,15 +609,7 @@ System.out.println();
      */
     public boolean directlyConnected(Atom atom1, Atom atom2)
     {
-        DefaultWeightedEdge e = connectivity.getEdge(atom1,atom2);
-        if ( e == null )
-            return false;
-        return true;
-        /*Set<Atom> set1 = getAdjacentAtoms(atom1);
-        Set<Atom> set2 = getAdjacentAtoms(atom2);
-        if ( set1.contains(atom2) && set2.contains(atom1) )
-            return true;
-        return false;*/
+        return topology.isBonded(getAtomNumber(atom1)-1, getAtomNumber(atom2)-1);
     }
 
     /**
@@ -463,7 +617,7 @@ System.out.println();
      */
     public boolean directlyConnected(int i, int j)
     {
-        return directlyConnected(contents.get(i-1), contents.get(j-1));
+        return topology.isBonded(i-1, j-1);
     }
 
     /**
@@ -477,6 +631,14 @@ System.out.println();
         return Vector3D.distance(atom1.position, atom2.position);
     }
 
+    /**
+     * Alias method.  Indices are 1, 2, ..., n.  No checks.
+     */
+    public double getDistance(int i, int j)
+    {
+        return Geometry.distance(xyz, i-1, j-1);
+    }
+
     /**
      * Returns the angle between three atoms.
      * @param atom1 one of the three atoms
@@ -502,7 +664,27 @@ System.out.println();
     /** convenience method 1,2,...,N*/
     public double getAngle(int atom1number, int atom2number, int atom3number)
     {
-        return getAngle(contents.get(atom1number-1),contents.get(atom2number-1),contents.get(atom3number-1));
+        return Geometry.angle(xyz, atom1number-1, atom2number-1, atom3number-1);
+    }
+
+    /**
+     * Returns a mutable editor whose initial state is this molecule.  Use it to make
+     * several changes at once without creating intermediate molecules.
+     * @return a new editor
+     */
+    public MoleculeEditor edit()
+    {
+        return new MoleculeEditor(this);
+    }
+
+    /**
+     * Returns a solver that moves fragments of this molecule to meet several distance,
+     * angle, and dihedral targets at once.
+     * @return a new solver in which every atom is fixed
+     */
+    public ConstraintSolver constrain()
+    {
+        return new ConstraintSolver(this);
     }
 
     /**
@@ -516,37 +698,7 @@ System.out.println();
      */
     public Molecule setDistance(Atom atom1, Atom atom2, double requestedDistance)
     {
-       Map<Atom,Atom> atomMap = setDistanceMap(atom1, atom2, requestedDistance);
-       return moveAtoms(atomMap); 
-    }
-
-    /**
-     * Creates an atom map for setDistance() methods.
-     */
-    protected Map<Atom,Atom> setDistanceMap(Atom atom1, Atom atom2, double requestedDistance)
-    {
-        // determine which atoms have to be moved
-        Set<Atom> toBeMoved = getHalfGraph(atom1, atom2);
-
-        // determine how much to move the atoms
-        Vector3D oldPosition1 = atom1.position;
-        Vector3D oldPosition2 = atom2.position;
-        double currentDistance = getDistance(atom1, atom2);
-
-        Vector3D translateVector = oldPosition2.subtract(oldPosition1);
-        double scaling = (requestedDistance - currentDistance)/currentDistance;
-
-        Vector3D requiredTranslation = translateVector.scalarMultiply(scaling);
-
-        Map<Atom,Atom> atomMap = new HashMap<>();
-        for (Atom oldAtom : toBeMoved)
-            {
-                Vector3D oldPosition = oldAtom.position;
-                Vector3D newPosition = oldPosition.add(requiredTranslation);
-                Atom newAtom         = oldAtom.moveAtom(newPosition);
-                atomMap.put(oldAtom, newAtom);
-            }
-        return atomMap;
+        return setDistance(getIndex(atom1)+1, getIndex(atom2)+1, requestedDistance);
     }
 
     /**
@@ -554,7 +706,7 @@ System.out.println();
      */
     public Molecule setDistance(int i, int j, double requestedDistance)
     {
-        return setDistance(contents.get(i-1), contents.get(j-1), requestedDistance);
+        return edit().setDistance(i, j, requestedDistance).build();
     }
 
     /**
@@ -567,50 +719,7 @@ System.out.println();
      */
     public Molecule rotateAngle(Atom atom1, Atom atom2, Atom atom3, double theta)
     {
-        Map<Atom,Atom> atomMap2 = rotateAngleMap(atom1, atom2, atom3, theta);
-        return moveAtoms(atomMap2);
-    }
-
-    /**
-    * Creates an atom map for rotateAngle() methods.
-    */
-    protected Map<Atom,Atom> rotateAngleMap(Atom atom1, Atom atom2, Atom atom3, double theta)
-    {
-        // figure out which atoms to move
-        Set<Atom> toBeMoved = getHalfGraph(atom2, atom3);
-        
-        // create atom map
-        LinkedHashMap<Atom,Atom> atomMap = new LinkedHashMap<Atom,Atom>();
-
-        // move everything to put atom2 at the origin
-        Vector3D v1 = null;
-        Vector3D v3 = null;
-        for (Atom a : contents)
-            {
-                Vector3D oldPosition = a.position;
-                Vector3D newPosition = oldPosition.subtract(atom2.position);
-                if ( toBeMoved.contains(a) )
-                    atomMap.put(a,a.moveAtom(newPosition));
-                if ( a == atom1 )
-                    v1 = newPosition;
-                else if ( a == atom3 )
-                    v3 = newPosition;
-            }
-        // form the rotation axis and matrix
-        Vector3D rotationAxis = Vector3D.crossProduct(v1, v3);
-        Rotation rotation = new Rotation(rotationAxis, Math.toRadians(theta));
-
-        // apply rotation and undo translation
-        LinkedHashMap<Atom,Atom> atomMap2 = new LinkedHashMap<Atom,Atom>();
-        for (Atom a : atomMap.keySet())
-            {
-                Vector3D oldPosition = atomMap.get(a).position;
-                Vector3D newPosition = rotation.applyTo(oldPosition);
-                newPosition = newPosition.add(atom2.position);
-                atomMap2.put(a,a.moveAtom(newPosition));
-            }
-
-        return atomMap2;
+        return rotateAngle(getIndex(atom1)+1, getIndex(atom2)+1, getIndex(atom3)+1, theta);
     }
 
     /**
@@ -618,7 +727,7 @@ System.out.println();
      */
     public Molecule rotateAngle(int i, int j, int k, double theta)
     {
-        return rotateAngle(contents.get(i-1), contents.get(j-1), contents.get(k-1), theta);
+        return edit().rotateAngle(i, j, k, theta).build();
     }
 
     /**
@@ -631,9 +740,7 @@ System.out.println();
      */
     public Molecule setAngle(Atom atom1, Atom atom2, Atom atom3, double theta)
     {
-        double currentAngle = getAngle(atom1, atom2, atom3);
-        double requiredRotation = theta - currentAngle;
-        return rotateAngle(atom1, atom2, atom3, requiredRotation);
+        return setAngle(getIndex(atom1)+1, getIndex(atom2)+1, getIndex(atom3)+1, theta);
     }
 
     /**
@@ -641,7 +748,7 @@ System.out.println();
      */
     public Molecule setAngle(int i, int j, int k, double theta)
     {
-        return setAngle(contents.get(i-1), contents.get(j-1), contents.get(k-1), theta);
+        return edit().setAngle(i, j, k, theta).build();
     }
 
     /**
@@ -652,62 +759,17 @@ System.out.println();
      */
     public Molecule setDihedral(AtomTorsion atomTorsion, double theta)
     {
-        Map<Atom,Atom> atomMap2 = setDihedralMap(atomTorsion, theta);
-        return moveAtoms(atomMap2);
-    }
-
-    /**
-    * Creates an atom map for setDihedral() methods.
-    */
-    protected Map<Atom,Atom> setDihedralMap(AtomTorsion atomTorsion, double theta)
-    {
-         // check that this AtomTorsion is the correct one for this Molecule
+        // check that this AtomTorsion is the correct one for this Molecule
         if ( atomTorsion.molecule != this )
             throw new IllegalArgumentException("this isn't the right Molecule for this AtomTorsion");
 
-        // get fields
-        Atom atom1 = atomTorsion.atom1;
-        Atom atom2 = atomTorsion.atom2;
-        Atom atom3 = atomTorsion.atom3;
-        Atom atom4 = atomTorsion.atom4;
-        List<Atom> atomsToRotate = atomTorsion.atomsToRotate;
+        int[] atomsToRotate = new int[atomTorsion.atomsToRotate.size()];
+        for (int m=0; m < atomsToRotate.length; m++)
+            atomsToRotate[m] = getIndex(atomTorsion.atomsToRotate.get(m));
 
-        // determine how much rotation is needed
-        double currentDihedralAngle = atomTorsion.getDihedralAngle();
-        double requiredRotation = currentDihedralAngle - theta;
-
-        LinkedHashMap<Atom,Atom> atomMap = new LinkedHashMap<>();
-        
-        // move atom 3 to the origin
-        // define the rotation axis as the vector from atom3 (now at origin) to atom2
-        Vector3D rotationAxis = null;
-        for (Atom a : contents)
-            {
-                Vector3D oldPosition = a.position;
-                Vector3D newPosition = oldPosition.subtract(atom3.position);
-                if ( atomsToRotate.contains(a) )
-                    atomMap.put(a,a.moveAtom(newPosition));
-                if ( a == atom2 )
-                    rotationAxis = newPosition;
-            }
-
-        // rotate the atoms and make a new atom map
-        LinkedHashMap<Atom,Atom> atomMap2 = new LinkedHashMap<>();
-        Rotation rotation = new Rotation(rotationAxis, Math.toRadians(requiredRotation));
-        for (Atom a : atomMap.keySet())
-            {
-                // update rotation
-                Vector3D oldPosition = atomMap.get(a).position;
-                Vector3D newPosition = rotation.applyTo(oldPosition);
-                
-                // undo translation
-                newPosition = newPosition.add(atom3.position);
-
-                // update map
-                atomMap2.put(a, a.moveAtom(newPosition));
-            }
-
-        return atomMap2;
+        return edit().setDihedral(getIndex(atomTorsion.atom1)+1, getIndex(atomTorsion.atom2)+1,
+                                  getIndex(atomTorsion.atom3)+1, getIndex(atomTorsion.atom4)+1,
+                                  atomsToRotate, theta).build();
     }
 
     /**
@@ -725,7 +787,17 @@ System.out.println();
      */
     public Molecule setDihedral(IndexTorsion indexTorsion, double theta)
     {
-        return setDihedral(indexTorsion.getAtomTorsion(this), theta);
+        return edit().setDihedral(indexTorsion, theta).build();
+    }
+
+    /**
+     * Returns a new Molecule with several dihedrals set at once.  Each atom is moved only once,
+     * so this is much faster than a series of setDihedral() calls.  See MoleculeEditor.setDihedrals().
+     * @param targets the desired dihedral angle in degrees for each torsion
+     */
+    public Molecule setDihedrals(Map<IndexTorsion,Double> targets)
+    {
+        return edit().setDihedrals(targets).build();
     }
 
     /**
@@ -739,167 +811,9 @@ System.out.println();
      */
     public Molecule set_sp2(Atom atom1, Atom atom2, boolean forceAngle)
     {
-        // note current bond length
-        double currentLength = getDistance(atom1, atom2);
-        Map<Atom,Atom> newAtomMap = set_sp2_map(atom1, atom2, forceAngle);
-        Molecule rotatedMolecule = moveAtoms(newAtomMap);
-
-        int atom1number = getAtomNumber(atom1);
-        int atom2number = getAtomNumber(atom2);
-
-        Molecule returnMolecule = rotatedMolecule.setDistance(atom1number, atom2number, currentLength); 
-        return returnMolecule;
+        return edit().set_sp2(getIndex(atom1)+1, getIndex(atom2)+1, forceAngle).build();
     }
 
-    /**
-    * Returns an atom map for setting atom 1 to sp2 geometry.  Does NOT include
-    * bond length adjustment.
-    */
-    protected Map<Atom,Atom> set_sp2_map(Atom atom1, Atom atom2, boolean forceAngle)
-    {
-        // get the neighbors of atom1
-        // call them atom1alpha and atom1beta
-        List<Atom> atom1neighbors = new LinkedList<>(getAdjacentAtoms(atom1));
-        if ( atom1neighbors.size() != 3 )
-            throw new IllegalArgumentException("expected 3 neighbors for atom 1, found " + atom1neighbors.size());
-        else if ( ! atom1neighbors.contains(atom2) )
-            throw new IllegalArgumentException("atoms are not adjacent");
-        atom1neighbors.remove(atom2);
-        Atom atom1alpha = atom1neighbors.get(0);
-        Atom atom1beta = atom1neighbors.get(1);
-        int atom1alphaNumber = getAtomNumber(atom1alpha);
-        int atom1betaNumber = getAtomNumber(atom1beta);
-        int atom1number = getAtomNumber(atom1);
-        int atom2number = getAtomNumber(atom2);
-
-        // force the existing bond angle to 120 degrees
-        Molecule newMolecule = this;
-        if (forceAngle)
-            newMolecule = setAngle(atom1alpha, atom1, atom1beta, 120.0);
-        //System.out.println(getAtomString(atom1alpha));
-        //System.out.println(getAtomString(atom1));
-        //System.out.println(getAtomString(atom1beta));
-
-        // translate atom1 to the origin
-        List<Vector3D> newPositions = new LinkedList<>();
-        for (Atom a : newMolecule.contents)
-            {
-                Vector3D oldPosition = a.position;
-                Vector3D newPosition = oldPosition.subtract(atom1.position);
-                newPositions.add(newPosition);
-            }
-
-        // get unit vectors for atom1alpha and atom1beta
-        Vector3D atom1alphaPosition = newPositions.get(atom1alphaNumber-1).normalize();
-        Vector3D atom1betaPosition = newPositions.get(atom1betaNumber-1).normalize();
-
-        // get the cross product of atom1alpha and atom1beta
-        Vector3D atom1crossPosition = Vector3D.crossProduct(atom1alphaPosition, atom1betaPosition).normalize();
-
-        // find the linear transformation matrix that rotates atom1alphaPosition to a=(-sqrt(3)/2, 0.5, 0.0)
-        // and atom1betaPosition to b=(-0.5, sqrt(3)/2, 0.0). If these are two points of an equilateral triangle,
-        // the third is at c=(1,0,0).
-
-        // solve the simultaneous matrix equations:
-        // T atom1alphaPosition = a
-        // T atom1betaPosition = b
-        // T atom1cross = c
-        //
-        // call atom1alphaPosition A, atom1betaPosition B, and atom1cross C.
-        // this is equivalent to solving:
-        //
-        // T [ ABC ] = [ abc ]
-        //
-        // where this means concatenated column vectors. Therefore,
-        // T = [ abc ] [ ABC ]^-1
-
-        double[][] preMatrix_abc = { { -0.5, Math.sqrt(3.0)/2.0, 0.0 }, {-0.5, -1.0 * Math.sqrt(3.0)/2.0, 0.0}, {0.0, 0.0, 1.0} };
-        Matrix matrix_abc = new Matrix(preMatrix_abc);
-        matrix_abc = matrix_abc.transpose();
-
-        double[][] preMatrix_ABC = { { atom1alphaPosition.getX(), atom1alphaPosition.getY(), atom1alphaPosition.getZ() },
-                                     { atom1betaPosition.getX(), atom1betaPosition.getY(), atom1betaPosition.getZ() },
-                                     { atom1crossPosition.getX(), atom1crossPosition.getY(), atom1crossPosition.getZ() } };
-        Matrix matrix_ABC = new Matrix(preMatrix_ABC);
-        matrix_ABC = matrix_ABC.transpose();
-
-        Matrix matrix_ABC_inverse = matrix_ABC.inverse();
-        Matrix T = matrix_abc.times(matrix_ABC_inverse);
-        Matrix Tinverse = T.inverse();
-
-        // apply the inverse of T to (1,0,0) to get the third vertex of the triangle
-        double[][] preMatrix_c = { { 1.0, 0.0, 0.0 } };
-        Matrix matrix_c = new Matrix(preMatrix_c);
-        matrix_c = matrix_c.transpose();
-
-        Matrix thirdVertex = Tinverse.times(matrix_c);
-        Vector3D thirdVertexPosition = new Vector3D( thirdVertex.get(0, 0), thirdVertex.get(1, 0), thirdVertex.get(2, 0) );
-
-        //double angle1 = getAngle(newPositions.get(atom1alphaNumber-1), newPositions.get(atom1number-1), newPositions.get(atom1betaNumber-1));
-        //double angle2 = getAngle(newPositions.get(atom1betaNumber-1), newPositions.get(atom1number-1), newPositions.get(atom2number-1));
-        //double angle3 = getAngle(newPositions.get(atom2number-1), newPositions.get(atom1number-1), newPositions.get(atom1alphaNumber-1));
-        //System.out.println(angle1);
-        //System.out.println(angle2);
-        //System.out.println(angle3);
-
-        // calculate the necessary rotation
-        Vector3D atom2position = newPositions.get(atom2number-1);
-        Vector3D rotationAxis = Vector3D.crossProduct( thirdVertexPosition, atom2position );
-        double requiredTheta = Vector3D.angle( thirdVertexPosition, atom2position );
-        Rotation fixRotation = new Rotation( rotationAxis, -1.0 * requiredTheta );
-
-        // determine which atoms should be moved
-        Set<Integer> atomNumbersToMove = getHalfGraphNumbers(atom1, atom2);
-        List<Vector3D> newPositions2 = new LinkedList<>();
-
-        for (int i=0; i < newPositions.size(); i++)
-            {
-                Integer currentAtomNumber = Integer.valueOf(i+1);
-
-                if ( atomNumbersToMove.contains(currentAtomNumber) )
-                    {
-                        // rotate this atom
-                        Vector3D oldPosition = newPositions.get(i);
-                        Vector3D newPosition = fixRotation.applyTo(oldPosition);
-                        newPositions2.add(newPosition);
-                    }
-                else
-                    {
-                        // do not rotate this atom
-                        newPositions2.add( newPositions.get(i) );
-                    }
-            }
-
-        // undo translation
-        List<Vector3D> newPositions3 = new LinkedList<>();
-        for (Vector3D v : newPositions2)
-            newPositions3.add(v.add(atom1.position));
-
-        //angle1 = getAngle(newPositions3.get(atom1alphaNumber-1), newPositions3.get(atom1number-1), newPositions3.get(atom1betaNumber-1));
-        //angle2 = getAngle(newPositions3.get(atom1betaNumber-1), newPositions3.get(atom1number-1), newPositions3.get(atom2number-1));
-        //angle3 = getAngle(newPositions3.get(atom2number-1), newPositions3.get(atom1number-1), newPositions3.get(atom1alphaNumber-1));
-        //System.out.println(angle1);
-        //System.out.println(angle2);
-        //System.out.println(angle3);
-        //System.out.println(atom1alphaNumber + " " + atom1number + " " + atom1betaNumber);
-        //System.out.println(atom1betaNumber + " " + atom1number + " " + atom2number);
-        //System.out.println(atom2number + " " + atom1number + " " + atom1alphaNumber);
-
-        // create new atom map
-        Map<Atom,Atom> newAtomMap = new LinkedHashMap<>();
-        for (int i=0; i < contents.size(); i++)
-            {
-                Integer currentAtomNumber = Integer.valueOf(i+1);
-                if ( !atomNumbersToMove.contains(currentAtomNumber) )
-                    continue;
-                Atom oldAtom = contents.get(i);
-                Atom newAtom = oldAtom.moveAtom( newPositions3.get(i) );
-                if ( !oldAtom.equals(newAtom) )
-                    newAtomMap.put(oldAtom, newAtom);
-            }
-        return newAtomMap;
-    }
-    
     /**
     * Alias method.  
     */
@@ -911,110 +825,35 @@ System.out.println();
     /**
      * Creates a new Molecule where atom2 and its subgraph have been moved to
      * make atom1 sp3-hybridized (tetrahedral geometry).
-     * Note that the new center will be sp2, but could have distorted torsion angles.
-     * @param atom1 the atom to be adjusted to sp2
+     * Note that the new center will be sp3, but could have distorted torsion angles.
+     * @param atom1 the atom to be adjusted to sp3
      * @param atom2 the group to be moved
      * @return a new Molecule with adjusted hybridization
      */
     public Molecule set_sp3(Atom atom1, Atom atom2)
     {
-        // note current bond length
-        double currentLength = getDistance(atom1, atom2);
-        Map<Atom,Atom> newAtomMap = set_sp3_map(atom1, atom2);
-        Molecule rotatedMolecule = moveAtoms(newAtomMap);
-
-        int atom1number = getAtomNumber(atom1);
-        int atom2number = getAtomNumber(atom2);
-
-        Molecule returnMolecule = rotatedMolecule.setDistance(atom1number, atom2number, currentLength); 
-        return returnMolecule;
+        return edit().set_sp3(getIndex(atom1)+1, getIndex(atom2)+1).build();
     }
 
     /**
-    * Returns an atom map for setting atom 1 to sp3 geometry.  Does NOT include
-    * bond length adjustment.
-    */
-    protected Map<Atom,Atom> set_sp3_map(Atom atom1, Atom atom2)
-    {
-        // get the neighbors of atom1
-        // call them atom1alpha, atom1beta, atom1gamma
-        List<Atom> atom1neighbors = new LinkedList<>(getAdjacentAtoms(atom1));
-        if ( atom1neighbors.size() != 4 )
-            throw new IllegalArgumentException("expected 4 neighbors for atom 1, found " + atom1neighbors.size());
-        else if ( ! atom1neighbors.contains(atom2) )
-            throw new IllegalArgumentException("atoms are not adjacent");
-        atom1neighbors.remove(atom2);
-              Atom atom1alpha = atom1neighbors.get(0);
-        Atom atom1beta = atom1neighbors.get(1);
-	    Atom atom1gamma = atom1neighbors.get(2);
-        int atom1alphaNumber = getAtomNumber(atom1alpha);
-        int atom1betaNumber = getAtomNumber(atom1beta);
-	    int atom1gammaNumber = getAtomNumber(atom1gamma);
-        int atom1number = getAtomNumber(atom1);
-        int atom2number = getAtomNumber(atom2);
-
-        Molecule newMolecule = this;
-
-        // translate atom1 to the origin
-        List<Vector3D> newPositions = new LinkedList<>();
-        for (Atom a : newMolecule.contents)
-            {
-                Vector3D oldPosition = a.position;
-                Vector3D newPosition = oldPosition.subtract(atom1.position);
-                newPositions.add(newPosition);
-            }
-
-        // get unit vectors
-        Vector3D atom1alphaPosition = newPositions.get(atom1alphaNumber-1).normalize();
-        Vector3D atom1betaPosition = newPositions.get(atom1betaNumber-1).normalize();
-	Vector3D atom1gammaPosition = newPositions.get(atom1gammaNumber-1).normalize();
-	Vector3D atom1atom2Position = newPositions.get(atom2number-1).normalize();
-
-        // get the negative sum of atom1alpha, atom1beta, atom1gamma
-        Vector3D targetPosition = atom1alphaPosition.add(atom1betaPosition.add(atom1gammaPosition));
-        targetPosition = targetPosition.negate();
-        Rotation fixRotation = new Rotation(atom1atom2Position, targetPosition);
-
-        // determine which atoms should be moved
-        Set<Integer> atomNumbersToMove = getHalfGraphNumbers(atom1, atom2);
-        List<Vector3D> newPositions2 = new LinkedList<>();
-
-        for (int i=0; i < newPositions.size(); i++)
-            {
-                Integer currentAtomNumber = Integer.valueOf(i+1);
-
-                if ( atomNumbersToMove.contains(currentAtomNumber) )
-                    {
-                        // rotate this atom
-                        Vector3D oldPosition = newPositions.get(i);
-                        Vector3D newPosition = fixRotation.applyTo(oldPosition);
-                        newPositions2.add(newPosition);
-                    }
-                else
-                    {
-                        // do not rotate this atom
-                        newPositions2.add( newPositions.get(i) );
-                    }
-            }
-
-        // undo translation
-        List<Vector3D> newPositions3 = new LinkedList<>();
-        for (Vector3D v : newPositions2)
-            newPositions3.add(v.add(atom1.position));
+     * Creates a new Molecule where several centers have been made sp2-hybridized in one pass.
+     * The angles between the other neighbors are forced to 120 degrees.
+     * @param bonds pairs of atom numbers: the center, then the group to be moved; adjusted in order
+     * @return a new Molecule with adjusted hybridization
+     */
+    public Molecule set_sp2(Collection<? extends List<Integer>> bonds)
+    {
+        return edit().set_sp2(bonds).build();
+    }
 
-        // create new atom map
-        Map<Atom,Atom> newAtomMap = new LinkedHashMap<>();
-        for (int i=0; i < contents.size(); i++)
-            {
-                Integer currentAtomNumber = Integer.valueOf(i+1);
-                if ( !atomNumbersToMove.contains(currentAtomNumber) )
-                    continue;
-                Atom oldAtom = contents.get(i);
-                Atom newAtom = oldAtom.moveAtom( newPositions3.get(i) );
-                if ( !oldAtom.equals(newAtom) )
-                    newAtomMap.put(oldAtom, newAtom);
-            }
-        return newAtomMap;
+    /**
+     * Creates a new Molecule where several centers have been made sp3-hybridized in one pass.
+     * @param bonds pairs of atom numbers: the center, then the group to be moved; adjusted in order
+     * @return a new Molecule with adjusted hybridization
+     */
+    public Molecule set_sp3(Collection<? extends List<Integer>> bonds)
+    {
+        return edit().set_sp3(bonds).build();
     }
 
     /**
@@ -1024,15 +863,12 @@ System.out.println();
      */
     public Set<Atom> getAdjacentAtoms(Atom includeAtom)
     {
-        Set<Atom> returnSet = new HashSet<Atom>();
-        if ( ! connectivity.containsVertex(includeAtom) )
+        int index = getAtomNumber(includeAtom) - 1;
+        if ( index < 0 )
             throw new IllegalArgumentException("includeAtom must be within this connectivity graph!");
-        for (DefaultWeightedEdge e : connectivity.edgesOf(includeAtom))
-            {
-                returnSet.add(connectivity.getEdgeSource(e));
-                returnSet.add(connectivity.getEdgeTarget(e));
-            }
-        returnSet.remove(includeAtom);
+        Set<Atom> returnSet = new HashSet<Atom>();
+        for (int k=0; k < topology.getDegree(index); k++)
+            returnSet.add(contents.get(topology.getNeighbor(index, k)));
         return(returnSet);
     }
 
@@ -1048,18 +884,19 @@ System.out.println();
     }
 
     /**
-     * Returns the bond between atom1 and atom2.  Throws an IllegalArgumentException if there
-     * is no such edge.
+     * Returns the order of the bond between atom1 and atom2.  Throws an IllegalArgumentException
+     * if there is no such bond.
      * @param atom1 one of the atoms
      * @param atom2 the other atom
-     * @return the bond
+     * @return the bond order
      */
-    public DefaultWeightedEdge getBond(Atom atom1, Atom atom2)
+    public double getBondOrder(Atom atom1, Atom atom2)
     {
-        DefaultWeightedEdge returnEdge = connectivity.getEdge(atom1, atom2);
-        if (returnEdge == null)
+        int i = getAtomNumber(atom1) - 1;
+        int j = getAtomNumber(atom2) - 1;
+        if ( ! topology.isBonded(i,j) )
             throw new IllegalArgumentException("cannot return a bond; atoms not bonded!");
-        return returnEdge;
+        return topology.getBondOrder(i,j);
     }
 
     /**
@@ -1070,18 +907,18 @@ System.out.println();
      */
     public boolean areSeparated(Atom atom1, Atom atom2)
     {
-        Set<Atom> atom1neighbors = getAdjacentAtoms(atom1);
-        
-        // check if direct neighbors
-        if (atom1neighbors.contains(atom2))
-            return false;
-        Set<Atom> atom2neighbors = getAdjacentAtoms(atom2);
-       
-        // check if geminal
-        for (Atom a : atom1neighbors)
-            if (atom2neighbors.contains(a))
-                return false;
-        return true;
+        return areSeparated(getIndex(atom1), getIndex(atom2));
+    }
+
+    /**
+     * Index-based version of areSeparated().
+     * @param i the index (0, 1, ..., n-1) of the first atom
+     * @param j the index of the second atom
+     * @return true if the atoms are separated by three or more bonds
+     */
+    protected boolean areSeparated(int i, int j)
+    {
+        return ! topology.isExcluded(i,j);
     }
 
     /**
@@ -1090,25 +927,8 @@ System.out.println();
      */
     public boolean tooClose()
     {
-        for (int i=0; i < contents.size(); i++)
-            {
-                Atom atom1 = contents.get(i);
-                for (int j=i+1; j < contents.size(); j++)
-                    {
-                        Atom atom2 = contents.get(j);
-                        double distance = Vector3D.distance(atom1.position, atom2.position);
-                        if ( distance > 1.20 )
-                            continue;
-                        // ignore atoms that are 1,2 or 1,3
-                        if ( !areSeparated(atom1,atom2) )
-                            continue;
-                        
-                        //for debugging
-                        //System.out.printf("Atoms too close: %s %s %s %s \n", getAtomString(atom1), atom1.toString(), getAtomString(atom2), atom2.toString());
-                        return true;
-                    }
-            }
-        return false;
+        // ignore atoms that are 1,2 or 1,3
+        return PairKernel.hasClash(xyz, topology, 1.20);
     }
 
     /**
@@ -1120,48 +940,21 @@ System.out.println();
      */
     public double getOPLSenergy()
     {
-        double energy = 0.0;
-        for (int i=0; i < contents.size(); i++)
-            {
-                Atom atom1 = contents.get(i);
-                Vector3D atom1position = atom1.position;
-                for (int j=i+1; j < contents.size(); j++)
-                    {
-                        Atom atom2 = contents.get(j);
-                        // ignore if atoms are too close in the connectivity graph
-                        if ( ! areSeparated(atom1,atom2) )
-                            continue;
-
-                        // ignore if atoms are too far apart
-                        Vector3D atom2position = atom2.position;
-                        double distance = Vector3D.distance(atom1position, atom2position);
-                        if ( distance > Settings.CUTOFF_DISTANCE )
-                            continue;
+        return StericEnergy.evaluate(xyz, elements, topology, Settings.CUTOFF_DISTANCE, null) / elements.length;
+    }
 
-                        // prevent overflow
-                        if ( distance < 0.5 )
-                            distance = 0.5;
-
-                        // get parameters
-                        double epsilon1 = atom1.element.epsilon;
-                        double sigma1   = atom1.element.sigma;
-                        double epsilon2 = atom2.element.epsilon;
-                        double sigma2   = atom2.element.sigma;
-
-                        // apply combination rules
-                        double epsilon = epsilon1;
-                        double sigma   = sigma1;
-                        if ( epsilon1 != epsilon2 )
-                            epsilon = Math.sqrt(epsilon1 * epsilon2);
-                        if ( sigma1 != sigma2 )
-                            sigma = Math.sqrt(sigma1 * sigma2);
-
-                        // compute energy
-                        double temp = Math.pow(sigma/distance, 6);
-                        energy += 4.0 * epsilon * temp * (temp - 1.0);
-                    }
-            }
-        return energy / contents.size();
+    /**
+     * Computes the analytic gradient of getOPLSenergy() with respect to the atomic positions.
+     * Like the energy, the answer is normalized by the number of atoms.
+     * @return dE/dx1, dE/dy1, dE/dz1, dE/dx2, ... in kcal/mol/angstrom divided by the number of atoms
+     */
+    public double[] getOPLSgradient()
+    {
+        double[] gradient = new double[xyz.length];
+        StericEnergy.evaluate(xyz, elements, topology, Settings.CUTOFF_DISTANCE, gradient);
+        for (int i=0; i < gradient.length; i++)
+            gradient[i] /= elements.length;
+        return gradient;
     }
 
     /**
@@ -1173,62 +966,25 @@ System.out.println();
      */
     public boolean checkCloseContacts(Molecule oldMolecule)
     {
-        // the atoms that have not changed in the new peptide
-        ArrayList<Atom> oldAtoms = new ArrayList<>();
-
-        // the atoms that are new in newPeptide
-        ArrayList<Atom> newAtoms = new ArrayList<>();
-
-        // populate lists
-        for (Atom a : contents)
-            {
-                if ( oldMolecule.contents.contains(a) )
-                    oldAtoms.add(a);
-                else
-                    newAtoms.add(a);
-            }
+        // mark the atoms that have not changed in the new peptide
+        boolean[] isOld = new boolean[elements.length];
+        Set<Atom> oldContents = new HashSet<>(oldMolecule.contents);
+        for (int i=0; i < elements.length; i++)
+            isOld[i] = oldContents.contains(contents.get(i));
 
         // compare distances between old atoms and new atoms
-        for (Atom oldAtom : oldAtoms)
-            {
-                Vector3D oldPosition = oldAtom.position;
-                for (Atom newAtom : newAtoms)
-                    {
-                        Vector3D newPosition = newAtom.position;
-                        double distance = Vector3D.distance(oldPosition,newPosition);
-                        if ( distance < Settings.MINIMUM_DISTANCE &&
-                             connectivity.getEdge(oldAtom, newAtom) == null )
-                            return true;
-                    }
-            }
-        return false;
+        return PairKernel.hasCloseContact(xyz, topology, Settings.MINIMUM_DISTANCE, isOld);
     }
 
     /**
      * Checks if the atoms are too close in a molecule.  The minimum distance
-     * is controlled by Settings.MINIMUM_DISTANCE.  Computations are performed
-     * on the triangular distance matrix.
+     * is controlled by Settings.MINIMUM_DISTANCE.  Only nearby pairs are examined.
      * @return true if there is at least one atom that is too close to another atom
      */
     public boolean checkCloseContacts()
     {
-        // compute the upper triangle of distance contacts
-        for (int i=0; i < contents.size(); i++)
-            {
-                Atom atom1 = contents.get(i);
-                Vector3D position1 = atom1.position;
-                for (int j=i+1; j < contents.size(); j++)
-                    {
-                        Atom atom2 = contents.get(j);
-                        Vector3D position2 = atom2.position;
-
-                        // ignores distances between directly connected atoms
-                        if ( Vector3D.distance(position1, position2) < Settings.MINIMUM_DISTANCE &&
-                             connectivity.getEdge(atom1,atom2) == null )
-                            return true;
-                    }
-            }
-        return false;
+        // ignores distances between directly connected atoms
+        return PairKernel.hasCloseContact(xyz, topology, Settings.MINIMUM_DISTANCE, null);
     }
 
     /**
@@ -1238,12 +994,7 @@ System.out.println();
      */
     public boolean tooClose(Molecule other)
     {
-        for (Atom a : this.contents) {
-            for (Atom b : other.contents) {
-                if (Vector3D.distance(a.position,b.position) < 2.0) return true;
-            }
-        }
-        return false;
+        return hasContact(other, 2.0);
     }
 
     /**
@@ -1253,12 +1004,46 @@ System.out.println();
      */
     public boolean tooFar(Molecule other)
     {
-        for (Atom a : this.contents) {
-            for (Atom b : other.contents) {
-                if (Vector3D.distance(a.position,b.position) < 2.5) return false;
+        return ! hasContact(other, 2.5);
+    }
+
+    /**
+     * Determines whether any Atom of this is closer than cutoff to any Atom of other.
+     * Uses a cell list, so only nearby pairs are examined.
+     * @param other the other molecule
+     * @param cutoff the distance in angstroms
+     * @return true if there is a pair of atoms closer than cutoff
+     */
+    public boolean hasContact(Molecule other, double cutoff)
+    {
+        return PairKernel.hasContact(xyz, other.xyz, cutoff);
+    }
+
+    /**
+     * Returns the shortest distance between an Atom of this and an Atom of other.
+     * @param other the other molecule to which we compare this one
+     * @return the distance in angstroms
+     */
+    public double minimumDistance(Molecule other)
+    {
+        double minimumSquared = Double.POSITIVE_INFINITY;
+        double[] otherXyz = other.xyz;
+        for (int i=0; i < xyz.length; i+=3)
+            {
+                double x = xyz[i];
+                double y = xyz[i+1];
+                double z = xyz[i+2];
+                for (int j=0; j < otherXyz.length; j+=3)
+                    {
+                        double dx = otherXyz[j]   - x;
+                        double dy = otherXyz[j+1] - y;
+                        double dz = otherXyz[j+2] - z;
+                        double distanceSquared = dx*dx + dy*dy + dz*dz;
+                        if ( distanceSquared < minimumSquared )
+                            minimumSquared = distanceSquared;
+                    }
             }
-        }
-        return true;
+        return Math.sqrt(minimumSquared);
     }
 
     /**
@@ -1372,11 +1157,12 @@ System.out.println();
             throw new IllegalArgumentException("molecules are not the same size");
         
         double RMSD = 0.0;
-        for (int i=0; i < molecule1.contents.size(); i++)
+        double[] xyz1 = molecule1.xyz;
+        double[] xyz2 = molecule2.xyz;
+        for (int i=0; i < xyz1.length; i++)
             {
-                Vector3D fromVector = molecule1.contents.get(i).position;
-                Vector3D toVector = molecule2.contents.get(i).position;
-                RMSD += Math.pow(Vector3D.distance(fromVector,toVector), 2);
+                double delta = xyz2[i] - xyz1[i];
+                RMSD += delta*delta;
             }
         RMSD = RMSD * ( 1.0 / molecule1.contents.size() );
         RMSD = Math.sqrt(RMSD);
@@ -1452,28 +1238,24 @@ System.out.println();
         // collect centroids
         Vector3D centroid1 = molecule1.getCentroid();
         Vector3D centroid2 = molecule2.getCentroid();
+        double c1x = centroid1.getX(), c1y = centroid1.getY(), c1z = centroid1.getZ();
+        double c2x = centroid2.getX(), c2y = centroid2.getY(), c2z = centroid2.getZ();
 
-        // move molecules to origin
-        Molecule m1 = molecule1.normalize();
-        Molecule m2 = molecule2.normalize();
-
-        // calculate superposition on centered molecules
+        // calculate superposition on centered coordinates
         double[][] pre_matrixP = new double[atomNumbers.size()][3];
         double[][] pre_matrixQ = new double[atomNumbers.size()][3];
         for (int i=0; i < atomNumbers.size(); i++)
             {
                 int atomIndex = atomNumbers.get(i) - 1;
-                Atom fromAtom = m1.contents.get(atomIndex);
-                if ( fromAtom == null )
+                if ( atomIndex < 0 || atomIndex >= molecule1.elements.length )
                     throw new NullPointerException("error in atom index (" + atomIndex + ")");
-                pre_matrixP[i][0] = fromAtom.position.getX();
-                pre_matrixP[i][1] = fromAtom.position.getY();
-                pre_matrixP[i][2] = fromAtom.position.getZ();
+                pre_matrixP[i][0] = molecule1.xyz[3*atomIndex]   - c1x;
+                pre_matrixP[i][1] = molecule1.xyz[3*atomIndex+1] - c1y;
+                pre_matrixP[i][2] = molecule1.xyz[3*atomIndex+2] - c1z;
 
-                Atom toAtom = m2.contents.get(atomIndex);
-                pre_matrixQ[i][0] = toAtom.position.getX();
-                pre_matrixQ[i][1] = toAtom.position.getY();
-                pre_matrixQ[i][2] = toAtom.position.getZ();
+                pre_matrixQ[i][0] = molecule2.xyz[3*atomIndex]   - c2x;
+                pre_matrixQ[i][1] = molecule2.xyz[3*atomIndex+1] - c2y;
+                pre_matrixQ[i][2] = molecule2.xyz[3*atomIndex+2] - c2z;
             }
 
         Matrix matrixP = new Matrix(pre_matrixP);
@@ -1502,44 +1284,30 @@ System.out.println();
         // compute optimal rotation matrix
         Matrix rotationMatrix = matrixV.times(signedMatrix);
         rotationMatrix = rotationMatrix.times(matrixW.transpose());
+        double[][] r = rotationMatrix.getArray();
 
-        // translate between packages by converting Vector3D objects to Matrix objects
-        double[][] currentVectorPreMatrix = new double[3][1];
-        double[][] newVectorPreMatrix = new double[3][1];
-        
-        // apply rotation to all atoms
-        Map<Atom,Atom> atomMap = new HashMap<>();
-        for (int i=0; i < m2.contents.size(); i++)
+        // rotate all atoms about the centroid of molecule2
+        double[] newPositions = new double[molecule2.xyz.length];
+        for (int i=0; i < molecule2.xyz.length; i+=3)
             {
-                Atom fromAtom = m2.contents.get(i);
-                Vector3D currentVector = fromAtom.position;
-                currentVectorPreMatrix[0][0] = currentVector.getX();
-                currentVectorPreMatrix[1][0] = currentVector.getY();
-                currentVectorPreMatrix[2][0] = currentVector.getZ();
-                Matrix currentVectorMatrix = new Matrix(currentVectorPreMatrix);
-
-                Matrix newVectorMatrix = rotationMatrix.times(currentVectorMatrix);
-                newVectorPreMatrix = newVectorMatrix.getArrayCopy();
-                Vector3D newVector = new Vector3D(newVectorPreMatrix[0][0], newVectorPreMatrix[1][0], newVectorPreMatrix[2][0]);
-                
-                Atom newAtom = fromAtom.moveAtom(newVector);
-                atomMap.put(fromAtom, newAtom);
+                double x = molecule2.xyz[i]   - c2x;
+                double y = molecule2.xyz[i+1] - c2y;
+                double z = molecule2.xyz[i+2] - c2z;
+                newPositions[i]   = r[0][0]*x + r[0][1]*y + r[0][2]*z + c2x;
+                newPositions[i+1] = r[1][0]*x + r[1][1]*y + r[1][2]*z + c2y;
+                newPositions[i+2] = r[2][0]*x + r[2][1]*y + r[2][2]*z + c2z;
             }
-
-        // rotate molecule and undo translation
-        Molecule rotatedMolecule = m2.moveAtoms(atomMap);
-        return rotatedMolecule.shift(centroid2);
+        return molecule2.withPositions(newPositions);
     }
 
     /**
-     * Returns a deep copy of this molecule with a new name.
+     * Returns a copy of this molecule with a new name.  Everything except the name is shared.
      * @param name the new name
      * @return the new molecule
      */
     public Molecule setName(String name)
     {
-        Molecule copiedMolecule = moveAtoms(new HashMap<Atom,Atom>());
-        return new Molecule(name, copiedMolecule.contents, copiedMolecule.connectivity, copiedMolecule.energy);
+        return new Molecule(name, contents, xyz, elements, atomTypes, topology, energy);
     }
 
     /**
@@ -1549,7 +1317,7 @@ System.out.println();
     @Override
     public int hashCode()
     {
-        return Objects.hash(name, contents, connectivity, energy);
+        return Objects.hash(name, Arrays.hashCode(xyz), Arrays.hashCode(elements), Arrays.hashCode(atomTypes), topology, energy);
     }
 
     /**
@@ -1569,8 +1337,10 @@ System.out.println();
 
         Molecule anotherMolecule = (Molecule)obj;
         if ( this.name.equals(anotherMolecule.name) &&
-             this.contents.equals(anotherMolecule.contents) &&
-             this.connectivity.equals(anotherMolecule.connectivity) &&
+             Arrays.equals(this.xyz, anotherMolecule.xyz) &&
+             Arrays.equals(this.elements, anotherMolecule.elements) &&
+             Arrays.equals(this.atomTypes, anotherMolecule.atomTypes) &&
+             this.topology.equals(anotherMolecule.topology) &&
              this.energy == anotherMolecule.energy )
             return true;
         return false;
@@ -1583,10 +1353,10 @@ System.out.println();
     @Override
     public String toString()
     {
-        String returnString = name + "\n\n";
-        for (Atom a : contents)
-            returnString = returnString + (contents.indexOf(a) + 1) + a.toString() + "\n";
-        return returnString;
+        StringBuilder returnString = new StringBuilder(name + "\n\n");
+        for (int i=0; i < contents.size(); i++)
+            returnString.append(i+1).append(contents.get(i).toString()).append("\n");
+        return returnString.toString();
     }
 
     /**
@@ -1597,7 +1367,7 @@ System.out.println();
         String geometry = "";
         for (Atom a : contents)
             geometry = geometry + a.toString() + "\n";
-        return String.format("#\n\n%s\n\n0 1\n%s\n\n", name, geometry, connectivity);
+        return String.format("#\n\n%s\n\n0 1\n%s\n\n", name, geometry);
     }
 
     /**
@@ -1617,34 +1387,25 @@ System.out.println();
     public String toXYZString() 
     {
 	//creates String to write
-        String outputString = "";
+        StringBuilder outputString = new StringBuilder();
         //write number of atoms and molecule name
-        outputString = contents.size() + " " + name + "\n";
+        outputString.append(contents.size() + " " + name + "\n");
 
         //write atom list and connections
         int currentAtomNumber = 1;
         for (Atom currentAtom : contents)
             {
-                Set<DefaultWeightedEdge> bonds = connectivity.edgesOf(currentAtom);
-                outputString = outputString + String.format("%3d %2s %12.8f %12.8f %12.8f %6d", currentAtomNumber,
-                                                            currentAtom.element.symbol,  currentAtom.position.getX(),
-                                                            currentAtom.position.getY(), currentAtom.position.getZ(),
-                                                            currentAtom.tinkerAtomType);
-
-                for (DefaultWeightedEdge e : bonds)
-                    {
-                        int edgeTarget = contents.indexOf(connectivity.getEdgeTarget(e)) + 1;
-                        int edgeSource = contents.indexOf(connectivity.getEdgeSource(e)) + 1;
-                        int edgeTargetToWrite = edgeTarget;
-                        //change to edgeSource if edgeTarget is simply the current atom (edges have no particular ordering)
-                        if (edgeTarget == currentAtomNumber)
-                            edgeTargetToWrite = edgeSource;
-                        outputString = outputString+String.format("%6d",edgeTargetToWrite);
-                    }
-                outputString = outputString + "\n";
+                outputString.append(String.format("%3d %2s %12.8f %12.8f %12.8f %6d", currentAtomNumber,
+                                                  currentAtom.element.symbol,  currentAtom.position.getX(),
+                                                  currentAtom.position.getY(), currentAtom.position.getZ(),
+                                                  currentAtom.tinkerAtomType));
+
+                for (int k=0; k < topology.getDegree(currentAtomNumber-1); k++)
+                    outputString.append(String.format("%6d",topology.getNeighbor(currentAtomNumber-1, k)+1));
+                outputString.append("\n");
                 currentAtomNumber++;
             }
-        return outputString;
+        return outputString.toString();
     }
 
     /**
@@ -1658,7 +1419,7 @@ System.out.println();
         returnString = returnString + name + "\n";
 
         int numberOfAtoms = contents.size();
-        int numberOfBonds = connectivity.edgeSet().size();
+        int numberOfBonds = topology.getNumberOfBonds();
 
         returnString = returnString + numberOfAtoms + " " + numberOfBonds + "\n";
         returnString = returnString + "SMALL\nNO_CHARGES\n\n\n";
@@ -1683,32 +1444,39 @@ System.out.println();
             }
                 
         // write connectivity data
-        Atom fromAtom = null;
-        Atom toAtom = null;
-        Integer fromAtomNumber = 0;
-        Integer toAtomNumber = 0;
-        Double bondOrder = 0.0;
         int count = 0;
         String bondString = "";
         
         returnString = returnString + "@<TRIPOS>BOND\n";
-        for ( DefaultWeightedEdge e : connectivity.edgeSet() )
+        for (int i=0; i < topology.size; i++)
             {
-                count++;
-                fromAtom = connectivity.getEdgeSource(e);
-                fromAtomNumber = getAtomNumber(fromAtom);
-                toAtom = connectivity.getEdgeTarget(e);
-                toAtomNumber = getAtomNumber(toAtom);
-                bondOrder = connectivity.getEdgeWeight(e);
-                if ( bondOrder == 1.5 ) 
-                    bondString = String.format("%6s%5s%5s %s\n", count, fromAtomNumber, toAtomNumber, "Ar");
-                else
-                    bondString = String.format("%6s%5s%5s %s\n", count, fromAtomNumber, toAtomNumber, Math.round(bondOrder));
-                returnString = returnString + bondString;
+                for (int k=0; k < topology.getDegree(i); k++)
+                    {
+                        int j = topology.getNeighbor(i, k);
+                        if ( j < i )
+                            continue;
+                        count++;
+                        double bondOrder = topology.getNeighborBondOrder(i, k);
+                        if ( bondOrder == 1.5 ) 
+                            bondString = String.format("%6s%5s%5s %s\n", count, i+1, j+1, "Ar");
+                        else
+                            bondString = String.format("%6s%5s%5s %s\n", count, i+1, j+1, Math.round(bondOrder));
+                        returnString = returnString + bondString;
+                    }
             }
         return returnString;
     }
 
+    /**
+     * Exports the connectivity as a jgrapht graph whose vertices are the atoms of this molecule.
+     * The graph is a new object, so changing it does not affect this molecule.
+     * @return the connectivity graph with bond orders as edge weights
+     */
+    public SimpleWeightedGraph<Atom,DefaultWeightedEdge> getConnectivityGraph()
+    {
+        return topology.toGraph(contents);
+    }
+
     public String getGJFstring()
     {
         String returnString = "";
@@ -1719,13 +1487,9 @@ System.out.println();
 
     public Molecule addBond(Atom a1, Atom a2)
     {
-        if ( (!contents.contains(a1)) || (!contents.contains(a2)) )
+        if ( (!containsAtom(a1)) || (!containsAtom(a2)) )
             throw new IllegalArgumentException("atom not in graph");
-        Molecule newMolecule = this.moveAtoms(new HashMap<Atom,Atom>());
-        DefaultWeightedEdge thisEdge = newMolecule.connectivity.addEdge(a1, a2);
-        if (thisEdge != null)
-            newMolecule.connectivity.setEdgeWeight(thisEdge, 1.0);
-        return newMolecule;
+        return new Molecule(name, contents, topology.addBond(getIndex(a1), getIndex(a2), 1.0), energy);
     }
 
     public Molecule addBond(int atomNumber1, int atomNumber2)
@@ -1737,11 +1501,9 @@ System.out.println();
 
     public Molecule removeBond(Atom a1, Atom a2)
     {
-        if ( (!contents.contains(a1)) || (!contents.contains(a2)) )
+        if ( (!containsAtom(a1)) || (!containsAtom(a2)) )
             throw new IllegalArgumentException("atom not in graph");
-        Molecule newMolecule = this.moveAtoms(new HashMap<Atom,Atom>());
-        newMolecule.connectivity.removeEdge(a1, a2);
-        return newMolecule;
+        return new Molecule(name, contents, topology.removeBond(getIndex(a1), getIndex(a2)), energy);
     }
 
     public Molecule removeBond(int atomNumber1, int atomNumber2)
@@ -1771,7 +1533,7 @@ System.out.println();
         Set<Integer> numbers = new TreeSet<>();
         for (Atom a : atoms)
             {
-                int number = molecule.contents.indexOf(a) +1;
+                int number = molecule.getAtomNumber(a);
                 numbers.add(number);
             }
         for (Integer number : numbers)
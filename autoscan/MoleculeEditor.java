@@ -0,0 +1,564 @@
+import java.util.*;
+import org.apache.commons.math3.geometry.euclidean.threed.*;
+
+/**
+ * A mutable, single-threaded workspace for making a series of changes to a Molecule.
+ * Geometry and bond edits are applied in place to primitive arrays and one immutable
+ * Molecule is created at the end with build().  For example:<p>
+ * <code>molecule.edit().addBond(5,14).setDistance(5,14,2.1).setAngle(6,5,14,109.5).build()</code><p>
+ * Atom numbers are 1, 2, ..., n as in the rest of Molecule's public methods.  Every edit
+ * returns this editor so that calls can be chained.  Edits that move a fragment use the
+ * connectivity as it stands at the time of the edit, so bonds should be added or removed
+ * before the geometry changes that depend on them.
+ */
+public class MoleculeEditor
+{
+    /** the name of the molecule that will be built */
+    private String name;
+
+    /** the energy of the molecule that will be built */
+    private double energy;
+
+    /** packed coordinates x1, y1, z1, x2, ...; modified in place */
+    private double[] positions;
+
+    /** true if positions has been handed to a built Molecule and must be copied before the next change */
+    private boolean positionsShared;
+
+    /** shared with the original molecule and never modified */
+    private final Element[] elements;
+
+    /** shared with the original molecule and never modified */
+    private final int[] atomTypes;
+
+    /** the current connectivity; replaced whenever a bond is added or removed */
+    private Topology topology;
+
+    /** the identity as a row-major 3x4 affine transform */
+    private static final double[] IDENTITY = { 1.0, 0.0, 0.0, 0.0, 0.0, 1.0, 0.0, 0.0, 0.0, 0.0, 1.0, 0.0 };
+
+    /** creates an editor whose initial state is the given molecule */
+    public MoleculeEditor(Molecule molecule)
+    {
+        this.name = molecule.name;
+        this.energy = molecule.energy;
+        this.positions = molecule.xyz;
+        this.positionsShared = true;
+        this.elements = molecule.elements;
+        this.atomTypes = molecule.atomTypes;
+        this.topology = molecule.topology;
+    }
+
+    /**
+     * Creates an immutable Molecule from the current state of this editor.  The editor
+     * can still be used afterwards; further edits do not affect the returned molecule.
+     * @return the new molecule
+     */
+    public Molecule build()
+    {
+        positionsShared = true;
+        return new Molecule(name, positions, elements, atomTypes, topology, energy);
+    }
+
+    /** called before any change to the coordinates */
+    private void prepareToMove()
+    {
+        if ( positionsShared )
+            {
+                positions = positions.clone();
+                positionsShared = false;
+            }
+    }
+
+    /** converts an atom number to an index and checks it */
+    private int getIndex(int atomNumber)
+    {
+        if ( atomNumber < 1 || atomNumber > elements.length )
+            throw new IllegalArgumentException("atom number out of range: " + atomNumber);
+        return atomNumber - 1;
+    }
+
+    /**
+     * Returns the indices of the atoms on the includeIndex side of the excludeIndex-includeIndex bond.
+     * Rings are reported the same way Molecule.getHalfGraph() reports them.
+     */
+    private int[] getHalfGraph(int excludeIndex, int includeIndex)
+    {
+        if ( topology.isRingBond(excludeIndex, includeIndex) )
+            throw new IllegalArgumentException("includeAtom " + elements[includeIndex].symbol + (includeIndex+1) +
+                                " and excludeAtom " + elements[excludeIndex].symbol + (excludeIndex+1) + " cannot form a ring!");
+        return topology.getSharedHalfGraph(excludeIndex, includeIndex);
+    }
+
+    /** returns the number of atoms */
+    public int size()
+    {
+        return elements.length;
+    }
+
+    /** returns the current connectivity */
+    public Topology getTopology()
+    {
+        return topology;
+    }
+
+    /** returns the current position of an atom */
+    public Vector3D getPosition(int atomNumber)
+    {
+        int i = getIndex(atomNumber);
+        return new Vector3D(positions[3*i], positions[3*i+1], positions[3*i+2]);
+    }
+
+    /** returns the current distance between two atoms */
+    public double getDistance(int atomNumber1, int atomNumber2)
+    {
+        return Geometry.distance(positions, getIndex(atomNumber1), getIndex(atomNumber2));
+    }
+
+    /** returns the current atom1-atom2-atom3 angle in degrees */
+    public double getAngle(int atomNumber1, int atomNumber2, int atomNumber3)
+    {
+        return Geometry.angle(positions, getIndex(atomNumber1), getIndex(atomNumber2), getIndex(atomNumber3));
+    }
+
+    /** returns the current atom1-atom2-atom3-atom4 dihedral angle in degrees */
+    public double getDihedral(int atomNumber1, int atomNumber2, int atomNumber3, int atomNumber4)
+    {
+        return Geometry.dihedral(positions, getIndex(atomNumber1), getIndex(atomNumber2),
+                                 getIndex(atomNumber3), getIndex(atomNumber4));
+    }
+
+    /** sets the name of the molecule that will be built */
+    public MoleculeEditor setName(String name)
+    {
+        this.name = name;
+        return this;
+    }
+
+    /** sets the energy of the molecule that will be built */
+    public MoleculeEditor setEnergy(double energy)
+    {
+        this.energy = energy;
+        return this;
+    }
+
+    /** moves a single atom */
+    public MoleculeEditor setPosition(int atomNumber, Vector3D position)
+    {
+        int i = getIndex(atomNumber);
+        prepareToMove();
+        positions[3*i]   = position.getX();
+        positions[3*i+1] = position.getY();
+        positions[3*i+2] = position.getZ();
+        return this;
+    }
+
+    /** adds a single bond to the connectivity */
+    public MoleculeEditor addBond(int atomNumber1, int atomNumber2)
+    {
+        return addBond(atomNumber1, atomNumber2, 1.0);
+    }
+
+    /** adds a bond with the given bond order; nothing happens if the atoms are already bonded */
+    public MoleculeEditor addBond(int atomNumber1, int atomNumber2, double bondOrder)
+    {
+        topology = topology.addBond(getIndex(atomNumber1), getIndex(atomNumber2), bondOrder);
+        return this;
+    }
+
+    /** removes a bond from the connectivity; nothing happens if the atoms are not bonded */
+    public MoleculeEditor removeBond(int atomNumber1, int atomNumber2)
+    {
+        topology = topology.removeBond(getIndex(atomNumber1), getIndex(atomNumber2));
+        return this;
+    }
+
+    /**
+     * Moves the group associated with atom2 to the specified distance.
+     * Motion occurs along the atom1-atom2 bond vector.  No checks are made.
+     * @param atomNumber1 this atom will be held fixed
+     * @param atomNumber2 this atom and anything connected to it will be moved
+     * @param requestedDistance the requested distance in Angstroms
+     */
+    public MoleculeEditor setDistance(int atomNumber1, int atomNumber2, double requestedDistance)
+    {
+        int i = getIndex(atomNumber1);
+        int j = getIndex(atomNumber2);
+
+        // determine which atoms have to be moved
+        int[] toBeMoved = getHalfGraph(i, j);
+        prepareToMove();
+
+        // determine how much to move the atoms
+        double currentDistance = Geometry.distance(positions, i, j);
+        double scaling = (requestedDistance - currentDistance)/currentDistance;
+        double dx = (positions[3*j]   - positions[3*i])   * scaling;
+        double dy = (positions[3*j+1] - positions[3*i+1]) * scaling;
+        double dz = (positions[3*j+2] - positions[3*i+2]) * scaling;
+        Geometry.translate(positions, toBeMoved, dx, dy, dz);
+        return this;
+    }
+
+    /**
+     * Rotates the atom1-atom2-atom3 angle, moving only atom3 and anything in its
+     * attached subgraph.  No checks.
+     * @param theta rotation in degrees
+     */
+    public MoleculeEditor rotateAngle(int atomNumber1, int atomNumber2, int atomNumber3, double theta)
+    {
+        int i = getIndex(atomNumber1);
+        int j = getIndex(atomNumber2);
+        int k = getIndex(atomNumber3);
+
+        // figure out which atoms to move
+        int[] toBeMoved = getHalfGraph(j, k);
+        prepareToMove();
+
+        // the rotation axis is perpendicular to the plane of the angle
+        double ox = positions[3*j];
+        double oy = positions[3*j+1];
+        double oz = positions[3*j+2];
+        double v1x = positions[3*i]   - ox;
+        double v1y = positions[3*i+1] - oy;
+        double v1z = positions[3*i+2] - oz;
+        double v3x = positions[3*k]   - ox;
+        double v3y = positions[3*k+1] - oy;
+        double v3z = positions[3*k+2] - oz;
+        double[] rotation = Geometry.rotationMatrix(v1y*v3z - v1z*v3y, v1z*v3x - v1x*v3z, v1x*v3y - v1y*v3x, Math.toRadians(theta));
+
+        // apply rotation about atom2
+        Geometry.rotate(positions, toBeMoved, rotation, ox, oy, oz);
+        return this;
+    }
+
+    /**
+     * Set the atom1-atom2-atom3 angle to theta degrees, moving atom3 and its subgraph only.
+     * @param theta desired angle in degrees
+     */
+    public MoleculeEditor setAngle(int atomNumber1, int atomNumber2, int atomNumber3, double theta)
+    {
+        return rotateAngle(atomNumber1, atomNumber2, atomNumber3, theta - getAngle(atomNumber1, atomNumber2, atomNumber3));
+    }
+
+    /**
+     * Sets the atom1-atom2-atom3-atom4 dihedral angle by rotating atom4 and everything
+     * on its side of the atom2-atom3 bond.
+     * @param theta the desired dihedral angle in degrees
+     */
+    public MoleculeEditor setDihedral(int atomNumber1, int atomNumber2, int atomNumber3, int atomNumber4, double theta)
+    {
+        int[] atomsToRotate = getHalfGraph(getIndex(atomNumber2), getIndex(atomNumber3));
+        return setDihedral(atomNumber1, atomNumber2, atomNumber3, atomNumber4, atomsToRotate, theta);
+    }
+
+    /**
+     * Sets a dihedral angle, rotating the atoms given by the IndexTorsion.
+     * @param theta the desired dihedral angle in degrees
+     */
+    public MoleculeEditor setDihedral(IndexTorsion indexTorsion, double theta)
+    {
+        int[] atomsToRotate = new int[indexTorsion.atomNumbersToRotate.size()];
+        for (int m=0; m < atomsToRotate.length; m++)
+            atomsToRotate[m] = getIndex(indexTorsion.atomNumbersToRotate.get(m));
+        return setDihedral(indexTorsion.index1, indexTorsion.index2, indexTorsion.index3, indexTorsion.index4, atomsToRotate, theta);
+    }
+
+    /**
+     * Sets several dihedral angles at once.  The result is the same as calling setDihedral()
+     * for each torsion in turn, applying torsions with larger rotating fragments first, so
+     * that a torsion nearer the root of the molecule is set before the torsions it carries.
+     * Torsions with equally large fragments are applied in the iteration order of the map.
+     * The rotations of all the torsions that move an atom are composed first, so every atom
+     * is moved exactly once.
+     * @param targets the desired dihedral angle in degrees for each torsion
+     */
+    public MoleculeEditor setDihedrals(Map<IndexTorsion,Double> targets)
+    {
+        // convert to indices and sort by decreasing fragment size
+        List<IndexTorsion> torsions = new ArrayList<>(targets.keySet());
+        torsions.sort((t1, t2) -> Integer.compare(t2.atomNumbersToRotate.size(), t1.atomNumbersToRotate.size()));
+        int numberOfTorsions = torsions.size();
+        int[][] atoms = new int[numberOfTorsions][];
+        BitSet[] rotates = new BitSet[numberOfTorsions];
+        for (int t=0; t < numberOfTorsions; t++)
+            {
+                IndexTorsion torsion = torsions.get(t);
+                atoms[t] = new int[] { getIndex(torsion.index1), getIndex(torsion.index2), getIndex(torsion.index3), getIndex(torsion.index4) };
+                rotates[t] = new BitSet(elements.length);
+                for (Integer atomNumber : torsion.atomNumbersToRotate)
+                    rotates[t].set(getIndex(atomNumber));
+            }
+
+        // find each rotation as a 3x4 affine transform, measuring each torsion after the ones before it
+        double[][] transforms = new double[numberOfTorsions][];
+        double[] local = new double[12];
+        for (int t=0; t < numberOfTorsions; t++)
+            {
+                for (int m=0; m < 4; m++)
+                    {
+                        int i = atoms[t][m];
+                        double[] transform = IDENTITY;
+                        for (int u=0; u < t; u++)
+                            if ( rotates[u].get(i) )
+                                transform = compose(transforms[u], transform);
+                        apply(transform, positions, i, local, m);
+                    }
+                double requiredRotation = Geometry.dihedral(local, 0, 1, 2, 3) - targets.get(torsions.get(t));
+                double ox = local[6];
+                double oy = local[7];
+                double oz = local[8];
+                double[] rotation = Geometry.rotationMatrix(local[3] - ox, local[4] - oy, local[5] - oz, Math.toRadians(requiredRotation));
+                transforms[t] = new double[] { rotation[0], rotation[1], rotation[2], ox - (rotation[0]*ox + rotation[1]*oy + rotation[2]*oz),
+                                               rotation[3], rotation[4], rotation[5], oy - (rotation[3]*ox + rotation[4]*oy + rotation[5]*oz),
+                                               rotation[6], rotation[7], rotation[8], oz - (rotation[6]*ox + rotation[7]*oy + rotation[8]*oz) };
+            }
+
+        // atoms that are rotated by the same torsions share one composed transform
+        prepareToMove();
+        Map<BitSet,double[]> composed = new HashMap<>();
+        BitSet signature = new BitSet(numberOfTorsions);
+        for (int i=0; i < elements.length; i++)
+            {
+                signature.clear();
+                for (int t=0; t < numberOfTorsions; t++)
+                    if ( rotates[t].get(i) )
+                        signature.set(t);
+                if ( signature.isEmpty() )
+                    continue;
+                double[] transform = composed.get(signature);
+                if ( transform == null )
+                    {
+                        transform = IDENTITY;
+                        for (int t=signature.nextSetBit(0); t >= 0; t=signature.nextSetBit(t+1))
+                            transform = compose(transforms[t], transform);
+                        composed.put((BitSet)signature.clone(), transform);
+                    }
+                apply(transform, positions, i, positions, i);
+            }
+        return this;
+    }
+
+    /** returns the affine transform that applies second and then first */
+    private static double[] compose(double[] first, double[] second)
+    {
+        double[] result = new double[12];
+        for (int r=0; r < 3; r++)
+            {
+                for (int c=0; c < 4; c++)
+                    {
+                        double sum = c == 3 ? first[4*r+3] : 0.0;
+                        for (int k=0; k < 3; k++)
+                            sum += first[4*r+k] * second[4*k+c];
+                        result[4*r+c] = sum;
+                    }
+            }
+        return result;
+    }
+
+    /** writes the transformed position of atom i of xyz into slot m of result */
+    private static void apply(double[] transform, double[] xyz, int i, double[] result, int m)
+    {
+        double x = xyz[3*i];
+        double y = xyz[3*i+1];
+        double z = xyz[3*i+2];
+        result[3*m]   = transform[0]*x + transform[1]*y + transform[2]*z  + transform[3];
+        result[3*m+1] = transform[4]*x + transform[5]*y + transform[6]*z  + transform[7];
+        result[3*m+2] = transform[8]*x + transform[9]*y + transform[10]*z + transform[11];
+    }
+
+    /** rotates the given atoms (indices 0, 1, ..., n-1) about the atom2-atom3 axis */
+    MoleculeEditor setDihedral(int atomNumber1, int atomNumber2, int atomNumber3, int atomNumber4, int[] atomsToRotate, double theta)
+    {
+        int i = getIndex(atomNumber1);
+        int j = getIndex(atomNumber2);
+        int k = getIndex(atomNumber3);
+        int l = getIndex(atomNumber4);
+        prepareToMove();
+
+        // determine how much rotation is needed
+        double currentDihedralAngle = Geometry.dihedral(positions, i, j, k, l);
+        double requiredRotation = currentDihedralAngle - theta;
+
+        // the rotation axis is the vector from atom3 to atom2
+        double ox = positions[3*k];
+        double oy = positions[3*k+1];
+        double oz = positions[3*k+2];
+        double[] rotation = Geometry.rotationMatrix(positions[3*j] - ox, positions[3*j+1] - oy, positions[3*j+2] - oz,
+                                                    Math.toRadians(requiredRotation));
+        Geometry.rotate(positions, atomsToRotate, rotation, ox, oy, oz);
+        return this;
+    }
+
+    /**
+     * Moves atom2 and its subgraph to make atom1 sp2-hybridized (bond angles of 120 degrees).
+     * The atom1-atom2 distance is unchanged.
+     * @param atomNumber1 the atom to be adjusted to sp2; must have three neighbors
+     * @param atomNumber2 the group to be moved
+     * @param forceAngle true if the angle between the other two neighbors of atom1 should also be set to 120
+     */
+    public MoleculeEditor set_sp2(int atomNumber1, int atomNumber2, boolean forceAngle)
+    {
+        int center = getIndex(atomNumber1);
+        int moved = getIndex(atomNumber2);
+        int[] others = getOtherNeighbors(center, moved, 3);
+        int alpha = others[0];
+        int beta = others[1];
+
+        // force the existing bond angle to 120 degrees
+        if ( forceAngle )
+            setAngle(alpha+1, atomNumber1, beta+1, 120.0);
+
+        // if the unit vectors a and b are two vertices of an equilateral triangle centered
+        // on the origin, the third vertex is -(a+b); if the alpha-center-beta angle is not
+        // 120 degrees, this direction still bisects the larger of the two outer angles
+        return rotateOnto(center, moved, sumOfUnitVectors(center, others));
+    }
+
+    /** alias method that forces the angle */
+    public MoleculeEditor set_sp2(int atomNumber1, int atomNumber2)
+    {
+        return set_sp2(atomNumber1, atomNumber2, true);
+    }
+
+    /**
+     * Moves atom2 and its subgraph to make atom1 sp3-hybridized (tetrahedral geometry).
+     * The atom1-atom2 distance is unchanged.
+     * @param atomNumber1 the atom to be adjusted to sp3; must have four neighbors
+     * @param atomNumber2 the group to be moved
+     */
+    public MoleculeEditor set_sp3(int atomNumber1, int atomNumber2)
+    {
+        int center = getIndex(atomNumber1);
+        int moved = getIndex(atomNumber2);
+        int[] others = getOtherNeighbors(center, moved, 4);
+
+        // the target direction is the negative sum of the unit vectors to the other neighbors
+        return rotateOnto(center, moved, sumOfUnitVectors(center, others));
+    }
+
+    /**
+     * Rehybridizes several centers to sp2 in one call, forcing the angles.  The centers are
+     * adjusted in order, so later centers see the positions left by earlier ones.
+     * @param bonds pairs of atom numbers; the first is the center and the second is the group to be moved
+     */
+    public MoleculeEditor set_sp2(Collection<? extends List<Integer>> bonds)
+    {
+        for (List<Integer> bond : bonds)
+            {
+                checkPair(bond);
+                set_sp2(bond.get(0), bond.get(1), true);
+            }
+        return this;
+    }
+
+    /**
+     * Rehybridizes several centers to sp3 in one call.  The centers are adjusted in order,
+     * so later centers see the positions left by earlier ones.
+     * @param bonds pairs of atom numbers; the first is the center and the second is the group to be moved
+     */
+    public MoleculeEditor set_sp3(Collection<? extends List<Integer>> bonds)
+    {
+        for (List<Integer> bond : bonds)
+            {
+                checkPair(bond);
+                set_sp3(bond.get(0), bond.get(1));
+            }
+        return this;
+    }
+
+    /** throws an exception unless the list is a pair of atom numbers */
+    private static void checkPair(List<Integer> bond)
+    {
+        if ( bond == null || bond.size() != 2 )
+            throw new IllegalArgumentException("expected a pair of atom numbers, found " + bond);
+    }
+
+    /**
+     * Returns the negative of the sum of the unit vectors from center to each of the other atoms.
+     * This is the direction of the missing vertex of a regular triangle or tetrahedron.
+     */
+    private double[] sumOfUnitVectors(int center, int[] others)
+    {
+        double cx = positions[3*center];
+        double cy = positions[3*center+1];
+        double cz = positions[3*center+2];
+        double tx = 0.0, ty = 0.0, tz = 0.0;
+        for (int other : others)
+            {
+                double ux = positions[3*other]   - cx;
+                double uy = positions[3*other+1] - cy;
+                double uz = positions[3*other+2] - cz;
+                double norm = Math.sqrt(ux*ux + uy*uy + uz*uz);
+                if ( norm == 0.0 )
+                    throw new IllegalArgumentException("atoms " + (center+1) + " and " + (other+1) + " are on top of each other");
+                tx -= ux / norm;
+                ty -= uy / norm;
+                tz -= uz / norm;
+            }
+        if ( tx == 0.0 && ty == 0.0 && tz == 0.0 )
+            throw new IllegalArgumentException("the other neighbors of atom " + (center+1) + " leave no room for another substituent");
+        return new double[] { tx, ty, tz };
+    }
+
+    /**
+     * Returns the neighbors of center other than moved.  Throws an exception unless center
+     * has the expected number of neighbors and is bonded to moved.
+     */
+    private int[] getOtherNeighbors(int center, int moved, int expectedNeighbors)
+    {
+        int degree = topology.getDegree(center);
+        if ( degree != expectedNeighbors )
+            throw new IllegalArgumentException("expected " + expectedNeighbors + " neighbors for atom 1, found " + degree);
+        else if ( ! topology.isBonded(center, moved) )
+            throw new IllegalArgumentException("atoms are not adjacent");
+        int[] others = new int[degree-1];
+        int count = 0;
+        for (int k=0; k < degree; k++)
+            {
+                int neighbor = topology.getNeighbor(center, k);
+                if ( neighbor != moved )
+                    others[count++] = neighbor;
+            }
+        return others;
+    }
+
+    /**
+     * Rotates moved and its subgraph about center so that the center-moved bond points along target.
+     * The rotation axis is perpendicular to both directions, and target need not be normalized.
+     */
+    private MoleculeEditor rotateOnto(int center, int moved, double[] target)
+    {
+        int[] toBeMoved = getHalfGraph(center, moved);
+        double ox = positions[3*center];
+        double oy = positions[3*center+1];
+        double oz = positions[3*center+2];
+        double vx = positions[3*moved]   - ox;
+        double vy = positions[3*moved+1] - oy;
+        double vz = positions[3*moved+2] - oz;
+        double tx = target[0], ty = target[1], tz = target[2];
+
+        // |v x t| and v.t share the factor |v||t|, which cancels in the angle
+        double ax = vy*tz - vz*ty;
+        double ay = vz*tx - vx*tz;
+        double az = vx*ty - vy*tx;
+        double sine = Math.sqrt(ax*ax + ay*ay + az*az);
+        double cosine = vx*tx + vy*ty + vz*tz;
+        double theta = Math.atan2(sine, cosine);
+        if ( sine == 0.0 )
+            {
+                // already aligned
+                if ( cosine >= 0.0 )
+                    return this;
+
+                // pointing in the opposite direction, so any perpendicular axis will do
+                Vector3D orthogonal = new Vector3D(vx, vy, vz).orthogonal();
+                ax = orthogonal.getX();
+                ay = orthogonal.getY();
+                az = orthogonal.getZ();
+            }
+        prepareToMove();
+        double[] rotation = Geometry.rotationMatrix(ax, ay, az, theta);
+        Geometry.rotate(positions, toBeMoved, rotation, ox, oy, oz);
+        return this;
+    }
+}
@@ -0,0 +1,279 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Shared machinery for loops over pairs of atoms in packed coordinate arrays.<p>
+ * Work is divided into fixed blocks of BLOCK_SIZE atoms.  Large systems run the blocks on a
+ * fork-join pool with Settings.NUMBER_OF_THREADS workers, and small systems run them in the calling
+ * thread.  The block boundaries never depend on the number of threads, and each block writes
+ * only its own results, so answers are bit-for-bit identical whatever the thread count.<p>
+ * The inner loops gather each atom's neighbors into contiguous scratch arrays before doing
+ * any arithmetic.  The JIT can then vectorize the arithmetic.  Lennard-Jones parameters come
+ * from Element-pair tables that already include the combination rules.
+ */
+public class PairKernel
+{
+    /** the number of atoms in each block of work */
+    public static final int BLOCK_SIZE = 64;
+
+    /** systems with fewer atoms than this are processed in the calling thread */
+    public static final int PARALLEL_THRESHOLD = 1024;
+
+    /** the number of elements, which is the stride of the pair tables */
+    static final int NUMBER_OF_ELEMENTS = Element.values().length;
+
+    /** 4 * epsilon for each pair of elements, indexed by ordinal1 * NUMBER_OF_ELEMENTS + ordinal2 */
+    static final double[] FOUR_EPSILON;
+
+    /** sigma^2 for each pair of elements, indexed by ordinal1 * NUMBER_OF_ELEMENTS + ordinal2 */
+    static final double[] SIGMA_SQUARED;
+
+    static
+    {
+        FOUR_EPSILON = new double[NUMBER_OF_ELEMENTS * NUMBER_OF_ELEMENTS];
+        SIGMA_SQUARED = new double[NUMBER_OF_ELEMENTS * NUMBER_OF_ELEMENTS];
+        for (Element element1 : Element.values())
+            {
+                for (Element element2 : Element.values())
+                    {
+                        // geometric combination rules
+                        double epsilon = element1.epsilon;
+                        if ( element1.epsilon != element2.epsilon )
+                            epsilon = Math.sqrt(element1.epsilon * element2.epsilon);
+                        int index = element1.ordinal() * NUMBER_OF_ELEMENTS + element2.ordinal();
+                        FOUR_EPSILON[index] = 4.0 * epsilon;
+                        SIGMA_SQUARED[index] = element1.sigma * element2.sigma;
+                    }
+            }
+    }
+
+    /** the worker pool, created the first time a large system is processed */
+    private static class PoolHolder
+    {
+        static final ForkJoinPool POOL = new ForkJoinPool(Math.max(1, Settings.NUMBER_OF_THREADS));
+    }
+
+    /** per-thread scratch space for the inner loops */
+    static class Scratch
+    {
+        /** exclusion marks; every entry is -1 between uses */
+        int[] marks = new int[0];
+
+        /** neighbor indices returned by a cell list search */
+        int[] neighbors = new int[0];
+
+        /** gathered neighbor data */
+        int[] atoms = new int[0];
+        double[] dx = new double[0], dy = new double[0], dz = new double[0];
+        double[] fourEpsilon = new double[0], sigmaSquared = new double[0];
+
+        /** makes sure every array can hold size entries */
+        void ensureCapacity(int size)
+        {
+            if ( marks.length >= size )
+                return;
+            marks = new int[size];
+            Arrays.fill(marks, -1);
+            neighbors = new int[size];
+            atoms = new int[size];
+            dx = new double[size];
+            dy = new double[size];
+            dz = new double[size];
+            fourEpsilon = new double[size];
+            sigmaSquared = new double[size];
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /** a unit of work covering atoms start, start+1, ..., end-1 */
+    interface BlockTask
+    {
+        void run(int block, int start, int end);
+    }
+
+    /** not instantiable */
+    private PairKernel()
+    {
+    }
+
+    /** returns scratch space for the current thread with room for size atoms */
+    static Scratch getScratch(int size)
+    {
+        Scratch scratch = SCRATCH.get();
+        scratch.ensureCapacity(size);
+        return scratch;
+    }
+
+    /**
+     * Returns the number of blocks needed to cover a number of atoms.
+     * @param size the number of atoms
+     * @return the number of blocks
+     */
+    static int getNumberOfBlocks(int size)
+    {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * Runs task once for every block of atoms and waits for all of them to finish.
+     * @param size the number of atoms
+     * @param task the work to do for each block
+     */
+    static void forEachBlock(int size, BlockTask task)
+    {
+        int numberOfBlocks = getNumberOfBlocks(size);
+        if ( size < PARALLEL_THRESHOLD || Settings.NUMBER_OF_THREADS < 2 )
+            {
+                for (int block=0; block < numberOfBlocks; block++)
+                    task.run(block, block*BLOCK_SIZE, Math.min(size, (block+1)*BLOCK_SIZE));
+                return;
+            }
+
+        List<Callable<Void>> callables = new ArrayList<>(numberOfBlocks);
+        for (int block=0; block < numberOfBlocks; block++)
+            {
+                final int thisBlock = block;
+                callables.add(() ->
+                    {
+                        task.run(thisBlock, thisBlock*BLOCK_SIZE, Math.min(size, (thisBlock+1)*BLOCK_SIZE));
+                        return null;
+                    });
+            }
+        try
+            {
+                for (Future<Void> future : PoolHolder.POOL.invokeAll(callables))
+                    future.get();
+            }
+        catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for pair kernel", e);
+            }
+        catch (ExecutionException e)
+            {
+                if ( e.getCause() instanceof RuntimeException )
+                    throw (RuntimeException)e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+    }
+
+    /**
+     * Determines whether any pair of atoms that are not 1-2 or 1-3 lies within cutoff.
+     * @param xyz the packed coordinates
+     * @param topology the connectivity
+     * @param cutoff the distance in angstroms; pairs at exactly this distance count
+     * @return true if such a pair exists
+     */
+    public static boolean hasClash(double[] xyz, Topology topology, double cutoff)
+    {
+        int size = topology.size;
+        CellList cellList = new CellList(xyz, cutoff);
+        AtomicBoolean found = new AtomicBoolean();
+        forEachBlock(size, (block, start, end) ->
+            {
+                Scratch scratch = getScratch(size);
+                int[] marks = scratch.marks;
+                for (int i=start; i < end && !found.get(); i++)
+                    {
+                        int count = cellList.getHigherNeighbors(i, cutoff, scratch.neighbors);
+                        if ( count == 0 )
+                            continue;
+                        topology.markExclusions(i, marks, i);
+                        boolean clash = false;
+                        for (int n=0; n < count; n++)
+                            {
+                                if ( marks[scratch.neighbors[n]] != i )
+                                    {
+                                        clash = true;
+                                        break;
+                                    }
+                            }
+                        topology.markExclusions(i, marks, -1);
+                        if ( clash )
+                            found.set(true);
+                    }
+            });
+        return found.get();
+    }
+
+    /**
+     * Determines whether any pair of atoms that are not directly bonded is closer than cutoff.
+     * @param xyz the packed coordinates
+     * @param topology the connectivity
+     * @param cutoff the distance in angstroms
+     * @param isOld if not null, only pairs with exactly one atom marked true are considered
+     * @return true if such a pair exists
+     */
+    public static boolean hasCloseContact(double[] xyz, Topology topology, double cutoff, boolean[] isOld)
+    {
+        int size = topology.size;
+        double cutoffSquared = cutoff * cutoff;
+        CellList cellList = new CellList(xyz, cutoff);
+        AtomicBoolean found = new AtomicBoolean();
+        forEachBlock(size, (block, start, end) ->
+            {
+                int[] neighbors = getScratch(size).neighbors;
+                for (int i=start; i < end && !found.get(); i++)
+                    {
+                        int count = cellList.getHigherNeighbors(i, cutoff, neighbors);
+                        for (int n=0; n < count; n++)
+                            {
+                                int j = neighbors[n];
+                                if ( isOld != null && isOld[i] == isOld[j] )
+                                    continue;
+                                double dx = xyz[3*j]   - xyz[3*i];
+                                double dy = xyz[3*j+1] - xyz[3*i+1];
+                                double dz = xyz[3*j+2] - xyz[3*i+2];
+                                if ( dx*dx + dy*dy + dz*dz < cutoffSquared && ! topology.isBonded(i,j) )
+                                    {
+                                        found.set(true);
+                                        break;
+                                    }
+                            }
+                    }
+            });
+        return found.get();
+    }
+
+    /**
+     * Determines whether any atom in the first set is closer than cutoff to any atom in the second set.
+     * @param xyz1 the packed coordinates of the first set
+     * @param xyz2 the packed coordinates of the second set
+     * @param cutoff the distance in angstroms
+     * @return true if such a pair exists
+     */
+    public static boolean hasContact(double[] xyz1, double[] xyz2, double cutoff)
+    {
+        int size1 = xyz1.length / 3;
+        int size2 = xyz2.length / 3;
+        double cutoffSquared = cutoff * cutoff;
+        CellList cellList = new CellList(xyz2, cutoff);
+        AtomicBoolean found = new AtomicBoolean();
+        forEachBlock(size1, (block, start, end) ->
+            {
+                int[] neighbors = getScratch(size2).neighbors;
+                for (int i=start; i < end && !found.get(); i++)
+                    {
+                        double x = xyz1[3*i];
+                        double y = xyz1[3*i+1];
+                        double z = xyz1[3*i+2];
+                        int count = cellList.getNeighbors(x, y, z, cutoff, neighbors);
+                        for (int n=0; n < count; n++)
+                            {
+                                int j = neighbors[n];
+                                double dx = xyz2[3*j]   - x;
+                                double dy = xyz2[3*j+1] - y;
+                                double dz = xyz2[3*j+2] - z;
+                                if ( dx*dx + dy*dy + dz*dz < cutoffSquared )
+                                    {
+                                        found.set(true);
+                                        break;
+                                    }
+                            }
+                    }
+            });
+        return found.get();
+    }
+}
@@ -91,10 +91,10 @@ public class ProtoTorsion extends AbstractTorsion
     public AtomTorsion getAtomTorsion(Molecule molecule)
     {
         // check if molecule contains these atoms
-        if ( ! molecule.contents.contains(atom1) ||
-             ! molecule.contents.contains(atom2) ||
-             ! molecule.contents.contains(atom3) ||
-             ! molecule.contents.contains(atom4)    )
+        if ( ! molecule.containsAtom(atom1) ||
+             ! molecule.containsAtom(atom2) ||
+             ! molecule.containsAtom(atom3) ||
+             ! molecule.containsAtom(atom4)    )
             throw new IllegalArgumentException("cannot generate AtomTorsion--atoms not in Molecule");
 
         return new AtomTorsion(atom1, atom2, atom3, atom4, molecule);
@@ -0,0 +1,442 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import com.google.common.collect.*;
+
+/**
+ * Generates the Gaussian input files described by a ScanSpec.<p>
+ * The points of the scan form a lattice with one axis per coordinate.  Each point is numbered
+ * 0, 1, ..., getNumberOfPoints()-1 with the last coordinate changing fastest, and its values are
+ * computed directly from its integer lattice indices, so no rounding error accumulates across
+ * the scan.  Points that fail a mask are skipped before any geometry is made.  The remaining
+ * points are built and written on Settings.NUMBER_OF_THREADS threads.  The constructor rejects
+ * specs that would write two points to the same file.  Every point starts from
+ * the template, so the results do not depend on the order in which the threads finish.<p>
+ * If the spec asks for an adaptive scan, only the points requested by an AdaptiveGrid are written.
+ * The finished outputs in the results directory are read through a ScanIndex, placed on the lattice
+ * by measuring their coordinates, and fed to the grid.  Each rerun then writes the next wave.<p>
+ * Usage: <code>java ScanEngine scan.spec</code>
+ */
+public class ScanEngine
+{
+    /** the number of consecutive points handed to a thread at once */
+    public static final int CHUNK_SIZE = 16;
+
+    /** the specification */
+    public final ScanSpec spec;
+
+    /** the template after the requested bonds have been added and removed */
+    public final Molecule template;
+
+    /** the product of the counts of all the later coordinates, for each coordinate */
+    private final int[] strides;
+
+    /** the total number of lattice points */
+    private final int numberOfPoints;
+
+    /**
+     * Reads the template named in the specification.
+     * @param spec the specification
+     */
+    public ScanEngine(ScanSpec spec)
+    {
+        this(spec, readTemplate(spec.templateFilename));
+    }
+
+    /**
+     * Uses the given template instead of the file named in the specification.
+     * @param spec the specification
+     * @param molecule the template geometry; the spec's bond changes are applied to it
+     */
+    public ScanEngine(ScanSpec spec, Molecule molecule)
+    {
+        this.spec = spec;
+
+        // change the connectivity; removals come first so that a bond can be removed and re-added
+        MoleculeEditor editor = molecule.edit();
+        for (List<Integer> bond : spec.bondsToRemove)
+            editor.removeBond(bond.get(0), bond.get(1));
+        for (List<Integer> bond : spec.bondsToAdd)
+            editor.addBond(bond.get(0), bond.get(1));
+        this.template = editor.build();
+
+        // check that every coordinate has something to move
+        int size = template.contents.size();
+        for (ScanSpec.Variable variable : spec.variables)
+            {
+                for (Integer atomNumber : variable.atomNumbers)
+                    if ( atomNumber > size )
+                        throw new IllegalArgumentException(String.format("atom number %d in %s is out of range", atomNumber, variable.name));
+                int n = variable.atomNumbers.size();
+                int fixed = variable.atomNumbers.get(n-2);
+                int moved = variable.atomNumbers.get(n-1);
+                if ( variable.type == ScanSpec.Type.DIHEDRAL )
+                    {
+                        fixed = variable.atomNumbers.get(1);
+                        moved = variable.atomNumbers.get(2);
+                    }
+                if ( ! template.directlyConnected(fixed, moved) )
+                    throw new IllegalArgumentException(String.format("%s: atoms %d and %d must be bonded (use add bond)", variable.name, fixed, moved));
+                if ( template.isRingBond(fixed, moved) )
+                    throw new IllegalArgumentException(String.format("%s: cannot move atoms across the ring bond %d-%d", variable.name, fixed, moved));
+            }
+
+        // lay out the lattice
+        int dimensions = spec.variables.size();
+        strides = new int[dimensions];
+        long total = 1L;
+        for (int d=dimensions-1; d >= 0; d--)
+            {
+                strides[d] = (int)total;
+                total *= spec.variables.get(d).count;
+                if ( total > Integer.MAX_VALUE )
+                    throw new IllegalArgumentException("too many points");
+            }
+        numberOfPoints = (int)total;
+
+        // labels are rounded and the pattern need not name every coordinate, so two points could share a file
+        Map<String,Integer> filenames = new HashMap<>();
+        for (int point=0; point < numberOfPoints; point++)
+            {
+                double[] values = getValues(point);
+                if ( ! accepts(values) )
+                    continue;
+                String filename = getFilename(point, values);
+                Integer previous = filenames.put(filename, point);
+                if ( previous != null )
+                    throw new IllegalArgumentException(String.format("points %s and %s would both be written to %s; add {index} to the output pattern or use coarser steps",
+                                                                     Arrays.toString(getValues(previous)), Arrays.toString(values), filename));
+            }
+    }
+
+    /** reads a geometry from a .out file or a .gjf file */
+    private static Molecule readTemplate(String filename)
+    {
+        if ( filename.toLowerCase().endsWith(".out") )
+            return new GaussianOutputFile(filename).molecule;
+        return new GJFfile(filename).molecule;
+    }
+
+    /** returns the number of lattice points, including those that the masks reject */
+    public int getNumberOfPoints()
+    {
+        return numberOfPoints;
+    }
+
+    /**
+     * Returns the lattice indices of a point.
+     * @param point 0, 1, ..., getNumberOfPoints()-1
+     * @return the index along each coordinate
+     */
+    public int[] getIndices(int point)
+    {
+        if ( point < 0 || point >= numberOfPoints )
+            throw new IllegalArgumentException("point out of range: " + point);
+        int[] indices = new int[strides.length];
+        for (int d=0; d < strides.length; d++)
+            {
+                indices[d] = point / strides[d];
+                point -= indices[d] * strides[d];
+            }
+        return indices;
+    }
+
+    /**
+     * Returns the number of a point.
+     * @param indices the index along each coordinate
+     * @return 0, 1, ..., getNumberOfPoints()-1
+     */
+    public int getPoint(int[] indices)
+    {
+        if ( indices.length != strides.length )
+            throw new IllegalArgumentException("wrong number of indices");
+        int point = 0;
+        for (int d=0; d < strides.length; d++)
+            {
+                if ( indices[d] < 0 || indices[d] >= spec.variables.get(d).count )
+                    throw new IllegalArgumentException("index out of range: " + Arrays.toString(indices));
+                point += indices[d] * strides[d];
+            }
+        return point;
+    }
+
+    /**
+     * Finds the lattice point a geometry was made for, such as the final geometry of a finished job.
+     * Each coordinate must lie within a quarter of a step of a lattice value.  Dihedrals are also
+     * tried 360 degrees up and down.
+     * @param molecule a geometry with the same atoms as the template
+     * @return the index along each coordinate, or null if the geometry is not on the lattice
+     */
+    public int[] locate(Molecule molecule)
+    {
+        int[] indices = new int[strides.length];
+        for (int d=0; d < strides.length; d++)
+            {
+                ScanSpec.Variable variable = spec.variables.get(d);
+                double value = measure(molecule, variable);
+                double[] candidates = variable.type == ScanSpec.Type.DIHEDRAL ?
+                                      new double[] { value, value - 360.0, value + 360.0 } : new double[] { value };
+                indices[d] = -1;
+                for (double candidate : candidates)
+                    {
+                        double position = ( candidate - variable.start ) / variable.step;
+                        long index = Math.round(position);
+                        if ( index >= 0 && index < variable.count && Math.abs(position - index) <= 0.25 )
+                            {
+                                indices[d] = (int)index;
+                                break;
+                            }
+                    }
+                if ( indices[d] < 0 )
+                    return null;
+            }
+        return indices;
+    }
+
+    /** returns the current value of a coordinate in angstroms or degrees */
+    private static double measure(Molecule molecule, ScanSpec.Variable variable)
+    {
+        List<Integer> a = variable.atomNumbers;
+        switch (variable.type)
+            {
+                case DISTANCE:
+                    return Geometry.distance(molecule.xyz, a.get(0)-1, a.get(1)-1);
+                case ANGLE:
+                    return Geometry.angle(molecule.xyz, a.get(0)-1, a.get(1)-1, a.get(2)-1);
+                default:
+                    return Geometry.dihedral(molecule.xyz, a.get(0)-1, a.get(1)-1, a.get(2)-1, a.get(3)-1);
+            }
+    }
+
+    /**
+     * Returns the requested coordinate values of a point.
+     * @param point 0, 1, ..., getNumberOfPoints()-1
+     * @return the value of each coordinate in angstroms or degrees
+     */
+    public double[] getValues(int point)
+    {
+        int[] indices = getIndices(point);
+        double[] values = new double[indices.length];
+        for (int d=0; d < indices.length; d++)
+            values[d] = spec.variables.get(d).getValue(indices[d]);
+        return values;
+    }
+
+    /** returns true if the values satisfy every mask */
+    public boolean accepts(double[] values)
+    {
+        for (MaskExpression mask : spec.masks)
+            if ( ! mask.test(values) )
+                return false;
+        return true;
+    }
+
+    /**
+     * Sets every coordinate of the template to the given values, in the order they were specified.
+     * @param values the value of each coordinate in angstroms or degrees
+     * @return the new geometry
+     */
+    public Molecule makeMolecule(double[] values)
+    {
+        MoleculeEditor editor = template.edit();
+        for (int d=0; d < values.length; d++)
+            {
+                ScanSpec.Variable variable = spec.variables.get(d);
+                List<Integer> a = variable.atomNumbers;
+                switch (variable.type)
+                    {
+                        case DISTANCE:
+                            editor.setDistance(a.get(0), a.get(1), values[d]);
+                            break;
+                        case ANGLE:
+                            editor.setAngle(a.get(0), a.get(1), a.get(2), values[d]);
+                            break;
+                        case DIHEDRAL:
+                            editor.setDihedral(a.get(0), a.get(1), a.get(2), a.get(3), values[d]);
+                            break;
+                    }
+            }
+        return editor.build();
+    }
+
+    /**
+     * Returns the output filename of a point.
+     * @param point the point number, which replaces {index}
+     * @param values the coordinate values, which replace {name}
+     */
+    public String getFilename(int point, double[] values)
+    {
+        String filename = spec.outputPattern.replace("{index}", String.format("%05d", point));
+        for (int d=0; d < values.length; d++)
+            {
+                ScanSpec.Variable variable = spec.variables.get(d);
+                filename = filename.replace("{" + variable.name + "}", variable.getLabel(values[d]));
+            }
+        return filename;
+    }
+
+    /** builds and writes one point, returning a summary line, or null if the point is masked out */
+    private String runPoint(int point)
+    {
+        double[] values = getValues(point);
+        if ( ! accepts(values) )
+            return null;
+        Molecule molecule = makeMolecule(values);
+        String filename = getFilename(point, values);
+        new GaussianInputFile(molecule, spec.title, spec.keywords, spec.tail, spec.writeConnectivity,
+                              spec.charge, spec.multiplicity).write(filename);
+
+        // report the coordinates as built
+        StringBuilder builder = new StringBuilder();
+        for (ScanSpec.Variable variable : spec.variables)
+            builder.append(String.format("%.2f\t", measure(molecule, variable)));
+        return builder.append(filename).toString();
+    }
+
+    /**
+     * Writes every point that passes the masks.
+     * @return a summary line for each file written, in point order
+     */
+    public List<String> run()
+    {
+        List<Integer> points = new ArrayList<>(numberOfPoints);
+        for (int point=0; point < numberOfPoints; point++)
+            points.add(point);
+        return run(points);
+    }
+
+    /**
+     * Writes the given points, skipping any that fail the masks.
+     * @param points the point numbers
+     * @return a summary line for each file written, in the order of points
+     */
+    public List<String> run(Collection<Integer> points)
+    {
+        final int[] pointArray = new int[points.size()];
+        int count = 0;
+        for (Integer point : points)
+            pointArray[count++] = point;
+        String[] results = new String[pointArray.length];
+        int numberOfChunks = (pointArray.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        List<Callable<Void>> callables = new ArrayList<>(numberOfChunks);
+        for (int chunk=0; chunk < numberOfChunks; chunk++)
+            {
+                final int start = chunk * CHUNK_SIZE;
+                final int end = Math.min(pointArray.length, start + CHUNK_SIZE);
+                callables.add(() ->
+                    {
+                        for (int i=start; i < end; i++)
+                            results[i] = runPoint(pointArray[i]);
+                        return null;
+                    });
+            }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Settings.NUMBER_OF_THREADS));
+        try
+            {
+                for (Future<Void> future : executor.invokeAll(callables))
+                    future.get();
+            }
+        catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while scanning", e);
+            }
+        catch (ExecutionException e)
+            {
+                if ( e.getCause() instanceof RuntimeException )
+                    throw (RuntimeException)e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+        finally
+            {
+                executor.shutdown();
+            }
+
+        List<String> summary = new ArrayList<>();
+        for (String result : results)
+            if ( result != null )
+                summary.add(result);
+        return ImmutableList.copyOf(summary);
+    }
+
+    /** runs the scan in the given spec file */
+    public static void main(String[] args)
+    {
+        if ( args.length != 1 )
+            {
+                System.out.println("usage: java ScanEngine scan.spec");
+                return;
+            }
+        ScanSpec spec = new ScanSpec(args[0]);
+        System.out.print(spec.toString());
+        ScanEngine engine = new ScanEngine(spec);
+        if ( spec.adaptiveStride == 0 )
+            {
+                List<String> summary = engine.run();
+                for (String line : summary)
+                    System.out.println(line);
+                System.out.printf("Wrote %d of %d points.\n", summary.size(), engine.getNumberOfPoints());
+                return;
+            }
+
+        // feed the finished jobs to the grid
+        int[] counts = new int[spec.variables.size()];
+        for (int d=0; d < counts.length; d++)
+            counts[d] = spec.variables.get(d).count;
+        AdaptiveGrid grid = new AdaptiveGrid(counts, spec.adaptiveStride, spec.adaptiveThreshold);
+        ScanIndex index = new ScanIndex(new File(spec.resultsDirectory, "scan.index").getPath());
+        index.update(spec.resultsDirectory);
+        index.save();
+        Set<Integer> finished = new HashSet<>();
+        Set<Integer> failed = new HashSet<>();
+        for (ScanIndex.Entry entry : index.getEntries(spec.resultsDirectory))
+            {
+                if ( entry.molecule == null )
+                    continue;
+                int[] indices = engine.locate(entry.molecule);
+                if ( indices == null )
+                    {
+                        System.out.printf("Ignoring %s, which is not on the lattice.\n", entry.path);
+                        continue;
+                    }
+                if ( !entry.normalTermination )
+                    {
+                        failed.add(engine.getPoint(indices));
+                        continue;
+                    }
+                grid.addEnergy(indices, entry.getEnergy());
+                finished.add(engine.getPoint(indices));
+            }
+
+        // write the next wave; masked points are never written, and neither are points whose input
+        // was written by an earlier run but has not finished, since those are running or failed
+        List<Integer> next = new ArrayList<>();
+        int running = 0;
+        int failures = 0;
+        for (Integer point : grid.getNextPoints())
+            {
+                double[] values = engine.getValues(point);
+                if ( ! engine.accepts(values) )
+                    continue;
+                String filename = engine.getFilename(point, values);
+                if ( failed.contains(point) )
+                    {
+                        System.out.printf("%s failed; delete its input and output to run it again.\n", filename);
+                        failures++;
+                    }
+                else if ( new File(filename).exists() )
+                    {
+                        System.out.printf("%s has not finished yet.\n", filename);
+                        running++;
+                    }
+                else
+                    next.add(point);
+            }
+        List<String> summary = engine.run(next);
+        for (String line : summary)
+            System.out.println(line);
+        System.out.printf("%d points finished, %d still running, and %d failed; wrote %d more of %d points.\n",
+                          finished.size(), running, failures, summary.size(), engine.getNumberOfPoints());
+    }
+}
@@ -0,0 +1,299 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import com.google.common.collect.*;
+
+/**
+ * An on-disk record of the Gaussian output files in a scan directory, so that reruns of a scan
+ * driver do not have to parse every output again.<p>
+ * Each .out file is recorded with its size and modification time, whether it terminated
+ * normally, its last energy, and its last geometry.  Scan coordinates such as forming and breaking
+ * distances are measured on the stored geometry, which takes microseconds.  update() parses only
+ * the files that are new or whose size or modification time has changed.  It also forgets files
+ * that have disappeared.  New files are parsed on Settings.NUMBER_OF_THREADS threads.  The index is
+ * written with Java serialization to a temporary file that is then renamed, so an interrupted run
+ * cannot leave a half-written index behind.  An index that cannot be read is silently rebuilt.<p>
+ * For example:<p>
+ * <code>ScanIndex index = new ScanIndex("outputs/scan.index");<br>
+ * index.update("outputs");<br>
+ * index.save();</code>
+ */
+public class ScanIndex
+{
+    /** the format of the index file; bump this when Entry changes */
+    public static final int VERSION = 1;
+
+    /** what is known about one output file */
+    public static class Entry implements Immutable, Serializable
+    {
+        /** for serialization */
+        public static final long serialVersionUID = 1L;
+
+        /** the absolute path of the output file */
+        public final String path;
+
+        /** the length of the file in bytes when it was parsed */
+        public final long size;
+
+        /** the modification time of the file in milliseconds when it was parsed */
+        public final long lastModified;
+
+        /** true if the file contains at least one normal termination */
+        public final boolean normalTermination;
+
+        /** the last geometry and energy in the file, or null if it could not be parsed */
+        public final Molecule molecule;
+
+        public Entry(String path, long size, long lastModified, boolean normalTermination, Molecule molecule)
+        {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.normalTermination = normalTermination;
+            this.molecule = molecule;
+        }
+
+        /** returns the last energy, or NaN if the file could not be parsed */
+        public double getEnergy()
+        {
+            return molecule == null ? Double.NaN : molecule.energy;
+        }
+
+        /** returns true if this entry was made from the current version of file */
+        public boolean isCurrent(File file)
+        {
+            return file.length() == size && file.lastModified() == lastModified;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s: %s, energy %.8f", path, normalTermination ? "normal termination" : "failed", getEnergy());
+        }
+    }
+
+    /** where the index is saved */
+    public final String indexFilename;
+
+    /** the entries keyed by absolute path */
+    private final Map<String,Entry> entries = new TreeMap<>();
+
+    /** true if the entries have changed since the index was read or saved */
+    private boolean modified;
+
+    /**
+     * Reads an index from disk.  If the file does not exist or cannot be read, the index starts empty.
+     * @param indexFilename the location of the index file
+     */
+    public ScanIndex(String indexFilename)
+    {
+        this.indexFilename = indexFilename;
+        File file = new File(indexFilename);
+        if ( !file.isFile() )
+            return;
+        try (ObjectInputStream input = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file))))
+            {
+                if ( input.readInt() != VERSION )
+                    throw new InvalidClassException("index version mismatch");
+                int count = input.readInt();
+                for (int i=0; i < count; i++)
+                    {
+                        Entry entry = (Entry)input.readObject();
+                        entries.put(entry.path, entry);
+                    }
+            }
+        catch (IOException | ClassNotFoundException | ClassCastException e)
+            {
+                System.out.printf("Ignoring unreadable scan index %s (%s).\n", indexFilename, e.getMessage());
+                entries.clear();
+                modified = true;
+            }
+    }
+
+    /**
+     * Brings the index up to date with the .out files in a directory.  New and changed files are
+     * parsed and files that no longer exist are removed.  Entries for other directories are kept.
+     * @param directory the directory to scan; subdirectories are not searched
+     * @return the number of files that were parsed
+     */
+    public int update(String directory)
+    {
+        File[] files = new File(directory).listFiles();
+        if ( files == null )
+            throw new IllegalArgumentException("cannot list directory " + directory);
+
+        // forget deleted files in this directory
+        String directoryPath = new File(directory).getAbsoluteFile().toPath().normalize().toString();
+        Set<String> present = new HashSet<>();
+        List<File> toParse = new ArrayList<>();
+        for (File f : files)
+            {
+                if ( !f.isFile() || !f.getName().endsWith(".out") )
+                    continue;
+                String path = getPath(f);
+                present.add(path);
+                Entry entry = entries.get(path);
+                if ( entry == null || !entry.isCurrent(f) )
+                    toParse.add(f);
+            }
+        Iterator<Map.Entry<String,Entry>> iterator = entries.entrySet().iterator();
+        while ( iterator.hasNext() )
+            {
+                String path = iterator.next().getKey();
+                if ( new File(path).getParent().equals(directoryPath) && !present.contains(path) )
+                    {
+                        iterator.remove();
+                        modified = true;
+                    }
+            }
+        if ( toParse.size() == 0 )
+            return 0;
+
+        // parse the new files in parallel
+        List<Callable<Entry>> callables = new ArrayList<>(toParse.size());
+        for (File f : toParse)
+            callables.add(() -> parse(f));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Settings.NUMBER_OF_THREADS));
+        try
+            {
+                for (Future<Entry> future : executor.invokeAll(callables))
+                    {
+                        Entry entry = future.get();
+                        entries.put(entry.path, entry);
+                    }
+            }
+        catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while updating scan index", e);
+            }
+        catch (ExecutionException e)
+            {
+                if ( e.getCause() instanceof RuntimeException )
+                    throw (RuntimeException)e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+        finally
+            {
+                executor.shutdown();
+            }
+        modified = true;
+        return toParse.size();
+    }
+
+    /** returns the key for a file */
+    private static String getPath(File f)
+    {
+        return f.getAbsoluteFile().toPath().normalize().toString();
+    }
+
+    /** reads one output file; files that cannot be parsed are recorded as failed */
+    private static Entry parse(File f)
+    {
+        // record the size and time before reading, so a file that grows while it is read is parsed again next time
+        long size = f.length();
+        long lastModified = f.lastModified();
+        String path = getPath(f);
+        GaussianOutputFile out = null;
+        try
+            {
+                out = GaussianOutputFile.readLast(path);
+            }
+        catch (Exception e)
+            {
+                return new Entry(path, size, lastModified, false, null);
+            }
+
+        // store the molecule backed by its arrays, which is much more compact to serialize
+        Molecule molecule = out.molecule.withPositions(out.molecule.xyz.clone());
+        return new Entry(path, size, lastModified, out.normalTermination, molecule);
+    }
+
+    /**
+     * Writes the index to disk if it has changed.
+     */
+    public void save()
+    {
+        if ( !modified )
+            return;
+        File file = new File(indexFilename);
+        File temporary = new File(indexFilename + ".tmp");
+        try (ObjectOutputStream output = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temporary))))
+            {
+                output.writeInt(VERSION);
+                output.writeInt(entries.size());
+                for (Entry entry : entries.values())
+                    output.writeObject(entry);
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("error writing scan index " + indexFilename + ": " + e.getMessage());
+            }
+        if ( !temporary.renameTo(file) )
+            {
+                file.delete();
+                if ( !temporary.renameTo(file) )
+                    throw new IllegalArgumentException("error renaming " + temporary + " to " + file);
+            }
+        modified = false;
+    }
+
+    /** returns every entry in order of path */
+    public List<Entry> getEntries()
+    {
+        return ImmutableList.copyOf(entries.values());
+    }
+
+    /**
+     * Returns the entries for a directory in order of path.
+     * @param directory the directory whose outputs are wanted
+     */
+    public List<Entry> getEntries(String directory)
+    {
+        String directoryPath = new File(directory).getAbsoluteFile().toPath().normalize().toString();
+        List<Entry> returnList = new ArrayList<>();
+        for (Entry entry : entries.values())
+            if ( new File(entry.path).getParent().equals(directoryPath) )
+                returnList.add(entry);
+        return ImmutableList.copyOf(returnList);
+    }
+
+    /**
+     * Returns the entry for an output file.
+     * @param filename the output file
+     * @return the entry, or null if the file is not in the index
+     */
+    public Entry get(String filename)
+    {
+        return entries.get(getPath(new File(filename)));
+    }
+
+    /** returns the number of files in the index */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ScanIndex %s: %d files", indexFilename, entries.size());
+    }
+
+    /** for testing: updates and saves the index for a directory */
+    public static void main(String[] args)
+    {
+        if ( args.length != 2 )
+            {
+                System.out.println("usage: java ScanIndex index_file directory");
+                return;
+            }
+        long start = System.currentTimeMillis();
+        ScanIndex index = new ScanIndex(args[0]);
+        long read = System.currentTimeMillis();
+        int parsed = index.update(args[1]);
+        index.save();
+        long end = System.currentTimeMillis();
+        System.out.printf("%s: read in %d ms, parsed %d files, %d ms total\n", index.toString(), read - start, parsed, end - start);
+    }
+}
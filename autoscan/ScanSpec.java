@@ -0,0 +1,392 @@
+import java.util.*;
+import com.google.common.collect.*;
+
+/**
+ * Reads a scan specification for ScanEngine.  Each line is a directive; blank lines and
+ * lines starting with ! are ignored.  For example:<p>
+ * <pre>
+ * ! Br-F scan
+ * template nico_Br_F_template.gjf
+ * add bond 16 18
+ * add bond 16 17
+ * distance bond1 16 18 1.65 3.20 0.05
+ * distance bond2 16 17 1.30 1.85 0.05
+ * mask bond1 + bond2 &lt; 3.30
+ * output gjf/nico_Br_F-{bond1}_{bond2}.gjf
+ * charge -1
+ * connectivity false
+ * keywords
+ * %mem=3GB
+ * #p b3lyp 6-31+g* opt=modredundant
+ * end
+ * </pre>
+ * Directives:<p>
+ * <code>template filename</code>: a .out file is read as a GaussianOutputFile and anything else as a GJFfile<br>
+ * <code>add bond i j</code> and <code>remove bond i j</code>: connectivity changes made to the template before scanning;
+ *     all removals are made before any additions<br>
+ * <code>distance name i j start end step</code>: moves atom j and its subgraph<br>
+ * <code>angle name i j k start end step</code>: moves atom k and its subgraph<br>
+ * <code>dihedral name i j k l start end step</code>: moves atom l and its subgraph<br>
+ * <code>mask expression</code>: a MaskExpression over the coordinate names; a point is kept only if every mask is true<br>
+ * <code>output pattern</code>: the filename of each point; {name} is replaced by the value of that coordinate,
+ *     in hundredths of an angstrom for distances and in degrees for angles, and {index} by the point number;
+ *     every point that passes the masks must get its own filename<br>
+ * <code>title</code>, <code>charge</code>, <code>multiplicity</code>, <code>connectivity true|false</code>:
+ *     written to every input file<br>
+ * <code>keywords</code> and <code>tail</code>: the following lines, up to a line reading <code>end</code>, are copied
+ *     verbatim.  If there is no tail, every scanned coordinate is frozen with a modredundant line.<br>
+ * <code>adaptive stride [threshold]</code>: writes only the points an AdaptiveGrid asks for next, starting
+ *     with every stride-th value of each coordinate; run the scan again when those jobs finish.  Points whose
+ *     input already exists but that have no finished output are reported and not written again<br>
+ * <code>results directory</code>: where the finished .out files are found; required for adaptive scans<p>
+ * Coordinates are set in the order they are listed.  Each coordinate takes the values start,
+ * start+step, ... up to end inclusive.  Atom numbers are 1, 2, ..., n.
+ */
+public class ScanSpec extends OutputFileFormat implements Immutable
+{
+    /** the kinds of coordinate that can be scanned */
+    public enum Type
+    {
+        DISTANCE(2, "B"), ANGLE(3, "A"), DIHEDRAL(4, "D");
+
+        /** the number of atoms that define the coordinate */
+        public final int numberOfAtoms;
+
+        /** the Gaussian modredundant code */
+        public final String code;
+
+        Type(int numberOfAtoms, String code)
+        {
+            this.numberOfAtoms = numberOfAtoms;
+            this.code = code;
+        }
+    }
+
+    /**
+     * One scanned coordinate.  Its values lie on an exact lattice, start + index * step.
+     */
+    public static class Variable implements Immutable
+    {
+        /** the name used in masks and output patterns */
+        public final String name;
+
+        /** what kind of coordinate this is */
+        public final Type type;
+
+        /** the atom numbers that define the coordinate; the last one is moved */
+        public final ImmutableList<Integer> atomNumbers;
+
+        /** the first value in angstroms or degrees */
+        public final double start;
+
+        /** the spacing between values */
+        public final double step;
+
+        /** the number of values */
+        public final int count;
+
+        public Variable(String name, Type type, List<Integer> atomNumbers, double start, double end, double step)
+        {
+            this.name = name;
+            this.type = type;
+            this.atomNumbers = ImmutableList.copyOf(atomNumbers);
+            this.start = start;
+            this.step = step;
+            if ( atomNumbers.size() != type.numberOfAtoms )
+                throw new IllegalArgumentException(String.format("%s %s needs %d atoms", type.toString().toLowerCase(), name, type.numberOfAtoms));
+            if ( ImmutableSet.copyOf(atomNumbers).size() != atomNumbers.size() )
+                throw new IllegalArgumentException("duplicate atom numbers in " + name);
+            for (Integer atomNumber : atomNumbers)
+                if ( atomNumber < 1 )
+                    throw new IllegalArgumentException("atom numbers must be greater than zero");
+            if ( step == 0.0 || Double.isNaN(step) || ( end - start ) * step < 0.0 )
+                throw new IllegalArgumentException(String.format("cannot step %s from %.4f to %.4f in steps of %.4f", name, start, end, step));
+
+            // allow for rounding error in the number of steps
+            this.count = (int)Math.floor((end - start) / step + 1.0E-9) + 1;
+        }
+
+        /** returns the value at lattice position index */
+        public double getValue(int index)
+        {
+            return start + index * step;
+        }
+
+        /** returns the value as it appears in filenames: hundredths of an angstrom or whole degrees */
+        public String getLabel(double value)
+        {
+            if ( type == Type.DISTANCE )
+                return String.format("%03d", Math.round(value * 100.0));
+            return String.format("%03d", Math.round(value));
+        }
+
+        /** returns the modredundant line that freezes this coordinate */
+        public String getFreezeString()
+        {
+            StringBuilder builder = new StringBuilder(type.code);
+            for (Integer atomNumber : atomNumbers)
+                builder.append(" ").append(atomNumber);
+            return builder.append(" F").toString();
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s %s %s: %.4f to %.4f by %.4f (%d values)", type.toString().toLowerCase(), name,
+                                 atomNumbers.toString(), start, getValue(count-1), step, count);
+        }
+    }
+
+    /** the template geometry */
+    public final String templateFilename;
+
+    /** bonds to add to the template, as pairs of atom numbers */
+    public final ImmutableList<ImmutableList<Integer>> bondsToAdd;
+
+    /** bonds to remove from the template, as pairs of atom numbers */
+    public final ImmutableList<ImmutableList<Integer>> bondsToRemove;
+
+    /** the scanned coordinates in the order they are set */
+    public final ImmutableList<Variable> variables;
+
+    /** every point must satisfy all of these */
+    public final ImmutableList<MaskExpression> masks;
+
+    /** the filename pattern */
+    public final String outputPattern;
+
+    /** the title line of each input file */
+    public final String title;
+
+    /** the route section of each input file */
+    public final String keywords;
+
+    /** the text after the geometry of each input file */
+    public final String tail;
+
+    public final int charge;
+    public final int multiplicity;
+    public final boolean writeConnectivity;
+
+    /** the coarse stride of an adaptive scan, which is a power of two, or 0 to write every point */
+    public final int adaptiveStride;
+
+    /** the curvature threshold of an adaptive scan */
+    public final double adaptiveThreshold;
+
+    /** the directory holding the finished .out files, or null if none was given */
+    public final String resultsDirectory;
+
+    /**
+     * Reads a specification.
+     * @param filename the location of the spec file
+     */
+    public ScanSpec(String filename)
+    {
+        super(filename);
+        String[] lines = stringRepresentation.split("\n", -1);
+
+        String tempTemplate = null;
+        String tempOutput = null;
+        String tempTitle = "title";
+        String tempKeywords = "";
+        String tempTail = null;
+        int tempCharge = 0;
+        int tempMultiplicity = 1;
+        boolean tempConnectivity = true;
+        int tempStride = 0;
+        double tempThreshold = AdaptiveGrid.DEFAULT_THRESHOLD;
+        String tempResults = null;
+        List<ImmutableList<Integer>> tempAdd = new ArrayList<>();
+        List<ImmutableList<Integer>> tempRemove = new ArrayList<>();
+        List<Variable> tempVariables = new ArrayList<>();
+        List<String> maskStrings = new ArrayList<>();
+
+        for (int lineNumber=0; lineNumber < fileContents.size(); lineNumber++)
+            {
+                List<String> fields = fileContents.get(lineNumber);
+                String line = lines[lineNumber];
+                if ( line.length() == 0 || line.startsWith("!") )
+                    continue;
+                String directive = fields.get(0).toLowerCase();
+                try
+                    {
+                        switch (directive)
+                            {
+                                case "template":
+                                    checkFields(fields, 2);
+                                    tempTemplate = fields.get(1);
+                                    break;
+                                case "add":
+                                case "remove":
+                                    checkFields(fields, 4);
+                                    if ( !fields.get(1).equalsIgnoreCase("bond") )
+                                        throw new IllegalArgumentException("expected \"" + directive + " bond i j\"");
+                                    ImmutableList<Integer> bond = ImmutableList.of(Integer.valueOf(fields.get(2)), Integer.valueOf(fields.get(3)));
+                                    if ( directive.equals("add") )
+                                        tempAdd.add(bond);
+                                    else
+                                        tempRemove.add(bond);
+                                    break;
+                                case "distance":
+                                case "angle":
+                                case "dihedral":
+                                    Type type = Type.valueOf(directive.toUpperCase());
+                                    checkFields(fields, type.numberOfAtoms + 5);
+                                    String name = fields.get(1);
+                                    checkName(name, tempVariables);
+                                    List<Integer> atomNumbers = new ArrayList<>();
+                                    for (int k=0; k < type.numberOfAtoms; k++)
+                                        atomNumbers.add(Integer.valueOf(fields.get(2+k)));
+                                    int offset = 2 + type.numberOfAtoms;
+                                    tempVariables.add(new Variable(name, type, atomNumbers, Double.parseDouble(fields.get(offset)),
+                                                                   Double.parseDouble(fields.get(offset+1)), Double.parseDouble(fields.get(offset+2))));
+                                    break;
+                                case "mask":
+                                    maskStrings.add(line.substring(fields.get(0).length()).trim());
+                                    break;
+                                case "output":
+                                    checkFields(fields, 2);
+                                    tempOutput = fields.get(1);
+                                    break;
+                                case "title":
+                                    tempTitle = line.substring(fields.get(0).length()).trim();
+                                    break;
+                                case "charge":
+                                    checkFields(fields, 2);
+                                    tempCharge = Integer.parseInt(fields.get(1));
+                                    break;
+                                case "multiplicity":
+                                    checkFields(fields, 2);
+                                    tempMultiplicity = Integer.parseInt(fields.get(1));
+                                    break;
+                                case "connectivity":
+                                    checkFields(fields, 2);
+                                    tempConnectivity = Boolean.parseBoolean(fields.get(1));
+                                    break;
+                                case "adaptive":
+                                    if ( fields.size() != 2 && fields.size() != 3 )
+                                        throw new IllegalArgumentException("expected \"adaptive stride [threshold]\"");
+                                    tempStride = Integer.parseInt(fields.get(1));
+                                    if ( tempStride < 1 || Integer.bitCount(tempStride) != 1 )
+                                        throw new IllegalArgumentException("the adaptive stride must be a power of two");
+                                    if ( fields.size() == 3 )
+                                        tempThreshold = Double.parseDouble(fields.get(2));
+                                    if ( !(tempThreshold >= 0.0) )
+                                        throw new IllegalArgumentException("the adaptive threshold cannot be negative");
+                                    break;
+                                case "results":
+                                    checkFields(fields, 2);
+                                    tempResults = fields.get(1);
+                                    break;
+                                case "keywords":
+                                case "tail":
+                                    checkFields(fields, 1);
+                                    StringBuilder block = new StringBuilder();
+                                    int blockStart = lineNumber;
+                                    lineNumber++;
+                                    while ( lineNumber < lines.length && !lines[lineNumber].equalsIgnoreCase("end") )
+                                        {
+                                            if ( block.length() > 0 )
+                                                block.append("\n");
+                                            block.append(lines[lineNumber]);
+                                            lineNumber++;
+                                        }
+                                    if ( lineNumber >= lines.length )
+                                        throw new IllegalArgumentException("no end for the block starting on line " + (blockStart+1));
+                                    if ( directive.equals("keywords") )
+                                        tempKeywords = block.toString();
+                                    else
+                                        tempTail = block.toString() + "\n";
+                                    break;
+                                default:
+                                    throw new IllegalArgumentException("unknown directive \"" + fields.get(0) + "\"");
+                            }
+                    }
+                catch (IllegalArgumentException e)
+                    {
+                        throw new IllegalArgumentException(String.format("%s, line %d: %s", filename, lineNumber+1, e.getMessage()));
+                    }
+            }
+
+        if ( tempTemplate == null )
+            throw new IllegalArgumentException(filename + ": no template");
+        if ( tempVariables.size() == 0 )
+            throw new IllegalArgumentException(filename + ": no coordinates to scan");
+        if ( tempOutput == null )
+            throw new IllegalArgumentException(filename + ": no output pattern");
+        if ( tempStride > 0 && tempResults == null )
+            throw new IllegalArgumentException(filename + ": adaptive scans need a results directory");
+
+        // the masks can only be parsed once every name is known
+        List<String> names = new ArrayList<>();
+        for (Variable variable : tempVariables)
+            names.add(variable.name);
+        List<MaskExpression> tempMasks = new ArrayList<>();
+        for (String maskString : maskStrings)
+            tempMasks.add(new MaskExpression(maskString, names));
+
+        // by default, freeze every scanned coordinate
+        if ( tempTail == null )
+            {
+                StringBuilder builder = new StringBuilder();
+                for (Variable variable : tempVariables)
+                    builder.append(variable.getFreezeString()).append("\n");
+                tempTail = builder.toString();
+            }
+
+        templateFilename = tempTemplate;
+        bondsToAdd = ImmutableList.copyOf(tempAdd);
+        bondsToRemove = ImmutableList.copyOf(tempRemove);
+        variables = ImmutableList.copyOf(tempVariables);
+        masks = ImmutableList.copyOf(tempMasks);
+        outputPattern = tempOutput;
+        title = tempTitle;
+        keywords = tempKeywords;
+        tail = tempTail;
+        charge = tempCharge;
+        multiplicity = tempMultiplicity;
+        writeConnectivity = tempConnectivity;
+        adaptiveStride = tempStride;
+        adaptiveThreshold = tempThreshold;
+        resultsDirectory = tempResults;
+    }
+
+    /** throws an exception unless there are the expected number of fields */
+    private static void checkFields(List<String> fields, int expected)
+    {
+        if ( fields.size() != expected )
+            throw new IllegalArgumentException(String.format("expected %d fields for %s, found %d", expected, fields.get(0), fields.size()));
+    }
+
+    /** throws an exception unless name can be used in a mask and is not already taken */
+    private static void checkName(String name, List<Variable> variables)
+    {
+        if ( !name.matches("[A-Za-z_][A-Za-z0-9_]*") || name.equals("index") )
+            throw new IllegalArgumentException("invalid coordinate name \"" + name + "\"");
+        for (Variable variable : variables)
+            if ( variable.name.equals(name) )
+                throw new IllegalArgumentException("duplicate coordinate name \"" + name + "\"");
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("template: %s\n", templateFilename));
+        for (List<Integer> bond : bondsToRemove)
+            builder.append(String.format("remove bond: %d-%d\n", bond.get(0), bond.get(1)));
+        for (List<Integer> bond : bondsToAdd)
+            builder.append(String.format("add bond: %d-%d\n", bond.get(0), bond.get(1)));
+        for (Variable variable : variables)
+            builder.append(variable.toString()).append("\n");
+        for (MaskExpression mask : masks)
+            builder.append(String.format("mask: %s\n", mask.toString()));
+        builder.append(String.format("output: %s\n", outputPattern));
+        if ( resultsDirectory != null )
+            builder.append(String.format("results: %s\n", resultsDirectory));
+        if ( adaptiveStride > 0 )
+            builder.append(String.format("adaptive: stride %d, threshold %.3f\n", adaptiveStride, adaptiveThreshold));
+        return builder.toString();
+    }
+}
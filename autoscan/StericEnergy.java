@@ -0,0 +1,132 @@
+import java.util.*;
+
+/**
+ * Evaluates the rough OPLS Lennard-Jones steric energy and its analytic gradient on packed
+ * coordinate arrays.  Atoms that are separated by one or two bonds are ignored, as are pairs
+ * further apart than the cutoff.  Distances shorter than 0.5 angstroms are treated as 0.5
+ * angstroms to prevent overflow.  In that region the energy is flat, so the gradient uses
+ * the force at 0.5 angstroms instead; this pushes overlapping atoms apart during minimization.<p>
+ * The work is split into PairKernel blocks, so large molecules are evaluated in parallel
+ * with results that do not depend on the number of threads.
+ */
+public class StericEnergy
+{
+    /** distances are clamped to this value to prevent overflow */
+    public static final double MINIMUM_DISTANCE = 0.5;
+
+    private static final double MINIMUM_DISTANCE_SQUARED = MINIMUM_DISTANCE * MINIMUM_DISTANCE;
+
+    /** not instantiable */
+    private StericEnergy()
+    {
+    }
+
+    /**
+     * Computes the total steric energy and, optionally, its gradient.
+     * @param xyz the packed coordinates
+     * @param elements the element of each atom
+     * @param topology the bonding connectivity, used to exclude 1-2 and 1-3 pairs
+     * @param cutoff pairs further apart than this many angstroms are ignored
+     * @param gradient if not null, overwritten with dE/dx1, dE/dy1, dE/dz1, dE/dx2, ... in kcal/mol/angstrom
+     * @return the total steric energy in kcal/mol (not normalized by the number of atoms)
+     */
+    public static double evaluate(double[] xyz, Element[] elements, Topology topology, double cutoff, double[] gradient)
+    {
+        int n = elements.length;
+        if ( xyz.length != 3*n || topology.size != n )
+            throw new IllegalArgumentException("size mismatch");
+        if ( gradient != null && gradient.length != 3*n )
+            throw new IllegalArgumentException("gradient array has the wrong length");
+
+        // each block sums its own pairs; the block sums are added in order at the end
+        double[] blockEnergies = new double[PairKernel.getNumberOfBlocks(n)];
+        int[] ordinals = new int[n];
+        for (int i=0; i < n; i++)
+            ordinals[i] = elements[i].ordinal();
+        CellList cellList = new CellList(xyz, cutoff);
+        PairKernel.forEachBlock(n, (block, start, end) ->
+            {
+                PairKernel.Scratch scratch = PairKernel.getScratch(n);
+                double blockEnergy = 0.0;
+                for (int i=start; i < end; i++)
+                    blockEnergy += evaluateAtom(i, xyz, ordinals, topology, cellList, cutoff, gradient, scratch);
+                blockEnergies[block] = blockEnergy;
+            });
+
+        double energy = 0.0;
+        for (double blockEnergy : blockEnergies)
+            energy += blockEnergy;
+        return energy;
+    }
+
+    /**
+     * Computes the energy of the pairs (i, j > i) and, if requested, the gradient on atom i from
+     * every pair (i, j).  Only the gradient of atom i is written, so blocks never share output.
+     */
+    private static double evaluateAtom(int i, double[] xyz, int[] ordinals, Topology topology, CellList cellList,
+                                       double cutoff, double[] gradient, PairKernel.Scratch scratch)
+    {
+        double x = xyz[3*i];
+        double y = xyz[3*i+1];
+        double z = xyz[3*i+2];
+        int count = gradient == null ? cellList.getHigherNeighbors(i, cutoff, scratch.neighbors)
+                                     : cellList.getNeighbors(x, y, z, cutoff, scratch.neighbors);
+
+        // gather the pairs that are not 1-2 or 1-3
+        int[] marks = scratch.marks;
+        topology.markExclusions(i, marks, i);
+        int pairs = 0;
+        for (int n=0; n < count; n++)
+            {
+                int j = scratch.neighbors[n];
+                if ( j == i || marks[j] == i )
+                    continue;
+                int table = ordinals[i] * PairKernel.NUMBER_OF_ELEMENTS + ordinals[j];
+                scratch.atoms[pairs] = j;
+                scratch.dx[pairs] = x - xyz[3*j];
+                scratch.dy[pairs] = y - xyz[3*j+1];
+                scratch.dz[pairs] = z - xyz[3*j+2];
+                scratch.fourEpsilon[pairs] = PairKernel.FOUR_EPSILON[table];
+                scratch.sigmaSquared[pairs] = PairKernel.SIGMA_SQUARED[table];
+                pairs++;
+            }
+        topology.markExclusions(i, marks, -1);
+
+        // E = 4 epsilon (s^12 - s^6) with s^6 = (sigma^2 / r^2)^3
+        double energy = 0.0;
+        double gx = 0.0, gy = 0.0, gz = 0.0;
+        for (int p=0; p < pairs; p++)
+            {
+                double dx = scratch.dx[p];
+                double dy = scratch.dy[p];
+                double dz = scratch.dz[p];
+                double trueSquared = dx*dx + dy*dy + dz*dz;
+
+                // prevent overflow
+                double distanceSquared = Math.max(trueSquared, MINIMUM_DISTANCE_SQUARED);
+                double s2 = scratch.sigmaSquared[p] / distanceSquared;
+                double s6 = s2 * s2 * s2;
+                double pairEnergy = scratch.fourEpsilon[p] * s6 * (s6 - 1.0);
+                if ( scratch.atoms[p] > i )
+                    energy += pairEnergy;
+
+                // dE/dr = 24 epsilon (s^6 - 2 s^12) / r, applied along the i-j direction
+                if ( gradient != null && trueSquared > 0.0 )
+                    {
+                        double denominator = trueSquared >= MINIMUM_DISTANCE_SQUARED ? trueSquared
+                                                                                     : MINIMUM_DISTANCE * Math.sqrt(trueSquared);
+                        double factor = 6.0 * scratch.fourEpsilon[p] * s6 * (1.0 - 2.0*s6) / denominator;
+                        gx += factor * dx;
+                        gy += factor * dy;
+                        gz += factor * dz;
+                    }
+            }
+        if ( gradient != null )
+            {
+                gradient[3*i]   = gx;
+                gradient[3*i+1] = gy;
+                gradient[3*i+2] = gz;
+            }
+        return energy;
+    }
+}
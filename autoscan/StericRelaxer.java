@@ -0,0 +1,417 @@
+import java.util.*;
+import com.google.common.collect.*;
+
+/**
+ * Relieves steric clashes in a molecule by minimizing the OPLS steric energy with the
+ * FIRE algorithm (Bitzek et al., Phys. Rev. Lett. 97, 170201 (2006)).<p>
+ * Bond lengths and bond angles are held near their starting values by harmonic restraints
+ * on every 1-2 and 1-3 distance, so the molecule mostly relaxes by twisting about its
+ * torsions.  Frozen atoms never move and frozen distances are held exactly at their
+ * starting values.  These can be read from the same "B i j F" and "X i F" lines that
+ * are written into the tails of opt=modredundant jobs, so the local relaxation respects
+ * the same coordinates that Gaussian will hold fixed.
+ */
+public class StericRelaxer implements Immutable
+{
+    /** force constant for the 1-2 and 1-3 distance restraints in kcal/mol/angstrom^2 */
+    public static final double RESTRAINT_FORCE_CONSTANT = 200.0;
+
+    /** no atom moves more than this many angstroms in one step */
+    public static final double MAXIMUM_STEP = 0.1;
+
+    /** FIRE parameters */
+    private static final double INITIAL_TIMESTEP = 0.01;
+    private static final double MAXIMUM_TIMESTEP = 0.1;
+    private static final int    MINIMUM_STEPS_BEFORE_ACCELERATING = 5;
+    private static final double TIMESTEP_INCREASE = 1.1;
+    private static final double TIMESTEP_DECREASE = 0.5;
+    private static final double INITIAL_MIXING = 0.1;
+    private static final double MIXING_DECREASE = 0.99;
+
+    /** tolerance for holding frozen distances in angstroms */
+    private static final double CONSTRAINT_TOLERANCE = 1.0E-10;
+
+    /** the molecule to relax */
+    public final Molecule molecule;
+
+    /** the numbers (1, 2, ..., n) of the atoms that will not move */
+    public final ImmutableSet<Integer> frozenAtomNumbers;
+
+    /** pairs of atom numbers whose distances will not change */
+    public final ImmutableList<ImmutableList<Integer>> frozenBonds;
+
+    /** frozen[i] is true if atom index i does not move */
+    private final boolean[] frozen;
+
+    /** frozen distance constraints as indices and target distances */
+    private final int[] constraintAtoms1, constraintAtoms2;
+    private final double[] constraintDistances;
+
+    /** restrained 1-2 and 1-3 pairs as indices and target distances */
+    private final int[] restraintAtoms1, restraintAtoms2;
+    private final double[] restraintDistances;
+
+    /**
+     * Creates a relaxer.
+     * @param molecule the molecule to relax
+     * @param frozenAtomNumbers the numbers of the atoms that should not move
+     * @param frozenBonds pairs of atom numbers whose distances should not change
+     */
+    public StericRelaxer(Molecule molecule, Collection<Integer> frozenAtomNumbers, Collection<? extends List<Integer>> frozenBonds)
+    {
+        this.molecule = molecule;
+        this.frozenAtomNumbers = ImmutableSet.copyOf(frozenAtomNumbers);
+        ImmutableList.Builder<ImmutableList<Integer>> builder = ImmutableList.builder();
+        for (List<Integer> bond : frozenBonds)
+            builder.add(ImmutableList.copyOf(bond));
+        this.frozenBonds = builder.build();
+
+        int n = molecule.contents.size();
+        double[] xyz = molecule.xyz;
+        frozen = new boolean[n];
+        for (Integer atomNumber : this.frozenAtomNumbers)
+            {
+                checkAtomNumber(atomNumber, n);
+                frozen[atomNumber-1] = true;
+            }
+
+        int numberOfConstraints = this.frozenBonds.size();
+        constraintAtoms1 = new int[numberOfConstraints];
+        constraintAtoms2 = new int[numberOfConstraints];
+        constraintDistances = new double[numberOfConstraints];
+        for (int c=0; c < numberOfConstraints; c++)
+            {
+                ImmutableList<Integer> bond = this.frozenBonds.get(c);
+                if ( bond.size() != 2 )
+                    throw new IllegalArgumentException("a frozen bond must have two atoms: " + bond);
+                checkAtomNumber(bond.get(0), n);
+                checkAtomNumber(bond.get(1), n);
+                if ( bond.get(0).equals(bond.get(1)) )
+                    throw new IllegalArgumentException("a frozen bond must have two different atoms: " + bond);
+                constraintAtoms1[c] = bond.get(0)-1;
+                constraintAtoms2[c] = bond.get(1)-1;
+                constraintDistances[c] = Geometry.distance(xyz, constraintAtoms1[c], constraintAtoms2[c]);
+            }
+
+        // restrain every 1-2 and 1-3 distance to its current value
+        int count = 0;
+        int[][] exclusions = new int[n][];
+        for (int i=0; i < n; i++)
+            {
+                exclusions[i] = molecule.topology.getExclusions(i);
+                for (int j : exclusions[i])
+                    if ( j > i )
+                        count++;
+            }
+        restraintAtoms1 = new int[count];
+        restraintAtoms2 = new int[count];
+        restraintDistances = new double[count];
+        count = 0;
+        for (int i=0; i < n; i++)
+            {
+                for (int j : exclusions[i])
+                    {
+                        if ( j <= i )
+                            continue;
+                        restraintAtoms1[count] = i;
+                        restraintAtoms2[count] = j;
+                        restraintDistances[count] = Geometry.distance(xyz, i, j);
+                        count++;
+                    }
+            }
+    }
+
+    /**
+     * Creates a relaxer whose frozen coordinates are read from a Gaussian modredundant section.
+     * Lines of the form "B i j F" freeze the i-j distance and lines of the form "X i F" freeze
+     * atom i.  All other lines are ignored.
+     * @param molecule the molecule to relax
+     * @param modredundantTail the text that follows the geometry in the input file
+     */
+    public StericRelaxer(Molecule molecule, String modredundantTail)
+    {
+        this(molecule, parseFrozenAtoms(modredundantTail), parseFrozenBonds(modredundantTail));
+    }
+
+    /** throws an exception if the atom number is out of range */
+    private static void checkAtomNumber(int atomNumber, int size)
+    {
+        if ( atomNumber < 1 || atomNumber > size )
+            throw new IllegalArgumentException("atom number out of range: " + atomNumber);
+    }
+
+    /**
+     * Reads the "X i F" lines from a modredundant section.
+     * @param modredundantTail the text that follows the geometry in the input file
+     * @return the frozen atom numbers
+     */
+    public static List<Integer> parseFrozenAtoms(String modredundantTail)
+    {
+        List<Integer> returnList = new ArrayList<>();
+        for (String line : modredundantTail.split("\n"))
+            {
+                String[] fields = line.trim().split("\\s+");
+                if ( fields.length == 3 && fields[0].equalsIgnoreCase("X") && fields[2].equalsIgnoreCase("F") )
+                    returnList.add(Integer.parseInt(fields[1]));
+            }
+        return returnList;
+    }
+
+    /**
+     * Reads the "B i j F" lines from a modredundant section.
+     * @param modredundantTail the text that follows the geometry in the input file
+     * @return the pairs of atom numbers in each frozen bond
+     */
+    public static List<List<Integer>> parseFrozenBonds(String modredundantTail)
+    {
+        List<List<Integer>> returnList = new ArrayList<>();
+        for (String line : modredundantTail.split("\n"))
+            {
+                String[] fields = line.trim().split("\\s+");
+                if ( fields.length == 4 && fields[0].equalsIgnoreCase("B") && fields[3].equalsIgnoreCase("F") )
+                    returnList.add(ImmutableList.of(Integer.parseInt(fields[1]), Integer.parseInt(fields[2])));
+            }
+        return returnList;
+    }
+
+    /**
+     * Relaxes the molecule with default settings.
+     * @return the relaxed molecule
+     */
+    public Molecule relax()
+    {
+        return relax(1000, 0.5);
+    }
+
+    /**
+     * Relaxes the molecule.
+     * @param maxIterations the maximum number of FIRE steps to take
+     * @param forceTolerance stop when no atom feels a force larger than this many kcal/mol/angstrom
+     * @return a copy of the molecule with relaxed positions
+     */
+    public Molecule relax(int maxIterations, double forceTolerance)
+    {
+        int n = frozen.length;
+        double[] x = molecule.getCoordinates();
+        double[] velocity = new double[3*n];
+        double[] force = new double[3*n];
+        double[] gradient = new double[3*n];
+        double timestep = INITIAL_TIMESTEP;
+        double mixing = INITIAL_MIXING;
+        int stepsSinceReset = 0;
+
+        enforceConstraints(x);
+        getForces(x, force, gradient);
+        for (int iteration=0; iteration < maxIterations; iteration++)
+            {
+                if ( maxAtomicNorm(force) < forceTolerance )
+                    break;
+
+                // FIRE velocity mixing
+                double power = dot(force, velocity);
+                double velocityNorm = Math.sqrt(dot(velocity, velocity));
+                double forceNorm = Math.sqrt(dot(force, force));
+                if ( forceNorm > 0.0 )
+                    {
+                        for (int k=0; k < 3*n; k++)
+                            velocity[k] = (1.0 - mixing) * velocity[k] + mixing * velocityNorm * force[k] / forceNorm;
+                    }
+                if ( power > 0.0 )
+                    {
+                        stepsSinceReset++;
+                        if ( stepsSinceReset > MINIMUM_STEPS_BEFORE_ACCELERATING )
+                            {
+                                timestep = Math.min(timestep * TIMESTEP_INCREASE, MAXIMUM_TIMESTEP);
+                                mixing *= MIXING_DECREASE;
+                            }
+                    }
+                else
+                    {
+                        timestep *= TIMESTEP_DECREASE;
+                        mixing = INITIAL_MIXING;
+                        stepsSinceReset = 0;
+                        Arrays.fill(velocity, 0.0);
+                    }
+
+                // semi-implicit Euler step with unit masses
+                for (int k=0; k < 3*n; k++)
+                    velocity[k] += timestep * force[k];
+                for (int i=0; i < n; i++)
+                    {
+                        double dx = timestep * velocity[3*i];
+                        double dy = timestep * velocity[3*i+1];
+                        double dz = timestep * velocity[3*i+2];
+                        double step = Math.sqrt(dx*dx + dy*dy + dz*dz);
+                        double scale = step > MAXIMUM_STEP ? MAXIMUM_STEP / step : 1.0;
+                        x[3*i]   += scale * dx;
+                        x[3*i+1] += scale * dy;
+                        x[3*i+2] += scale * dz;
+                    }
+                enforceConstraints(x);
+                projectConstraints(x, velocity);
+                getForces(x, force, gradient);
+            }
+        return molecule.moveAtoms(x);
+    }
+
+    /**
+     * Computes the energy that is minimized: the steric energy plus the restraint energy.
+     * @param xyz packed coordinates of the molecule
+     * @param gradient if not null, overwritten with the gradient in kcal/mol/angstrom
+     * @return the energy in kcal/mol (not normalized by the number of atoms)
+     */
+    public double getEnergy(double[] xyz, double[] gradient)
+    {
+        double energy = StericEnergy.evaluate(xyz, molecule.elements, molecule.topology, Settings.CUTOFF_DISTANCE, gradient);
+        for (int r=0; r < restraintDistances.length; r++)
+            {
+                int i = restraintAtoms1[r];
+                int j = restraintAtoms2[r];
+                double dx = xyz[3*i]   - xyz[3*j];
+                double dy = xyz[3*i+1] - xyz[3*j+1];
+                double dz = xyz[3*i+2] - xyz[3*j+2];
+                double distance = Math.sqrt(dx*dx + dy*dy + dz*dz);
+                double stretch = distance - restraintDistances[r];
+                energy += 0.5 * RESTRAINT_FORCE_CONSTANT * stretch * stretch;
+                if ( gradient != null && distance > 0.0 )
+                    {
+                        double factor = RESTRAINT_FORCE_CONSTANT * stretch / distance;
+                        gradient[3*i]   += factor * dx;
+                        gradient[3*i+1] += factor * dy;
+                        gradient[3*i+2] += factor * dz;
+                        gradient[3*j]   -= factor * dx;
+                        gradient[3*j+1] -= factor * dy;
+                        gradient[3*j+2] -= factor * dz;
+                    }
+            }
+        return energy;
+    }
+
+    /** fills force with the negative gradient, less any components that would move frozen coordinates */
+    private void getForces(double[] xyz, double[] force, double[] gradient)
+    {
+        getEnergy(xyz, gradient);
+        for (int k=0; k < force.length; k++)
+            force[k] = -gradient[k];
+        projectConstraints(xyz, force);
+    }
+
+    /**
+     * Removes the parts of a per-atom vector field (forces or velocities) that would move
+     * a frozen atom or change a frozen distance.  Constraints that share atoms are handled
+     * by sweeping over them several times.
+     */
+    private void projectConstraints(double[] xyz, double[] vector)
+    {
+        for (int i=0; i < frozen.length; i++)
+            {
+                if ( frozen[i] )
+                    {
+                        vector[3*i]   = 0.0;
+                        vector[3*i+1] = 0.0;
+                        vector[3*i+2] = 0.0;
+                    }
+            }
+        int sweeps = constraintDistances.length > 1 ? 20 : 1;
+        for (int sweep=0; sweep < sweeps; sweep++)
+            {
+                for (int c=0; c < constraintDistances.length; c++)
+                    {
+                        int i = constraintAtoms1[c];
+                        int j = constraintAtoms2[c];
+                        double weightI = frozen[i] ? 0.0 : 1.0;
+                        double weightJ = frozen[j] ? 0.0 : 1.0;
+                        if ( weightI + weightJ == 0.0 )
+                            continue;
+                        double ux = xyz[3*j]   - xyz[3*i];
+                        double uy = xyz[3*j+1] - xyz[3*i+1];
+                        double uz = xyz[3*j+2] - xyz[3*i+2];
+                        double norm = Math.sqrt(ux*ux + uy*uy + uz*uz);
+                        ux /= norm;
+                        uy /= norm;
+                        uz /= norm;
+
+                        // relative motion along the bond
+                        double relative = (vector[3*j]   - vector[3*i])   * ux
+                                        + (vector[3*j+1] - vector[3*i+1]) * uy
+                                        + (vector[3*j+2] - vector[3*i+2]) * uz;
+                        double correction = relative / (weightI + weightJ);
+                        vector[3*i]   += weightI * correction * ux;
+                        vector[3*i+1] += weightI * correction * uy;
+                        vector[3*i+2] += weightI * correction * uz;
+                        vector[3*j]   -= weightJ * correction * ux;
+                        vector[3*j+1] -= weightJ * correction * uy;
+                        vector[3*j+2] -= weightJ * correction * uz;
+                    }
+            }
+    }
+
+    /** moves the atoms in frozen bonds back to their target distances (SHAKE) */
+    private void enforceConstraints(double[] xyz)
+    {
+        for (int iteration=0; iteration < 1000; iteration++)
+            {
+                double maxError = 0.0;
+                for (int c=0; c < constraintDistances.length; c++)
+                    {
+                        int i = constraintAtoms1[c];
+                        int j = constraintAtoms2[c];
+                        double weightI = frozen[i] ? 0.0 : 1.0;
+                        double weightJ = frozen[j] ? 0.0 : 1.0;
+                        if ( weightI + weightJ == 0.0 )
+                            continue;
+                        double ux = xyz[3*j]   - xyz[3*i];
+                        double uy = xyz[3*j+1] - xyz[3*i+1];
+                        double uz = xyz[3*j+2] - xyz[3*i+2];
+                        double distance = Math.sqrt(ux*ux + uy*uy + uz*uz);
+                        double error = distance - constraintDistances[c];
+                        maxError = Math.max(maxError, Math.abs(error));
+                        double correction = error / ((weightI + weightJ) * distance);
+                        xyz[3*i]   += weightI * correction * ux;
+                        xyz[3*i+1] += weightI * correction * uy;
+                        xyz[3*i+2] += weightI * correction * uz;
+                        xyz[3*j]   -= weightJ * correction * ux;
+                        xyz[3*j+1] -= weightJ * correction * uy;
+                        xyz[3*j+2] -= weightJ * correction * uz;
+                    }
+                if ( maxError < CONSTRAINT_TOLERANCE )
+                    break;
+            }
+    }
+
+    /** returns the largest per-atom norm of a packed vector field */
+    private static double maxAtomicNorm(double[] vector)
+    {
+        double max = 0.0;
+        for (int i=0; i < vector.length; i += 3)
+            max = Math.max(max, vector[i]*vector[i] + vector[i+1]*vector[i+1] + vector[i+2]*vector[i+2]);
+        return Math.sqrt(max);
+    }
+
+    /** returns the dot product of two vectors */
+    private static double dot(double[] a, double[] b)
+    {
+        double sum = 0.0;
+        for (int k=0; k < a.length; k++)
+            sum += a[k] * b[k];
+        return sum;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("StericRelaxer (%d atoms, %d frozen atoms, %d frozen bonds)", frozen.length, frozenAtomNumbers.size(), frozenBonds.size());
+    }
+
+    /** for testing */
+    public static void main(String[] args)
+    {
+        GJFfile gjfFile = new GJFfile(args[0]);
+        Molecule molecule = gjfFile.molecule;
+        String tail = args.length > 2 ? String.format("B %s %s F\n", args[1], args[2]) : "";
+        StericRelaxer relaxer = new StericRelaxer(molecule, tail);
+        System.out.println(relaxer);
+        Molecule relaxed = relaxer.relax();
+        System.out.printf("steric energy: %.4f -> %.4f\n", molecule.getOPLSenergy(), relaxed.getOPLSenergy());
+    }
+}
@@ -0,0 +1,669 @@
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+import com.google.common.collect.*;
+
+/**
+ * Finds the minima, first-order saddle points, and minimum-energy paths of a finished two-dimensional scan,
+ * such as a forming-bond/breaking-bond surface.<p>
+ * The surface is a regular grid of energies.  Missing points that are enclosed by computed ones,
+ * such as failed jobs, are filled by harmonic interpolation from their neighbors.  Missing regions
+ * that reach the edge of the grid, such as masked corners, are left out.  Points are classified on
+ * the triangulation that splits each cell along its rising diagonal, so every point has six
+ * neighbors.  Eight neighbors would report pairs of adjacent saddles.  A point is a minimum if it is
+ * lower than every neighbor that exists.  A point is a first-order saddle if its six neighbors,
+ * taken in order around it, switch between higher and lower exactly four times.  Ties are broken
+ * by point number, so flat regions give no spurious points.  Each stationary point is
+ * then located to within a cell by a Newton step on the finite-difference gradient and Hessian.
+ * The minimum-energy path through a saddle is traced by steepest descent from its two downhill
+ * neighbors along the negative eigenvector, moving to the neighbor with the steepest slope until a
+ * minimum is reached.  The saddle that limits the rate between two minima is found by Dijkstra's
+ * algorithm, with the highest energy along the path in place of its length.  All of this takes
+ * O(n log n) time, so surfaces of 10^4 points are analyzed in milliseconds.<p>
+ * Points are numbered i * ny + j, where i is the index along the first coordinate.<p>
+ * Usage: <code>java SurfaceAnalyzer scan.spec ts_directory</code> reads the finished outputs of a
+ * two-coordinate ScanSpec and writes a transition-state optimization for each saddle point, starting
+ * from the nearest computed geometry.<p>
+ * This class is immutable.
+ */
+public class SurfaceAnalyzer implements Immutable
+{
+    /** the route options that replace the scan's opt keyword in transition-state guesses */
+    public static final String TS_OPT = "opt=(ts,noeigentest,calcfc,maxstep=5,nofreeze)";
+
+    /** an optional coordinate type, atom numbers, and an action, as in "B 4 1 F" or "D 1 2 3 4 S 10 5.0" */
+    private static final Pattern MODREDUNDANT_LINE = Pattern.compile("(?i)\\s*([XBADL]\\s+)?(\\d+|\\*)(\\s+(\\d+|\\*))*\\s+[ABDFHKRS](\\s.*)?");
+
+    /** the offsets of the eight neighbors of a point, in order around it */
+    private static final int[] RING_I = { 1, 1, 0, -1, -1, -1, 0, 1 };
+    private static final int[] RING_J = { 0, 1, 1, 1, 0, -1, -1, -1 };
+
+    /** the positions in RING_I and RING_J of the six neighbors of a point when each cell is split along its rising diagonal */
+    private static final int[] LINK = { 0, 1, 2, 4, 5, 6 };
+
+    /** the kinds of stationary point */
+    public enum Type
+    {
+        MINIMUM, SADDLE;
+    }
+
+    /** a minimum or first-order saddle of the surface */
+    public static class StationaryPoint implements Immutable
+    {
+        public final Type type;
+
+        /** the number of the nearest grid point */
+        public final int point;
+
+        /** the interpolated location in grid units, measured from the first grid point */
+        public final double i, j;
+
+        /** the interpolated energy */
+        public final double energy;
+
+        /** the eigenvalues of the Hessian in energy per squared coordinate unit, lowest first, or NaN at the edge of the surface */
+        public final double lowestEigenvalue, highestEigenvalue;
+
+        /** the steepest-descent path through a saddle, from one minimum to the other; empty for a minimum */
+        public final ImmutableList<Integer> path;
+
+        public StationaryPoint(Type type, int point, double i, double j, double energy, double lowestEigenvalue,
+                               double highestEigenvalue, List<Integer> path)
+        {
+            this.type = type;
+            this.point = point;
+            this.i = i;
+            this.j = j;
+            this.energy = energy;
+            this.lowestEigenvalue = lowestEigenvalue;
+            this.highestEigenvalue = highestEigenvalue;
+            this.path = ImmutableList.copyOf(path);
+        }
+
+        @Override
+        public String toString()
+        {
+            String pathString = path.size() == 0 ? "" : String.format(", path of %d points from %d to %d", path.size(), path.get(0), path.get(path.size()-1));
+            return String.format("%s at (%.2f, %.2f): energy %.8f, eigenvalues %.4f, %.4f%s", type.toString().toLowerCase(), i, j,
+                                 energy, lowestEigenvalue, highestEigenvalue, pathString);
+        }
+    }
+
+    /** the number of grid points along each coordinate */
+    public final int nx, ny;
+
+    /** the grid spacing along each coordinate */
+    public final double dx, dy;
+
+    /** the energy of each point after filling, or NaN if it is outside the surface */
+    private final double[] energies;
+
+    /** true for points that were computed rather than filled */
+    private final boolean[] computed;
+
+    private final ImmutableList<StationaryPoint> minima;
+    private final ImmutableList<StationaryPoint> saddles;
+
+    /**
+     * Analyzes a surface.
+     * @param energies energies[i][j] is the energy at the i-th value of the first coordinate and the j-th of the second,
+     * or NaN if that point was not computed
+     * @param dx the spacing of the first coordinate
+     * @param dy the spacing of the second coordinate
+     */
+    public SurfaceAnalyzer(double[][] energies, double dx, double dy)
+    {
+        if ( energies.length == 0 || energies[0].length == 0 )
+            throw new IllegalArgumentException("empty surface");
+        if ( !(dx > 0.0) || !(dy > 0.0) )
+            throw new IllegalArgumentException("grid spacings must be positive");
+        this.nx = energies.length;
+        this.ny = energies[0].length;
+        this.dx = dx;
+        this.dy = dy;
+        this.energies = new double[nx*ny];
+        this.computed = new boolean[nx*ny];
+        for (int i=0; i < nx; i++)
+            {
+                if ( energies[i].length != ny )
+                    throw new IllegalArgumentException("surface is not rectangular");
+                for (int j=0; j < ny; j++)
+                    {
+                        double energy = energies[i][j];
+                        if ( Double.isInfinite(energy) )
+                            throw new IllegalArgumentException("energies cannot be infinite");
+                        this.energies[i*ny+j] = energy;
+                        this.computed[i*ny+j] = !Double.isNaN(energy);
+                    }
+            }
+        fillHoles();
+
+        // classify every point
+        List<StationaryPoint> tempMinima = new ArrayList<>();
+        List<StationaryPoint> tempSaddles = new ArrayList<>();
+        for (int p=0; p < nx*ny; p++)
+            {
+                if ( Double.isNaN(this.energies[p]) )
+                    continue;
+                Type type = classify(p);
+                if ( type == Type.MINIMUM )
+                    tempMinima.add(locate(p, type));
+                else if ( type == Type.SADDLE )
+                    tempSaddles.add(locate(p, type));
+            }
+        this.minima = ImmutableList.copyOf(tempMinima);
+        this.saddles = ImmutableList.copyOf(tempSaddles);
+    }
+
+    /** fills the missing points that cannot be reached from the edge of the grid through other missing points */
+    private void fillHoles()
+    {
+        // flood the missing points from the edge
+        boolean[] outside = new boolean[nx*ny];
+        Deque<Integer> stack = new ArrayDeque<>();
+        for (int p=0; p < nx*ny; p++)
+            {
+                int i = p / ny;
+                int j = p % ny;
+                if ( !computed[p] && ( i == 0 || j == 0 || i == nx-1 || j == ny-1 ) )
+                    {
+                        outside[p] = true;
+                        stack.push(p);
+                    }
+            }
+        while ( stack.size() > 0 )
+            {
+                int p = stack.pop();
+                int i = p / ny;
+                int j = p % ny;
+                for (int k=0; k < 8; k += 2)
+                    {
+                        int q = getNeighbor(i, j, k);
+                        if ( q >= 0 && !computed[q] && !outside[q] )
+                            {
+                                outside[q] = true;
+                                stack.push(q);
+                            }
+                    }
+            }
+
+        // start each hole at the average of its computed neighbors, then relax to the harmonic interpolant
+        List<Integer> holes = new ArrayList<>();
+        for (int p=0; p < nx*ny; p++)
+            if ( !computed[p] && !outside[p] )
+                holes.add(p);
+        if ( holes.size() == 0 )
+            return;
+        double scale = 0.0;
+        for (int p=0; p < nx*ny; p++)
+            if ( computed[p] )
+                scale = Math.max(scale, Math.abs(energies[p]));
+        for (int sweep=0; sweep < 10000; sweep++)
+            {
+                double largestChange = 0.0;
+                for (Integer p : holes)
+                    {
+                        int i = p / ny;
+                        int j = p % ny;
+                        double sum = 0.0;
+                        int count = 0;
+                        for (int k=0; k < 8; k += 2)
+                            {
+                                int q = getNeighbor(i, j, k);
+                                if ( q >= 0 && !Double.isNaN(energies[q]) )
+                                    {
+                                        sum += energies[q];
+                                        count++;
+                                    }
+                            }
+                        if ( count == 0 )
+                            continue;
+                        double value = sum / count;
+                        if ( !Double.isNaN(energies[p]) )
+                            largestChange = Math.max(largestChange, Math.abs(value - energies[p]));
+                        else
+                            largestChange = Double.POSITIVE_INFINITY;
+                        energies[p] = value;
+                    }
+                if ( largestChange <= 1.0E-12 * Math.max(scale, 1.0) )
+                    break;
+            }
+    }
+
+    /** returns the k-th neighbor of (i,j) in ring order, or -1 if it is off the grid */
+    private int getNeighbor(int i, int j, int k)
+    {
+        int ni = i + RING_I[k];
+        int nj = j + RING_J[k];
+        if ( ni < 0 || nj < 0 || ni >= nx || nj >= ny )
+            return -1;
+        return ni * ny + nj;
+    }
+
+    /** returns true if point q is higher than point p, breaking ties by point number */
+    private boolean higher(int q, int p)
+    {
+        return energies[q] > energies[p] || ( energies[q] == energies[p] && q > p );
+    }
+
+    /** returns the type of point p, or null if it is neither a minimum nor a first-order saddle */
+    private Type classify(int p)
+    {
+        int i = p / ny;
+        int j = p % ny;
+        int present = 0;
+        int higherCount = 0;
+        boolean[] up = new boolean[LINK.length];
+        for (int k=0; k < LINK.length; k++)
+            {
+                int q = getNeighbor(i, j, LINK[k]);
+                if ( q < 0 || Double.isNaN(energies[q]) )
+                    continue;
+                present++;
+                up[k] = higher(q, p);
+                if ( up[k] )
+                    higherCount++;
+            }
+        if ( present == 0 )
+            return null;
+        if ( higherCount == present )
+            return Type.MINIMUM;
+        if ( present < LINK.length )
+            return null;
+        int changes = 0;
+        for (int k=0; k < LINK.length; k++)
+            if ( up[k] != up[(k+1) % LINK.length] )
+                changes++;
+        return changes == 4 ? Type.SADDLE : null;
+    }
+
+    /** returns { gx, gy, hxx, hxy, hyy } at an interior point, or null if a neighbor is missing */
+    private double[] derivatives(int p)
+    {
+        int i = p / ny;
+        int j = p % ny;
+        double[] ring = new double[8];
+        for (int k=0; k < 8; k++)
+            {
+                int q = getNeighbor(i, j, k);
+                if ( q < 0 || Double.isNaN(energies[q]) )
+                    return null;
+                ring[k] = energies[q];
+            }
+        double e = energies[p];
+        double gx = ( ring[0] - ring[4] ) / ( 2.0 * dx );
+        double gy = ( ring[2] - ring[6] ) / ( 2.0 * dy );
+        double hxx = ( ring[0] - 2.0 * e + ring[4] ) / ( dx * dx );
+        double hyy = ( ring[2] - 2.0 * e + ring[6] ) / ( dy * dy );
+        double hxy = ( ring[1] - ring[7] - ring[3] + ring[5] ) / ( 4.0 * dx * dy );
+        return new double[] { gx, gy, hxx, hxy, hyy };
+    }
+
+    /** returns { lowest eigenvalue, highest eigenvalue, x and y of the lowest eigenvector } of a symmetric 2x2 matrix */
+    private static double[] eigen(double hxx, double hxy, double hyy)
+    {
+        double average = 0.5 * ( hxx + hyy );
+        double radius = Math.hypot(0.5 * ( hxx - hyy ), hxy);
+        double lowest = average - radius;
+        double highest = average + radius;
+        double vx, vy;
+        if ( Math.abs(hxy) > 1.0E-14 * ( Math.abs(hxx) + Math.abs(hyy) ) )
+            {
+                vx = lowest - hyy;
+                vy = hxy;
+            }
+        else if ( hxx <= hyy )
+            {
+                vx = 1.0;
+                vy = 0.0;
+            }
+        else
+            {
+                vx = 0.0;
+                vy = 1.0;
+            }
+        double norm = Math.hypot(vx, vy);
+        return new double[] { lowest, highest, vx / norm, vy / norm };
+    }
+
+    /** interpolates the location of a stationary point and, for a saddle, traces its path */
+    private StationaryPoint locate(int p, Type type)
+    {
+        int i = p / ny;
+        int j = p % ny;
+        double[] d = derivatives(p);
+        if ( d == null )
+            return new StationaryPoint(type, p, i, j, energies[p], Double.NaN, Double.NaN, ImmutableList.<Integer>of());
+
+        // take a Newton step if it moves less than one cell
+        double gx = d[0], gy = d[1], hxx = d[2], hxy = d[3], hyy = d[4];
+        double determinant = hxx * hyy - hxy * hxy;
+        double si = 0.0;
+        double sj = 0.0;
+        double energy = energies[p];
+        if ( determinant != 0.0 )
+            {
+                double sx = -( hyy * gx - hxy * gy ) / determinant;
+                double sy = -( hxx * gy - hxy * gx ) / determinant;
+                if ( Math.abs(sx) <= dx && Math.abs(sy) <= dy )
+                    {
+                        si = sx / dx;
+                        sj = sy / dy;
+                        energy += 0.5 * ( gx * sx + gy * sy );
+                    }
+            }
+        double[] eigen = eigen(hxx, hxy, hyy);
+
+        List<Integer> path = new ArrayList<>();
+        if ( type == Type.SADDLE )
+            {
+                List<Integer> backward = descend(p, -eigen[2], -eigen[3]);
+                List<Integer> forward = descend(p, eigen[2], eigen[3]);
+                for (int k=backward.size()-1; k >= 0; k--)
+                    path.add(backward.get(k));
+                path.add(p);
+                path.addAll(forward);
+            }
+        return new StationaryPoint(type, p, i + si, j + sj, energy, eigen[0], eigen[1], path);
+    }
+
+    /** returns the slope from p to q in energy per coordinate unit */
+    private double slope(int p, int q)
+    {
+        double distance = Math.hypot(( q / ny - p / ny ) * dx, ( q % ny - p % ny ) * dy);
+        return ( energies[q] - energies[p] ) / distance;
+    }
+
+    /** follows the steepest descent from p, starting on the side of (vx, vy), and returns the points visited after p */
+    private List<Integer> descend(int p, double vx, double vy)
+    {
+        List<Integer> path = new ArrayList<>();
+
+        // first step: the steepest downhill neighbor on the requested side
+        int i = p / ny;
+        int j = p % ny;
+        int best = -1;
+        double bestSlope = 0.0;
+        for (int k=0; k < 8; k++)
+            {
+                int q = getNeighbor(i, j, k);
+                if ( q < 0 || Double.isNaN(energies[q]) || RING_I[k] * dx * vx + RING_J[k] * dy * vy <= 0.0 )
+                    continue;
+                double s = slope(p, q);
+                if ( s < bestSlope )
+                    {
+                        best = q;
+                        bestSlope = s;
+                    }
+            }
+
+        // then the steepest downhill neighbor until there is none
+        while ( best >= 0 )
+            {
+                path.add(best);
+                p = best;
+                i = p / ny;
+                j = p % ny;
+                best = -1;
+                bestSlope = 0.0;
+                for (int k=0; k < 8; k++)
+                    {
+                        int q = getNeighbor(i, j, k);
+                        if ( q < 0 || Double.isNaN(energies[q]) || !higher(p, q) )
+                            continue;
+                        double s = slope(p, q);
+                        if ( best < 0 || s < bestSlope )
+                            {
+                                best = q;
+                                bestSlope = s;
+                            }
+                    }
+            }
+        return path;
+    }
+
+    /** returns the minima, lowest point number first */
+    public List<StationaryPoint> getMinima()
+    {
+        return minima;
+    }
+
+    /** returns the first-order saddle points, lowest point number first */
+    public List<StationaryPoint> getSaddles()
+    {
+        return saddles;
+    }
+
+    /** returns the energy of a point after filling, or NaN if it is outside the surface */
+    public double getEnergy(int point)
+    {
+        return energies[point];
+    }
+
+    /** returns true if a point was computed rather than filled or left out */
+    public boolean isComputed(int point)
+    {
+        return computed[point];
+    }
+
+    /**
+     * Finds the path between two points whose highest energy is lowest.
+     * @param from the starting point number
+     * @param to the final point number
+     * @return the point numbers along the path, or an empty list if they are not connected
+     */
+    public List<Integer> getMinimaxPath(int from, int to)
+    {
+        if ( Double.isNaN(energies[from]) || Double.isNaN(energies[to]) )
+            throw new IllegalArgumentException("both points must be on the surface");
+        double[] highest = new double[nx*ny];
+        int[] previous = new int[nx*ny];
+        Arrays.fill(highest, Double.POSITIVE_INFINITY);
+        Arrays.fill(previous, -1);
+        boolean[] visited = new boolean[nx*ny];
+        highest[from] = energies[from];
+        PriorityQueue<double[]> queue = new PriorityQueue<>((a,b) -> Double.compare(a[0], b[0]));
+        queue.add(new double[] { highest[from], from });
+        while ( queue.size() > 0 )
+            {
+                int p = (int)queue.poll()[1];
+                if ( visited[p] )
+                    continue;
+                visited[p] = true;
+                if ( p == to )
+                    break;
+                int i = p / ny;
+                int j = p % ny;
+                for (int k=0; k < 8; k++)
+                    {
+                        int q = getNeighbor(i, j, k);
+                        if ( q < 0 || visited[q] || Double.isNaN(energies[q]) )
+                            continue;
+                        double candidate = Math.max(highest[p], energies[q]);
+                        if ( candidate < highest[q] )
+                            {
+                                highest[q] = candidate;
+                                previous[q] = p;
+                                queue.add(new double[] { candidate, q });
+                            }
+                    }
+            }
+        if ( !visited[to] )
+            return ImmutableList.of();
+        LinkedList<Integer> path = new LinkedList<>();
+        for (int p=to; p >= 0; p=previous[p])
+            path.addFirst(p);
+        return ImmutableList.copyOf(path);
+    }
+
+    /**
+     * Finds the saddle point that limits the rate between two points, such as the reactant and product minima.
+     * This is the saddle nearest to the highest point of the minimax path.
+     * @param from the starting point number
+     * @param to the final point number
+     * @return the saddle, or null if there are no saddles or the points are not connected
+     */
+    public StationaryPoint getRateLimitingSaddle(int from, int to)
+    {
+        List<Integer> path = getMinimaxPath(from, to);
+        if ( path.size() == 0 || saddles.size() == 0 )
+            return null;
+        int top = path.get(0);
+        for (Integer p : path)
+            if ( energies[p] > energies[top] )
+                top = p;
+        StationaryPoint best = null;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (StationaryPoint saddle : saddles)
+            {
+                double distance = Math.hypot(( saddle.point / ny - top / ny ) * dx, ( saddle.point % ny - top % ny ) * dy);
+                if ( distance < bestDistance )
+                    {
+                        best = saddle;
+                        bestDistance = distance;
+                    }
+            }
+        return best;
+    }
+
+    /**
+     * Returns the computed point nearest to a stationary point.
+     * @return the point number, or -1 if nothing was computed
+     */
+    public int getNearestComputed(StationaryPoint stationaryPoint)
+    {
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int p=0; p < nx*ny; p++)
+            {
+                if ( !computed[p] )
+                    continue;
+                double distance = Math.hypot(( p / ny - stationaryPoint.i ) * dx, ( p % ny - stationaryPoint.j ) * dy);
+                if ( distance < bestDistance )
+                    {
+                        best = p;
+                        bestDistance = distance;
+                    }
+            }
+        return best;
+    }
+
+    /**
+     * Makes transition-state keywords from scan keywords by replacing the opt keyword with TS_OPT.
+     * The opt keyword may be written as opt, opt=option, opt=(options), or opt(options).
+     * @param keywords the route section of the scan, such as ScanSpec.keywords
+     */
+    public static String getTSKeywords(String keywords)
+    {
+        String[] lines = keywords.split("\n", -1);
+        boolean replaced = false;
+        for (int k=0; k < lines.length; k++)
+            {
+                if ( !lines[k].trim().startsWith("#") )
+                    continue;
+                String newLine = lines[k].replaceAll("(?i)(^|\\s)opt(=?\\([^)]*\\)|=\\S+)?(?=\\s|$)", "$1" + TS_OPT);
+                replaced = replaced || !newLine.equals(lines[k]);
+                lines[k] = newLine;
+            }
+        String result = String.join("\n", lines);
+        if ( !replaced )
+            result = result.length() == 0 ? "#p " + TS_OPT : result + " " + TS_OPT;
+        return result;
+    }
+
+    /**
+     * Makes a transition-state tail from a scan tail by removing its modredundant lines, such as
+     * "B 4 1 F", while keeping everything else, such as basis set and ECP input.  Blank lines that
+     * would be left at the start are removed too.
+     * @param tail the tail of the scan, such as ScanSpec.tail
+     */
+    public static String getTSTail(String tail)
+    {
+        List<String> kept = new ArrayList<>();
+        for (String line : tail.split("\n", -1))
+            {
+                if ( MODREDUNDANT_LINE.matcher(line).matches() )
+                    continue;
+                if ( kept.size() == 0 && line.trim().length() == 0 )
+                    continue;
+                kept.add(line);
+            }
+        return String.join("\n", kept);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("SurfaceAnalyzer %d x %d: %d minima, %d saddles", nx, ny, minima.size(), saddles.size());
+    }
+
+    /** analyzes the results of a two-coordinate scan and writes transition-state guesses */
+    public static void main(String[] args)
+    {
+        if ( args.length != 2 )
+            {
+                System.out.println("usage: java SurfaceAnalyzer scan.spec ts_directory");
+                return;
+            }
+        ScanSpec spec = new ScanSpec(args[0]);
+        if ( spec.variables.size() != 2 )
+            throw new IllegalArgumentException("surface analysis needs exactly two scan coordinates");
+        if ( spec.resultsDirectory == null )
+            throw new IllegalArgumentException("the spec must give a results directory");
+        ScanEngine engine = new ScanEngine(spec);
+
+        // place the finished jobs on the grid
+        long start = System.currentTimeMillis();
+        ScanSpec.Variable first = spec.variables.get(0);
+        ScanSpec.Variable second = spec.variables.get(1);
+        double[][] energies = new double[first.count][second.count];
+        for (double[] row : energies)
+            Arrays.fill(row, Double.NaN);
+        Molecule[] molecules = new Molecule[first.count * second.count];
+        ScanIndex index = new ScanIndex(new File(spec.resultsDirectory, "scan.index").getPath());
+        index.update(spec.resultsDirectory);
+        index.save();
+        for (ScanIndex.Entry entry : index.getEntries(spec.resultsDirectory))
+            {
+                if ( !entry.normalTermination || entry.molecule == null )
+                    continue;
+                int[] indices = engine.locate(entry.molecule);
+                if ( indices == null )
+                    continue;
+                int p = indices[0] * second.count + indices[1];
+                if ( molecules[p] == null || entry.getEnergy() < molecules[p].energy )
+                    {
+                        energies[indices[0]][indices[1]] = entry.getEnergy();
+                        molecules[p] = entry.molecule;
+                    }
+            }
+        SurfaceAnalyzer analyzer = new SurfaceAnalyzer(energies, Math.abs(first.step), Math.abs(second.step));
+        System.out.printf("%s (%d ms)\n", analyzer.toString(), System.currentTimeMillis() - start);
+        for (StationaryPoint minimum : analyzer.getMinima())
+            System.out.printf("%s = %.3f, %s = %.3f: %s\n", first.name, first.start + minimum.i * first.step,
+                              second.name, second.start + minimum.j * second.step, minimum.toString());
+
+        // write a transition-state guess for each saddle
+        new File(args[1]).mkdirs();
+        String keywords = getTSKeywords(spec.keywords);
+        String tail = getTSTail(spec.tail);
+        int count = 0;
+        for (StationaryPoint saddle : analyzer.getSaddles())
+            {
+                double x = first.start + saddle.i * first.step;
+                double y = second.start + saddle.j * second.step;
+                System.out.printf("%s = %.3f, %s = %.3f: %s\n", first.name, x, second.name, y, saddle.toString());
+                int nearest = analyzer.getNearestComputed(saddle);
+                if ( nearest < 0 )
+                    continue;
+                String filename = new File(args[1], String.format("ts_%s_%s.gjf", first.getLabel(x), second.getLabel(y))).getPath();
+                String title = String.format("TS guess near %s=%.3f %s=%.3f", first.name, x, second.name, y);
+                new GaussianInputFile(molecules[nearest], title, keywords, tail, spec.writeConnectivity,
+                                      spec.charge, spec.multiplicity).write(filename);
+                System.out.printf("  wrote %s from the computed point %s\n", filename,
+                                  Arrays.toString(engine.getValues(engine.getPoint(new int[] { nearest / second.count, nearest % second.count }))));
+                count++;
+            }
+        System.out.printf("Wrote %d transition-state guesses.\n", count);
+    }
+}
@@ -0,0 +1,427 @@
+import java.util.*;
+import com.google.common.collect.*;
+
+/**
+ * A Gaussian-process model of an energy surface, fitted to the finished points of a scan.  It is used
+ * to decide which of the remaining points are worth computing first.<p>
+ * The kernel is a squared exponential with one length scale per dimension.  Periodic dimensions,
+ * such as dihedrals, use the nearest-image difference, as in KDTree.  The mean is the average
+ * energy.  The amplitude is fitted exactly.  The length scales are the given base scales times a
+ * common factor, chosen from FACTORS to maximize the marginal likelihood.  A small nugget keeps the
+ * covariance matrix positive definite when two points nearly coincide.  The model reproduces the
+ * finished points almost exactly, and its uncertainty grows with the distance from them.<p>
+ * rank() orders candidate points by the information they are expected to give about the barrier.
+ * The score of a point is its predicted standard deviation times the predicted probability that
+ * its energy is within tolerance of the barrier.  Points on the plateaus around the reactant and
+ * product score low.  So do points high on the walls.  Unexplored points near the saddle score
+ * high.  The barrier itself is estimated by getBarrier(): it is the highest predicted energy on
+ * the lowest path between two points of the lattice.<p>
+ * This class is immutable.
+ */
+public class SurrogateModel implements Immutable
+{
+    /** the multiples of the base length scales that are tried */
+    public static final double[] FACTORS = { 1.0, 1.5, 2.0, 3.0, 4.0, 6.0, 8.0 };
+
+    /** the variance of the noise, relative to the fitted amplitude */
+    public static final double NUGGET = 1.0E-6;
+
+    /** the number of dimensions */
+    public final int dimensions;
+
+    /** the finished points */
+    private final double[][] points;
+
+    /** the fitted length scale of each dimension */
+    private final double[] lengthScales;
+
+    /** the period of each dimension, or 0.0 if it is not periodic */
+    private final double[] periods;
+
+    /** the constant mean */
+    public final double mean;
+
+    /** the fitted variance of the signal */
+    public final double amplitude;
+
+    /** the nugget that was needed to factor the covariance matrix */
+    private final double nugget;
+
+    /** the Cholesky factor of the covariance matrix, in units of the amplitude */
+    private final double[][] cholesky;
+
+    /** the inverse of the covariance matrix, in units of the amplitude, times the residuals from the mean energy */
+    private final double[] alpha;
+
+    /**
+     * Fits a model.
+     * @param points the coordinates of the finished points; at least two are needed
+     * @param energies the energy at each point
+     * @param baseLengthScales the smallest length scale of each dimension, such as the grid spacing
+     * @param periods the period of each dimension, or 0.0 if it is not periodic; null for none periodic
+     */
+    public SurrogateModel(List<double[]> points, List<Double> energies, double[] baseLengthScales, double[] periods)
+    {
+        if ( points.size() != energies.size() )
+            throw new IllegalArgumentException("there must be one energy per point");
+        if ( points.size() < 2 )
+            throw new IllegalArgumentException("need at least two points");
+        this.dimensions = baseLengthScales.length;
+        int n = points.size();
+        this.points = new double[n][];
+        for (int i=0; i < n; i++)
+            {
+                if ( points.get(i).length != dimensions )
+                    throw new IllegalArgumentException(String.format("point %d has %d dimensions, not %d", i, points.get(i).length, dimensions));
+                this.points[i] = points.get(i).clone();
+            }
+        for (double scale : baseLengthScales)
+            if ( !(scale > 0.0) )
+                throw new IllegalArgumentException("length scales must be positive");
+        this.periods = new double[dimensions];
+        if ( periods != null )
+            {
+                if ( periods.length != dimensions )
+                    throw new IllegalArgumentException("wrong number of periods");
+                for (int d=0; d < dimensions; d++)
+                    {
+                        if ( !(periods[d] >= 0.0) )
+                            throw new IllegalArgumentException("periods cannot be negative");
+                        this.periods[d] = periods[d];
+                    }
+            }
+
+        double sum = 0.0;
+        for (Double energy : energies)
+            sum += energy;
+        this.mean = sum / n;
+        double[] residuals = new double[n];
+        for (int i=0; i < n; i++)
+            residuals[i] = energies.get(i) - mean;
+
+        // choose the length scales by maximum likelihood
+        double bestLikelihood = Double.NEGATIVE_INFINITY;
+        double[] bestScales = null;
+        double[][] bestCholesky = null;
+        double[] bestAlpha = null;
+        double bestAmplitude = 0.0;
+        double bestNugget = 0.0;
+        for (double factor : FACTORS)
+            {
+                double[] scales = new double[dimensions];
+                for (int d=0; d < dimensions; d++)
+                    scales[d] = factor * baseLengthScales[d];
+
+                // factor the covariance matrix, increasing the nugget if necessary
+                double thisNugget = NUGGET;
+                double[][] factored = null;
+                while ( factored == null )
+                    {
+                        double[][] covariance = new double[n][n];
+                        for (int i=0; i < n; i++)
+                            {
+                                for (int j=0; j < i; j++)
+                                    {
+                                        covariance[i][j] = kernel(this.points[i], this.points[j], scales);
+                                        covariance[j][i] = covariance[i][j];
+                                    }
+                                covariance[i][i] = 1.0 + thisNugget;
+                            }
+                        factored = factor(covariance);
+                        if ( factored == null )
+                            {
+                                thisNugget *= 10.0;
+                                if ( thisNugget > 1.0 )
+                                    throw new IllegalArgumentException("covariance matrix is singular");
+                            }
+                    }
+                double[] thisAlpha = solve(factored, residuals);
+                double quadratic = 0.0;
+                for (int i=0; i < n; i++)
+                    quadratic += residuals[i] * thisAlpha[i];
+                double thisAmplitude = Math.max(quadratic / n, Double.MIN_NORMAL);
+
+                // the log likelihood with the amplitude profiled out, omitting constants
+                double logDeterminant = 0.0;
+                for (int i=0; i < n; i++)
+                    logDeterminant += Math.log(factored[i][i]);
+                double likelihood = -0.5 * n * Math.log(thisAmplitude) - logDeterminant;
+                if ( likelihood > bestLikelihood )
+                    {
+                        bestLikelihood = likelihood;
+                        bestScales = scales;
+                        bestCholesky = factored;
+                        bestAlpha = thisAlpha;
+                        bestAmplitude = thisAmplitude;
+                        bestNugget = thisNugget;
+                    }
+            }
+        this.lengthScales = bestScales;
+        this.cholesky = bestCholesky;
+        this.alpha = bestAlpha;
+        this.amplitude = bestAmplitude;
+        this.nugget = bestNugget;
+    }
+
+    /** returns the correlation between two points */
+    private double kernel(double[] a, double[] b, double[] scales)
+    {
+        double sum = 0.0;
+        for (int d=0; d < dimensions; d++)
+            {
+                double delta = a[d] - b[d];
+                double period = periods[d];
+                if ( period > 0.0 )
+                    delta -= period * Math.rint(delta / period);
+                delta /= scales[d];
+                sum += delta * delta;
+            }
+        return Math.exp(-0.5 * sum);
+    }
+
+    /** returns the lower Cholesky factor of a symmetric matrix, or null if it is not positive definite */
+    private static double[][] factor(double[][] matrix)
+    {
+        int n = matrix.length;
+        double[][] lower = new double[n][];
+        for (int i=0; i < n; i++)
+            {
+                lower[i] = new double[i+1];
+                for (int j=0; j <= i; j++)
+                    {
+                        double sum = matrix[i][j];
+                        for (int k=0; k < j; k++)
+                            sum -= lower[i][k] * lower[j][k];
+                        if ( i == j )
+                            {
+                                if ( !(sum > 0.0) )
+                                    return null;
+                                lower[i][i] = Math.sqrt(sum);
+                            }
+                        else
+                            lower[i][j] = sum / lower[j][j];
+                    }
+            }
+        return lower;
+    }
+
+    /** solves L y = b */
+    private static double[] forward(double[][] lower, double[] b)
+    {
+        int n = b.length;
+        double[] y = new double[n];
+        for (int i=0; i < n; i++)
+            {
+                double sum = b[i];
+                for (int k=0; k < i; k++)
+                    sum -= lower[i][k] * y[k];
+                y[i] = sum / lower[i][i];
+            }
+        return y;
+    }
+
+    /** solves L L^T x = b */
+    private static double[] solve(double[][] lower, double[] b)
+    {
+        double[] x = forward(lower, b);
+        int n = b.length;
+        for (int i=n-1; i >= 0; i--)
+            {
+                double sum = x[i];
+                for (int k=i+1; k < n; k++)
+                    sum -= lower[k][i] * x[k];
+                x[i] = sum / lower[i][i];
+            }
+        return x;
+    }
+
+    /** returns the number of finished points */
+    public int size()
+    {
+        return points.length;
+    }
+
+    /** returns a copy of the fitted length scales */
+    public double[] getLengthScales()
+    {
+        return lengthScales.clone();
+    }
+
+    /**
+     * Predicts the energy at a point.
+     * @param target the point
+     * @return { predicted energy, standard deviation }
+     */
+    public double[] predict(double[] target)
+    {
+        if ( target.length != dimensions )
+            throw new IllegalArgumentException(String.format("expected %d dimensions, found %d", dimensions, target.length));
+        int n = points.length;
+        double[] correlations = new double[n];
+        double energy = mean;
+        for (int i=0; i < n; i++)
+            {
+                correlations[i] = kernel(target, points[i], lengthScales);
+                energy += correlations[i] * alpha[i];
+            }
+        double[] v = forward(cholesky, correlations);
+        double explained = 0.0;
+        for (int i=0; i < n; i++)
+            explained += v[i] * v[i];
+        double variance = amplitude * Math.max(0.0, 1.0 + nugget - explained);
+        return new double[] { energy, Math.sqrt(variance) };
+    }
+
+    /**
+     * Estimates the barrier between two points of a lattice: the highest predicted energy on the path
+     * between them whose highest energy is lowest.  Each step of the path must be no longer than
+     * neighborDistance.
+     * @param lattice the points to consider, which should include the finished points
+     * @param from the index of the start in lattice, such as the reactant
+     * @param to the index of the end in lattice, such as the product
+     * @param neighborDistance the longest allowed step, such as 1.5 times the grid spacing
+     * @return the barrier energy, or NaN if the points are not connected
+     */
+    public double getBarrier(List<double[]> lattice, int from, int to, double neighborDistance)
+    {
+        int n = lattice.size();
+        double[] energies = new double[n];
+        List<Integer> values = new ArrayList<>(n);
+        for (int i=0; i < n; i++)
+            {
+                energies[i] = predict(lattice.get(i))[0];
+                values.add(i);
+            }
+        KDTree<Integer> tree = new KDTree<>(lattice, values, null, periods);
+
+        // Dijkstra's algorithm with the maximum energy along the path in place of its length
+        double[] highest = new double[n];
+        Arrays.fill(highest, Double.POSITIVE_INFINITY);
+        highest[from] = energies[from];
+        PriorityQueue<double[]> queue = new PriorityQueue<>((a,b) -> Double.compare(a[0], b[0]));
+        queue.add(new double[] { highest[from], from });
+        boolean[] visited = new boolean[n];
+        while ( queue.size() > 0 )
+            {
+                int i = (int)queue.poll()[1];
+                if ( visited[i] )
+                    continue;
+                visited[i] = true;
+                if ( i == to )
+                    return highest[i];
+                for (Integer j : tree.withinRadius(lattice.get(i), neighborDistance))
+                    {
+                        double candidate = Math.max(highest[i], energies[j]);
+                        if ( !visited[j] && candidate < highest[j] )
+                            {
+                                highest[j] = candidate;
+                                queue.add(new double[] { candidate, j });
+                            }
+                    }
+            }
+        return Double.NaN;
+    }
+
+    /**
+     * Orders candidate points by how much they are expected to tell about the barrier.
+     * @param candidates the points that have not been computed
+     * @param barrier the estimated barrier energy, such as from getBarrier()
+     * @param tolerance how close to the barrier an energy must be to matter, in energy units
+     * @return the indices of the candidates, best first
+     */
+    public List<Integer> rank(List<double[]> candidates, double barrier, double tolerance)
+    {
+        final double[] scores = new double[candidates.size()];
+        List<Integer> order = new ArrayList<>(candidates.size());
+        for (int i=0; i < candidates.size(); i++)
+            {
+                double[] prediction = predict(candidates.get(i));
+                double spread = prediction[1] * prediction[1] + tolerance * tolerance;
+                double difference = prediction[0] - barrier;
+                scores[i] = prediction[1] * Math.sqrt(tolerance * tolerance / spread) * Math.exp(-0.5 * difference * difference / spread);
+                order.add(i);
+            }
+        Collections.sort(order, (a,b) -> scores[a] != scores[b] ? Double.compare(scores[b], scores[a]) : Integer.compare(a, b));
+        return ImmutableList.copyOf(order);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("SurrogateModel with %d points, length scales %s, amplitude %.3e", points.length,
+                             Arrays.toString(lengthScales), Math.sqrt(amplitude));
+    }
+
+    /**
+     * For testing: explores a model surface in ranked order and in grid order, and reports how
+     * many points each needs before the estimated barrier stays within tolerance of the true one.
+     */
+    public static void main(String[] args)
+    {
+        List<double[]> lattice = new ArrayList<>();
+        List<Double> truth = new ArrayList<>();
+        for (int i=0; i <= 20; i++)
+            {
+                for (int j=0; j <= 20; j++)
+                    {
+                        double x = 1.5 + 0.1 * i;
+                        double y = 1.5 + 0.1 * j;
+                        lattice.add(new double[] { x, y });
+                        truth.add(surface(x, y));
+                    }
+            }
+        int reactant = 20 * 21;
+        int product = 20;
+        double tolerance = 0.0016;
+        double trueBarrier = new SurrogateModel(lattice, truth, new double[] { 0.1, 0.1 }, null).getBarrier(lattice, reactant, product, 0.15);
+
+        for (boolean ranked : new boolean[] { true, false })
+            {
+                // start from a 3x3 sparse pattern, then add four points at a time
+                List<Integer> done = new ArrayList<>();
+                for (int i=0; i <= 20; i += 10)
+                    for (int j=0; j <= 20; j += 10)
+                        done.add(i * 21 + j);
+                int converged = -1;
+                while ( done.size() < lattice.size() )
+                    {
+                        List<double[]> points = new ArrayList<>();
+                        List<Double> energies = new ArrayList<>();
+                        for (Integer k : done)
+                            {
+                                points.add(lattice.get(k));
+                                energies.add(truth.get(k));
+                            }
+                        SurrogateModel model = new SurrogateModel(points, energies, new double[] { 0.1, 0.1 }, null);
+                        double barrier = model.getBarrier(lattice, reactant, product, 0.15);
+                        if ( Math.abs(barrier - trueBarrier) >= 0.5 * tolerance )
+                            converged = -1;
+                        else if ( converged < 0 )
+                            converged = done.size();
+                        List<Integer> pending = new ArrayList<>();
+                        List<double[]> candidates = new ArrayList<>();
+                        for (int k=0; k < lattice.size(); k++)
+                            {
+                                if ( done.contains(k) )
+                                    continue;
+                                pending.add(k);
+                                candidates.add(lattice.get(k));
+                            }
+                        List<Integer> order = ranked ? model.rank(candidates, barrier, tolerance) : null;
+                        for (int k=0; k < Math.min(4, pending.size()); k++)
+                            done.add(pending.get(ranked ? order.get(k) : k));
+                    }
+                System.out.printf("%s order: barrier within %.4f after %d of %d points\n", ranked ? "ranked" : "grid",
+                                  0.5 * tolerance, converged, lattice.size());
+            }
+    }
+
+    /** a model SN2 surface in hartrees: forming distance x and breaking distance y */
+    private static double surface(double x, double y)
+    {
+        double reactant = -0.030 * Math.exp(-( Math.pow(x - 3.3, 2) + Math.pow(y - 1.8, 2) ) / 0.5);
+        double product = -0.040 * Math.exp(-( Math.pow(x - 1.8, 2) + Math.pow(y - 3.3, 2) ) / 0.5);
+        double repulsion = 0.050 * Math.exp(-( x + y - 3.0 ));
+        return reactant + product + repulsion;
+    }
+}
@@ -0,0 +1,751 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import org.jgrapht.graph.*;
+
+/**
+ * Represents the bonding connectivity of a molecule as a compressed sparse row (CSR)
+ * adjacency structure.  Atoms are referred to by index (0, 1, ..., n-1).  The neighbors
+ * of each atom are stored in ascending order and bond orders are stored in a parallel
+ * array.  This class is immutable, so one instance can be shared by many molecules.
+ */
+public class Topology implements Immutable, Serializable
+{
+    /** for serialization */
+    public static final long serialVersionUID = 1L;
+
+    /** the number of atoms */
+    public final int size;
+
+    /** the neighbors of atom i are in positions offsets[i] ... offsets[i+1]-1 of neighbors */
+    private final int[] offsets;
+
+    /** the neighbors of every atom, concatenated */
+    private final int[] neighbors;
+
+    /** the bond orders, parallel to neighbors */
+    private final double[] bondOrders;
+
+    /** the 1-2 and 1-3 neighbors of every atom; created lazily */
+    private transient volatile Exclusions exclusions;
+
+    /**
+     * The memoized half graphs.  Entry p holds the result of getHalfGraph(i, neighbors[p])
+     * where p is in row i, so there is one slot per directed bond; created lazily.  Ring
+     * bonds are never stored.
+     */
+    private transient volatile AtomicReferenceArray<int[]> halfGraphs;
+
+    /** the ring and bridge analysis; created lazily */
+    private transient volatile Rings rings;
+
+    /**
+     * Lists the atoms that are one or two bonds away from each atom in the same
+     * compressed row format as the neighbors.  Each row is sorted and does not
+     * contain the atom itself.
+     */
+    private static class Exclusions
+    {
+        final int[] offsets;
+        final int[] atoms;
+
+        Exclusions(int[] offsets, int[] atoms)
+        {
+            this.offsets = offsets;
+            this.atoms = atoms;
+        }
+    }
+
+    /**
+     * Records which bonds are in rings.  A bond is in a ring exactly when it is not a
+     * bridge, i.e., when removing it does not disconnect the graph.  Atoms joined by
+     * ring bonds form ring systems; fused and spiro rings share one ring system.
+     */
+    private static class Rings
+    {
+        /** ringBond[p] is true if the bond at position p of neighbors is in a ring */
+        final boolean[] ringBond;
+
+        /** the ring system of each atom, or -1 for atoms that are not in a ring */
+        final int[] ringSystem;
+
+        /** the number of ring systems */
+        final int numberOfRingSystems;
+
+        Rings(boolean[] ringBond, int[] ringSystem, int numberOfRingSystems)
+        {
+            this.ringBond = ringBond;
+            this.ringSystem = ringSystem;
+            this.numberOfRingSystems = numberOfRingSystems;
+        }
+    }
+
+    /** constructor is called from the Builder */
+    private Topology(int size, int[] offsets, int[] neighbors, double[] bondOrders)
+    {
+        this.size = size;
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+        this.bondOrders = bondOrders;
+    }
+
+    /**
+     * Returns the number of bonds to atom i.
+     * @param i the atom index
+     * @return the number of neighbors
+     */
+    public int getDegree(int i)
+    {
+        return offsets[i+1] - offsets[i];
+    }
+
+    /**
+     * Returns the k-th neighbor of atom i in ascending order.
+     * @param i the atom index
+     * @param k 0, 1, ..., getDegree(i)-1
+     * @return the index of the neighbor
+     */
+    public int getNeighbor(int i, int k)
+    {
+        return neighbors[offsets[i]+k];
+    }
+
+    /**
+     * Returns the order of the bond between atom i and its k-th neighbor.
+     * @param i the atom index
+     * @param k 0, 1, ..., getDegree(i)-1
+     * @return the bond order
+     */
+    public double getNeighborBondOrder(int i, int k)
+    {
+        return bondOrders[offsets[i]+k];
+    }
+
+    /**
+     * Returns the neighbors of atom i in ascending order.
+     * @param i the atom index
+     * @return a new array of atom indices
+     */
+    public int[] getNeighbors(int i)
+    {
+        return Arrays.copyOfRange(neighbors, offsets[i], offsets[i+1]);
+    }
+
+    /**
+     * Returns the number of bonds in this topology.
+     * @return the number of bonds
+     */
+    public int getNumberOfBonds()
+    {
+        return neighbors.length / 2;
+    }
+
+    /** returns the position of j in the neighbor list of i, or -1 if they are not bonded */
+    private int find(int i, int j)
+    {
+        if ( i < 0 || j < 0 || i >= size || j >= size )
+            return -1;
+        int position = Arrays.binarySearch(neighbors, offsets[i], offsets[i+1], j);
+        return position < 0 ? -1 : position;
+    }
+
+    /**
+     * Determines whether atoms i and j are bonded.  No exception is thrown for invalid indices.
+     * @return true if the atoms are bonded
+     */
+    public boolean isBonded(int i, int j)
+    {
+        return find(i,j) >= 0;
+    }
+
+    /**
+     * Returns the order of the bond between atoms i and j.  Throws an IllegalArgumentException
+     * if they are not bonded.
+     * @return the bond order
+     */
+    public double getBondOrder(int i, int j)
+    {
+        int position = find(i,j);
+        if ( position < 0 )
+            throw new IllegalArgumentException("atoms " + i + " and " + j + " are not bonded");
+        return bondOrders[position];
+    }
+
+    /** returns the 1-2/1-3 exclusion lists, computing them if necessary */
+    private Exclusions getExclusions()
+    {
+        Exclusions temp = exclusions;
+        if ( temp != null )
+            return temp;
+
+        int[] newOffsets = new int[size+1];
+        int[] atoms = new int[16];
+        int[] marks = new int[size];
+        Arrays.fill(marks, -1);
+        int count = 0;
+        for (int i=0; i < size; i++)
+            {
+                newOffsets[i] = count;
+                marks[i] = i;
+                for (int p=offsets[i]; p < offsets[i+1]; p++)
+                    {
+                        int j = neighbors[p];
+                        for (int q=offsets[j]-1; q < offsets[j+1]; q++)
+                            {
+                                // visit j itself first, then its neighbors
+                                int k = q < offsets[j] ? j : neighbors[q];
+                                if ( marks[k] == i )
+                                    continue;
+                                marks[k] = i;
+                                if ( count == atoms.length )
+                                    atoms = Arrays.copyOf(atoms, 2*count);
+                                atoms[count++] = k;
+                            }
+                    }
+                Arrays.sort(atoms, newOffsets[i], count);
+            }
+        newOffsets[size] = count;
+        temp = new Exclusions(newOffsets, Arrays.copyOf(atoms, count));
+        exclusions = temp;
+        return temp;
+    }
+
+    /** returns the ring and bridge analysis, computing it if necessary */
+    private Rings getRings()
+    {
+        Rings temp = rings;
+        if ( temp != null )
+            return temp;
+
+        // find the bridges with an iterative version of Tarjan's algorithm
+        boolean[] ringBond = new boolean[neighbors.length];
+        Arrays.fill(ringBond, true);
+        int[] discovered = new int[size];
+        Arrays.fill(discovered, -1);
+        int[] low = new int[size];
+        int[] parent = new int[size];
+        int[] nextPosition = new int[size];
+        int[] stack = new int[size];
+        int time = 0;
+        for (int root=0; root < size; root++)
+            {
+                if ( discovered[root] >= 0 )
+                    continue;
+                int depth = 0;
+                stack[depth++] = root;
+                discovered[root] = low[root] = time++;
+                parent[root] = -1;
+                nextPosition[root] = offsets[root];
+                while ( depth > 0 )
+                    {
+                        int v = stack[depth-1];
+                        if ( nextPosition[v] < offsets[v+1] )
+                            {
+                                int w = neighbors[nextPosition[v]++];
+                                if ( discovered[w] < 0 )
+                                    {
+                                        parent[w] = v;
+                                        discovered[w] = low[w] = time++;
+                                        nextPosition[w] = offsets[w];
+                                        stack[depth++] = w;
+                                    }
+                                else if ( w != parent[v] )
+                                    low[v] = Math.min(low[v], discovered[w]);
+                            }
+                        else
+                            {
+                                depth--;
+                                int p = parent[v];
+                                if ( p < 0 )
+                                    continue;
+                                low[p] = Math.min(low[p], low[v]);
+                                if ( low[v] > discovered[p] )
+                                    {
+                                        ringBond[find(p,v)] = false;
+                                        ringBond[find(v,p)] = false;
+                                    }
+                            }
+                    }
+            }
+
+        // ring systems are the connected components of the ring bonds
+        int[] ringSystem = new int[size];
+        Arrays.fill(ringSystem, -1);
+        int numberOfRingSystems = 0;
+        for (int start=0; start < size; start++)
+            {
+                if ( ringSystem[start] >= 0 || ! hasRingBond(ringBond, start) )
+                    continue;
+                int head = 0;
+                int tail = 0;
+                stack[tail++] = start;
+                ringSystem[start] = numberOfRingSystems;
+                while ( head < tail )
+                    {
+                        int v = stack[head++];
+                        for (int position=offsets[v]; position < offsets[v+1]; position++)
+                            {
+                                int w = neighbors[position];
+                                if ( ringBond[position] && ringSystem[w] < 0 )
+                                    {
+                                        ringSystem[w] = numberOfRingSystems;
+                                        stack[tail++] = w;
+                                    }
+                            }
+                    }
+                numberOfRingSystems++;
+            }
+
+        temp = new Rings(ringBond, ringSystem, numberOfRingSystems);
+        rings = temp;
+        return temp;
+    }
+
+    /** returns true if any bond to atom i is in a ring */
+    private boolean hasRingBond(boolean[] ringBond, int i)
+    {
+        for (int position=offsets[i]; position < offsets[i+1]; position++)
+            if ( ringBond[position] )
+                return true;
+        return false;
+    }
+
+    /**
+     * Determines whether the bond between atoms i and j is part of a ring.  The ring
+     * analysis is done once per topology, so this takes constant time.
+     * @return true if the atoms are bonded and the bond is in a ring
+     */
+    public boolean isRingBond(int i, int j)
+    {
+        int position = find(i,j);
+        return position >= 0 && getRings().ringBond[position];
+    }
+
+    /**
+     * Determines whether atom i is part of a ring.
+     * @return true if at least one bond to atom i is in a ring
+     */
+    public boolean isRingAtom(int i)
+    {
+        return getRings().ringSystem[i] >= 0;
+    }
+
+    /**
+     * Returns the ring system that contains atom i.  Fused and spiro rings are one ring system.
+     * @return 0, 1, ..., getNumberOfRingSystems()-1, or -1 if the atom is not in a ring
+     */
+    public int getRingSystem(int i)
+    {
+        return getRings().ringSystem[i];
+    }
+
+    /**
+     * Returns the number of ring systems in this topology.
+     * @return the number of ring systems
+     */
+    public int getNumberOfRingSystems()
+    {
+        return getRings().numberOfRingSystems;
+    }
+
+    /**
+     * Determines whether the bond between atoms i and j can be rotated, i.e., whether it
+     * is a bridge with other atoms on both sides.  Rotating a terminal bond moves nothing
+     * useful, and a ring bond cannot be rotated without breaking the ring.
+     * @return true if the bond is a rotatable bridge
+     */
+    public boolean isRotatableBridge(int i, int j)
+    {
+        int position = find(i,j);
+        return position >= 0 && ! getRings().ringBond[position] && getDegree(i) > 1 && getDegree(j) > 1;
+    }
+
+    /**
+     * Determines whether atoms i and j are separated by one or two bonds.  The answer
+     * is computed from lists that are built once per topology.
+     * @return true if the atoms are bonded or share a neighbor
+     */
+    public boolean isExcluded(int i, int j)
+    {
+        Exclusions temp = getExclusions();
+        return Arrays.binarySearch(temp.atoms, temp.offsets[i], temp.offsets[i+1], j) >= 0;
+    }
+
+    /**
+     * Returns the atoms that are one or two bonds away from atom i.
+     * @return the atom indices in ascending order
+     */
+    public int[] getExclusions(int i)
+    {
+        Exclusions temp = getExclusions();
+        return Arrays.copyOfRange(temp.atoms, temp.offsets[i], temp.offsets[i+1]);
+    }
+
+    /**
+     * Marks the atoms that are one or two bonds away from atom i.  After this call,
+     * marks[j] == stamp exactly when j is such an atom or j was already marked with stamp.
+     * This lets pair loops over j test for exclusion with a single array lookup.
+     * @param i the atom whose exclusions should be marked
+     * @param marks an array of length size
+     * @param stamp the value to write
+     */
+    public void markExclusions(int i, int[] marks, int stamp)
+    {
+        Exclusions temp = getExclusions();
+        for (int p=temp.offsets[i]; p < temp.offsets[i+1]; p++)
+            marks[temp.atoms[p]] = stamp;
+    }
+
+    /**
+     * Given a bond between includeIndex and excludeIndex, finds all the atoms on the
+     * includeIndex side of the bond, including includeIndex.
+     * @param excludeIndex this atom will not be included in the result
+     * @param includeIndex this atom will be included in the result
+     * @return the atom indices in ascending order, an empty array if the atoms are not
+     * bonded, or null if the bond is part of a ring
+     */
+    public int[] getHalfGraph(int excludeIndex, int includeIndex)
+    {
+        int[] returnArray = getSharedHalfGraph(excludeIndex, includeIndex);
+        return returnArray == null ? null : returnArray.clone();
+    }
+
+    /**
+     * Same as getHalfGraph(), but returns the memoized array itself, which must not be modified.
+     * Each directed bond is searched at most once per topology, so every molecule that
+     * shares this topology reuses the same results.
+     */
+    int[] getSharedHalfGraph(int excludeIndex, int includeIndex)
+    {
+        // if these atoms are not directly bonded, then return an empty set
+        int position = find(excludeIndex, includeIndex);
+        if ( position < 0 )
+            return new int[0];
+
+        // ring bonds are known without searching
+        if ( getRings().ringBond[position] )
+            return null;
+
+        AtomicReferenceArray<int[]> temp = halfGraphs;
+        if ( temp == null )
+            {
+                temp = new AtomicReferenceArray<>(neighbors.length);
+                halfGraphs = temp;
+            }
+        int[] returnArray = temp.get(position);
+        if ( returnArray == null )
+            {
+                returnArray = searchHalfGraph(excludeIndex, includeIndex);
+                temp.set(position, returnArray);
+            }
+        return returnArray;
+    }
+
+    /** performs a breadth-first search of one branch of the graph only; the bond must be a bridge */
+    private int[] searchHalfGraph(int excludeIndex, int includeIndex)
+    {
+        boolean[] searched = new boolean[size];
+        int[] searchQueue = new int[size];
+        int head = 0;
+        int tail = 0;
+        searchQueue[tail++] = includeIndex;
+        searched[includeIndex] = true;
+        while (head < tail)
+            {
+                int currentNode = searchQueue[head++];
+                for (int position=offsets[currentNode]; position < offsets[currentNode+1]; position++)
+                    {
+                        int a = neighbors[position];
+
+                        // skip the bond we are splitting
+                        if ( a == excludeIndex )
+                            continue;
+
+                        // if this is an atom we haven't already searched, mark it
+                        if ( ! searched[a] )
+                            {
+                                searched[a] = true;
+                                searchQueue[tail++] = a;
+                            }
+                    }
+            }
+
+        int[] returnArray = Arrays.copyOf(searchQueue, tail);
+        Arrays.sort(returnArray);
+        return returnArray;
+    }
+
+    /**
+     * Returns a new Topology with an extra bond.  If the atoms are already bonded,
+     * this is returned unchanged.
+     * @return the new topology
+     */
+    public Topology addBond(int i, int j, double bondOrder)
+    {
+        if ( isBonded(i,j) )
+            return this;
+        Builder builder = toBuilder();
+        builder.addBond(i, j, bondOrder);
+        return builder.build();
+    }
+
+    /**
+     * Returns a new Topology without the bond between i and j.  If the atoms are not
+     * bonded, this is returned unchanged.
+     * @return the new topology
+     */
+    public Topology removeBond(int i, int j)
+    {
+        if ( ! isBonded(i,j) )
+            return this;
+        Builder builder = new Builder(size);
+        for (int a=0; a < size; a++)
+            {
+                for (int position=offsets[a]; position < offsets[a+1]; position++)
+                    {
+                        int b = neighbors[position];
+                        if ( b > a && ! ( (a == i && b == j) || (a == j && b == i) ) )
+                            builder.addBond(a, b, bondOrders[position]);
+                    }
+            }
+        return builder.build();
+    }
+
+    /**
+     * Returns the disjoint union of this topology and another one.  The atoms of other
+     * are numbered after the atoms of this.
+     * @param other the topology to append
+     * @return the combined topology
+     */
+    public Topology combine(Topology other)
+    {
+        Builder builder = new Builder(size + other.size);
+        for (int a=0; a < size; a++)
+            {
+                for (int position=offsets[a]; position < offsets[a+1]; position++)
+                    if ( neighbors[position] > a )
+                        builder.addBond(a, neighbors[position], bondOrders[position]);
+            }
+        for (int a=0; a < other.size; a++)
+            {
+                for (int position=other.offsets[a]; position < other.offsets[a+1]; position++)
+                    if ( other.neighbors[position] > a )
+                        builder.addBond(size + a, size + other.neighbors[position], other.bondOrders[position]);
+            }
+        return builder.build();
+    }
+
+    /**
+     * Returns the topology induced by a subset of atoms.  Atom indices[k] of this
+     * becomes atom k of the result.  Bonds to atoms outside the subset are dropped.
+     * @param indices the atoms to keep
+     * @return the new topology
+     */
+    public Topology subset(int[] indices)
+    {
+        int[] newIndices = new int[size];
+        Arrays.fill(newIndices, -1);
+        for (int k=0; k < indices.length; k++)
+            newIndices[indices[k]] = k;
+        Builder builder = new Builder(indices.length);
+        for (int k=0; k < indices.length; k++)
+            {
+                int a = indices[k];
+                for (int position=offsets[a]; position < offsets[a+1]; position++)
+                    {
+                        int b = newIndices[neighbors[position]];
+                        if ( b > k )
+                            builder.addBond(k, b, bondOrders[position]);
+                    }
+            }
+        return builder.build();
+    }
+
+    /**
+     * Returns a Builder that contains all the bonds in this topology.
+     * @return the builder
+     */
+    public Builder toBuilder()
+    {
+        Builder builder = new Builder(size);
+        for (int a=0; a < size; a++)
+            {
+                for (int position=offsets[a]; position < offsets[a+1]; position++)
+                    if ( neighbors[position] > a )
+                        builder.addBond(a, neighbors[position], bondOrders[position]);
+            }
+        return builder;
+    }
+
+    /**
+     * Exports this topology as a jgrapht graph.  The result is a new, mutable object.
+     * @param atoms the vertices, indexed in the same order as this topology
+     * @return the connectivity graph with bond orders as edge weights
+     */
+    public SimpleWeightedGraph<Atom,DefaultWeightedEdge> toGraph(List<Atom> atoms)
+    {
+        if ( atoms.size() != size )
+            throw new IllegalArgumentException("expected " + size + " atoms, found " + atoms.size());
+        SimpleWeightedGraph<Atom,DefaultWeightedEdge> graph = new SimpleWeightedGraph<>(DefaultWeightedEdge.class);
+        for (Atom a : atoms)
+            graph.addVertex(a);
+        for (int a=0; a < size; a++)
+            {
+                for (int position=offsets[a]; position < offsets[a+1]; position++)
+                    {
+                        if ( neighbors[position] < a )
+                            continue;
+                        DefaultWeightedEdge e = graph.addEdge(atoms.get(a), atoms.get(neighbors[position]));
+                        if ( e != null )
+                            graph.setEdgeWeight(e, bondOrders[position]);
+                    }
+            }
+        return graph;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(size, Arrays.hashCode(offsets), Arrays.hashCode(neighbors), Arrays.hashCode(bondOrders));
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if ( obj == null )
+            return false;
+        if ( obj == this )
+            return true;
+        if ( !(obj instanceof Topology) )
+            return false;
+
+        Topology t = (Topology)obj;
+        return size == t.size &&
+               Arrays.equals(offsets, t.offsets) &&
+               Arrays.equals(neighbors, t.neighbors) &&
+               Arrays.equals(bondOrders, t.bondOrders);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("Topology (%d atoms, %d bonds)", size, getNumberOfBonds());
+    }
+
+    /**
+     * Accumulates bonds and creates a Topology.  Duplicate bonds are ignored, so the
+     * first bond order given for a pair of atoms is kept.  This class is not thread-safe.
+     */
+    public static class Builder
+    {
+        /** the number of atoms */
+        private final int size;
+
+        /** the bonds added so far as parallel arrays */
+        private int[] fromAtoms = new int[16];
+        private int[] toAtoms = new int[16];
+        private double[] orders = new double[16];
+        private int numberOfBonds = 0;
+
+        /** creates a builder for a topology with the specified number of atoms and no bonds */
+        public Builder(int size)
+        {
+            if ( size < 0 )
+                throw new IllegalArgumentException("size cannot be negative");
+            this.size = size;
+        }
+
+        /**
+         * Adds a bond between atoms i and j (0, 1, ..., n-1).
+         * @return this builder
+         */
+        public Builder addBond(int i, int j, double bondOrder)
+        {
+            if ( i < 0 || j < 0 || i >= size || j >= size )
+                throw new IllegalArgumentException("atom index out of range (" + i + ", " + j + ")");
+            if ( i == j )
+                throw new IllegalArgumentException("loops not allowed");
+            if ( numberOfBonds == fromAtoms.length )
+                {
+                    fromAtoms = Arrays.copyOf(fromAtoms, 2*numberOfBonds);
+                    toAtoms   = Arrays.copyOf(toAtoms,   2*numberOfBonds);
+                    orders    = Arrays.copyOf(orders,    2*numberOfBonds);
+                }
+            fromAtoms[numberOfBonds] = i;
+            toAtoms[numberOfBonds]   = j;
+            orders[numberOfBonds]    = bondOrder;
+            numberOfBonds++;
+            return this;
+        }
+
+        /**
+         * Creates the Topology.
+         * @return the topology containing all the bonds added so far
+         */
+        public Topology build()
+        {
+            // count the number of entries for each atom
+            int[] offsets = new int[size+1];
+            for (int b=0; b < numberOfBonds; b++)
+                {
+                    offsets[fromAtoms[b]+1]++;
+                    offsets[toAtoms[b]+1]++;
+                }
+            for (int i=0; i < size; i++)
+                offsets[i+1] += offsets[i];
+
+            // scatter both directions of each bond
+            int[] neighbors = new int[offsets[size]];
+            double[] bondOrders = new double[offsets[size]];
+            int[] fill = Arrays.copyOf(offsets, size);
+            for (int b=0; b < numberOfBonds; b++)
+                {
+                    int i = fromAtoms[b];
+                    int j = toAtoms[b];
+                    neighbors[fill[i]] = j;
+                    bondOrders[fill[i]++] = orders[b];
+                    neighbors[fill[j]] = i;
+                    bondOrders[fill[j]++] = orders[b];
+                }
+
+            // sort each row by insertion sort, which is stable, and drop duplicates
+            int[] newOffsets = new int[size+1];
+            int count = 0;
+            for (int i=0; i < size; i++)
+                {
+                    int start = offsets[i];
+                    int end = offsets[i+1];
+                    for (int p=start+1; p < end; p++)
+                        {
+                            int neighbor = neighbors[p];
+                            double order = bondOrders[p];
+                            int q = p-1;
+                            while ( q >= start && neighbors[q] > neighbor )
+                                {
+                                    neighbors[q+1] = neighbors[q];
+                                    bondOrders[q+1] = bondOrders[q];
+                                    q--;
+                                }
+                            neighbors[q+1] = neighbor;
+                            bondOrders[q+1] = order;
+                        }
+                    newOffsets[i] = count;
+                    for (int p=start; p < end; p++)
+                        {
+                            if ( p > start && neighbors[p] == neighbors[p-1] )
+                                continue;
+                            neighbors[count] = neighbors[p];
+                            bondOrders[count] = bondOrders[p];
+                            count++;
+                        }
+                }
+            newOffsets[size] = count;
+            if ( count < neighbors.length )
+                {
+                    neighbors = Arrays.copyOf(neighbors, count);
+                    bondOrders = Arrays.copyOf(bondOrders, count);
+                }
+            return new Topology(size, newOffsets, neighbors, bondOrders);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+import java.util.*;
+import java.util.function.*;
+import com.google.common.primitives.*;
+import com.google.common.collect.*;
+
+/**
+ * Scans one or more dihedral angles over a regular grid and streams the resulting geometries.
+ * For example:<p>
+ * <code>new TorsionDrive(molecule).addTorsion(11,12,13,14, 136.0, 74.0, -2.0).run(point -&gt; ...)</code><p>
+ * The rotating fragment and rotation axis of every torsion are found once when the torsion is
+ * added.  Each grid point is reached from its neighbor by rotating one fragment through one step
+ * on a packed coordinate array, so no graph searches or Atom objects are needed during the scan.
+ * Points are visited with the last torsion changing fastest.  Each row starts again from a saved
+ * copy of the coordinates, so rounding errors cannot build up over more than one row.<p>
+ * The torsions must be independent: rotating any one of them must not change the others.
+ * Optional adjustments, such as a constrained bond angle, are applied to every point before it is
+ * handed to the consumer.  Atom numbers are 1, 2, ..., n.  This class is mutable; the Points it
+ * produces are not.
+ */
+public class TorsionDrive
+{
+    /**
+     * A change that is made to every geometry after the dihedral angles have been set.
+     */
+    public interface Adjustment
+    {
+        /**
+         * Adjusts one point of the scan.
+         * @param molecule the geometry with the dihedral angles set
+         * @param dihedrals the requested dihedral angle for each torsion in degrees
+         * @return the adjusted geometry, or null to drop this point from the scan
+         */
+        Molecule adjust(Molecule molecule, double[] dihedrals);
+    }
+
+    /**
+     * One geometry from the scan.
+     */
+    public static class Point implements Immutable
+    {
+        /** the requested dihedral angle for each torsion in the order they were added, in degrees */
+        public final ImmutableList<Double> dihedrals;
+
+        /** the grid position of this point, counting from zero for each torsion */
+        public final ImmutableList<Integer> indices;
+
+        /** the geometry */
+        public final Molecule molecule;
+
+        private Point(double[] dihedrals, int[] indices, Molecule molecule)
+        {
+            this.dihedrals = ImmutableList.copyOf(Doubles.asList(dihedrals));
+            this.indices = ImmutableList.copyOf(Ints.asList(indices));
+            this.molecule = molecule;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s %s", dihedrals.toString(), molecule.name);
+        }
+    }
+
+    /** one dimension of the grid */
+    private static class Dimension
+    {
+        /** the atom indices 0, 1, ..., n-1 of the torsion */
+        final int index1, index2, index3, index4;
+
+        /** the atoms on the index3 side of the index2-index3 bond; shared with the topology */
+        final int[] atomsToRotate;
+
+        /** the first angle, the step, and the number of angles in degrees */
+        final double start, step;
+        final int count;
+
+        Dimension(int index1, int index2, int index3, int index4, int[] atomsToRotate, double start, double step, int count)
+        {
+            this.index1 = index1;
+            this.index2 = index2;
+            this.index3 = index3;
+            this.index4 = index4;
+            this.atomsToRotate = atomsToRotate;
+            this.start = start;
+            this.step = step;
+            this.count = count;
+        }
+
+        /** returns the requested angle at grid position i */
+        double getAngle(int i)
+        {
+            return start + i * step;
+        }
+
+        /** returns true if atom index i is moved by this torsion, as opposed to lying on its axis */
+        boolean moves(int i)
+        {
+            return i != index2 && i != index3 && Arrays.binarySearch(atomsToRotate, i) >= 0;
+        }
+    }
+
+    /** the starting geometry */
+    private final Molecule molecule;
+
+    /** the dimensions of the grid in the order they were added */
+    private final List<Dimension> dimensions = new ArrayList<>();
+
+    /** applied to every point in the order they were added */
+    private final List<Adjustment> adjustments = new ArrayList<>();
+
+    /**
+     * Creates a scan with no torsions.
+     * @param molecule the starting geometry
+     */
+    public TorsionDrive(Molecule molecule)
+    {
+        if ( molecule == null )
+            throw new NullPointerException("null molecule");
+        this.molecule = molecule;
+    }
+
+    /** converts an atom number to an index, checking the range */
+    private int getIndex(int atomNumber)
+    {
+        if ( atomNumber < 1 || atomNumber > molecule.contents.size() )
+            throw new IllegalArgumentException("atom number out of range: " + atomNumber);
+        return atomNumber - 1;
+    }
+
+    /**
+     * Adds a torsion to the scan.  The atom4 side of the atom2-atom3 bond is rotated.
+     * The angles are start, start+step, start+2*step, ... as far as end, inclusive.
+     * @param start the first dihedral angle in degrees
+     * @param end the last dihedral angle in degrees
+     * @param step the increment in degrees, which must be negative if end is less than start
+     */
+    public TorsionDrive addTorsion(int atomNumber1, int atomNumber2, int atomNumber3, int atomNumber4,
+                                   double start, double end, double step)
+    {
+        int index1 = getIndex(atomNumber1);
+        int index2 = getIndex(atomNumber2);
+        int index3 = getIndex(atomNumber3);
+        int index4 = getIndex(atomNumber4);
+        if ( ImmutableSet.of(index1, index2, index3, index4).size() != 4 )
+            throw new IllegalArgumentException("duplicate atom numbers");
+        if ( step == 0.0 || Double.isNaN(step) || ( end - start ) * step < 0.0 )
+            throw new IllegalArgumentException(String.format("cannot step from %.2f to %.2f in steps of %.2f", start, end, step));
+        if ( molecule.isRingBond(atomNumber2, atomNumber3) )
+            throw new IllegalArgumentException("cannot make a torsion about a ring bond: " + atomNumber2 + "-" + atomNumber3);
+        int[] atomsToRotate = molecule.getHalfGraphIndices(index2, index3);
+        if ( Arrays.binarySearch(atomsToRotate, index4) < 0 )
+            throw new IllegalArgumentException("atom " + atomNumber4 + " is not on the atom " + atomNumber3 + " side of the torsion");
+
+        // allow for rounding error in the number of steps
+        int count = (int)Math.floor((end - start) / step + 1.0E-9) + 1;
+        Dimension newDimension = new Dimension(index1, index2, index3, index4, atomsToRotate, start, step, count);
+
+        // every torsion must be rigid with respect to every other torsion
+        for (Dimension dimension : dimensions)
+            {
+                if ( splits(dimension, newDimension) || splits(newDimension, dimension) )
+                    throw new IllegalArgumentException(String.format("torsion %d-%d-%d-%d is coupled to torsion %d-%d-%d-%d",
+                                                       atomNumber1, atomNumber2, atomNumber3, atomNumber4,
+                                                       dimension.index1+1, dimension.index2+1, dimension.index3+1, dimension.index4+1));
+            }
+        dimensions.add(newDimension);
+        return this;
+    }
+
+    /** returns true if rotating the first torsion would change the dihedral angle of the second */
+    private static boolean splits(Dimension rotated, Dimension measured)
+    {
+        int moved = 0;
+        int fixed = 0;
+        for (int i : new int[] { measured.index1, measured.index2, measured.index3, measured.index4 })
+            {
+                if ( rotated.moves(i) )
+                    moved++;
+                else if ( i != rotated.index2 && i != rotated.index3 )
+                    fixed++;
+            }
+        return moved > 0 && fixed > 0;
+    }
+
+    /**
+     * Adds a change to be made to every point of the scan after the dihedral angles are set.
+     * Adjustments are applied in the order they were added.
+     * @param adjustment the change to make
+     */
+    public TorsionDrive addAdjustment(Adjustment adjustment)
+    {
+        if ( adjustment == null )
+            throw new NullPointerException("null adjustment");
+        adjustments.add(adjustment);
+        return this;
+    }
+
+    /**
+     * Returns the number of grid points, including any that adjustments may drop.
+     * @return the product of the number of angles for each torsion
+     */
+    public int getNumberOfPoints()
+    {
+        if ( dimensions.size() == 0 )
+            return 0;
+        int count = 1;
+        for (Dimension dimension : dimensions)
+            count *= dimension.count;
+        return count;
+    }
+
+    /**
+     * Visits every point of the scan in order.  Only one point is in memory at a time
+     * unless the consumer keeps it.
+     * @param consumer receives each point as soon as it has been made
+     */
+    public void run(Consumer<Point> consumer)
+    {
+        if ( dimensions.size() == 0 )
+            throw new IllegalArgumentException("no torsions to scan");
+        int numberOfDimensions = dimensions.size();
+        int last = numberOfDimensions - 1;
+
+        // rows[d] holds the geometry with every torsion after d at its first angle
+        double[][] rows = new double[numberOfDimensions][];
+        rows[0] = molecule.xyz.clone();
+        for (Dimension dimension : dimensions)
+            rotate(rows[0], dimension, dimension.start - Geometry.dihedral(rows[0], dimension.index1, dimension.index2,
+                                                                           dimension.index3, dimension.index4));
+        for (int d=1; d < numberOfDimensions; d++)
+            rows[d] = rows[0].clone();
+
+        int[] indices = new int[numberOfDimensions];
+        double[] dihedrals = new double[numberOfDimensions];
+        for (int d=0; d < numberOfDimensions; d++)
+            dihedrals[d] = dimensions.get(d).start;
+        double[] current = rows[last].clone();
+        while (true)
+            {
+                visit(current, dihedrals, indices, consumer);
+
+                // the last torsion just takes another step
+                if ( indices[last] + 1 < dimensions.get(last).count )
+                    {
+                        advance(current, last, indices, dihedrals);
+                        continue;
+                    }
+
+                // otherwise find the next torsion that can take a step and start its row again
+                int d = last - 1;
+                while ( d >= 0 && indices[d] + 1 >= dimensions.get(d).count )
+                    d--;
+                if ( d < 0 )
+                    break;
+                advance(rows[d], d, indices, dihedrals);
+                for (int e=d+1; e < numberOfDimensions; e++)
+                    {
+                        if ( e < last )
+                            System.arraycopy(rows[d], 0, rows[e], 0, rows[d].length);
+                        indices[e] = 0;
+                        dihedrals[e] = dimensions.get(e).start;
+                    }
+                System.arraycopy(rows[d], 0, current, 0, current.length);
+            }
+    }
+
+    /** moves dimension d one step forward in xyz */
+    private void advance(double[] xyz, int d, int[] indices, double[] dihedrals)
+    {
+        Dimension dimension = dimensions.get(d);
+        indices[d]++;
+        dihedrals[d] = dimension.getAngle(indices[d]);
+        rotate(xyz, dimension, dimension.step);
+    }
+
+    /** makes a point from the current coordinates, adjusts it, and hands it over */
+    private void visit(double[] xyz, double[] dihedrals, int[] indices, Consumer<Point> consumer)
+    {
+        Molecule newMolecule = molecule.withPositions(xyz.clone());
+        for (Adjustment adjustment : adjustments)
+            {
+                newMolecule = adjustment.adjust(newMolecule, dihedrals.clone());
+                if ( newMolecule == null )
+                    return;
+            }
+        consumer.accept(new Point(dihedrals, indices, newMolecule));
+    }
+
+    /** increases the dihedral angle of the given torsion by delta degrees in place */
+    private static void rotate(double[] xyz, Dimension dimension, double delta)
+    {
+        int index2 = dimension.index2;
+        int index3 = dimension.index3;
+        double ox = xyz[3*index3];
+        double oy = xyz[3*index3+1];
+        double oz = xyz[3*index3+2];
+        double[] matrix = Geometry.rotationMatrix(xyz[3*index2] - ox, xyz[3*index2+1] - oy, xyz[3*index2+2] - oz,
+                                                  Math.toRadians(-delta));
+        Geometry.rotate(xyz, dimension.atomsToRotate, matrix, ox, oy, oz);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder("TorsionDrive:\n");
+        for (Dimension d : dimensions)
+            builder.append(String.format("%d-%d-%d-%d: %.2f to %.2f by %.2f (%d points)\n", d.index1+1, d.index2+1, d.index3+1,
+                                         d.index4+1, d.start, d.getAngle(d.count-1), d.step, d.count));
+        return builder.toString();
+    }
+}
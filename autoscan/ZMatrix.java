@@ -0,0 +1,491 @@
+import java.util.*;
+import com.google.common.collect.*;
+
+/**
+ * An internal-coordinate (Z-matrix) representation of a molecule.  Each atom after the first
+ * is placed by a distance to a reference atom, an angle to a second reference atom, and a
+ * dihedral angle to a third, and atoms are placed in breadth-first order along the bonds.
+ * Edits only change the stored values, and toMolecule() rebuilds every position in a single
+ * linear pass with the natural extension reference frame (NeRF) method.<p>
+ * When several atoms hang off the same bond, the first one uses a true torsion and the others
+ * use their torsion relative to the first.  Changing the first torsion therefore rotates the
+ * whole fragment, and rotateTorsion() turns a bond in constant time.  The rebuilt molecule
+ * keeps the position and orientation of the original first three atoms.<p>
+ * The molecule should be acyclic.  Rings are cut where the breadth-first spanning tree leaves
+ * them, so editing a value inside a ring will not keep the ring closed.  Atom numbers in the
+ * public methods are 1, 2, ..., n in the original molecule's order.  This class is mutable and
+ * is intended to be used from one thread.
+ */
+public class ZMatrix
+{
+    /** the molecule this Z-matrix was made from */
+    public final Molecule molecule;
+
+    /** the atom indices (0, 1, ..., n-1) in the order they are placed */
+    private final int[] order;
+
+    /** the reference atom indices of each atom for the distance, angle, and dihedral, or -1 if not used */
+    private final int[] distanceReference, angleReference, dihedralReference;
+
+    /** the values that place each atom in angstroms and degrees */
+    private final double[] distances, angles, dihedrals;
+
+    /** the position of the first atom and the orientation of the first three atoms */
+    private final double[] origin;
+    private final double[] frame;
+
+    /**
+     * Creates a Z-matrix that reproduces the current geometry of a molecule.
+     * @param molecule the molecule to convert
+     */
+    public ZMatrix(Molecule molecule)
+    {
+        this.molecule = molecule;
+        int n = molecule.contents.size();
+        double[] xyz = molecule.xyz;
+        Topology topology = molecule.topology;
+
+        // breadth-first spanning forest; each new tree starts at its lowest-numbered atom
+        order = new int[n];
+        int[] parent = new int[n];
+        Arrays.fill(parent, -1);
+        boolean[] placed = new boolean[n];
+        int count = 0;
+        for (int root=0; root < n; root++)
+            {
+                if ( placed[root] )
+                    continue;
+                int head = count;
+                order[count++] = root;
+                placed[root] = true;
+                while ( head < count )
+                    {
+                        int current = order[head++];
+                        for (int k=0; k < topology.getDegree(current); k++)
+                            {
+                                int neighbor = topology.getNeighbor(current, k);
+                                if ( placed[neighbor] )
+                                    continue;
+                                placed[neighbor] = true;
+                                parent[neighbor] = current;
+                                order[count++] = neighbor;
+                            }
+                    }
+            }
+
+        // choose references from atoms that have already been placed
+        distanceReference = new int[n];
+        angleReference = new int[n];
+        dihedralReference = new int[n];
+        Arrays.fill(distanceReference, -1);
+        Arrays.fill(angleReference, -1);
+        Arrays.fill(dihedralReference, -1);
+        int[] position = new int[n];
+        for (int k=0; k < n; k++)
+            position[order[k]] = k;
+        for (int k=1; k < n; k++)
+            {
+                int i = order[k];
+                int a = parent[i] >= 0 ? parent[i] : nearest(xyz, i, order, k, -1, -1);
+                distanceReference[i] = a;
+                if ( k < 2 )
+                    continue;
+
+                int b = parent[a] >= 0 ? parent[a] : -1;
+                if ( b < 0 )
+                    b = firstPlacedNeighbor(topology, a, i, -1, position, k);
+                if ( b < 0 )
+                    b = nearest(xyz, a, order, k, a, -1);
+                angleReference[i] = b;
+                if ( k < 3 )
+                    continue;
+
+                // prefer an earlier sibling so that the first torsion about a-b moves the whole fragment
+                int c = -1;
+                if ( parent[i] == a && parent[a] == b )
+                    {
+                        int sibling = firstPlacedNeighbor(topology, a, b, i, position, k);
+                        if ( sibling >= 0 && parent[sibling] == a && !isCollinear(xyz, sibling, a, b) )
+                            c = sibling;
+                    }
+                if ( c < 0 && parent[b] >= 0 && parent[b] != a && !isCollinear(xyz, a, b, parent[b]) )
+                    c = parent[b];
+                if ( c < 0 )
+                    {
+                        int neighbor = firstPlacedNeighbor(topology, b, a, i, position, k);
+                        if ( neighbor >= 0 && !isCollinear(xyz, a, b, neighbor) )
+                            c = neighbor;
+                    }
+                if ( c < 0 )
+                    {
+                        for (int m=0; m < k && c < 0; m++)
+                            if ( order[m] != a && order[m] != b && !isCollinear(xyz, a, b, order[m]) )
+                                c = order[m];
+                    }
+                if ( c < 0 )
+                    c = nearest(xyz, b, order, k, a, b);
+                dihedralReference[i] = c;
+            }
+
+        // measure the values
+        distances = new double[n];
+        angles = new double[n];
+        dihedrals = new double[n];
+        for (int i=0; i < n; i++)
+            {
+                if ( distanceReference[i] >= 0 )
+                    distances[i] = Geometry.distance(xyz, i, distanceReference[i]);
+                if ( angleReference[i] >= 0 )
+                    angles[i] = Geometry.angle(xyz, i, distanceReference[i], angleReference[i]);
+                if ( dihedralReference[i] >= 0 )
+                    dihedrals[i] = Geometry.dihedral(xyz, i, distanceReference[i], angleReference[i], dihedralReference[i]);
+            }
+
+        // remember where the first three atoms were so the rebuilt molecule does not move
+        origin = new double[3];
+        frame = new double[] { 1.0, 0.0, 0.0, 0.0, 1.0, 0.0, 0.0, 0.0, 1.0 };
+        if ( n > 0 )
+            System.arraycopy(xyz, 3*order[0], origin, 0, 3);
+        if ( n > 1 )
+            {
+                double[] e1 = new double[3];
+                for (int d=0; d < 3; d++)
+                    e1[d] = xyz[3*order[1]+d] - origin[d];
+                normalize(e1);
+                double[] e2 = perpendicular(e1);
+                if ( n > 2 )
+                    {
+                        double[] v = new double[3];
+                        for (int d=0; d < 3; d++)
+                            v[d] = xyz[3*order[2]+d] - origin[d];
+                        double projection = dot(v, e1);
+                        for (int d=0; d < 3; d++)
+                            v[d] -= projection * e1[d];
+                        if ( dot(v, v) > 1.0E-12 )
+                            e2 = v;
+                    }
+                normalize(e2);
+                double[] e3 = cross(e1, e2);
+                for (int d=0; d < 3; d++)
+                    {
+                        frame[3*d]   = e1[d];
+                        frame[3*d+1] = e2[d];
+                        frame[3*d+2] = e3[d];
+                    }
+            }
+    }
+
+    /** returns the placed atom closest to atom i, skipping the given atoms */
+    private static int nearest(double[] xyz, int i, int[] order, int placed, int skip1, int skip2)
+    {
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int m=0; m < placed; m++)
+            {
+                int j = order[m];
+                if ( j == i || j == skip1 || j == skip2 )
+                    continue;
+                double distance = Geometry.distance(xyz, i, j);
+                if ( distance < bestDistance )
+                    {
+                        bestDistance = distance;
+                        best = j;
+                    }
+            }
+        return best;
+    }
+
+    /** returns the first neighbor of atom a that was placed before position k, skipping the given atoms */
+    private static int firstPlacedNeighbor(Topology topology, int a, int skip1, int skip2, int[] position, int k)
+    {
+        for (int m=0; m < topology.getDegree(a); m++)
+            {
+                int neighbor = topology.getNeighbor(a, m);
+                if ( neighbor != skip1 && neighbor != skip2 && position[neighbor] < k )
+                    return neighbor;
+            }
+        return -1;
+    }
+
+    /** returns true if the angle a-b-c is within about 3 degrees of 0 or 180 */
+    private static boolean isCollinear(double[] xyz, int a, int b, int c)
+    {
+        double angle = Geometry.angle(xyz, a, b, c);
+        return angle < 3.0 || angle > 177.0;
+    }
+
+    /** converts an atom number to an index, checking the range */
+    private int getIndex(int atomNumber)
+    {
+        if ( atomNumber < 1 || atomNumber > order.length )
+            throw new IllegalArgumentException("atom number out of range: " + atomNumber);
+        return atomNumber - 1;
+    }
+
+    /**
+     * Returns the atoms in the order they are placed.  This is the atom order of toGaussianString().
+     * @return the atom numbers
+     */
+    public List<Integer> getOrder()
+    {
+        List<Integer> returnList = new ArrayList<>(order.length);
+        for (int i : order)
+            returnList.add(i+1);
+        return ImmutableList.copyOf(returnList);
+    }
+
+    /**
+     * Returns the atoms that place the given atom.
+     * @return the atom numbers of the distance, angle, and dihedral references; 0 where a reference is not used
+     */
+    public int[] getReferences(int atomNumber)
+    {
+        int i = getIndex(atomNumber);
+        return new int[] { distanceReference[i]+1, angleReference[i]+1, dihedralReference[i]+1 };
+    }
+
+    /** @return the distance from the atom to its first reference in angstroms */
+    public double getDistance(int atomNumber)
+    {
+        return distances[getIndex(atomNumber)];
+    }
+
+    /** @return the angle between the atom and its first two references in degrees */
+    public double getAngle(int atomNumber)
+    {
+        return angles[getIndex(atomNumber)];
+    }
+
+    /** @return the dihedral angle between the atom and its three references in degrees */
+    public double getDihedral(int atomNumber)
+    {
+        return dihedrals[getIndex(atomNumber)];
+    }
+
+    /**
+     * Sets the distance that places an atom.  The atom and everything placed from it move.
+     * @param distance the new distance in angstroms
+     */
+    public ZMatrix setDistance(int atomNumber, double distance)
+    {
+        int i = getIndex(atomNumber);
+        if ( distanceReference[i] < 0 )
+            throw new IllegalArgumentException("atom " + atomNumber + " is not placed by a distance");
+        distances[i] = distance;
+        return this;
+    }
+
+    /**
+     * Sets the angle that places an atom.
+     * @param angle the new angle in degrees
+     */
+    public ZMatrix setAngle(int atomNumber, double angle)
+    {
+        int i = getIndex(atomNumber);
+        if ( angleReference[i] < 0 )
+            throw new IllegalArgumentException("atom " + atomNumber + " is not placed by an angle");
+        angles[i] = angle;
+        return this;
+    }
+
+    /**
+     * Sets the dihedral angle that places an atom.
+     * @param dihedral the new dihedral angle in degrees
+     */
+    public ZMatrix setDihedral(int atomNumber, double dihedral)
+    {
+        int i = getIndex(atomNumber);
+        if ( dihedralReference[i] < 0 )
+            throw new IllegalArgumentException("atom " + atomNumber + " is not placed by a dihedral angle");
+        dihedrals[i] = dihedral;
+        return this;
+    }
+
+    /**
+     * Rotates everything on the atom3 side of the atom2-atom3 bond about that bond.  This only
+     * changes the dihedral angles of the atoms placed directly from the bond that use a true
+     * torsion; atoms placed relative to them follow automatically.
+     * @param atomNumber2 the fixed end of the bond
+     * @param atomNumber3 the moving end of the bond; must have been placed from atomNumber2
+     * @param degrees the rotation in degrees
+     */
+    public ZMatrix rotateTorsion(int atomNumber2, int atomNumber3, double degrees)
+    {
+        int b = getIndex(atomNumber2);
+        int a = getIndex(atomNumber3);
+        if ( distanceReference[a] != b )
+            throw new IllegalArgumentException(String.format("atom %d is not placed from atom %d", atomNumber3, atomNumber2));
+        boolean found = false;
+        for (int i=0; i < order.length; i++)
+            {
+                if ( distanceReference[i] != a || angleReference[i] != b || dihedralReference[i] < 0 )
+                    continue;
+                int c = dihedralReference[i];
+                if ( distanceReference[c] == a && angleReference[c] == b )
+                    continue;
+                dihedrals[i] += degrees;
+                found = true;
+            }
+        if ( !found )
+            throw new IllegalArgumentException(String.format("no torsion about the %d-%d bond", atomNumber2, atomNumber3));
+        return this;
+    }
+
+    /**
+     * Converts this Z-matrix to Cartesian coordinates in one pass.
+     * @param xyz overwritten with the packed coordinates; must have length 3n
+     */
+    public void toCartesian(double[] xyz)
+    {
+        if ( xyz.length != 3*order.length )
+            throw new IllegalArgumentException("coordinate array has the wrong length");
+
+        // place the atoms in a standard frame: first atom at the origin, second on +x, third in the xy plane
+        for (int k=0; k < order.length; k++)
+            {
+                int i = order[k];
+                if ( k == 0 )
+                    {
+                        xyz[3*i] = xyz[3*i+1] = xyz[3*i+2] = 0.0;
+                        continue;
+                    }
+                int a = distanceReference[i];
+                double r = distances[i];
+                if ( k == 1 )
+                    {
+                        xyz[3*i]   = xyz[3*a] + r;
+                        xyz[3*i+1] = xyz[3*a+1];
+                        xyz[3*i+2] = xyz[3*a+2];
+                        continue;
+                    }
+                int b = angleReference[i];
+                double theta = Math.toRadians(angles[i]);
+
+                // unit vector from b to a
+                double bcx = xyz[3*a]   - xyz[3*b];
+                double bcy = xyz[3*a+1] - xyz[3*b+1];
+                double bcz = xyz[3*a+2] - xyz[3*b+2];
+                double norm = Math.sqrt(bcx*bcx + bcy*bcy + bcz*bcz);
+                bcx /= norm;
+                bcy /= norm;
+                bcz /= norm;
+
+                // n is normal to the c-b-a plane and m completes the frame; the third atom goes toward +y
+                double nx, ny, nz, mx, my, mz;
+                if ( k == 2 )
+                    {
+                        nx = ny = mx = mz = 0.0;
+                        nz = my = 1.0;
+                    }
+                else
+                    {
+                        int c = dihedralReference[i];
+                        double cbx = xyz[3*b]   - xyz[3*c];
+                        double cby = xyz[3*b+1] - xyz[3*c+1];
+                        double cbz = xyz[3*b+2] - xyz[3*c+2];
+                        nx = cby*bcz - cbz*bcy;
+                        ny = cbz*bcx - cbx*bcz;
+                        nz = cbx*bcy - cby*bcx;
+                        norm = Math.sqrt(nx*nx + ny*ny + nz*nz);
+                        nx /= norm;
+                        ny /= norm;
+                        nz /= norm;
+                        mx = ny*bcz - nz*bcy;
+                        my = nz*bcx - nx*bcz;
+                        mz = nx*bcy - ny*bcx;
+                    }
+
+                double phi = k == 2 ? 0.0 : Math.toRadians(dihedrals[i]);
+                double d1 = -r * Math.cos(theta);
+                double d2 = r * Math.sin(theta) * Math.cos(phi);
+                double d3 = r * Math.sin(theta) * Math.sin(phi);
+                xyz[3*i]   = xyz[3*a]   + d1*bcx + d2*mx + d3*nx;
+                xyz[3*i+1] = xyz[3*a+1] + d1*bcy + d2*my + d3*ny;
+                xyz[3*i+2] = xyz[3*a+2] + d1*bcz + d2*mz + d3*nz;
+            }
+
+        // move the standard frame onto the original first three atoms
+        for (int i=0; i < order.length; i++)
+            {
+                double x = xyz[3*i];
+                double y = xyz[3*i+1];
+                double z = xyz[3*i+2];
+                xyz[3*i]   = origin[0] + frame[0]*x + frame[1]*y + frame[2]*z;
+                xyz[3*i+1] = origin[1] + frame[3]*x + frame[4]*y + frame[5]*z;
+                xyz[3*i+2] = origin[2] + frame[6]*x + frame[7]*y + frame[8]*z;
+            }
+    }
+
+    /**
+     * Creates a molecule with the geometry described by this Z-matrix.  The atoms, connectivity,
+     * and atom order are the same as in the original molecule.
+     * @return the new molecule
+     */
+    public Molecule toMolecule()
+    {
+        double[] xyz = new double[3*order.length];
+        toCartesian(xyz);
+        return molecule.withPositions(xyz);
+    }
+
+    /**
+     * Writes the geometry as a Gaussian Z-matrix with the values inline.  Gaussian numbers the
+     * atoms in the order of getOrder(), so any atom numbers in a modredundant section must use
+     * that order.
+     * @return one line per atom, without charge and multiplicity
+     */
+    public String toGaussianString()
+    {
+        int[] zNumber = new int[order.length];
+        for (int k=0; k < order.length; k++)
+            zNumber[order[k]] = k+1;
+        StringBuilder builder = new StringBuilder();
+        for (int k=0; k < order.length; k++)
+            {
+                int i = order[k];
+                builder.append(String.format("%-2s", molecule.elements[i].symbol));
+                if ( distanceReference[i] >= 0 )
+                    builder.append(String.format(" %4d %12.6f", zNumber[distanceReference[i]], distances[i]));
+                if ( angleReference[i] >= 0 )
+                    builder.append(String.format(" %4d %12.6f", zNumber[angleReference[i]], angles[i]));
+                if ( dihedralReference[i] >= 0 )
+                    builder.append(String.format(" %4d %12.6f", zNumber[dihedralReference[i]], dihedrals[i]));
+                builder.append("\n");
+            }
+        return builder.toString();
+    }
+
+    /** returns the dot product of two 3-vectors */
+    private static double dot(double[] a, double[] b)
+    {
+        return a[0]*b[0] + a[1]*b[1] + a[2]*b[2];
+    }
+
+    /** returns the cross product of two 3-vectors */
+    private static double[] cross(double[] a, double[] b)
+    {
+        return new double[] { a[1]*b[2] - a[2]*b[1], a[2]*b[0] - a[0]*b[2], a[0]*b[1] - a[1]*b[0] };
+    }
+
+    /** scales a 3-vector to unit length in place */
+    private static void normalize(double[] a)
+    {
+        double norm = Math.sqrt(dot(a, a));
+        a[0] /= norm;
+        a[1] /= norm;
+        a[2] /= norm;
+    }
+
+    /** returns some vector perpendicular to a */
+    private static double[] perpendicular(double[] a)
+    {
+        double[] other = Math.abs(a[0]) < 0.9 ? new double[] { 1.0, 0.0, 0.0 } : new double[] { 0.0, 1.0, 0.0 };
+        return cross(a, other);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ZMatrix (%d atoms)", order.length);
+    }
+}